@@ -0,0 +1,118 @@
+package io.nawa.kobo.mrz;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The archive mode of the {@link HandBackPipeline}: the fields and images of a scan are packed
+ * into one {@link ScanArchive}, which is the only file handed back. Runs on the hand-back thread.
+ */
+class ArchiveHandBack {
+
+    private final HandBackPipeline pipeline;
+    private final Context context;
+    private final SubmissionCache submissionCache;
+    private final DuplicateChecks duplicates;
+    private final ScanRecovery recovery;
+    private final ResultRedelivery redelivery;
+
+    ArchiveHandBack(
+        HandBackPipeline pipeline,
+        Context context,
+        SubmissionCache submissionCache,
+        DuplicateChecks duplicates,
+        ScanRecovery recovery,
+        ResultRedelivery redelivery
+    ) {
+        this.pipeline = pipeline;
+        this.context = context;
+        this.submissionCache = submissionCache;
+        this.duplicates = duplicates;
+        this.recovery = recovery;
+        this.redelivery = redelivery;
+    }
+
+    /**
+     * Packs the fields and the written images of a scan into one {@link ScanArchive}, commits it
+     * as the only file of its submission and hands back its URI.
+     *
+     * @param imageFiles The written images keyed by image name; their smaller versions are taken
+     *                   from the staging directory.
+     * @param quality The scores of the images, added to the extras.
+     */
+    void handBack(
+        LaunchOptions options,
+        IntentUtils.Data fields,
+        File stagingDir,
+        Map<String, File> imageFiles,
+        Map<String, QualityAnalyzer.Score> quality,
+        long handBackStart,
+        HandBackPipeline.SendDataCallback callback
+    ) {
+        HandBackMetrics metrics = HandBackMetrics.global();
+        ScanRecord record = fields.withImageUris(null, null, null).toRecord();
+        File submissionDir;
+        long journalSequence;
+        Intent intent;
+        try {
+            // The face is hashed before its file goes into the archive
+            Map<String, Object> checks = new LinkedHashMap<>();
+            duplicates.putDuplicate(checks, "", record.documentNumber);
+            duplicates.putFaceMatch(checks, "", stagingDir, record.documentNumber);
+            ScanExtras.putQuality(checks, "", quality);
+
+            Map<String, File> entries = new LinkedHashMap<>();
+            for (Map.Entry<String, File> image : imageFiles.entrySet()) {
+                entries.put(image.getValue().getName(), image.getValue());
+                for (File version : ResolutionLadder.findVersions(stagingDir, image.getKey()).values()) {
+                    entries.put(version.getName(), version);
+                }
+            }
+            long start = HandBackMetrics.start();
+            File archive = new File(stagingDir, ScanArchive.FILE_NAME);
+            long bytes = ScanArchive.write(archive, record, fields.dependentsInfo, entries);
+            for (File file : entries.values()) {
+                file.delete();
+            }
+            metrics.record(HandBackMetrics.Stage.ARCHIVE, start, bytes);
+
+            start = HandBackMetrics.start();
+            submissionDir = submissionCache.commit(stagingDir, Collections.singletonList(archive));
+            metrics.record(HandBackMetrics.Stage.COMMIT, start, 0);
+
+            journalSequence = recovery.append(record, fields.dependentsInfo, submissionDir);
+            intent = buildIntent(new File(submissionDir, ScanArchive.FILE_NAME), checks);
+            redelivery.keep(options, record, fields.dependentsInfo, submissionDir);
+        } catch (IOException | RuntimeException e) {
+            submissionCache.discard(stagingDir);
+            pipeline.failHandBack(handBackStart, "Failed to write the scan archive: " + e.getMessage(), Collections.emptyMap(), callback);
+            return;
+        }
+        pipeline.commitResult(
+            options, intent, submissionDir, journalSequence, Collections.singletonList(record.documentNumber), handBackStart,
+            callback);
+    }
+
+    /**
+     * Builds the result Intent handing back a {@link ScanArchive}: its URI, granted, and the
+     * checks of the scan.
+     *
+     * @param extras The duplicate checks and quality scores, see {@link ScanExtras}; may be empty.
+     */
+    Intent buildIntent(File archive, Map<String, Object> extras) {
+        long start = HandBackMetrics.start();
+        Intent intent = new Intent();
+        Uri uri = FileUtils.getUriForFile(context, archive);
+        extras.put(ScanExtras.EXTRA_ARCHIVE_URI, uri.toString());
+        IntentUtils.putExtras(intent, extras);
+        HandBackPipeline.grantUris(intent, "archive", ScanArchive.MIME_TYPE, Collections.singletonList(uri));
+        HandBackMetrics.global().record(HandBackMetrics.Stage.EXTRAS, start, ParcelSize.of(extras));
+        return intent;
+    }
+}
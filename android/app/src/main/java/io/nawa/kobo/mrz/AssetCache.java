@@ -0,0 +1,248 @@
+package io.nawa.kobo.mrz;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-process LRU cache of the web bundle, so the JS and CSS of the app are read and inflated
+ * from the APK once per process instead of on every launch by KoboCollect.
+ *
+ * <p>The build lists the assets to load ahead of their first request in {@link #PRELOAD_LIST}.
+ * The least recently served assets are evicted beyond the byte budget.
+ */
+public class AssetCache {
+
+    /** List of the assets to preload, critical chunks first, written next to index.html by the build. */
+    public static final String PRELOAD_LIST = "preload.txt";
+
+    public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    private static final int READ_BUFFER_BYTES = 16 * 1024;
+
+    /**
+     * Opens the files of the bundle.
+     */
+    public interface Source {
+        /**
+         * @param path A path relative to the bundle root, e.g. {@code main-XXXX.js}.
+         * @return The file.
+         * @throws FileNotFoundException If there is no such file.
+         * @throws IOException If it cannot be opened.
+         */
+        InputStream open(String path) throws IOException;
+    }
+
+    /**
+     * A cached asset.
+     */
+    public static class Entry {
+        public final byte[] bytes;
+        public final String mimeType;
+
+        Entry(byte[] bytes, String mimeType) {
+            this.bytes = bytes;
+            this.mimeType = mimeType;
+        }
+    }
+
+    private final Source source;
+    private final long maxBytes;
+
+    /** Cached assets in access order; guarded by this. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+    private long servedBytes;
+
+    public AssetCache(Source source, long maxBytes) {
+        this.source = source;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns an asset, loading and caching it on a miss. Loads run outside the lock, so a
+     * preload does not hold up assets already cached.
+     *
+     * @param path A path relative to the bundle root, without a leading slash.
+     * @return The asset, or null if it is not part of the bundle.
+     * @throws IOException If it cannot be read.
+     */
+    public Entry get(String path) throws IOException {
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                hits++;
+                servedBytes += entry.bytes.length;
+                return entry;
+            }
+            misses++;
+        }
+        Entry entry = load(path);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (this) {
+            servedBytes += entry.bytes.length;
+            put(path, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Loads assets into the cache ahead of their first request, stopping once the budget is used.
+     *
+     * @param paths Paths relative to the bundle root, most important first.
+     * @return The number of assets loaded.
+     */
+    public int preload(List<String> paths) {
+        int loaded = 0;
+        for (String path : paths) {
+            synchronized (this) {
+                if (cachedBytes >= maxBytes) {
+                    break;
+                }
+                if (entries.containsKey(path)) {
+                    continue;
+                }
+            }
+            try {
+                Entry entry = load(path);
+                if (entry != null) {
+                    synchronized (this) {
+                        put(path, entry);
+                    }
+                    loaded++;
+                }
+            } catch (IOException ignored) {
+                // Loaded on request instead
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Reads the {@link #PRELOAD_LIST} of the bundle.
+     *
+     * @return The paths it lists, or an empty list if the build wrote none.
+     */
+    public List<String> readPreloadList() {
+        List<String> paths = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+            new InputStreamReader(source.open(PRELOAD_LIST), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    paths.add(line);
+                }
+            }
+        } catch (IOException ignored) {
+            // No list, nothing to preload
+        }
+        return paths;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Bytes returned by {@link #get}. */
+    public synchronized long getServedBytes() {
+        return servedBytes;
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    private void put(String path, Entry entry) {
+        if (entry.bytes.length > maxBytes) {
+            // An asset larger than the whole budget is served once and not kept
+            return;
+        }
+        Entry previous = entries.put(path, entry);
+        if (previous != null) {
+            cachedBytes -= previous.bytes.length;
+        }
+        cachedBytes += entry.bytes.length;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            if (evicted.getValue() != entry) {
+                cachedBytes -= evicted.getValue().bytes.length;
+                eldest.remove();
+            }
+        }
+    }
+
+    private Entry load(String path) throws IOException {
+        try (InputStream in = source.open(path)) {
+            return new Entry(readFully(in), mimeTypeOf(path));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(READ_BUFFER_BYTES);
+        byte[] buffer = new byte[READ_BUFFER_BYTES];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return The MIME type of a bundle file by its extension, or null if it is not served from
+     *         the cache.
+     */
+    public static String mimeTypeOf(String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || path.lastIndexOf('/') > dot) {
+            return null;
+        }
+        switch (path.substring(dot + 1).toLowerCase(Locale.ROOT)) {
+            case "js":
+            case "mjs":
+                return "application/javascript";
+            case "css":
+                return "text/css";
+            case "json":
+                return "application/json";
+            case "svg":
+                return "image/svg+xml";
+            case "woff2":
+                return "font/woff2";
+            case "woff":
+                return "font/woff";
+            case "ttf":
+                return "font/ttf";
+            case "png":
+                return "image/png";
+            case "jpg":
+            case "jpeg":
+                return "image/jpeg";
+            case "ico":
+                return "image/x-icon";
+            default:
+                return null;
+        }
+    }
+}
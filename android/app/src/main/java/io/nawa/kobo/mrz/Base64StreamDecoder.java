@@ -0,0 +1,193 @@
+package io.nawa.kobo.mrz;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Decodes Base64 text straight into a byte channel through a pooled, fixed-size buffer, so the
+ * decoded payload is never held in memory as a whole.
+ *
+ * <p>Input can be fed in several pieces; a partial 4-character group is carried over to the
+ * next call. Line breaks and other whitespace are skipped and padding is optional, as with
+ * {@code android.util.Base64.DEFAULT}. Unlike DEFAULT, the URL-safe characters {@code -} and
+ * {@code _} are accepted too, so either alphabet decodes.
+ */
+public class Base64StreamDecoder implements Closeable {
+
+    private static final byte SKIP = -2;
+    private static final byte PAD = -3;
+    private static final byte INVALID = -1;
+    private static final byte[] DECODE_TABLE = new byte[128];
+
+    static {
+        java.util.Arrays.fill(DECODE_TABLE, INVALID);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE_TABLE[alphabet.charAt(i)] = (byte) i;
+        }
+        DECODE_TABLE['+'] = 62;
+        DECODE_TABLE['-'] = 62;
+        DECODE_TABLE['/'] = 63;
+        DECODE_TABLE['_'] = 63;
+        DECODE_TABLE['='] = PAD;
+        DECODE_TABLE[' '] = SKIP;
+        DECODE_TABLE['\t'] = SKIP;
+        DECODE_TABLE['\n'] = SKIP;
+        DECODE_TABLE['\r'] = SKIP;
+    }
+
+    private final WritableByteChannel out;
+    private ByteBuffer buffer;
+    private int quantum;
+    private int quantumChars;
+    private boolean padded;
+    private long bytesWritten;
+
+    /**
+     * @param out The channel receiving the decoded bytes. It is not closed by this decoder.
+     */
+    public Base64StreamDecoder(WritableByteChannel out) {
+        this.out = out;
+        this.buffer = BufferPool.acquire();
+    }
+
+    /**
+     * Decodes a whole Base64 string or {@code data:} URL into a channel.
+     *
+     * @param base64 Base64 text, optionally prefixed with {@code data:<mime>;base64,}.
+     * @param out The channel receiving the decoded bytes.
+     * @return The number of bytes written.
+     * @throws IOException If the text is not valid Base64 or the channel fails.
+     */
+    public static long decodeDataUrl(CharSequence base64, WritableByteChannel out) throws IOException {
+        try (Base64StreamDecoder decoder = new Base64StreamDecoder(out)) {
+            decoder.decode(base64, payloadStart(base64), base64.length());
+            return decoder.finish();
+        }
+    }
+
+    /**
+     * Finds where the Base64 payload of a {@code data:} URL starts, without copying the string.
+     *
+     * @param text A data URL or plain Base64 text.
+     * @return The index of the first payload character.
+     * @throws IOException If the text is a data URL without a comma separator.
+     */
+    public static int payloadStart(CharSequence text) throws IOException {
+        if (!startsWith(text, "data:")) {
+            return 0;
+        }
+        for (int i = 5; i < text.length(); i++) {
+            if (text.charAt(i) == ',') {
+                return i + 1;
+            }
+        }
+        throw new IOException("Malformed data URL: missing ',' separator");
+    }
+
+    private static boolean startsWith(CharSequence text, String prefix) {
+        if (text.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a range of Base64 characters, writing every full buffer to the channel.
+     *
+     * @param src The Base64 text.
+     * @param start Index of the first character to decode.
+     * @param end Index after the last character to decode.
+     * @throws IOException If an invalid character is found or the channel fails.
+     */
+    public void decode(CharSequence src, int start, int end) throws IOException {
+        if (buffer == null) {
+            throw new IOException("Decoder is closed");
+        }
+        for (int i = start; i < end; i++) {
+            char c = src.charAt(i);
+            byte value = c < 128 ? DECODE_TABLE[c] : INVALID;
+            if (value >= 0) {
+                if (padded) {
+                    throw new IOException("Invalid Base64: data after padding at index " + i);
+                }
+                quantum = (quantum << 6) | value;
+                if (++quantumChars == 4) {
+                    if (buffer.remaining() < 3) {
+                        flushBuffer();
+                    }
+                    buffer.put((byte) (quantum >> 16));
+                    buffer.put((byte) (quantum >> 8));
+                    buffer.put((byte) quantum);
+                    quantum = 0;
+                    quantumChars = 0;
+                }
+            } else if (value == PAD) {
+                padded = true;
+            } else if (value != SKIP) {
+                throw new IOException("Invalid Base64 character '" + c + "' at index " + i);
+            }
+        }
+    }
+
+    /**
+     * Writes the trailing partial group and any buffered bytes to the channel.
+     *
+     * @return The total number of bytes written by this decoder.
+     * @throws IOException If the input ended on an incomplete group or the channel fails.
+     */
+    public long finish() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Decoder is closed");
+        }
+        if (quantumChars == 1) {
+            throw new IOException("Invalid Base64: truncated input");
+        }
+        if (buffer.remaining() < 2) {
+            flushBuffer();
+        }
+        if (quantumChars == 2) {
+            buffer.put((byte) (quantum >> 4));
+        } else if (quantumChars == 3) {
+            buffer.put((byte) (quantum >> 10));
+            buffer.put((byte) (quantum >> 2));
+        }
+        quantum = 0;
+        quantumChars = 0;
+        flushBuffer();
+        return bytesWritten;
+    }
+
+    /**
+     * @return The number of bytes written to the channel so far.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns the buffer to the pool. Bytes not yet passed to {@link #finish()} are discarded.
+     */
+    @Override
+    public void close() {
+        if (buffer != null) {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+}
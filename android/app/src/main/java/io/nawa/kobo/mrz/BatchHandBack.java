@@ -0,0 +1,137 @@
+package io.nawa.kobo.mrz;
+
+import android.content.Intent;
+import android.net.Uri;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The batch mode of the {@link HandBackPipeline}: each committed scan is added to the
+ * {@link BatchSession} of the launch, and all of them are handed back in one result once the
+ * batch is full or finished. Runs on the hand-back thread.
+ */
+class BatchHandBack {
+
+    private final HandBackPipeline pipeline;
+    private final HandBackPipeline.Host host;
+    private final SubmissionCache submissionCache;
+    private final DuplicateChecks duplicates;
+
+    BatchHandBack(
+        HandBackPipeline pipeline,
+        HandBackPipeline.Host host,
+        SubmissionCache submissionCache,
+        DuplicateChecks duplicates
+    ) {
+        this.pipeline = pipeline;
+        this.host = host;
+        this.submissionCache = submissionCache;
+        this.duplicates = duplicates;
+    }
+
+    /**
+     * Persists a scan in the batch, handing the whole batch back once it is full.
+     *
+     * @param imageUris The URIs of its committed images keyed by image name.
+     * @param submissionDir The committed submission directory, or null if it has no images; kept
+     *                      out of cache eviction until the batch is handed back.
+     */
+    void add(
+        LaunchOptions options,
+        BatchSession batch,
+        IntentUtils.Data fields,
+        Map<String, Uri> imageUris,
+        File submissionDir,
+        long handBackStart,
+        HandBackPipeline.SendDataCallback callback
+    ) {
+        int count;
+        try {
+            IntentUtils.Data data = fields.withImageUris(
+                imageUris.get("frontImage"),
+                imageUris.get("backImage"),
+                imageUris.get("DocumentFace")
+            );
+            count = batch.add(data.toRecord(), submissionDir != null ? submissionDir.getName() : null);
+        } catch (IOException | RuntimeException e) {
+            pipeline.failHandBack(
+                handBackStart, "Failed to add the scan to the batch: " + e.getMessage(), Collections.emptyMap(), callback);
+            return;
+        }
+        if (submissionDir != null) {
+            submissionCache.pin(submissionDir);
+        }
+
+        if (batch.isFull()) {
+            handBack(options, batch, handBackStart, callback);
+        } else {
+            int capacity = batch.getCapacity();
+            host.runOnUiThread(() -> callback.onBatched(count, capacity));
+        }
+    }
+
+    /**
+     * Hands all scans of the batch back to KoboCollect in one result, after any scan queued
+     * before it.
+     *
+     * @param batch The batch of the launch, or null when not in batch mode.
+     */
+    void handBack(LaunchOptions options, BatchSession batch, long handBackStart, HandBackPipeline.SendDataCallback callback) {
+        if (batch == null || batch.size() == 0) {
+            pipeline.failHandBack(handBackStart, "The batch is empty", Collections.emptyMap(), callback);
+            return;
+        }
+
+        Intent intent = new Intent();
+        try {
+            long start = HandBackMetrics.start();
+            List<ScanRecord> records = batch.getRecords();
+            Map<String, Object> extras = ScanExtras.buildBatch(records, options.legacyExtras, options.profile);
+            duplicates.putBatchDuplicates(extras, records);
+            List<Uri> versionUris = new ArrayList<>();
+            List<BatchSession.Entry> entries = batch.getEntries();
+            for (int i = 0; i < entries.size(); i++) {
+                String submissionId = entries.get(i).submissionId;
+                File submissionDir = submissionId != null ? submissionCache.getSubmissionDir(submissionId) : null;
+                if (submissionDir != null) {
+                    submissionCache.touch(submissionDir);
+                }
+                duplicates.putFaceMatch(extras, "_" + (i + 1), submissionDir, records.get(i).documentNumber);
+                for (Map.Entry<String, Uri> version : pipeline.getVersionUris(submissionDir).entrySet()) {
+                    extras.put(version.getKey() + "_" + (i + 1), version.getValue().toString());
+                    versionUris.add(version.getValue());
+                }
+            }
+            List<Uri> spilledUris = pipeline.spillOversizedExtras(extras);
+            IntentUtils.putExtras(intent, extras);
+            HandBackMetrics.global().record(HandBackMetrics.Stage.EXTRAS, start, ParcelSize.of(extras));
+
+            List<Uri> imageUris = new ArrayList<>();
+            for (ScanRecord record : records) {
+                for (String uri : new String[]{record.frontImageUri, record.backImageUri, record.DocumentFaceUri}) {
+                    if (uri != null) {
+                        imageUris.add(Uri.parse(uri));
+                    }
+                }
+            }
+            HandBackPipeline.grantUris(intent, "batch", "image/jpeg", imageUris);
+            HandBackPipeline.grantUris(intent, "versions", "image/jpeg", versionUris);
+            HandBackPipeline.grantUris(intent, "extras", "application/octet-stream", spilledUris);
+        } catch (IOException | RuntimeException e) {
+            pipeline.failHandBack(handBackStart, "Failed to build result: " + e.getMessage(), Collections.emptyMap(), callback);
+            return;
+        }
+
+        List<String> documentNumbers = new ArrayList<>();
+        for (ScanRecord record : batch.getRecords()) {
+            documentNumbers.add(record.documentNumber);
+        }
+        // The submission directories stay pinned until this activity is gone
+        pipeline.commitResult(options, intent, null, -1, documentNumbers, handBackStart, callback);
+        batch.clear();
+    }
+}
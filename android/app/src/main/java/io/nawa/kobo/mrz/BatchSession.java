@@ -0,0 +1,182 @@
+package io.nawa.kobo.mrz;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scans collected in batch mode, waiting to be handed back to KoboCollect in one result.
+ *
+ * <p>Each scan is persisted as soon as it arrives, one file per scan written to a temporary name
+ * and renamed, so the batch survives the process being killed while the app is in the background
+ * (for instance while the camera runs). The images stay in their submission directories.
+ */
+public class BatchSession {
+
+    public static final String DIRECTORY = "batch";
+
+    private static final String SUFFIX = ".rec";
+
+    /**
+     * One scan of the batch.
+     */
+    public static class Entry {
+        public final ScanRecord record;
+        /** Name of the submission directory holding the images, or null if there are none. */
+        public final String submissionId;
+
+        Entry(ScanRecord record, String submissionId) {
+            this.record = record;
+            this.submissionId = submissionId;
+        }
+    }
+
+    private final File dir;
+    private final int capacity;
+    private final List<Entry> entries = new ArrayList<>();
+
+    private BatchSession(File dir, int capacity) {
+        this.dir = dir;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Opens the batch persisted in a directory, reloading the scans already in it. Files that
+     * cannot be read are skipped.
+     *
+     * @param dir The session directory.
+     * @param capacity The maximum number of scans.
+     * @return The session.
+     */
+    public static BatchSession open(File dir, int capacity) {
+        BatchSession session = new BatchSession(dir, capacity);
+        File[] files = dir.listFiles((parent, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return session;
+        }
+        List<File> ordered = new ArrayList<>();
+        for (File file : files) {
+            if (indexOf(file) >= 0) {
+                ordered.add(file);
+            }
+        }
+        Collections.sort(ordered, (a, b) -> Integer.compare(indexOf(a), indexOf(b)));
+        for (File file : ordered) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                String submissionId = in.readUTF();
+                byte[] encoded = new byte[in.readInt()];
+                in.readFully(encoded);
+                session.entries.add(new Entry(ScanRecordCodec.decode(encoded), submissionId.isEmpty() ? null : submissionId));
+            } catch (IOException | RuntimeException ignored) {
+                // A scan that cannot be read is dropped rather than failing the whole batch
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Adds a scan and persists it before returning.
+     *
+     * @param record The scan, with the URIs of its images.
+     * @param submissionId The submission directory of its images, or null.
+     * @return The number of scans in the batch.
+     * @throws IOException If the scan cannot be persisted.
+     * @throws IllegalStateException If the batch is full.
+     */
+    public synchronized int add(ScanRecord record, String submissionId) throws IOException {
+        if (entries.size() >= capacity) {
+            throw new IllegalStateException("Batch is full");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        int index = nextIndex();
+        File target = new File(dir, index + SUFFIX);
+        File temp = new File(dir, index + SUFFIX + ".tmp");
+        byte[] encoded = ScanRecordCodec.encode(record);
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(file)) {
+            out.writeUTF(submissionId != null ? submissionId : "");
+            out.writeInt(encoded.length);
+            out.write(encoded);
+            out.flush();
+            file.getFD().sync();
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Could not persist scan " + index);
+        }
+        entries.add(new Entry(record, submissionId));
+        return entries.size();
+    }
+
+    /**
+     * @return The scans in the order they were added.
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * @return The scans in the order they were added.
+     */
+    public synchronized List<ScanRecord> getRecords() {
+        List<ScanRecord> records = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            records.add(entry.record);
+        }
+        return records;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized boolean isFull() {
+        return entries.size() >= capacity;
+    }
+
+    /**
+     * Forgets all scans and deletes their files. The images are left to the submission cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private int nextIndex() {
+        int next = 0;
+        File[] files = dir.listFiles((parent, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                next = Math.max(next, indexOf(file) + 1);
+            }
+        }
+        return next;
+    }
+
+    private static int indexOf(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package io.nawa.kobo.mrz;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Small pool of fixed-size direct buffers shared by the streaming decoders, so that writing
+ * an image costs the same amount of memory whatever its size.
+ */
+public class BufferPool {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED = 4;
+
+    private static final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>(MAX_POOLED);
+
+    private BufferPool() {
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating a new one if the pool is empty.
+     *
+     * @return A buffer of {@link #BUFFER_SIZE} bytes, ready to be filled.
+     */
+    public static ByteBuffer acquire() {
+        synchronized (pool) {
+            ByteBuffer buffer = pool.pollFirst();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers beyond the pool capacity are left to the GC.
+     *
+     * @param buffer The buffer obtained from {@link #acquire()}.
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != BUFFER_SIZE) {
+            return;
+        }
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED) {
+                pool.addFirst(buffer);
+            }
+        }
+    }
+}
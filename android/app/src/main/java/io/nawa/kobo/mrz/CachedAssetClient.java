@@ -0,0 +1,67 @@
+package io.nawa.kobo.mrz;
+
+import android.content.res.AssetManager;
+import android.net.Uri;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import com.getcapacitor.Bridge;
+import com.getcapacitor.BridgeWebViewClient;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves the scripts, styles and other static files of the web bundle from an {@link AssetCache}.
+ *
+ * <p>Only GET requests to the app's own host for a file type known to the cache are answered.
+ * HTML, into which Capacitor injects its bridge script, plugin calls and everything else go to
+ * the default Capacitor handling.
+ */
+public class CachedAssetClient extends BridgeWebViewClient {
+
+    /** Directory of the web bundle in the APK assets, as copied by Capacitor. */
+    public static final String ASSET_ROOT = "public";
+
+    private final Bridge bridge;
+    private final AssetCache cache;
+
+    public CachedAssetClient(Bridge bridge, AssetCache cache) {
+        super(bridge);
+        this.bridge = bridge;
+        this.cache = cache;
+    }
+
+    /**
+     * @return A cache of the web bundle in the APK assets.
+     */
+    public static AssetCache newCache(AssetManager assets, long maxBytes) {
+        return new AssetCache(path -> assets.open(ASSET_ROOT + "/" + path), maxBytes);
+    }
+
+    @Override
+    public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+        Uri url = request.getUrl();
+        String path = url.getPath();
+        if (!"GET".equals(request.getMethod()) || path == null || !bridge.getHost().equals(url.getHost())
+            || AssetCache.mimeTypeOf(path) == null) {
+            return super.shouldInterceptRequest(view, request);
+        }
+        try {
+            AssetCache.Entry entry = cache.get(path.startsWith("/") ? path.substring(1) : path);
+            if (entry == null) {
+                return super.shouldInterceptRequest(view, request);
+            }
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Length", String.valueOf(entry.bytes.length));
+            headers.put("Cache-Control", "no-cache");
+            boolean binary = entry.mimeType.startsWith("font/")
+                || entry.mimeType.startsWith("image/") && !entry.mimeType.equals("image/svg+xml");
+            return new WebResourceResponse(
+                entry.mimeType, binary ? null : "UTF-8", 200, "OK", headers, new ByteArrayInputStream(entry.bytes));
+        } catch (IOException | RuntimeException e) {
+            return super.shouldInterceptRequest(view, request);
+        }
+    }
+}
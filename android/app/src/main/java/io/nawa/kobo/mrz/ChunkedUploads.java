@@ -0,0 +1,210 @@
+package io.nawa.kobo.mrz;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Images sent by the web layer in bounded Base64 chunks, each decoded straight to its file as it
+ * arrives, so neither the bridge messages nor the native heap grow with the image size.
+ *
+ * <p>An upload is begun, fed numbered chunks and committed to {@code uploads/<handle>.jpg} in the
+ * cache directory, a reference that {@code sendDataByReference} accepts. Chunks are numbered from
+ * 0; resending the last chunk, e.g. after a bridge timeout, is ignored. Files of uploads that were
+ * never committed or were already handed back are deleted once they are an hour old.
+ */
+public class ChunkedUploads {
+
+    public static final String DIRECTORY = "uploads";
+
+    /** Largest chunk accepted, in Base64 characters. */
+    public static final int MAX_CHUNK_CHARS = 512 * 1024;
+
+    /** Uploads that may be open at once; each holds a pooled decode buffer. */
+    public static final int MAX_OPEN = 6;
+
+    private static final long STALE_MILLIS = 60 * 60 * 1000;
+    private static final String PART_SUFFIX = ".part";
+
+    private static class Upload {
+        final File file;
+        final FileOutputStream out;
+        final Base64StreamDecoder decoder;
+        int nextChunk;
+
+        Upload(File file) throws IOException {
+            this.file = file;
+            this.out = new FileOutputStream(file);
+            FileChannel channel = out.getChannel();
+            this.decoder = new Base64StreamDecoder(channel);
+        }
+
+        void close() {
+            decoder.close();
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // Nothing was promised about this file yet
+            }
+        }
+    }
+
+    private final File dir;
+    private final Map<String, Upload> uploads = new HashMap<>();
+
+    /**
+     * @param cacheDir The directory references are relative to, {@code Context.getCacheDir()}.
+     */
+    public ChunkedUploads(File cacheDir) {
+        this.dir = new File(cacheDir, DIRECTORY);
+    }
+
+    /**
+     * Starts an upload, first deleting stale files of earlier ones.
+     *
+     * @return The handle of the upload.
+     * @throws IOException If too many uploads are open or the file cannot be created.
+     */
+    public synchronized String begin() throws IOException {
+        if (uploads.size() >= MAX_OPEN) {
+            throw new IOException("Too many open uploads");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        deleteStale(System.currentTimeMillis() - STALE_MILLIS);
+        String handle = UUID.randomUUID().toString();
+        uploads.put(handle, new Upload(new File(dir, handle + PART_SUFFIX)));
+        return handle;
+    }
+
+    /**
+     * Decodes a chunk into the file of an upload. The first chunk may be a {@code data:} URL prefix.
+     *
+     * @param handle The handle returned by {@link #begin()}.
+     * @param index The number of the chunk, from 0.
+     * @param chunk Base64 text; groups may be split across chunks.
+     * @return The number of bytes decoded so far.
+     * @throws IOException If the handle is unknown, a chunk is missing, the chunk is too large or
+     *                     not Base64. The upload is aborted, except for an unknown handle.
+     */
+    public synchronized long append(String handle, int index, CharSequence chunk) throws IOException {
+        Upload upload = get(handle);
+        if (index >= 0 && index == upload.nextChunk - 1) {
+            return upload.decoder.getBytesWritten();
+        }
+        try {
+            if (index != upload.nextChunk) {
+                throw new IOException("Expected chunk " + upload.nextChunk + " but got " + index);
+            }
+            if (chunk.length() > MAX_CHUNK_CHARS) {
+                throw new IOException("Chunk exceeds " + MAX_CHUNK_CHARS + " characters");
+            }
+            int start = index == 0 ? Base64StreamDecoder.payloadStart(chunk) : 0;
+            upload.decoder.decode(chunk, start, chunk.length());
+            upload.nextChunk++;
+            return upload.decoder.getBytesWritten();
+        } catch (IOException | RuntimeException e) {
+            abort(handle);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the rest of an upload and makes its file available.
+     *
+     * @param handle The handle returned by {@link #begin()}.
+     * @return The reference of the file relative to the cache directory, e.g.
+     *         {@code uploads/<handle>.jpg}.
+     * @throws IOException If the handle is unknown, nothing was uploaded or the Base64 was
+     *                     truncated. The upload is aborted, except for an unknown handle.
+     */
+    public synchronized String commit(String handle) throws IOException {
+        Upload upload = get(handle);
+        String name = handle + ".jpg";
+        try {
+            if (upload.decoder.finish() == 0) {
+                throw new IOException("Empty upload");
+            }
+            upload.out.close();
+            if (!upload.file.renameTo(new File(dir, name))) {
+                throw new IOException("Could not commit upload " + handle);
+            }
+        } catch (IOException | RuntimeException e) {
+            abort(handle);
+            throw e;
+        }
+        upload.decoder.close();
+        uploads.remove(handle);
+        return DIRECTORY + "/" + name;
+    }
+
+    /**
+     * Resolves the reference of a committed upload, the only files a hand-back by reference may
+     * move out of the cache directory.
+     *
+     * @param reference A path returned by {@link #commit}.
+     * @return The uploaded image file.
+     * @throws IOException If the reference is not a committed upload that still exists.
+     */
+    public File resolve(String reference) throws IOException {
+        String prefix = DIRECTORY + "/";
+        if (reference == null || !reference.startsWith(prefix) || reference.endsWith(PART_SUFFIX)) {
+            throw new IOException("Not an uploaded image: " + reference);
+        }
+        return FileUtils.resolveInside(dir, reference.substring(prefix.length()));
+    }
+
+    /**
+     * Discards an upload and its file. Unknown handles are ignored.
+     */
+    public synchronized void abort(String handle) {
+        Upload upload = uploads.remove(handle);
+        if (upload != null) {
+            upload.close();
+            upload.file.delete();
+        }
+    }
+
+    /**
+     * Discards every open upload, e.g. when the activity is destroyed.
+     */
+    public synchronized void abortAll() {
+        for (Upload upload : uploads.values()) {
+            upload.close();
+            upload.file.delete();
+        }
+        uploads.clear();
+    }
+
+    /**
+     * @return The number of open uploads.
+     */
+    public synchronized int getOpenCount() {
+        return uploads.size();
+    }
+
+    private Upload get(String handle) throws IOException {
+        Upload upload = handle != null ? uploads.get(handle) : null;
+        if (upload == null) {
+            throw new IOException("Unknown upload " + handle);
+        }
+        return upload;
+    }
+
+    private void deleteStale(long cutoff) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.lastModified() < cutoff) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package io.nawa.kobo.mrz;
+
+/**
+ * Single-pass pull parser flattening the BlinkID {@code dependentsInfo} JSON array into the
+ * semicolon-delimited columns handed to KoboCollect.
+ *
+ * <p>Only {@code dateOfBirth.originalDateStringResult.description} and the {@code description}
+ * of {@code sex}, {@code documentNumber} and {@code fullName} are read; everything else is
+ * skipped without building any object tree. Malformed JSON, including a missing, leading or
+ * trailing comma between members, does not discard the whole array: dependents read before the
+ * error are kept and the error is counted in {@link Result#errors}.
+ */
+public class DependentsParser {
+
+    /**
+     * Flattened dependents.
+     */
+    public static class Result {
+        /** Number of dependents in the columns. */
+        public final int count;
+        /** Number of dependents or fields that could not be read. */
+        public final int errors;
+        public final String dateOfBirth;
+        public final String sex;
+        public final String documentNumber;
+        public final String fullName;
+
+        Result(int count, int errors, String dateOfBirth, String sex, String documentNumber, String fullName) {
+            this.count = count;
+            this.errors = errors;
+            this.dateOfBirth = dateOfBirth;
+            this.sex = sex;
+            this.documentNumber = documentNumber;
+            this.fullName = fullName;
+        }
+    }
+
+    private static class SyntaxException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        SyntaxException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final CharSequence json;
+    private final StringBuilder token = new StringBuilder();
+    private int pos;
+    private int errors;
+
+    private String depDateOfBirth;
+    private String depSex;
+    private String depDocumentNumber;
+    private String depFullName;
+
+    private DependentsParser(CharSequence json) {
+        this.json = json;
+    }
+
+    /**
+     * Parses a {@code dependentsInfo} JSON array.
+     *
+     * @param json The JSON text, may be null or empty.
+     * @return The flattened columns; never null.
+     */
+    public static Result parse(CharSequence json) {
+        return new DependentsParser(json != null ? json : "").parseArray();
+    }
+
+    private Result parseArray() {
+        StringBuilder dateOfBirth = new StringBuilder();
+        StringBuilder sex = new StringBuilder();
+        StringBuilder documentNumber = new StringBuilder();
+        StringBuilder fullName = new StringBuilder();
+        int count = 0;
+        try {
+            skipWhitespace();
+            if (pos == json.length()) {
+                return new Result(0, 0, "", "", "", "");
+            }
+            expect('[');
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+            } else {
+                while (true) {
+                    readDependent();
+                    if (count > 0) {
+                        dateOfBirth.append(';');
+                        sex.append(';');
+                        documentNumber.append(';');
+                        fullName.append(';');
+                    }
+                    dateOfBirth.append(depDateOfBirth);
+                    sex.append(depSex);
+                    documentNumber.append(depDocumentNumber);
+                    fullName.append(depFullName);
+                    count++;
+
+                    skipWhitespace();
+                    char c = next();
+                    if (c == ']') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw syntaxError("Expected ',' or ']'");
+                    }
+                }
+            }
+        } catch (SyntaxException e) {
+            errors++;
+        }
+        return new Result(count, errors, dateOfBirth.toString(), sex.toString(),
+                documentNumber.toString(), fullName.toString());
+    }
+
+    private void readDependent() throws SyntaxException {
+        depDateOfBirth = "";
+        depSex = "";
+        depDocumentNumber = "";
+        depFullName = "";
+        skipWhitespace();
+        if (peek() != '{') {
+            errors++;
+            skipValue();
+            return;
+        }
+        pos++;
+        for (boolean member = firstKey(); member; member = nextKey()) {
+            if (tokenEquals("dateOfBirth")) {
+                depDateOfBirth = readDateDescription();
+            } else if (tokenEquals("sex")) {
+                depSex = readDescription();
+            } else if (tokenEquals("documentNumber")) {
+                depDocumentNumber = readDescription();
+            } else if (tokenEquals("fullName")) {
+                depFullName = readDescription();
+            } else {
+                skipValue();
+            }
+        }
+    }
+
+    /**
+     * Reads {@code {"originalDateStringResult": {"description": ...}}}.
+     */
+    private String readDateDescription() throws SyntaxException {
+        String description = "";
+        if (!enterObject()) {
+            return description;
+        }
+        for (boolean member = firstKey(); member; member = nextKey()) {
+            if (tokenEquals("originalDateStringResult")) {
+                description = readDescription();
+            } else {
+                skipValue();
+            }
+        }
+        return description;
+    }
+
+    /**
+     * Reads the {@code description} member of an object value, skipping all other members.
+     */
+    private String readDescription() throws SyntaxException {
+        String description = "";
+        if (!enterObject()) {
+            return description;
+        }
+        for (boolean member = firstKey(); member; member = nextKey()) {
+            if (tokenEquals("description")) {
+                description = readScalar();
+            } else {
+                skipValue();
+            }
+        }
+        return description;
+    }
+
+    /**
+     * Consumes the opening brace of an object value. A null value is accepted and skipped;
+     * any other non-object value is skipped and counted as an error.
+     *
+     * @return Whether an object was entered.
+     */
+    private boolean enterObject() throws SyntaxException {
+        skipWhitespace();
+        if (peek() == '{') {
+            pos++;
+            return true;
+        }
+        if (peek() != 'n') {
+            errors++;
+        }
+        skipValue();
+        return false;
+    }
+
+    /**
+     * Moves to the first member of an object whose opening brace was just consumed, reading its
+     * key into {@link #token}.
+     *
+     * @return False if the object is empty; its closing brace has been consumed.
+     */
+    private boolean firstKey() throws SyntaxException {
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return false;
+        }
+        readKey();
+        return true;
+    }
+
+    /**
+     * Moves past the comma to the next member of the current object, reading its key into
+     * {@link #token}.
+     *
+     * @return False once the closing brace has been consumed.
+     */
+    private boolean nextKey() throws SyntaxException {
+        skipWhitespace();
+        char c = next();
+        if (c == '}') {
+            return false;
+        }
+        if (c != ',') {
+            throw syntaxError("Expected ',' or '}'");
+        }
+        skipWhitespace();
+        readKey();
+        return true;
+    }
+
+    private void readKey() throws SyntaxException {
+        readString();
+        skipWhitespace();
+        expect(':');
+    }
+
+    private String readScalar() throws SyntaxException {
+        skipWhitespace();
+        char c = peek();
+        if (c == '"') {
+            readString();
+            return token.toString();
+        }
+        if (c == '{' || c == '[') {
+            errors++;
+            skipValue();
+            return "";
+        }
+        int start = pos;
+        skipLiteral();
+        String literal = json.subSequence(start, pos).toString();
+        return literal.equals("null") ? "" : literal;
+    }
+
+    /**
+     * Reads a string literal into {@link #token}, resolving escapes.
+     */
+    private void readString() throws SyntaxException {
+        expect('"');
+        token.setLength(0);
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return;
+            }
+            if (c != '\\') {
+                token.append(c);
+                continue;
+            }
+            char escaped = next();
+            switch (escaped) {
+                case 'b': token.append('\b'); break;
+                case 'f': token.append('\f'); break;
+                case 'n': token.append('\n'); break;
+                case 'r': token.append('\r'); break;
+                case 't': token.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > json.length()) {
+                        throw syntaxError("Truncated unicode escape");
+                    }
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(json.charAt(pos++), 16);
+                        if (digit < 0) {
+                            throw syntaxError("Invalid unicode escape");
+                        }
+                        code = (code << 4) | digit;
+                    }
+                    token.append((char) code);
+                    break;
+                default:
+                    token.append(escaped);
+            }
+        }
+    }
+
+    /**
+     * Skips one value of any type, including nested objects and arrays, without allocating.
+     */
+    private void skipValue() throws SyntaxException {
+        skipWhitespace();
+        char c = peek();
+        if (c != '{' && c != '[') {
+            if (c == '"') {
+                skipString();
+            } else {
+                skipLiteral();
+            }
+            return;
+        }
+        int depth = 0;
+        do {
+            c = next();
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            } else if (c == '"') {
+                pos--;
+                skipString();
+            }
+        } while (depth > 0);
+    }
+
+    private void skipString() throws SyntaxException {
+        expect('"');
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                next();
+            }
+        }
+    }
+
+    private void skipLiteral() throws SyntaxException {
+        int start = pos;
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                break;
+            }
+            pos++;
+        }
+        if (pos == start) {
+            throw syntaxError("Expected a value");
+        }
+    }
+
+    private boolean tokenEquals(String key) {
+        if (token.length() != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (token.charAt(i) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private char peek() throws SyntaxException {
+        if (pos >= json.length()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return json.charAt(pos);
+    }
+
+    private char next() throws SyntaxException {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    private void expect(char expected) throws SyntaxException {
+        if (next() != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+    }
+
+    private SyntaxException syntaxError(String message) {
+        return new SyntaxException(message + " at index " + pos);
+    }
+}
@@ -0,0 +1,401 @@
+package io.nawa.kobo.mrz;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-device index of the document numbers already handed back, to flag likely duplicate
+ * registrations. Only 64-bit hashes of the normalised numbers are stored, with the time each was
+ * first seen.
+ *
+ * <p>The index file holds a header, a Bloom filter of about 10 bits per entry (1% false positives)
+ * and the entries sorted by hash, 12 bytes each, so 300,000 documents take under 4 MB. It is
+ * memory-mapped: a lookup tests the filter and then binary-searches the entries, without loading
+ * the file. New documents go to an append-only log and an in-memory map, and are merged into a
+ * new index file once enough have accumulated.
+ */
+public class DocumentIndex {
+
+    public static final String DIRECTORY = "index";
+    static final String INDEX_FILE = "documents.idx";
+    static final String LOG_FILE = "documents.log";
+
+    /** Number of logged documents that triggers a merge into the index file. */
+    public static final int DEFAULT_MERGE_THRESHOLD = 1024;
+
+    private static final int MAGIC = 0x4B444931; // "KDI1"
+    private static final int HEADER_BYTES = 12;
+    private static final int ENTRY_BYTES = 12;
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    private final File dir;
+    private final int mergeThreshold;
+    /** Documents added since the last merge: hash to first-seen time in seconds. */
+    private final Map<Long, Integer> recent = new HashMap<>();
+
+    private ByteBuffer index;
+    private int count;
+    private int bloomWords;
+    private FileOutputStream log;
+
+    private DocumentIndex(File dir, int mergeThreshold) {
+        this.dir = dir;
+        this.mergeThreshold = mergeThreshold;
+    }
+
+    /**
+     * Opens the index in a directory, replaying the log of documents not merged yet. A record
+     * torn by a kill is cut off.
+     *
+     * @param dir The index directory; created if missing.
+     * @param mergeThreshold Number of logged documents that triggers a merge.
+     * @return The index.
+     * @throws IOException If the index cannot be read or is corrupt.
+     */
+    public static DocumentIndex open(File dir, int mergeThreshold) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        DocumentIndex documents = new DocumentIndex(dir, mergeThreshold);
+        documents.map();
+
+        File logFile = new File(dir, LOG_FILE);
+        if (logFile.isFile()) {
+            long complete = logFile.length() / ENTRY_BYTES * ENTRY_BYTES;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+                for (long read = 0; read < complete; read += ENTRY_BYTES) {
+                    long hash = in.readLong();
+                    int seconds = in.readInt();
+                    if (documents.find(hash) < 0) {
+                        documents.recent.put(hash, seconds);
+                    }
+                }
+            } catch (EOFException ignored) {
+                // Shorter than its length said; keep what was read
+            }
+            if (complete < logFile.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+                    raf.setLength(complete);
+                }
+            }
+        }
+        documents.log = new FileOutputStream(logFile, true);
+        return documents;
+    }
+
+    /**
+     * Normalises a document number: letters upper-cased, digits of any script mapped to ASCII,
+     * everything else (spaces, dashes, dots) dropped.
+     *
+     * @return The normalised number, or null if nothing is left.
+     */
+    public static String normalize(String documentNumber) {
+        if (documentNumber == null) {
+            return null;
+        }
+        StringBuilder normalized = new StringBuilder(documentNumber.length());
+        for (int i = 0; i < documentNumber.length(); ) {
+            int codePoint = documentNumber.codePointAt(i);
+            i += Character.charCount(codePoint);
+            int digit = Character.digit(codePoint, 10);
+            if (digit >= 0) {
+                normalized.append((char) ('0' + digit));
+            } else if (Character.isLetter(codePoint)) {
+                normalized.appendCodePoint(Character.toUpperCase(codePoint));
+            }
+        }
+        return normalized.length() > 0 ? normalized.toString() : null;
+    }
+
+    /**
+     * @return The first 64 bits of the SHA-256 of the normalised number, or null if it is empty.
+     */
+    static Long hash(String documentNumber) {
+        String normalized = normalize(documentNumber);
+        if (normalized == null) {
+            return null;
+        }
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(normalized.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.wrap(digest).getLong();
+    }
+
+    /**
+     * @param documentNumber The number as scanned.
+     * @return When the document was first seen, in milliseconds, or -1 if it was not.
+     */
+    public synchronized long lookup(String documentNumber) {
+        Long hash = hash(documentNumber);
+        if (hash == null) {
+            return -1;
+        }
+        long seconds = find(hash);
+        return seconds >= 0 ? seconds * 1000 : -1;
+    }
+
+    /**
+     * Adds a document unless it is already indexed, keeping the earliest first-seen time.
+     *
+     * @param documentNumber The number as scanned.
+     * @param timeMillis When it was seen.
+     * @return Whether the document was new.
+     * @throws IOException If the log or a merge cannot be written.
+     */
+    public synchronized boolean add(String documentNumber, long timeMillis) throws IOException {
+        Long hash = hash(documentNumber);
+        if (hash == null || find(hash) >= 0) {
+            return false;
+        }
+        int seconds = toSeconds(timeMillis);
+        recent.put(hash, seconds);
+        byte[] record = new byte[ENTRY_BYTES];
+        ByteBuffer.wrap(record).putLong(hash).putInt(seconds);
+        log.write(record);
+        if (recent.size() >= mergeThreshold) {
+            merge();
+        }
+        return true;
+    }
+
+    /**
+     * Preloads known document numbers, e.g. from a supervisor's list, and merges them straight
+     * into the index file.
+     *
+     * @param documentNumbers The numbers; blank ones are skipped.
+     * @param timeMillis The first-seen time of the new documents.
+     * @return The number of documents that were not indexed yet.
+     * @throws IOException If the index cannot be written.
+     */
+    public synchronized int importAll(Iterable<String> documentNumbers, long timeMillis) throws IOException {
+        int seconds = toSeconds(timeMillis);
+        int added = 0;
+        for (String documentNumber : documentNumbers) {
+            if (stage(documentNumber, seconds)) {
+                added++;
+            }
+        }
+        merge();
+        return added;
+    }
+
+    /**
+     * Preloads the document numbers of a UTF-8 text file, one per line, without holding the
+     * lines in memory.
+     *
+     * @see #importAll(Iterable, long)
+     */
+    public synchronized int importFile(File file, long timeMillis) throws IOException {
+        int seconds = toSeconds(timeMillis);
+        int added = 0;
+        try (BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (stage(line, seconds)) {
+                    added++;
+                }
+            }
+        }
+        merge();
+        return added;
+    }
+
+    /**
+     * Adds a document to the recent ones without logging it, for an import merged right after.
+     */
+    private boolean stage(String documentNumber, int seconds) {
+        Long hash = hash(documentNumber);
+        if (hash == null || find(hash) >= 0) {
+            return false;
+        }
+        recent.put(hash, seconds);
+        return true;
+    }
+
+    /**
+     * @return The number of indexed documents.
+     */
+    public synchronized int size() {
+        return count + recent.size();
+    }
+
+    /**
+     * Merges the recent documents into a new index file and empties the log.
+     *
+     * @throws IOException If the index cannot be written.
+     */
+    public synchronized void merge() throws IOException {
+        if (recent.isEmpty()) {
+            return;
+        }
+        List<Long> added = new ArrayList<>(recent.keySet());
+        Collections.sort(added);
+        int total = count + added.size();
+        long[] bloom = new long[bloomWordsFor(total)];
+        for (int i = 0; i < count; i++) {
+            addToBloom(bloom, entryHash(i));
+        }
+        for (long hash : added) {
+            addToBloom(bloom, hash);
+        }
+
+        File temp = new File(dir, INDEX_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(total);
+            out.writeInt(bloom.length);
+            for (long word : bloom) {
+                out.writeLong(word);
+            }
+            // Both sides are sorted by hash
+            int i = 0;
+            int j = 0;
+            while (i < count || j < added.size()) {
+                if (j == added.size() || (i < count && entryHash(i) < added.get(j))) {
+                    out.writeLong(entryHash(i));
+                    out.writeInt(entrySeconds(i));
+                    i++;
+                } else {
+                    long hash = added.get(j++);
+                    out.writeLong(hash);
+                    out.writeInt(recent.get(hash));
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        if (!temp.renameTo(new File(dir, INDEX_FILE))) {
+            temp.delete();
+            throw new IOException("Could not replace " + INDEX_FILE);
+        }
+        map();
+        recent.clear();
+        log.close();
+        log = new FileOutputStream(new File(dir, LOG_FILE), false);
+    }
+
+    private void map() throws IOException {
+        File file = new File(dir, INDEX_FILE);
+        if (!file.isFile()) {
+            index = null;
+            count = 0;
+            bloomWords = 0;
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (mapped.capacity() < HEADER_BYTES || mapped.getInt(0) != MAGIC) {
+                throw new IOException("Not a document index: " + file);
+            }
+            int entries = mapped.getInt(4);
+            int words = mapped.getInt(8);
+            if (entries < 0 || words < 0
+                || mapped.capacity() != HEADER_BYTES + words * 8L + (long) entries * ENTRY_BYTES) {
+                throw new IOException("Truncated document index: " + file);
+            }
+            index = mapped;
+            count = entries;
+            bloomWords = words;
+        }
+    }
+
+    /**
+     * @return The first-seen time in seconds, or -1 if the hash is not indexed.
+     */
+    private long find(long hash) {
+        Integer seconds = recent.get(hash);
+        if (seconds != null) {
+            return seconds & 0xFFFFFFFFL;
+        }
+        if (count == 0 || !mightContain(hash)) {
+            return -1;
+        }
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = entryHash(mid);
+            if (value < hash) {
+                low = mid + 1;
+            } else if (value > hash) {
+                high = mid - 1;
+            } else {
+                return entrySeconds(mid) & 0xFFFFFFFFL;
+            }
+        }
+        return -1;
+    }
+
+    private boolean mightContain(long hash) {
+        long bits = bloomWords * 64L;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int k = 1; k <= BLOOM_HASHES; k++) {
+            long bit = ((h1 + k * h2) & 0xFFFFFFFFL) % bits;
+            long word = index.getLong(HEADER_BYTES + (int) (bit >>> 6) * 8);
+            if ((word & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addToBloom(long[] bloom, long hash) {
+        long bits = bloom.length * 64L;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int k = 1; k <= BLOOM_HASHES; k++) {
+            long bit = ((h1 + k * h2) & 0xFFFFFFFFL) % bits;
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static int bloomWordsFor(int entries) {
+        return Math.max(16, (int) ((entries * (long) BITS_PER_ENTRY + 63) / 64));
+    }
+
+    private long entryHash(int i) {
+        return index.getLong(entryOffset(i));
+    }
+
+    private int entrySeconds(int i) {
+        return index.getInt(entryOffset(i) + 8);
+    }
+
+    private int entryOffset(int i) {
+        return HEADER_BYTES + bloomWords * 8 + i * ENTRY_BYTES;
+    }
+
+    /**
+     * @return The time as unsigned seconds since the epoch, valid until 2106.
+     */
+    private static int toSeconds(long timeMillis) {
+        return (int) Math.max(0, Math.min(timeMillis / 1000, 0xFFFFFFFFL));
+    }
+}
@@ -0,0 +1,156 @@
+package io.nawa.kobo.mrz;
+
+import android.content.Context;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The duplicate checks of the {@link HandBackPipeline}: document numbers handed back before are
+ * flagged with {@link ScanExtras#putDuplicate}, and every handed back number is added to the
+ * {@link DocumentIndex} of the process. A DocumentFace seen before under another number is
+ * flagged with {@link ScanExtras#putFaceMatch} against the {@link FaceIndex}. The checks are
+ * advisory, so a failure never fails a hand-back. Runs on the hand-back thread.
+ */
+class DuplicateChecks {
+
+    /**
+     * Document numbers already handed back, opened on first use. Only touched on the hand-back
+     * thread.
+     */
+    private static DocumentIndex documentIndex;
+
+    /** Face hashes of the scans handed back, opened on first use. Only touched on the hand-back thread. */
+    private static FaceIndex faceIndex;
+
+    private final Context context;
+    private final HandBackPipeline.Host host;
+    private final HandBackPipeline.ImageChecks checks;
+
+    DuplicateChecks(Context context, HandBackPipeline.Host host, HandBackPipeline.ImageChecks checks) {
+        this.context = context;
+        this.host = host;
+        this.checks = checks;
+    }
+
+    /**
+     * @return The index of handed back document numbers, or null if it cannot be opened.
+     */
+    private DocumentIndex getDocumentIndex() {
+        if (documentIndex == null) {
+            try {
+                documentIndex = DocumentIndex.open(
+                    new File(context.getFilesDir(), DocumentIndex.DIRECTORY), DocumentIndex.DEFAULT_MERGE_THRESHOLD);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return documentIndex;
+    }
+
+    /**
+     * Flags a scan whose document number was handed back before.
+     *
+     * @param suffix Appended to the extra keys, see {@link ScanExtras#putDuplicate}.
+     */
+    void putDuplicate(Map<String, Object> extras, String suffix, String documentNumber) {
+        long firstSeen = lookup(documentNumber);
+        ScanExtras.putDuplicate(extras, suffix, firstSeen >= 0, firstSeen);
+    }
+
+    /**
+     * @return When a document number was first handed back, or -1 if it was not.
+     */
+    private long lookup(String documentNumber) {
+        DocumentIndex index = getDocumentIndex();
+        return index != null ? index.lookup(documentNumber) : -1;
+    }
+
+    /**
+     * Flags each scan of a batch whose document number was handed back before, or appears earlier
+     * in the same batch.
+     */
+    void putBatchDuplicates(Map<String, Object> extras, List<ScanRecord> records) {
+        Set<String> batchNumbers = new HashSet<>();
+        for (int i = 0; i < records.size(); i++) {
+            String documentNumber = records.get(i).documentNumber;
+            long firstSeen = lookup(documentNumber);
+            String normalized = DocumentIndex.normalize(documentNumber);
+            boolean repeated = normalized != null && !batchNumbers.add(normalized);
+            ScanExtras.putDuplicate(extras, "_" + (i + 1), firstSeen >= 0 || repeated, firstSeen);
+        }
+    }
+
+    /**
+     * Matches the DocumentFace of a submission against the faces handed back before, under
+     * another document number, and adds it to the {@link FaceIndex}.
+     *
+     * @param suffix Appended to the extra keys, see {@link ScanExtras#putFaceMatch}.
+     * @param submissionDir The committed submission directory, or null if it has no images.
+     */
+    void putFaceMatch(Map<String, Object> extras, String suffix, File submissionDir, String documentNumber) {
+        File face = submissionDir != null ? new File(submissionDir, "DocumentFace.jpg") : null;
+        if (face == null || !face.isFile()) {
+            return;
+        }
+        if (faceIndex == null) {
+            try {
+                faceIndex = FaceIndex.open(new File(context.getFilesDir(), FaceIndex.DIRECTORY));
+            } catch (IOException e) {
+                return;
+            }
+        }
+        long start = HandBackMetrics.start();
+        try {
+            FaceIndex.Match match = faceIndex.matchAndAdd(
+                checks.faceHash(face), documentNumber, FaceIndex.DEFAULT_MAX_DISTANCE, System.currentTimeMillis());
+            ScanExtras.putFaceMatch(extras, suffix, match);
+            HandBackMetrics.global().record(HandBackMetrics.Stage.FACE_MATCH, start, 0);
+        } catch (IOException | RuntimeException e) {
+            // Advisory like the document check; the scan is handed back without it
+            HandBackMetrics.global().record(HandBackMetrics.Stage.FACE_MATCH, start, 0, e.getMessage());
+        }
+    }
+
+    /**
+     * Records handed back document numbers, keeping the time each was first seen.
+     */
+    void index(List<String> documentNumbers) {
+        DocumentIndex index = getDocumentIndex();
+        if (index == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            for (String documentNumber : documentNumbers) {
+                index.add(documentNumber, now);
+            }
+        } catch (IOException ignored) {
+            // The duplicate check is advisory; never fail a hand-back over it
+        }
+    }
+
+    /**
+     * Preloads known document numbers into the index, one per line.
+     *
+     * @param file A text file of document numbers.
+     * @param callback Notified on the UI thread with the number of new documents, or the failure.
+     */
+    void importDocumentNumbers(File file, HandBackPipeline.ImportCallback callback) {
+        DocumentIndex index = getDocumentIndex();
+        if (index == null) {
+            host.runOnUiThread(() -> callback.onFailed("Could not open the document index"));
+            return;
+        }
+        try {
+            int added = index.importFile(file, System.currentTimeMillis());
+            int size = index.size();
+            host.runOnUiThread(() -> callback.onImported(added, size));
+        } catch (IOException | RuntimeException e) {
+            host.runOnUiThread(() -> callback.onFailed(String.valueOf(e.getMessage())));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package io.nawa.kobo.mrz;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the result Bundle well under the Binder transaction limit (about 1 MB, shared by every
+ * transaction in flight) by moving oversized extras to files.
+ *
+ * <p>Each spilled extra is replaced by a {@code <key>Uri} pointer extra holding a granted content
+ * URI of the file. Strings are written as UTF-8, byte arrays as is.
+ */
+public class ExtrasSpill {
+
+    /** Estimated Bundle size above which extras are spilled. */
+    public static final long DEFAULT_THRESHOLD_BYTES = 256 * 1024;
+    /** Values smaller than this are never worth a file. */
+    public static final long MIN_SPILL_BYTES = 4 * 1024;
+    public static final String POINTER_SUFFIX = "Uri";
+
+    /** Allowance for a content URI in a pointer extra. */
+    private static final long POINTER_VALUE_BYTES = ParcelSize.ofString(new String(new char[160]));
+
+    private ExtrasSpill() {
+    }
+
+    /**
+     * Picks the extras to spill, largest first, until the estimated Bundle size including the
+     * pointer extras is at most the threshold, or no value is large enough to be worth spilling.
+     *
+     * @param extras The extras of the result intent.
+     * @param thresholdBytes The size the Bundle should stay under.
+     * @return The keys to spill, empty if the Bundle is small enough already.
+     */
+    public static List<String> plan(Map<String, ?> extras, long thresholdBytes) {
+        List<String> keys = new ArrayList<>();
+        long size = ParcelSize.of(extras);
+        if (size <= thresholdBytes) {
+            return keys;
+        }
+
+        List<Map.Entry<String, ?>> candidates = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : extras.entrySet()) {
+            Object value = entry.getValue();
+            if ((value instanceof String || value instanceof byte[]) && ParcelSize.ofValue(value) >= MIN_SPILL_BYTES) {
+                candidates.add(entry);
+            }
+        }
+        Collections.sort(candidates, (a, b) -> Long.compare(ParcelSize.ofValue(b.getValue()), ParcelSize.ofValue(a.getValue())));
+
+        for (Map.Entry<String, ?> candidate : candidates) {
+            if (size <= thresholdBytes) {
+                break;
+            }
+            String key = candidate.getKey();
+            size -= ParcelSize.ofValue(candidate.getValue());
+            size += ParcelSize.ofString(key + POINTER_SUFFIX) + 4 + POINTER_VALUE_BYTES;
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * Writes the given extras to files in a directory and removes them from the map.
+     *
+     * @param extras The extras of the result intent; spilled keys are removed.
+     * @param keys The keys returned by {@link #plan}.
+     * @param dir The directory to write to.
+     * @return The written files keyed by extra name, in spill order.
+     * @throws IOException If a file cannot be written.
+     */
+    public static Map<String, File> spill(Map<String, Object> extras, List<String> keys, File dir) throws IOException {
+        Map<String, File> files = new LinkedHashMap<>();
+        for (String key : keys) {
+            Object value = extras.get(key);
+            byte[] bytes;
+            String extension;
+            if (value instanceof String) {
+                bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                extension = ".txt";
+            } else if (value instanceof byte[]) {
+                bytes = (byte[]) value;
+                extension = ".bin";
+            } else {
+                throw new IllegalArgumentException("Cannot spill extra " + key);
+            }
+            File file = new File(dir, key + extension);
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(bytes);
+            }
+            files.put(key, file);
+        }
+        for (String key : files.keySet()) {
+            extras.remove(key);
+        }
+        return files;
+    }
+}
@@ -0,0 +1,213 @@
+package io.nawa.kobo.mrz;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * On-device index of the {@link FaceHash} of every DocumentFace handed back, queried for earlier
+ * captures within a Hamming distance to flag the same person behind another document number.
+ *
+ * <p>The hashes are held in a BK-tree: each child hangs under its distance to the parent, so by
+ * the triangle inequality a query only descends into children whose distance lies within the
+ * radius of the query's distance to the node. With a radius of about a sixth of the bits, a query
+ * visits a small fraction of the tree. The tree lives in flat arrays and is rebuilt from an
+ * append-only file on open; a record torn by a kill is cut off.
+ */
+public class FaceIndex {
+
+    public static final String DIRECTORY = "faces";
+    static final String FILE_NAME = "faces.log";
+
+    /** Largest distance reported as a match, out of 64 bits. */
+    public static final int DEFAULT_MAX_DISTANCE = 10;
+
+    /**
+     * The closest earlier capture.
+     */
+    public static class Match {
+        /** The normalised document number it was handed back with, or null if there was none. */
+        public final String documentNumber;
+        public final int distance;
+        public final long timeMillis;
+
+        Match(String documentNumber, int distance, long timeMillis) {
+            this.documentNumber = documentNumber;
+            this.distance = distance;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    private FileOutputStream log;
+
+    private int size;
+    private long[] hashes = new long[256];
+    private int[] seconds = new int[256];
+    private String[] documentNumbers = new String[256];
+    /** Distance of each node to its parent, the key of the edge. */
+    private int[] edges = new int[256];
+    private int[] firstChild = new int[256];
+    private int[] nextSibling = new int[256];
+
+    private FaceIndex() {
+    }
+
+    /**
+     * Opens the index in a directory, rebuilding the tree from its file.
+     *
+     * @param dir The index directory; created if missing.
+     * @return The index.
+     * @throws IOException If the file cannot be read or opened for appending.
+     */
+    public static FaceIndex open(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File file = new File(dir, FILE_NAME);
+        long valid = 0;
+        FaceIndex index = new FaceIndex();
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    long hash = in.readLong();
+                    int time = in.readInt();
+                    String documentNumber = in.readUTF();
+                    index.insert(hash, time, documentNumber.isEmpty() ? null : documentNumber);
+                    valid += 8 + 4 + 2 + utfLength(documentNumber);
+                }
+            } catch (EOFException ignored) {
+                // End of the file, or a torn last record
+            }
+            if (valid < file.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(valid);
+                }
+            }
+        }
+        index.log = new FileOutputStream(file, true);
+        return index;
+    }
+
+    /**
+     * Finds the closest earlier capture of a face handed back with another document number, then
+     * adds the face.
+     *
+     * @param hash The {@link FaceHash} of the capture.
+     * @param documentNumber The document number it is handed back with, or null.
+     * @param maxDistance The largest distance reported.
+     * @param timeMillis When it was captured.
+     * @return The closest match, or null if there is none within the distance.
+     * @throws IOException If the face cannot be added to the file.
+     */
+    public synchronized Match matchAndAdd(long hash, String documentNumber, int maxDistance, long timeMillis)
+        throws IOException {
+        String normalized = DocumentIndex.normalize(documentNumber);
+        Match match = closest(hash, normalized, maxDistance);
+
+        int time = (int) Math.max(0, Math.min(timeMillis / 1000, 0xFFFFFFFFL));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(hash);
+        out.writeInt(time);
+        out.writeUTF(normalized != null ? normalized : "");
+        // One write per record, so a kill tears at most the last one
+        log.write(bytes.toByteArray());
+        insert(hash, time, normalized);
+        return match;
+    }
+
+    /**
+     * @param hash The hash to look up.
+     * @param excludedDocumentNumber Normalised document number whose captures are skipped, or null.
+     * @param maxDistance The largest distance reported.
+     * @return The closest capture within the distance, or null.
+     */
+    synchronized Match closest(long hash, String excludedDocumentNumber, int maxDistance) {
+        if (size == 0) {
+            return null;
+        }
+        int best = -1;
+        int bestDistance = maxDistance + 1;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            int distance = FaceHash.distance(hash, hashes[node]);
+            if (distance < bestDistance
+                && (documentNumbers[node] == null || !documentNumbers[node].equals(excludedDocumentNumber))) {
+                best = node;
+                bestDistance = distance;
+            }
+            // Shrinking the radius to the best distance so far prunes the rest of the walk
+            int radius = Math.min(maxDistance, bestDistance);
+            for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+                if (Math.abs(edges[child] - distance) <= radius) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                    }
+                    stack[top++] = child;
+                }
+            }
+        }
+        return best >= 0 ? new Match(documentNumbers[best], bestDistance, (seconds[best] & 0xFFFFFFFFL) * 1000) : null;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void insert(long hash, int time, String documentNumber) {
+        if (size == hashes.length) {
+            int capacity = size * 2;
+            hashes = Arrays.copyOf(hashes, capacity);
+            seconds = Arrays.copyOf(seconds, capacity);
+            documentNumbers = Arrays.copyOf(documentNumbers, capacity);
+            edges = Arrays.copyOf(edges, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+        }
+        int added = size++;
+        hashes[added] = hash;
+        seconds[added] = time;
+        documentNumbers[added] = documentNumber;
+        firstChild[added] = -1;
+        nextSibling[added] = -1;
+        if (added == 0) {
+            return;
+        }
+
+        int node = 0;
+        while (true) {
+            int distance = FaceHash.distance(hash, hashes[node]);
+            int child = firstChild[node];
+            while (child >= 0 && edges[child] != distance) {
+                child = nextSibling[child];
+            }
+            if (child < 0) {
+                edges[added] = distance;
+                nextSibling[added] = firstChild[node];
+                firstChild[node] = added;
+                return;
+            }
+            node = child;
+        }
+    }
+
+    private static int utfLength(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+}
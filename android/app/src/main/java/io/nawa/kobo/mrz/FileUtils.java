@@ -3,10 +3,10 @@ package io.nawa.kobo.mrz;
 import android.content.Context;
 import android.net.Uri;
 import androidx.core.content.FileProvider;
-import android.util.Base64;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 public class FileUtils {
 
@@ -20,13 +20,136 @@ public class FileUtils {
    * @throws IOException If an error occurs during file creation.
    */
   public static File base64ToFile(Context context, String base64, String fileName) throws IOException {
-    // Decode base64 string to byte array
-    byte[] decodedString = Base64.decode(base64.split(",")[1], Base64.DEFAULT);
     // Create file in the cache directory
     File file = new File(context.getCacheDir(), fileName);
-    // Write the decoded bytes to the file
-    try (FileOutputStream fos = new FileOutputStream(file)) {
-      fos.write(decodedString);
+    writeBase64(base64, file);
+    return file;
+  }
+
+  /**
+   * Converts a base64 string to a file and runs it through the image processing stage.
+   *
+   * @param context The context of the application.
+   * @param base64 The base64 encoded string.
+   * @param fileName The name of the file to be created.
+   * @param options The downscale/recompress settings applied to the written image.
+   * @return The created file.
+   * @throws IOException If an error occurs during file creation or processing.
+   */
+  public static File base64ToFile(Context context, String base64, String fileName, ImageOptions options)
+      throws IOException {
+    return writeImage(context, ImageSource.fromBase64(base64), fileName, options);
+  }
+
+  /**
+   * Persists an image from any source into the cache directory and runs it through the image
+   * processing stage.
+   *
+   * @param context The context of the application.
+   * @param source The Base64 text or staged file holding the image.
+   * @param fileName The name of the file to be created.
+   * @param options The downscale/recompress settings applied to the written image.
+   * @return The created file.
+   * @throws IOException If an error occurs during file creation or processing.
+   */
+  public static File writeImage(Context context, ImageSource source, String fileName, ImageOptions options)
+      throws IOException {
+    return writeImage(context.getCacheDir(), source, fileName, options);
+  }
+
+  /**
+   * Persists an image from any source into a directory and runs it through the image
+   * processing stage.
+   *
+   * @param dir The directory to write to, e.g. a submission staging directory.
+   * @param source The Base64 text or staged file holding the image.
+   * @param fileName The name of the file to be created.
+   * @param options The downscale/recompress settings applied to the written image.
+   * @return The created file.
+   * @throws IOException If an error occurs during file creation or processing.
+   */
+  public static File writeImage(File dir, ImageSource source, String fileName, ImageOptions options)
+      throws IOException {
+    return writeImage(dir, source, fileName, options, ResolutionLadder.NONE);
+  }
+
+  /**
+   * Persists an image like {@link #writeImage(File, ImageSource, String, ImageOptions)} and writes
+   * the smaller versions of a resolution ladder next to it.
+   *
+   * @param ladder The smaller versions, see {@link ResolutionLadder#findVersions}.
+   * @return The created full-size file.
+   * @throws IOException If an error occurs during file creation or processing.
+   */
+  public static File writeImage(File dir, ImageSource source, String fileName, ImageOptions options,
+      ResolutionLadder ladder) throws IOException {
+    HandBackMetrics metrics = HandBackMetrics.global();
+    File file = new File(dir, fileName);
+    long start = HandBackMetrics.start();
+    try {
+      metrics.record(HandBackMetrics.Stage.IMAGE_WRITE, start, source.writeTo(file));
+    } catch (IOException | RuntimeException e) {
+      metrics.record(HandBackMetrics.Stage.IMAGE_WRITE, start, 0, String.valueOf(e.getMessage()));
+      throw e;
+    }
+    start = HandBackMetrics.start();
+    try {
+      metrics.record(HandBackMetrics.Stage.IMAGE_PROCESS, start, ImageProcessor.process(file, options, ladder));
+    } catch (IOException | RuntimeException e) {
+      metrics.record(HandBackMetrics.Stage.IMAGE_PROCESS, start, 0, String.valueOf(e.getMessage()));
+      throw e;
+    }
+    return file;
+  }
+
+  /**
+   * Streams a base64 string or data URL into a file in fixed-size chunks, without splitting the
+   * string or decoding it into a single byte array first.
+   *
+   * @param base64 The base64 encoded string, optionally prefixed with "data:...;base64,".
+   * @param file The destination file, overwritten if it exists.
+   * @return The number of bytes written.
+   * @throws IOException If the input is not valid base64 or the file cannot be written.
+   */
+  public static long writeBase64(CharSequence base64, File file) throws IOException {
+    try (FileOutputStream fos = new FileOutputStream(file);
+         FileChannel channel = fos.getChannel()) {
+      return Base64StreamDecoder.decodeDataUrl(base64, channel);
+    }
+  }
+
+  /**
+   * Resolves a cache-relative file reference received from the web layer.
+   *
+   * @param context The context of the application.
+   * @param reference Path relative to the cache directory, e.g. "staging/frontImage.jpg".
+   * @return The referenced file.
+   * @throws IOException If the reference escapes the cache directory or is not an existing file.
+   */
+  public static File resolveCacheFile(Context context, String reference) throws IOException {
+    return resolveInside(context.getCacheDir(), reference);
+  }
+
+  /**
+   * Resolves a relative reference against a root directory, rejecting anything that would end
+   * up outside it (absolute paths, ".." segments, symlinks).
+   *
+   * @param root The directory the reference must stay inside.
+   * @param reference Path relative to the root.
+   * @return The referenced file.
+   * @throws IOException If the reference escapes the root or is not an existing file.
+   */
+  public static File resolveInside(File root, String reference) throws IOException {
+    if (reference == null || reference.isEmpty()) {
+      throw new IOException("Empty file reference");
+    }
+    File canonicalRoot = root.getCanonicalFile();
+    File file = new File(canonicalRoot, reference).getCanonicalFile();
+    if (!file.getPath().startsWith(canonicalRoot.getPath() + File.separator)) {
+      throw new IOException("File reference outside the cache directory: " + reference);
+    }
+    if (!file.isFile()) {
+      throw new IOException("File reference does not exist: " + reference);
     }
     return file;
   }
@@ -0,0 +1,285 @@
+package io.nawa.kobo.mrz;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Timings of the scan-to-KoboCollect pipeline, kept in a fixed ring buffer of spans.
+ *
+ * <p>Spans are measured with {@link System#nanoTime()}. Recording writes into preallocated
+ * arrays and allocates nothing, so it can stay enabled on every hand-back; only
+ * {@link #snapshot()} and {@link #appendLog} allocate. Per-stage totals survive after their
+ * spans have been overwritten.
+ */
+public class HandBackMetrics {
+
+    /**
+     * Pipeline stages, followed by the startup phases of the activity (see {@link StartupTrace}).
+     * Bridged images are decoded straight into their file, so the Base64 decode of an image is its
+     * {@link #IMAGE_WRITE}.
+     */
+    public enum Stage {
+        /** Reading the plugin call, up to handing it to the activity. Bytes: image payload. */
+        PLUGIN_ENTRY,
+        /** Decoding or moving one image into its file. Bytes: file size. */
+        IMAGE_WRITE,
+        /** Downscaling and recompressing one image. Bytes: processed size. */
+        IMAGE_PROCESS,
+        /** Pumping one image through a pipe to the reader. Bytes: streamed size. */
+        IMAGE_STREAM,
+        /** Moving the staged images into their submission directory. */
+        COMMIT,
+        /** Creating the content URIs granted to KoboCollect. */
+        URI_GRANT,
+        /** Laying out the result extras, including any spill. Bytes: estimated Bundle size. */
+        EXTRAS,
+        /** setResult and finish on the UI thread. */
+        SET_RESULT,
+        /** The whole hand-back, from the activity receiving the scan to setResult. */
+        HAND_BACK,
+        /** From the process start to the activity being created. Cold starts on API 24+ only. */
+        STARTUP_PROCESS,
+        /** Capacitor startup in super.onCreate: WebView, plugins and the bridge. */
+        STARTUP_BRIDGE,
+        /** The rest of onCreate: launch options and the batch or journal. */
+        STARTUP_LAUNCH,
+        /** From onCreate to the first frame being drawn. */
+        STARTUP_FIRST_FRAME,
+        /** From onCreate to the web app reporting it is ready to scan. */
+        STARTUP_WEB_READY,
+        /** Adopting a new launch intent in an activity that is already running. */
+        WARM_START,
+        /** Hashing the DocumentFace and querying the {@link FaceIndex}. */
+        FACE_MATCH,
+        /** Packing the fields and images into the scan archive. Bytes: archive size. */
+        ARCHIVE,
+        /** Scoring the sharpness and glare of the written images, see {@link QualityAnalyzer}. */
+        QUALITY
+    }
+
+    public static final int DEFAULT_CAPACITY = 512;
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final HandBackMetrics global = new HandBackMetrics(DEFAULT_CAPACITY);
+
+    private final int capacity;
+    private final byte[] spanStage;
+    private final long[] spanStart;
+    private final long[] spanDuration;
+    private final long[] spanBytes;
+    private final String[] spanError;
+    private long recorded;
+    private long logged;
+
+    private final long[] stageCount = new long[STAGES.length];
+    private final long[] stageFailures = new long[STAGES.length];
+    private final long[] stageBytes = new long[STAGES.length];
+    private final long[] stageNanos = new long[STAGES.length];
+    private final long[] stageMaxNanos = new long[STAGES.length];
+    private long heapHighWater;
+
+    /**
+     * @param capacity Number of spans kept before the oldest are overwritten.
+     */
+    public HandBackMetrics(int capacity) {
+        this.capacity = capacity;
+        spanStage = new byte[capacity];
+        spanStart = new long[capacity];
+        spanDuration = new long[capacity];
+        spanBytes = new long[capacity];
+        spanError = new String[capacity];
+    }
+
+    /**
+     * @return The metrics shared by the whole process.
+     */
+    public static HandBackMetrics global() {
+        return global;
+    }
+
+    /**
+     * @return The start time to pass to {@link #record}.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a successful span ending now.
+     */
+    public void record(Stage stage, long startNanos, long bytes) {
+        record(stage, startNanos, bytes, null);
+    }
+
+    /**
+     * Records a span ending now.
+     *
+     * @param stage The pipeline stage.
+     * @param startNanos The value returned by {@link #start()} when the stage began.
+     * @param bytes The bytes handled by the stage, or 0.
+     * @param error The failure cause, or null if the stage succeeded. Only the reference is kept.
+     */
+    public void record(Stage stage, long startNanos, long bytes, String error) {
+        long now = System.nanoTime();
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        long duration = now - startNanos;
+        int ordinal = stage.ordinal();
+        synchronized (this) {
+            int slot = (int) (recorded % capacity);
+            spanStage[slot] = (byte) ordinal;
+            spanStart[slot] = startNanos;
+            spanDuration[slot] = duration;
+            spanBytes[slot] = bytes;
+            spanError[slot] = error;
+            recorded++;
+
+            stageCount[ordinal]++;
+            stageBytes[ordinal] += bytes;
+            stageNanos[ordinal] += duration;
+            if (duration > stageMaxNanos[ordinal]) {
+                stageMaxNanos[ordinal] = duration;
+            }
+            if (error != null) {
+                stageFailures[ordinal]++;
+            }
+            if (heapUsed > heapHighWater) {
+                heapHighWater = heapUsed;
+            }
+        }
+    }
+
+    /**
+     * Clears all spans and totals.
+     */
+    public synchronized void reset() {
+        recorded = 0;
+        logged = 0;
+        heapHighWater = 0;
+        Arrays.fill(spanError, null);
+        Arrays.fill(stageCount, 0);
+        Arrays.fill(stageFailures, 0);
+        Arrays.fill(stageBytes, 0);
+        Arrays.fill(stageNanos, 0);
+        Arrays.fill(stageMaxNanos, 0);
+    }
+
+    /**
+     * Copy of the metrics at one point in time.
+     */
+    public static class Snapshot {
+        /** Total number of spans recorded, including overwritten ones. */
+        public final long recorded;
+        public final long heapHighWaterBytes;
+        /** Per-stage totals, indexed by {@link Stage#ordinal()}. */
+        public final long[] stageCount;
+        public final long[] stageFailures;
+        public final long[] stageBytes;
+        public final long[] stageNanos;
+        public final long[] stageMaxNanos;
+        /** Retained spans, oldest first. */
+        public final Stage[] spanStage;
+        public final long[] spanStartNanos;
+        public final long[] spanDurationNanos;
+        public final long[] spanBytes;
+        public final String[] spanError;
+
+        Snapshot(HandBackMetrics metrics, long fromSequence) {
+            recorded = metrics.recorded;
+            heapHighWaterBytes = metrics.heapHighWater;
+            stageCount = metrics.stageCount.clone();
+            stageFailures = metrics.stageFailures.clone();
+            stageBytes = metrics.stageBytes.clone();
+            stageNanos = metrics.stageNanos.clone();
+            stageMaxNanos = metrics.stageMaxNanos.clone();
+
+            long first = Math.max(fromSequence, recorded - metrics.capacity);
+            int count = (int) (recorded - first);
+            spanStage = new Stage[count];
+            spanStartNanos = new long[count];
+            spanDurationNanos = new long[count];
+            spanBytes = new long[count];
+            spanError = new String[count];
+            for (int i = 0; i < count; i++) {
+                int slot = (int) ((first + i) % metrics.capacity);
+                spanStage[i] = STAGES[metrics.spanStage[slot]];
+                spanStartNanos[i] = metrics.spanStart[slot];
+                spanDurationNanos[i] = metrics.spanDuration[slot];
+                spanBytes[i] = metrics.spanBytes[slot];
+                spanError[i] = metrics.spanError[slot];
+            }
+        }
+
+        /**
+         * @return The number of retained spans.
+         */
+        public int size() {
+            return spanStage.length;
+        }
+    }
+
+    /**
+     * @return A copy of the totals and all retained spans.
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(this, 0);
+    }
+
+    /**
+     * Appends the spans recorded since the last call to a tab-separated log, rotating it to
+     * {@code <name>.1} once it exceeds {@code maxBytes}. Spans overwritten in between are lost.
+     *
+     * <p>Columns: wall-clock end time in milliseconds, stage, duration in microseconds, bytes and
+     * error, if any.
+     *
+     * @param log The log file.
+     * @param maxBytes Size at which the log is rotated.
+     * @return The number of spans appended.
+     * @throws IOException If the log cannot be written.
+     */
+    public int appendLog(File log, long maxBytes) throws IOException {
+        Snapshot spans;
+        synchronized (this) {
+            spans = new Snapshot(this, logged);
+            logged = recorded;
+        }
+        if (spans.size() == 0) {
+            return 0;
+        }
+        File dir = log.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        if (log.length() > maxBytes) {
+            File rotated = new File(log.getPath() + ".1");
+            rotated.delete();
+            if (!log.renameTo(rotated)) {
+                throw new IOException("Could not rotate " + log);
+            }
+        }
+
+        long wallOffset = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(log, true), StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder(96);
+            for (int i = 0; i < spans.size(); i++) {
+                long endNanos = spans.spanStartNanos[i] + spans.spanDurationNanos[i];
+                line.setLength(0);
+                line.append((endNanos + wallOffset) / 1_000_000L).append('\t')
+                    .append(spans.spanStage[i].name()).append('\t')
+                    .append(spans.spanDurationNanos[i] / 1_000L).append('\t')
+                    .append(spans.spanBytes[i]).append('\t');
+                if (spans.spanError[i] != null) {
+                    line.append(spans.spanError[i].replace('\t', ' ').replace('\n', ' '));
+                }
+                line.append('\n');
+                out.write(line.toString());
+            }
+        }
+        return spans.size();
+    }
+}
@@ -0,0 +1,863 @@
+package io.nawa.kobo.mrz;
+
+import android.content.ClipData;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hand-back of a scan to KoboCollect: the image writes, the quality checks, the commit into
+ * the {@link SubmissionCache}, the duplicate checks, the extras and the URI grants, up to the
+ * result Intent. {@link MainActivity} hands back through it, and the hand-back benchmark runs it
+ * as is.
+ *
+ * <p>Each hand-back runs with the {@link LaunchOptions} it started with; the pipeline never reads
+ * the options of the current launch. The activity receives the result and the prompts through
+ * its {@link Host}.
+ *
+ * <p>Scans collected in batch mode are handed back by {@link BatchHandBack}, scans packed into
+ * one file by {@link ArchiveHandBack}, and scans are journaled and recovered by {@link ScanRecovery}. Document numbers and faces handed back before
+ * are flagged by {@link DuplicateChecks}, and results are kept for re-delivery by
+ * {@link ResultRedelivery}.
+ */
+public class HandBackPipeline {
+
+    /**
+     * The activity a hand-back returns its result to.
+     */
+    public interface Host {
+        void runOnUiThread(Runnable task);
+
+        /**
+         * Returns the result to KoboCollect and ends the activity. Called on the UI thread.
+         */
+        void finishWithResult(Intent intent);
+
+        /**
+         * Tells the user that a hand-back failed. Called on the UI thread.
+         */
+        void showError(String message);
+
+        /**
+         * Asks whether to hand back a scan a previous launch stored but never returned, see
+         * {@link #handBackRecovered} and {@link #discardRecovered}. Called on the UI thread.
+         */
+        void offerRecovered(ScanJournal.Entry entry);
+
+        /**
+         * Asks whether to return the result an earlier launch handed back for the same form
+         * question again, see {@link #redeliver} and {@link #forgetResult}. Called on the UI thread.
+         *
+         * @param submissionDir The directory of its images, pinned until answered, or null.
+         */
+        void offerResult(LaunchOptions options, ResultCache.Entry entry, File submissionDir);
+    }
+
+    /**
+     * Decodes the written images for the quality and face checks.
+     */
+    public interface ImageChecks {
+        QualityAnalyzer.Score score(File image) throws IOException;
+
+        long faceHash(File face) throws IOException;
+    }
+
+    /** The checks of the device, decoding with BitmapFactory. */
+    public static final ImageChecks BITMAP_CHECKS = new ImageChecks() {
+        @Override
+        public QualityAnalyzer.Score score(File image) throws IOException {
+            return QualityAnalyzer.analyze(image);
+        }
+
+        @Override
+        public long faceHash(File face) throws IOException {
+            return FaceHash.of(face);
+        }
+    };
+
+    /**
+     * Receives the outcome of {@link #sendData} once the result has been committed to
+     * KoboCollect or the hand-back has failed.
+     */
+    public interface SendDataCallback {
+        /**
+         * Called on the hand-back thread once the written images are scored, before the outcome.
+         * Not called for streamed images, which are never written.
+         *
+         * @param scores The scores keyed by image name; images that could not be decoded are left out.
+         */
+        void onScored(Map<String, QualityAnalyzer.Score> scores);
+
+        void onSent();
+
+        /**
+         * Called instead of {@link #onSent} in batch mode, once the scan has been persisted in a
+         * batch that is not full yet.
+         *
+         * @param count The number of scans in the batch.
+         * @param capacity The maximum number of scans of the batch.
+         */
+        void onBatched(int count, int capacity);
+
+        /**
+         * @param message Human readable failure summary.
+         * @param imageErrors Failure cause per image name (frontImage, backImage, DocumentFace);
+         *                    empty when the failure is not related to an image. With the message
+         *                    {@link QualityAnalyzer#REJECTED}, why each rejected image fell short.
+         */
+        void onFailed(String message, Map<String, String> imageErrors);
+    }
+
+    private static final int IMAGE_WRITER_THREADS = 3;
+
+    /** Bounded pool decoding and writing the images of a submission in parallel. */
+    private static final ExecutorService imageExecutor = newExecutor(IMAGE_WRITER_THREADS, "image-writer");
+
+    /** Waits for the image writes and assembles the result Intent off the UI thread. */
+    static final ExecutorService handBackExecutor = newExecutor(1, "hand-back");
+
+    static ExecutorService newExecutor(int threads, String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            runnable -> new Thread(runnable, name)
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** Rolling log of hand-back timings in the files directory, see {@link LaunchOptions#metricsLog}. */
+    static final String METRICS_LOG = "metrics/handback.log";
+    private static final long METRICS_LOG_MAX_BYTES = 256 * 1024;
+
+    /** Names of the images a submission can carry, in the order they are handed back. */
+    public static final String[] IMAGE_NAMES = ScanExtras.IMAGE_NAMES;
+
+    private final Context context;
+    private final Host host;
+    private final ImageChecks checks;
+    private final SubmissionCache submissionCache;
+    private final DuplicateChecks duplicates;
+    private final BatchHandBack batches;
+    /** Images written ahead of the hand-back, see {@link #stageImages}. */
+    private final StagedImages stagedImages;
+    private final ScanRecovery recovery;
+    private final ResultRedelivery redelivery;
+    private final ArchiveHandBack archives;
+
+    public HandBackPipeline(Context context, Host host) {
+        this(context, host, BITMAP_CHECKS);
+    }
+
+    /**
+     * @param context Provides the cache and files directories and the FileProvider authority.
+     * @param checks Decodes the images for the quality and face checks.
+     */
+    HandBackPipeline(Context context, Host host, ImageChecks checks) {
+        this.context = context;
+        this.host = host;
+        this.checks = checks;
+        submissionCache = SubmissionCache.get(context.getCacheDir());
+        stagedImages = new StagedImages(submissionCache, handBackExecutor);
+        duplicates = new DuplicateChecks(context, host, checks);
+        batches = new BatchHandBack(this, host, submissionCache, duplicates);
+        recovery = new ScanRecovery(context, host, submissionCache);
+        redelivery = new ResultRedelivery(context, host, submissionCache, recovery);
+        archives = new ArchiveHandBack(this, context, submissionCache, duplicates, recovery, redelivery);
+    }
+
+    public SubmissionCache getSubmissionCache() {
+        return submissionCache;
+    }
+
+    /**
+     * Opens the scan journal and offers to hand back a scan that a previous launch stored but
+     * never returned, e.g. because the process was killed. Its images are kept out of the cache
+     * trim that follows. Queued before any scan of this launch. The journal is opened once per
+     * process; later pipelines are offered the recovered scans not handed back or discarded yet.
+     *
+     * @param options The options of the launch that opens the journal.
+     */
+    public void openJournal(LaunchOptions options) {
+        handBackExecutor.execute(() -> recovery.open(options));
+    }
+
+    /**
+     * Hands back a scan recovered from the journal.
+     */
+    public void handBackRecovered(LaunchOptions options, ScanJournal.Entry entry) {
+        handBackExecutor.execute(
+            () -> handBackStored(options, entry.record, entry.dependentsInfo, entry.submissionId, entry.sequence, true));
+    }
+
+    /**
+     * Drops a scan recovered from the journal, as the user scans again.
+     */
+    public void discardRecovered(ScanJournal.Entry entry) {
+        recovery.markDone(entry.sequence);
+    }
+
+    /**
+     * Offers to return the result an earlier launch for the same form question handed back, if
+     * it has not expired and its images are still cached. Queued after the journal was opened; a
+     * recovered scan takes precedence.
+     *
+     * @param options The options of the launch, with the key of its form question.
+     */
+    public void offerCachedResult(LaunchOptions options) {
+        handBackExecutor.execute(() -> redelivery.offer(options));
+    }
+
+    /**
+     * Returns a result kept by {@link #offerCachedResult} again.
+     */
+    public void redeliver(LaunchOptions options, ResultCache.Entry entry) {
+        handBackExecutor.execute(
+            () -> handBackStored(options, entry.record, entry.dependentsInfo, entry.submissionId, -1, false));
+    }
+
+    /**
+     * Drops a result kept by {@link #offerCachedResult}, as the user scans again.
+     *
+     * @param submissionDir The directory of its images, or null.
+     */
+    public void forgetResult(String resultKey, File submissionDir) {
+        handBackExecutor.execute(() -> redelivery.forget(resultKey, submissionDir));
+    }
+
+    /**
+     * Hands back a scan stored by an earlier launch, granting its images again. Runs on the
+     * hand-back thread.
+     *
+     * @param options The options of the launch handing the scan back.
+     * @param journalSequence The journal sequence of the scan, or -1 if it is not journaled.
+     * @param firstDelivery Whether the scan was never handed back, so it is checked against and
+     *                      added to the {@link DocumentIndex}.
+     */
+    private void handBackStored(
+        LaunchOptions options,
+        ScanRecord record,
+        String dependentsInfo,
+        String submissionId,
+        long journalSequence,
+        boolean firstDelivery
+    ) {
+        long handBackStart = HandBackMetrics.start();
+        IntentUtils.Data data = IntentUtils.Data.fromRecord(record, dependentsInfo);
+        File submissionDir = submissionId != null ? submissionCache.getSubmissionDir(submissionId) : null;
+        if (submissionDir != null && !submissionCache.touch(submissionDir)) {
+            failHandBack(handBackStart, "The images of the scan are no longer available", Collections.emptyMap(), null);
+            return;
+        }
+        File archive = submissionDir != null ? new File(submissionDir, ScanArchive.FILE_NAME) : null;
+        Intent intent;
+        try {
+            if (archive != null && archive.isFile()) {
+                Map<String, Object> checks = new LinkedHashMap<>();
+                if (firstDelivery) {
+                    duplicates.putDuplicate(checks, "", data.documentNumber);
+                }
+                intent = archives.buildIntent(archive, checks);
+            } else {
+                intent = buildResultIntent(
+                    options, data, data.frontImageUri, data.backImageUri, data.DocumentFaceUri, getVersionUris(submissionDir),
+                    Collections.emptyMap(), submissionDir, firstDelivery);
+            }
+        } catch (IOException | RuntimeException e) {
+            failHandBack(handBackStart, "Failed to build result: " + e.getMessage(), Collections.emptyMap(), null);
+            return;
+        }
+        List<String> documentNumbers = firstDelivery
+            ? Collections.singletonList(data.documentNumber)
+            : Collections.emptyList();
+        commitResult(options, intent, submissionDir, journalSequence, documentNumbers, handBackStart, null);
+    }
+
+    /**
+     * Sends data back to KoboCollect using the standard Android result mechanism.
+     * The images are persisted in parallel off the UI thread; the result Intent is only
+     * assembled once all of them are on disk, and is committed on the UI thread.
+     * @param options The options of the launch, read once when the hand-back starts.
+     * @param batch The batch of the launch, or null when not in batch mode.
+     * @param fields Scan fields; the image URIs of this object are ignored.
+     * @param images Image sources keyed by image name (see {@link #IMAGE_NAMES}); missing images are skipped.
+     * @param callback Notified on the UI thread after the result is committed or the hand-back failed.
+     */
+    public void sendData(
+        LaunchOptions options,
+        BatchSession batch,
+        IntentUtils.Data fields,
+        Map<String, ImageSource> images,
+        SendDataCallback callback
+    ) {
+        long handBackStart = HandBackMetrics.start();
+        if (options.streamImages) {
+            sendDataStreamed(options, fields, images, handBackStart, callback);
+            return;
+        }
+
+        File stagingDir;
+        try {
+            stagingDir = submissionCache.newStagingDir();
+        } catch (IOException e) {
+            failHandBack(handBackStart, "Failed to write images: " + e.getMessage(), Collections.emptyMap(), callback);
+            return;
+        }
+
+        // Start all image writes before waiting on any of them; images the form does not ask for
+        // are never decoded
+        Map<String, Future<File>> pendingImages = new LinkedHashMap<>();
+        for (String name : options.profile.getImages()) {
+            submitImage(options, pendingImages, stagingDir, name, images.get(name));
+        }
+        handBackImages(options, batch, fields, stagingDir, pendingImages, handBackStart, callback);
+    }
+
+    /**
+     * Hands back the scan once the writes of its images into a staging directory are done: the
+     * images are scored, committed and granted, then the result Intent is assembled.
+     *
+     * @param pendingImages The image writes keyed by image name, see {@link #submitImage}.
+     */
+    private void handBackImages(
+        LaunchOptions options,
+        BatchSession batch,
+        IntentUtils.Data fields,
+        File stagingDir,
+        Map<String, Future<File>> pendingImages,
+        long handBackStart,
+        SendDataCallback callback
+    ) {
+        handBackExecutor.execute(() -> {
+            Map<String, File> imageFiles = new LinkedHashMap<>();
+            Map<String, String> imageErrors = new LinkedHashMap<>();
+            for (Map.Entry<String, Future<File>> entry : pendingImages.entrySet()) {
+                try {
+                    imageFiles.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    imageErrors.put(entry.getKey(), String.valueOf(cause.getMessage()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    imageErrors.put(entry.getKey(), "Interrupted while writing image");
+                }
+            }
+            if (!imageErrors.isEmpty()) {
+                submissionCache.discard(stagingDir);
+                failHandBack(handBackStart, "Failed to write images", imageErrors, callback);
+                return;
+            }
+
+            // Score the images before anything is committed, so a rejected capture leaves no trace
+            Map<String, QualityAnalyzer.Score> quality = scoreImages(imageFiles);
+            if (callback != null) {
+                callback.onScored(quality);
+            }
+            Map<String, String> rejections = new LinkedHashMap<>();
+            for (Map.Entry<String, QualityAnalyzer.Score> score : quality.entrySet()) {
+                String rejection = score.getValue().rejection(options.minSharpness, options.maxGlare);
+                if (rejection != null) {
+                    rejections.put(score.getKey(), rejection);
+                }
+            }
+            if (!rejections.isEmpty()) {
+                submissionCache.discard(stagingDir);
+                failHandBack(handBackStart, QualityAnalyzer.REJECTED, rejections, callback);
+                return;
+            }
+
+            if (options.archive) {
+                archives.handBack(options, fields, stagingDir, imageFiles, quality, handBackStart, callback);
+                return;
+            }
+
+            // Move the images to their per-submission directory before granting URIs to them
+            HandBackMetrics metrics = HandBackMetrics.global();
+            File submissionDir = null;
+            Map<String, Uri> imageUris = new HashMap<>();
+            Map<String, Uri> versionUris = Collections.emptyMap();
+            try {
+                if (imageFiles.isEmpty()) {
+                    submissionCache.discard(stagingDir);
+                } else {
+                    // The smaller versions are part of the content address, so a submission
+                    // cached without them is not reused
+                    List<File> files = new ArrayList<>(imageFiles.values());
+                    for (String name : imageFiles.keySet()) {
+                        files.addAll(ResolutionLadder.findVersions(stagingDir, name).values());
+                    }
+                    long start = HandBackMetrics.start();
+                    submissionDir = submissionCache.commit(stagingDir, files);
+                    metrics.record(HandBackMetrics.Stage.COMMIT, start, 0);
+
+                    start = HandBackMetrics.start();
+                    for (Map.Entry<String, File> entry : imageFiles.entrySet()) {
+                        File file = new File(submissionDir, entry.getValue().getName());
+                        imageUris.put(entry.getKey(), FileUtils.getUriForFile(context, file));
+                    }
+                    versionUris = getVersionUris(submissionDir);
+                    metrics.record(HandBackMetrics.Stage.URI_GRANT, start, 0);
+                }
+            } catch (IOException | RuntimeException e) {
+                submissionCache.discard(stagingDir);
+                failHandBack(handBackStart, "Failed to store images: " + e.getMessage(), Collections.emptyMap(), callback);
+                return;
+            }
+
+            if (batch != null) {
+                batches.add(options, batch, fields, imageUris, submissionDir, handBackStart, callback);
+                return;
+            }
+
+            Intent intent;
+            long journalSequence;
+            try {
+                Uri front = imageUris.get("frontImage");
+                Uri back = imageUris.get("backImage");
+                Uri face = imageUris.get("DocumentFace");
+                // Flatten the dependents once, for both the journal and the extras
+                ScanRecord record = fields.withImageUris(front, back, face).toRecord(options.profile.wantsDependents());
+                IntentUtils.Data data = IntentUtils.Data.fromRecord(record, fields.dependentsInfo);
+                journalSequence = recovery.append(record, fields.dependentsInfo, submissionDir);
+                intent = buildResultIntent(options, data, front, back, face, versionUris, quality, submissionDir, true);
+                redelivery.keep(options, record, fields.dependentsInfo, submissionDir);
+            } catch (IOException | RuntimeException e) {
+                failHandBack(handBackStart, "Failed to build result: " + e.getMessage(), Collections.emptyMap(), callback);
+                return;
+            }
+
+            commitResult(
+                options, intent, submissionDir, journalSequence, Collections.singletonList(fields.documentNumber), handBackStart, callback);
+        });
+    }
+
+    /**
+     * Starts decoding and writing the images of a scan into a staging directory before it is
+     * sent, so that {@link #sendStagedData} only has to assemble the result. Images staged for an
+     * earlier scan are discarded, as the user rescanned.
+     *
+     * @param images Image sources keyed by image name (see {@link #IMAGE_NAMES}); missing images are skipped.
+     * @return The staging id to send or cancel the images with.
+     * @throws IOException If the staging directory cannot be created.
+     * @throws IllegalStateException If images are streamed in this launch and never written.
+     */
+    public String stageImages(LaunchOptions options, Map<String, ImageSource> images) throws IOException {
+        if (options.streamImages) {
+            throw new IllegalStateException("Images are streamed in this launch");
+        }
+        StagedImages.Scan scan = new StagedImages.Scan(submissionCache.newStagingDir(), options);
+        for (String name : options.profile.getImages()) {
+            ImageSource source = images.get(name);
+            if (source != null) {
+                scan.submit(imageExecutor, name, writeImage(options, scan.dir, name, source));
+            }
+        }
+        return stagedImages.stage(scan);
+    }
+
+    /**
+     * Same as {@link #sendData} with images staged by {@link #stageImages}, handed back with the
+     * options they were written for.
+     *
+     * @param batch The batch of the launch, or null when not in batch mode.
+     * @param stagingId The id returned by {@link #stageImages}; the hand-back fails if the images
+     *                  were cancelled, already sent or staged in an earlier launch.
+     */
+    public void sendStagedData(BatchSession batch, IntentUtils.Data fields, String stagingId, SendDataCallback callback) {
+        long handBackStart = HandBackMetrics.start();
+        StagedImages.Scan staged = stagedImages.take(stagingId);
+        if (staged == null) {
+            failHandBack(handBackStart, "No staged images for " + stagingId, Collections.emptyMap(), callback);
+            return;
+        }
+        handBackImages(staged.options, batch, fields, staged.dir, staged.pendingImages, handBackStart, callback);
+    }
+
+    /**
+     * Discards images staged by {@link #stageImages} once their writes are done.
+     *
+     * @return Whether images were staged under the id.
+     */
+    public boolean cancelStaging(String stagingId) {
+        return stagedImages.cancel(stagingId);
+    }
+
+    /**
+     * Discards all staged images, e.g. as they were written with the options of a previous launch.
+     */
+    public void discardStaged() {
+        stagedImages.discardAll();
+    }
+
+    /**
+     * Scores the sharpness and glare of the written images. An image that cannot be decoded is
+     * left out rather than rejected, as the scores only guard against poor captures.
+     */
+    private Map<String, QualityAnalyzer.Score> scoreImages(Map<String, File> imageFiles) {
+        long start = HandBackMetrics.start();
+        Map<String, QualityAnalyzer.Score> scores = new LinkedHashMap<>();
+        for (Map.Entry<String, File> image : imageFiles.entrySet()) {
+            try {
+                scores.put(image.getKey(), checks.score(image.getValue()));
+            } catch (IOException | RuntimeException ignored) {
+                // Handed back unscored; the image itself was written fine
+            }
+        }
+        HandBackMetrics.global().record(HandBackMetrics.Stage.QUALITY, start, 0);
+        return scores;
+    }
+
+    /**
+     * Discards every result kept for re-delivery.
+     */
+    public void clearResultCache() {
+        handBackExecutor.execute(redelivery::clear);
+    }
+
+    /**
+     * Hands all scans of the batch back to KoboCollect in one result and ends the activity.
+     *
+     * @param batch The batch of the launch, or null when not in batch mode.
+     * @param callback Notified on the UI thread after the result is committed or the hand-back failed.
+     */
+    public void finishBatch(LaunchOptions options, BatchSession batch, SendDataCallback callback) {
+        long handBackStart = HandBackMetrics.start();
+        handBackExecutor.execute(() -> batches.handBack(options, batch, handBackStart, callback));
+    }
+
+    /**
+     * Hands the images back as {@link ImageStreamProvider} URIs served from their sources, so
+     * nothing is written to disk unless the reader needs to seek.
+     */
+    private void sendDataStreamed(
+        LaunchOptions options,
+        IntentUtils.Data fields,
+        Map<String, ImageSource> images,
+        long handBackStart,
+        SendDataCallback callback
+    ) {
+        handBackExecutor.execute(() -> {
+            Intent intent;
+            try {
+                long start = HandBackMetrics.start();
+                Map<String, Uri> imageUris = new HashMap<>();
+                for (String name : options.profile.getImages()) {
+                    ImageSource source = images.get(name);
+                    if (source != null) {
+                        imageUris.put(name, ImageStreamProvider.register(context, name + ".jpg", source));
+                    }
+                }
+                HandBackMetrics.global().record(HandBackMetrics.Stage.URI_GRANT, start, 0);
+                intent = buildResultIntent(
+                    options,
+                    fields,
+                    imageUris.get("frontImage"),
+                    imageUris.get("backImage"),
+                    imageUris.get("DocumentFace"),
+                    Collections.emptyMap(),
+                    Collections.emptyMap(),
+                    null,
+                    true
+                );
+            } catch (IOException | RuntimeException e) {
+                failHandBack(handBackStart, "Failed to build result: " + e.getMessage(), Collections.emptyMap(), callback);
+                return;
+            }
+            commitResult(options, intent, null, -1, Collections.singletonList(fields.documentNumber), handBackStart, callback);
+        });
+    }
+
+    /**
+     * Returns the result to KoboCollect on the UI thread, then trims the image cache. Runs on the
+     * hand-back thread.
+     *
+     * @param options The options of the launch, with the cache budget and whether to log metrics.
+     * @param journalSequence The journal sequence of the scan, or -1 if it was not journaled. The
+     *                        journal write gets a bounded wait before the result is set, and the
+     *                        scan is marked done once the activity has finished.
+     * @param documentNumbers Document numbers of the handed back scans, added to the
+     *                        {@link DocumentIndex} once the result is set.
+     * @param callback Notified on the UI thread, or null.
+     */
+    void commitResult(
+        LaunchOptions options,
+        Intent intent,
+        File submissionDir,
+        long journalSequence,
+        List<String> documentNumbers,
+        long handBackStart,
+        SendDataCallback callback
+    ) {
+        recovery.awaitDurable(journalSequence);
+        host.runOnUiThread(() -> {
+            HandBackMetrics metrics = HandBackMetrics.global();
+            long start = HandBackMetrics.start();
+            host.finishWithResult(intent);
+            metrics.record(HandBackMetrics.Stage.SET_RESULT, start, 0);
+            metrics.record(HandBackMetrics.Stage.HAND_BACK, handBackStart, 0);
+            recovery.markDone(journalSequence);
+            if (callback != null) {
+                callback.onSent();
+            }
+            handBackExecutor.execute(() -> duplicates.index(documentNumbers));
+            submissionCache.trimAsync(options.cacheMaxBytes, options.cacheMaxAgeMillis, submissionDir);
+            appendMetricsLog(options);
+        });
+    }
+
+    /**
+     * Preloads known document numbers into the duplicate index, one per line.
+     *
+     * @param file A text file of document numbers.
+     * @param callback Notified on the UI thread with the number of new documents, or the failure.
+     */
+    public void importDocumentNumbers(File file, ImportCallback callback) {
+        handBackExecutor.execute(() -> duplicates.importDocumentNumbers(file, callback));
+    }
+
+    /**
+     * Outcome of {@link #importDocumentNumbers}.
+     */
+    public interface ImportCallback {
+        /**
+         * @param added Number of document numbers that were not indexed yet.
+         * @param size Number of indexed documents after the import.
+         */
+        void onImported(int added, int size);
+
+        void onFailed(String message);
+    }
+
+    /**
+     * Appends the spans of this hand-back to the rolling metrics log, if enabled at launch.
+     */
+    public void appendMetricsLog(LaunchOptions options) {
+        if (!options.metricsLog) {
+            return;
+        }
+        File log = new File(context.getFilesDir(), METRICS_LOG);
+        handBackExecutor.execute(() -> {
+            try {
+                HandBackMetrics.global().appendLog(log, METRICS_LOG_MAX_BYTES);
+            } catch (IOException ignored) {
+                // Diagnostics only; never fail a hand-back over them
+            }
+        });
+    }
+
+    /**
+     * Queues the write and processing of one image, if it was provided.
+     */
+    private void submitImage(
+        LaunchOptions options,
+        Map<String, Future<File>> pendingImages,
+        File dir,
+        String name,
+        ImageSource source
+    ) {
+        if (source == null) {
+            return;
+        }
+        pendingImages.put(name, imageExecutor.submit(writeImage(options, dir, name, source)));
+    }
+
+    /**
+     * @param options The options of the launch the image is written for.
+     * @return The write and processing of one image.
+     */
+    private static Callable<File> writeImage(LaunchOptions options, File dir, String name, ImageSource source) {
+        ImageOptions imageOptions = options.imageOptions;
+        ResolutionLadder ladder = options.ladder;
+        return () -> FileUtils.writeImage(dir, source, name + ".jpg", imageOptions, ladder);
+    }
+
+    void failHandBack(
+        long handBackStart,
+        String message,
+        Map<String, String> imageErrors,
+        SendDataCallback callback
+    ) {
+        HandBackMetrics.global().record(HandBackMetrics.Stage.HAND_BACK, handBackStart, 0, message);
+        host.runOnUiThread(() -> {
+            // A rejected capture is retaken, which the web app asks for itself
+            if (!QualityAnalyzer.REJECTED.equals(message)) {
+                host.showError("Failed to send data to KoboCollect. Please try again. If the issue persists, contact support.");
+            }
+            if (callback != null) {
+                callback.onFailed(message, imageErrors);
+            }
+        });
+    }
+
+    /**
+     * Builds the result Intent for KoboCollect from the scan fields and the written image URIs.
+     *
+     * @param options The options of the launch, with the output profile of its form.
+     * @param versionUris URIs of the smaller image versions keyed by extra, see {@link ResolutionLadder}.
+     * @param quality Scores of the images, see {@link QualityAnalyzer}; empty when they were not scored.
+     * @param submissionDir The committed submission directory, or null if the images are not
+     *                      stored in one.
+     * @param checkDuplicates Whether to flag a document number or a face handed back before, see
+     *                        {@link DocumentIndex} and {@link FaceIndex}. Off when a result is
+     *                        delivered again.
+     */
+    private Intent buildResultIntent(
+        LaunchOptions options,
+        IntentUtils.Data fields,
+        Uri frontImageUri,
+        Uri backImageUri,
+        Uri DocumentFaceUri,
+        Map<String, Uri> versionUris,
+        Map<String, QualityAnalyzer.Score> quality,
+        File submissionDir,
+        boolean checkDuplicates
+    ) throws IOException {
+        Intent intent = new Intent();
+        if (frontImageUri != null || backImageUri != null || DocumentFaceUri != null) {
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        }
+
+        // Attach extras, moving oversized values to files so the Bundle fits in a Binder transaction
+        long start = HandBackMetrics.start();
+        IntentUtils.Data data = fields.withImageUris(frontImageUri, backImageUri, DocumentFaceUri);
+        OutputProfile profile = options.profile;
+        Map<String, Object> extras = ScanExtras.build(
+            data.toRecord(profile.wantsDependents()), data.dependentsInfo, options.legacyExtras, profile);
+        if (checkDuplicates) {
+            duplicates.putDuplicate(extras, "", data.documentNumber);
+            duplicates.putFaceMatch(extras, "", submissionDir, data.documentNumber);
+        }
+        ScanExtras.putQuality(extras, "", quality);
+        for (Map.Entry<String, Uri> version : versionUris.entrySet()) {
+            extras.put(version.getKey(), version.getValue().toString());
+        }
+        List<Uri> spilledUris = spillOversizedExtras(extras);
+        IntentUtils.putExtras(intent, extras);
+        HandBackMetrics.global().record(HandBackMetrics.Stage.EXTRAS, start, ParcelSize.of(extras));
+
+        // Attach clip data for images if any
+        if (frontImageUri != null) {
+            ClipData clipData = new ClipData(
+                "frontImage",
+                new String[]{"image/jpeg"},
+                new ClipData.Item(frontImageUri)
+            );
+            if (backImageUri != null) {
+                clipData.addItem(new ClipData.Item(backImageUri));
+            }
+            if (DocumentFaceUri != null) {
+                clipData.addItem(new ClipData.Item(DocumentFaceUri));
+            }
+            intent.setClipData(clipData);
+        } else if (backImageUri != null) {
+            ClipData clipData = new ClipData(
+                "backImage",
+                new String[]{"image/jpeg"},
+                new ClipData.Item(backImageUri)
+            );
+            if (DocumentFaceUri != null) {
+                clipData.addItem(new ClipData.Item(DocumentFaceUri));
+            }
+            intent.setClipData(clipData);
+        } else if (DocumentFaceUri != null) {
+            ClipData clipData = new ClipData(
+                "DocumentFaceImage",
+                new String[]{"image/jpeg"},
+                new ClipData.Item(DocumentFaceUri)
+            );
+            intent.setClipData(clipData);
+        }
+
+        // Grant the smaller versions and the spilled extras alongside the images
+        grantUris(intent, "versions", "image/jpeg", new ArrayList<>(versionUris.values()));
+        grantUris(intent, "extras", "application/octet-stream", spilledUris);
+
+        return intent;
+    }
+
+    /**
+     * @param submissionDir A committed submission directory, or null.
+     * @return The content URIs of the smaller image versions in it, keyed by extra.
+     */
+    Map<String, Uri> getVersionUris(File submissionDir) {
+        Map<String, Uri> uris = new LinkedHashMap<>();
+        if (submissionDir == null) {
+            return uris;
+        }
+        for (String name : IMAGE_NAMES) {
+            for (Map.Entry<String, File> version : ResolutionLadder.findVersions(submissionDir, name).entrySet()) {
+                uris.put(version.getKey(), FileUtils.getUriForFile(context, version.getValue()));
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * Grants KoboCollect read access to content URIs by adding them to the clip data of the result.
+     *
+     * @param label The clip label, used if the intent has no clip data yet.
+     * @param mimeType The clip MIME type, used if the intent has no clip data yet.
+     */
+    static void grantUris(Intent intent, String label, String mimeType, List<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        ClipData clipData = intent.getClipData();
+        for (Uri uri : uris) {
+            if (clipData == null) {
+                clipData = new ClipData(label, new String[]{mimeType}, new ClipData.Item(uri));
+            } else {
+                clipData.addItem(new ClipData.Item(uri));
+            }
+        }
+        intent.setClipData(clipData);
+    }
+
+    /**
+     * Writes the extras that would push the result Bundle over {@link ExtrasSpill#DEFAULT_THRESHOLD_BYTES}
+     * to their own submission directory and replaces them with {@code <key>Uri} pointer extras.
+     * The directory is pinned like the images of a batch, so no trim removes the files before
+     * KoboCollect has read them.
+     *
+     * @return The URIs of the spilled extras, to be granted to KoboCollect.
+     */
+    List<Uri> spillOversizedExtras(Map<String, Object> extras) throws IOException {
+        List<String> keys = ExtrasSpill.plan(extras, ExtrasSpill.DEFAULT_THRESHOLD_BYTES);
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        File stagingDir = submissionCache.newStagingDir();
+        Map<String, File> files;
+        File dir;
+        try {
+            files = ExtrasSpill.spill(extras, keys, stagingDir);
+            dir = submissionCache.commit(stagingDir, new ArrayList<>(files.values()));
+        } catch (IOException | RuntimeException e) {
+            submissionCache.discard(stagingDir);
+            throw e;
+        }
+        submissionCache.pin(dir);
+        List<Uri> uris = new ArrayList<>();
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            Uri uri = FileUtils.getUriForFile(context, new File(dir, entry.getValue().getName()));
+            extras.put(entry.getKey() + ExtrasSpill.POINTER_SUFFIX, uri.toString());
+            uris.add(uri);
+        }
+        return uris;
+    }
+}
@@ -0,0 +1,83 @@
+package io.nawa.kobo.mrz;
+
+/**
+ * Settings of the image stage applied to every scan image before it is handed to KoboCollect.
+ */
+public class ImageOptions {
+
+    /** Keeps the BlinkID bytes exactly as received. */
+    public static final ImageOptions PASSTHROUGH = new ImageOptions(0, 100, false);
+
+    /** Caps images at 1600 px and recompresses them at quality 85 without metadata. */
+    public static final ImageOptions DEFAULT = new ImageOptions(1600, 85, true);
+
+    /** Longest edge in pixels, or 0 to keep the original size. */
+    public final int maxEdge;
+    /** JPEG quality (1-100). 100 keeps the original compressed data when no resize is needed. */
+    public final int jpegQuality;
+    /** Whether EXIF, XMP and comment segments are removed. */
+    public final boolean stripExif;
+
+    public ImageOptions(int maxEdge, int jpegQuality, boolean stripExif) {
+        if (maxEdge < 0) {
+            throw new IllegalArgumentException("maxEdge must not be negative: " + maxEdge);
+        }
+        if (jpegQuality < 1 || jpegQuality > 100) {
+            throw new IllegalArgumentException("jpegQuality must be between 1 and 100: " + jpegQuality);
+        }
+        this.maxEdge = maxEdge;
+        this.jpegQuality = jpegQuality;
+        this.stripExif = stripExif;
+    }
+
+    /**
+     * @return Whether images are written without any processing.
+     */
+    public boolean isPassthrough() {
+        return maxEdge == 0 && jpegQuality == 100 && !stripExif;
+    }
+
+    /**
+     * @return Whether an image of the given size has to be scaled down.
+     */
+    public boolean needsResize(int width, int height) {
+        return maxEdge > 0 && Math.max(width, height) > maxEdge;
+    }
+
+    /**
+     * @return Whether an image of the given size has to be decoded and encoded again.
+     */
+    public boolean needsRecompress(int width, int height) {
+        return needsResize(width, height) || jpegQuality < 100;
+    }
+
+    /**
+     * Computes the largest power-of-two decoder subsampling that still leaves the longest edge
+     * at or above {@link #maxEdge}, so the full-resolution bitmap is never inflated.
+     *
+     * @return The sample size, 1 when no subsampling is possible.
+     */
+    public int sampleSizeFor(int width, int height) {
+        int longest = Math.max(width, height);
+        int sampleSize = 1;
+        if (maxEdge > 0) {
+            while (longest / (sampleSize * 2) >= maxEdge) {
+                sampleSize *= 2;
+            }
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return The output {width, height} for an image of the given size, keeping its aspect ratio.
+     */
+    public int[] scaledSize(int width, int height) {
+        if (!needsResize(width, height)) {
+            return new int[]{width, height};
+        }
+        int longest = Math.max(width, height);
+        int scaledWidth = Math.max(1, Math.round((float) width * maxEdge / longest));
+        int scaledHeight = Math.max(1, Math.round((float) height * maxEdge / longest));
+        return new int[]{scaledWidth, scaledHeight};
+    }
+}
@@ -0,0 +1,211 @@
+package io.nawa.kobo.mrz;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Downscales and recompresses a scan image in place according to {@link ImageOptions}.
+ */
+public class ImageProcessor {
+
+    private ImageProcessor() {
+    }
+
+    /**
+     * Processes a JPEG file in place. The image is decoded with subsampling and density scaling
+     * so that only the output-sized bitmap is ever allocated. Re-encoding drops all metadata, so
+     * the EXIF orientation is applied to the pixels first; when no re-encoding is needed, metadata
+     * segments are stripped without touching the image data and the orientation tag is kept.
+     *
+     * @param file The JPEG file written from the BlinkID result.
+     * @param options The processing settings.
+     * @return The size of the file after processing.
+     * @throws IOException If the image cannot be decoded or written.
+     */
+    public static long process(File file, ImageOptions options) throws IOException {
+        if (options.isPassthrough()) {
+            return file.length();
+        }
+        int[] size = readDimensions(file);
+        if (options.needsRecompress(size[0], size[1])) {
+            Bitmap bitmap = decode(file, size[0], size[1], options);
+            try {
+                replace(file, bitmap, options.jpegQuality);
+            } finally {
+                bitmap.recycle();
+            }
+        } else if (options.stripExif) {
+            File processed = new File(file.getParentFile(), file.getName() + ".tmp");
+            JpegSegments.stripMetadata(file, processed);
+            rename(processed, file);
+        }
+        return file.length();
+    }
+
+    /**
+     * Processes a JPEG file in place like {@link #process(File, ImageOptions)} and writes the
+     * smaller versions of a {@link ResolutionLadder} next to it. The image is decoded once: the
+     * bitmap of the processed image, or else one decoded at the size of the largest rung, is
+     * scaled down rung by rung.
+     *
+     * @param file The JPEG file, named {@code <image>.jpg}.
+     * @param options The processing settings of the full image.
+     * @param ladder The smaller versions to write.
+     * @return The size of the full image and its versions after processing.
+     * @throws IOException If the image cannot be decoded or a file cannot be written.
+     */
+    public static long process(File file, ImageOptions options, ResolutionLadder ladder) throws IOException {
+        if (ladder.isEmpty()) {
+            return process(file, options);
+        }
+        int[] size = readDimensions(file);
+        Bitmap bitmap;
+        if (options.needsRecompress(size[0], size[1])) {
+            bitmap = decode(file, size[0], size[1], options);
+            try {
+                replace(file, bitmap, options.jpegQuality);
+            } catch (IOException | RuntimeException e) {
+                bitmap.recycle();
+                throw e;
+            }
+        } else {
+            process(file, options);
+            bitmap = decode(file, size[0], size[1], ladder.getRungs().get(0).options);
+        }
+
+        String imageName = file.getName().endsWith(".jpg")
+            ? file.getName().substring(0, file.getName().length() - 4)
+            : file.getName();
+        long total = file.length();
+        try {
+            for (ResolutionLadder.Rung rung : ladder.getRungs()) {
+                int[] target = rung.options.scaledSize(bitmap.getWidth(), bitmap.getHeight());
+                bitmap = scaleDown(bitmap, target[0], target[1]);
+                File version = new File(file.getParentFile(), rung.fileName(imageName));
+                encode(bitmap, version, rung.options.jpegQuality);
+                total += version.length();
+            }
+        } finally {
+            bitmap.recycle();
+        }
+        return total;
+    }
+
+    private static int[] readDimensions(File file) throws IOException {
+        int[] size = JpegSegments.readDimensions(file);
+        if (size != null) {
+            return size;
+        }
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Unsupported image: " + file.getName());
+        }
+        return new int[]{bounds.outWidth, bounds.outHeight};
+    }
+
+    /**
+     * Decodes an image at the output size of the given options, subsampling in the decoder so the
+     * full-resolution bitmap is never allocated.
+     */
+    private static Bitmap decode(File source, int width, int height, ImageOptions options) throws IOException {
+        int sampleSize = options.sampleSizeFor(width, height);
+        BitmapFactory.Options decode = new BitmapFactory.Options();
+        decode.inSampleSize = sampleSize;
+        if (options.needsResize(width, height)) {
+            // Let the decoder scale the sampled image to the exact target size
+            decode.inScaled = true;
+            decode.inDensity = Math.max(width, height) / sampleSize;
+            decode.inTargetDensity = options.maxEdge;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(source.getPath(), decode);
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + source.getName());
+        }
+        return applyOrientation(bitmap, JpegSegments.readOrientation(source));
+    }
+
+    /**
+     * Rotates and mirrors a bitmap as its EXIF orientation says, so it is upright once encoded
+     * without metadata. The given bitmap is recycled unless it is returned.
+     */
+    private static Bitmap applyOrientation(Bitmap bitmap, int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case 2:
+                matrix.setScale(-1, 1);
+                break;
+            case 3:
+                matrix.setRotate(180);
+                break;
+            case 4:
+                matrix.setRotate(180);
+                matrix.postScale(-1, 1);
+                break;
+            case 5:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case 6:
+                matrix.setRotate(90);
+                break;
+            case 7:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case 8:
+                matrix.setRotate(-90);
+                break;
+            default:
+                return bitmap;
+        }
+        Bitmap oriented = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (oriented != bitmap) {
+            bitmap.recycle();
+        }
+        return oriented;
+    }
+
+    /**
+     * Scales a bitmap down in steps of at most half, so bilinear filtering does not skip pixels.
+     * The given bitmap is recycled unless it is returned.
+     */
+    private static Bitmap scaleDown(Bitmap bitmap, int width, int height) {
+        while (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            int stepWidth = Math.max(width, bitmap.getWidth() / 2);
+            int stepHeight = Math.max(height, bitmap.getHeight() / 2);
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, stepWidth, stepHeight, true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+            }
+            bitmap = scaled;
+        }
+        return bitmap;
+    }
+
+    private static void replace(File file, Bitmap bitmap, int jpegQuality) throws IOException {
+        File processed = new File(file.getParentFile(), file.getName() + ".tmp");
+        encode(bitmap, processed, jpegQuality);
+        rename(processed, file);
+    }
+
+    private static void encode(Bitmap bitmap, File target, int jpegQuality) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, jpegQuality, out)) {
+                throw new IOException("Could not encode " + target.getName());
+            }
+        }
+    }
+
+    private static void rename(File processed, File file) throws IOException {
+        if (!processed.renameTo(file)) {
+            processed.delete();
+            throw new IOException("Could not replace " + file.getName());
+        }
+    }
+}
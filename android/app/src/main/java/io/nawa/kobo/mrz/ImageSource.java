@@ -0,0 +1,132 @@
+package io.nawa.kobo.mrz;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Where the bytes of a scan image come from when it is persisted or streamed to KoboCollect.
+ */
+public interface ImageSource {
+
+    /**
+     * Persists the image at the given location.
+     *
+     * @param target The file to create or overwrite.
+     * @return The number of bytes in the target file.
+     * @throws IOException If the image cannot be read or written.
+     */
+    long writeTo(File target) throws IOException;
+
+    /**
+     * Streams the image bytes into a channel. Can be called more than once.
+     *
+     * @param out The channel receiving the image; it is not closed.
+     * @return The number of bytes written.
+     * @throws IOException If the image cannot be read or the channel fails.
+     */
+    long streamTo(WritableByteChannel out) throws IOException;
+
+    /**
+     * @return The image size in bytes, or -1 if it is not known without reading the image.
+     */
+    long size();
+
+    /**
+     * @param base64 Base64 text or data URL received over the bridge.
+     * @return A source decoding the text straight into the target.
+     */
+    static ImageSource fromBase64(CharSequence base64) {
+        return new Base64Source(base64);
+    }
+
+    /**
+     * @param staged An uploaded image file, see {@link ChunkedUploads#resolve}.
+     * @return A source moving the file to the target, copying only across file systems.
+     */
+    static ImageSource fromFile(File staged) {
+        return new FileSource(staged);
+    }
+
+    class Base64Source implements ImageSource {
+        private final CharSequence base64;
+
+        Base64Source(CharSequence base64) {
+            this.base64 = base64;
+        }
+
+        @Override
+        public long writeTo(File target) throws IOException {
+            return FileUtils.writeBase64(base64, target);
+        }
+
+        @Override
+        public long streamTo(WritableByteChannel out) throws IOException {
+            return Base64StreamDecoder.decodeDataUrl(base64, out);
+        }
+
+        /**
+         * Computes the decoded size from the number of Base64 characters, without decoding.
+         */
+        @Override
+        public long size() {
+            int start;
+            try {
+                start = Base64StreamDecoder.payloadStart(base64);
+            } catch (IOException e) {
+                return -1;
+            }
+            long chars = 0;
+            for (int i = start; i < base64.length(); i++) {
+                char c = base64.charAt(i);
+                if (c != '=' && c != '\n' && c != '\r' && c != ' ' && c != '\t') {
+                    chars++;
+                }
+            }
+            return chars * 3 / 4;
+        }
+    }
+
+    class FileSource implements ImageSource {
+        private final File file;
+
+        FileSource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public long writeTo(File target) throws IOException {
+            if (file.getCanonicalFile().equals(target.getCanonicalFile())) {
+                return target.length();
+            }
+            if (file.renameTo(target)) {
+                return target.length();
+            }
+            try (FileChannel out = new FileOutputStream(target).getChannel()) {
+                streamTo(out);
+            }
+            file.delete();
+            return target.length();
+        }
+
+        @Override
+        public long streamTo(WritableByteChannel out) throws IOException {
+            try (FileChannel in = new FileInputStream(file).getChannel()) {
+                long size = in.size();
+                long copied = 0;
+                while (copied < size) {
+                    copied += in.transferTo(copied, size - copied, out);
+                }
+                return copied;
+            }
+        }
+
+        @Override
+        public long size() {
+            return file.length();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package io.nawa.kobo.mrz;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves scan images to KoboCollect through pipes instead of files in the cache.
+ *
+ * <p>URIs have the form {@code content://<package>.imagestream/<token>/<name>}. The first read of
+ * each image is decoded straight from its source into the pipe, so the image is never written to
+ * disk; a retry after an incomplete read falls back to a file, see {@link ImageStreamRegistry}.
+ * Images are only registered in memory, so the URIs stop working if the process dies.
+ */
+public class ImageStreamProvider extends ContentProvider {
+
+    private static final String AUTHORITY_SUFFIX = ".imagestream";
+    private static final String SPILL_DIRECTORY = "streams";
+
+    private static ImageStreamRegistry registry;
+
+    private static final ExecutorService pumpExecutor = newPumpExecutor();
+
+    private static ExecutorService newPumpExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            0, 4, 30, TimeUnit.SECONDS, new SynchronousQueue<>(),
+            runnable -> new Thread(runnable, "image-stream")
+        );
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        return executor;
+    }
+
+    /**
+     * Registers an image and returns the URI serving it.
+     *
+     * @param context The context of the application.
+     * @param name The file name exposed to the reader, e.g. "frontImage.jpg".
+     * @param source The source of the image bytes.
+     * @return A content URI that can be granted to KoboCollect.
+     */
+    public static Uri register(Context context, String name, ImageSource source) {
+        String token = getRegistry(context).register(name, source);
+        return new Uri.Builder()
+            .scheme("content")
+            .authority(context.getPackageName() + AUTHORITY_SUFFIX)
+            .appendPath(token)
+            .appendPath(name)
+            .build();
+    }
+
+    /**
+     * @return The registry shared by all provider instances of this process.
+     */
+    public static synchronized ImageStreamRegistry getRegistry(Context context) {
+        if (registry == null) {
+            File spillDir = new File(context.getCacheDir(), SPILL_DIRECTORY);
+            registry = new ImageStreamRegistry(spillDir, ImageStreamRegistry.DEFAULT_TTL_MILLIS);
+        }
+        return registry;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Images are read-only: " + uri);
+        }
+        ImageStreamRegistry images = getRegistry(getContext());
+        String token = tokenOf(uri);
+        ImageSource source = images.openStream(token);
+        if (source == null) {
+            try {
+                return ParcelFileDescriptor.open(images.openFile(token), ParcelFileDescriptor.MODE_READ_ONLY);
+            } catch (IOException e) {
+                throw new FileNotFoundException(e.getMessage());
+            }
+        }
+
+        ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        ParcelFileDescriptor writeEnd = pipe[1];
+        pumpExecutor.execute(() -> {
+            try (FileOutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(writeEnd);
+                 FileChannel channel = out.getChannel()) {
+                images.pump(token, source, channel);
+            } catch (IOException e) {
+                try {
+                    writeEnd.closeWithError(e.getMessage());
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        return pipe[0];
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        ImageStreamRegistry images = getRegistry(getContext());
+        String token = tokenOf(uri);
+        String name = images.getName(token);
+        if (name == null) {
+            return null;
+        }
+        String[] columns = projection != null ? projection : new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(columns[i])) {
+                row[i] = name;
+            } else if (OpenableColumns.SIZE.equals(columns[i])) {
+                long size = images.getSize(token);
+                row[i] = size >= 0 ? size : null;
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return "image/jpeg";
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+
+    private static String tokenOf(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return segments.isEmpty() ? null : segments.get(0);
+    }
+}
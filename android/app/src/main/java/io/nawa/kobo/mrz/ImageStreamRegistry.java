@@ -0,0 +1,222 @@
+package io.nawa.kobo.mrz;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bookkeeping behind {@link ImageStreamProvider}: which image each URI token serves, and whether
+ * an open request can be answered with a pipe or needs a file on disk.
+ *
+ * <p>The first read of an image is streamed straight from its source, so nothing is written to
+ * disk. Once that read is complete the image is released, so its Base64 text is not held until
+ * it expires; a later open fails. Pipes cannot seek, so an open after an incomplete read (a reader
+ * retrying after a failed seek) is served from a file materialized on demand, after which the
+ * source is released too.
+ *
+ * <p>The registry lives in memory: if the process dies, e.g. after the result was set and the
+ * activity finished, every URI it handed out stops working.
+ */
+public class ImageStreamRegistry {
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static class Entry {
+        final String name;
+        final long expiresAt;
+        /** Null once the image was read completely or written to {@link #file}. */
+        ImageSource source;
+        int opens;
+        File file;
+
+        Entry(String name, ImageSource source, long expiresAt) {
+            this.name = name;
+            this.source = source;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final File spillDir;
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong streamedBytes = new AtomicLong();
+    private final AtomicLong diskBytesWritten = new AtomicLong();
+
+    /**
+     * @param spillDir Directory for the file-backed fallback.
+     * @param ttlMillis How long a registered image stays readable.
+     */
+    public ImageStreamRegistry(File spillDir, long ttlMillis) {
+        this.spillDir = spillDir;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Registers an image and returns the unguessable token that addresses it.
+     *
+     * @param name The image file name, e.g. "frontImage.jpg".
+     * @param source The source serving the image bytes.
+     * @return The token, used as first path segment of the content URI.
+     */
+    public String register(String name, ImageSource source) {
+        expire(System.currentTimeMillis());
+        String token = Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+        entries.put(token, new Entry(name, source, System.currentTimeMillis() + ttlMillis));
+        return token;
+    }
+
+    /**
+     * @return The file name registered for a token, or null if it is unknown or expired.
+     */
+    public String getName(String token) {
+        Entry entry = entries.get(token);
+        return entry != null ? entry.name : null;
+    }
+
+    /**
+     * @return The image size for a token, or -1 if unknown.
+     */
+    public long getSize(String token) {
+        Entry entry = entries.get(token);
+        if (entry == null) {
+            return -1;
+        }
+        synchronized (entry) {
+            if (entry.file != null) {
+                return entry.file.length();
+            }
+            return entry.source != null ? entry.source.size() : -1;
+        }
+    }
+
+    /**
+     * Claims the streaming read of an image. Only the first open of each image may stream.
+     *
+     * @param token The URI token.
+     * @return The source to pump into a pipe, or null if the open must be file-backed.
+     * @throws FileNotFoundException If the token is unknown or expired.
+     */
+    public ImageSource openStream(String token) throws FileNotFoundException {
+        Entry entry = lookup(token);
+        synchronized (entry) {
+            entry.opens++;
+            return entry.opens == 1 && entry.file == null ? entry.source : null;
+        }
+    }
+
+    /**
+     * Returns a file holding the image, writing it on the first call.
+     *
+     * @param token The URI token.
+     * @return The file to serve.
+     * @throws IOException If the token is unknown or the file cannot be written.
+     */
+    public File openFile(String token) throws IOException {
+        Entry entry = lookup(token);
+        synchronized (entry) {
+            if (entry.file == null) {
+                if (entry.source == null) {
+                    throw new FileNotFoundException("Image already read: " + token);
+                }
+                File dir = new File(spillDir, token);
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Could not create " + dir);
+                }
+                File file = new File(dir, entry.name);
+                diskBytesWritten.addAndGet(entry.source.writeTo(file));
+                entry.file = file;
+                entry.source = null;
+            }
+            return entry.file;
+        }
+    }
+
+    /**
+     * Streams an image into the write end of a pipe, releasing it once all bytes are written.
+     *
+     * @param token The URI token the source was claimed with, see {@link #openStream}.
+     * @return The number of bytes streamed.
+     */
+    public long pump(String token, ImageSource source, WritableByteChannel out) throws IOException {
+        long start = HandBackMetrics.start();
+        long written;
+        try {
+            written = source.streamTo(out);
+        } catch (IOException | RuntimeException e) {
+            HandBackMetrics.global().record(HandBackMetrics.Stage.IMAGE_STREAM, start, 0, String.valueOf(e.getMessage()));
+            throw e;
+        }
+        HandBackMetrics.global().record(HandBackMetrics.Stage.IMAGE_STREAM, start, written);
+        streamedBytes.addAndGet(written);
+        release(token);
+        return written;
+    }
+
+    /**
+     * Forgets an image after its complete read. An image served from a file is kept until it
+     * expires, since the reader may still be reading the file.
+     */
+    private void release(String token) {
+        Entry entry = entries.get(token);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.file == null) {
+                entries.remove(token);
+                entry.source = null;
+            }
+        }
+    }
+
+    /**
+     * @return The total number of image bytes served through pipes.
+     */
+    public long getStreamedBytes() {
+        return streamedBytes.get();
+    }
+
+    /**
+     * @return The total number of bytes written to disk by the file-backed fallback.
+     */
+    public long getDiskBytesWritten() {
+        return diskBytesWritten.get();
+    }
+
+    /**
+     * Forgets images whose time to live has passed and deletes their fallback files.
+     */
+    public void expire(long now) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> next = iterator.next();
+            Entry entry = next.getValue();
+            if (entry.expiresAt <= now) {
+                iterator.remove();
+                synchronized (entry) {
+                    if (entry.file != null) {
+                        entry.file.delete();
+                        entry.file.getParentFile().delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private Entry lookup(String token) throws FileNotFoundException {
+        Entry entry = token != null ? entries.get(token) : null;
+        if (entry == null || entry.expiresAt <= System.currentTimeMillis()) {
+            throw new FileNotFoundException("No image registered for " + token);
+        }
+        return entry;
+    }
+}
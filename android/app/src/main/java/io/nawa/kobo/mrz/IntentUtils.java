@@ -2,9 +2,10 @@ package io.nawa.kobo.mrz;
 
 import android.content.Intent;
 import android.net.Uri;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Utility class to add or extract fields from an Intent when exchanging data with KoboCollect.
@@ -29,6 +30,8 @@ public class IntentUtils {
         public final String dateOfIssue;
         public final String documentAdditionalNumber;
         public final String dateOfExpiry;
+        /** Flattened dependents, or null to flatten {@link #dependentsInfo} when needed. */
+        public final DependentsParser.Result dependents;
 
         public Data(
                 String dateOfBirth,
@@ -48,6 +51,31 @@ public class IntentUtils {
                 String dateOfIssue,
                 String documentAdditionalNumber,
                 String dateOfExpiry
+        ) {
+            this(dateOfBirth, CoAAddress, province, district, village, documentNumber, fullName, fathersName,
+                    age, gender, frontImageUri, backImageUri, DocumentFaceUri, dependentsInfo, dateOfIssue,
+                    documentAdditionalNumber, dateOfExpiry, null);
+        }
+
+        public Data(
+                String dateOfBirth,
+                String CoAAddress,
+                String province,
+                String district,
+                String village,
+                String documentNumber,
+                String fullName,
+                String fathersName,
+                int age,
+                String gender,
+                Uri frontImageUri,
+                Uri backImageUri,
+                Uri DocumentFaceUri,
+                String dependentsInfo,
+                String dateOfIssue,
+                String documentAdditionalNumber,
+                String dateOfExpiry,
+                DependentsParser.Result dependents
         ) {
             this.dateOfBirth = dateOfBirth;
             this.CoAAddress = CoAAddress;
@@ -66,9 +94,133 @@ public class IntentUtils {
             this.dateOfIssue = dateOfIssue;
             this.documentAdditionalNumber = documentAdditionalNumber;
             this.dateOfExpiry = dateOfExpiry;
+            this.dependents = dependents;
+        }
+
+        /**
+         * @return A copy of these fields pointing at the given images.
+         */
+        public Data withImageUris(Uri frontImageUri, Uri backImageUri, Uri DocumentFaceUri) {
+            return new Data(dateOfBirth, CoAAddress, province, district, village, documentNumber, fullName,
+                    fathersName, age, gender, frontImageUri, backImageUri, DocumentFaceUri, dependentsInfo,
+                    dateOfIssue, documentAdditionalNumber, dateOfExpiry, dependents);
+        }
+
+        /**
+         * @return The platform-independent record, flattening {@link #dependentsInfo} if needed.
+         */
+        public ScanRecord toRecord() {
+            return toRecord(true);
+        }
+
+        /**
+         * @param flattenDependents Whether to flatten {@link #dependentsInfo} if it is not yet;
+         *                          skipped when no dependent field is handed back.
+         * @return The platform-independent record.
+         */
+        public ScanRecord toRecord(boolean flattenDependents) {
+            DependentsParser.Result flattened = dependents;
+            if (flattened == null && flattenDependents && dependentsInfo != null && !dependentsInfo.isEmpty()) {
+                flattened = DependentsParser.parse(dependentsInfo);
+            }
+            return new ScanRecord(
+                    dateOfBirth,
+                    CoAAddress,
+                    province,
+                    district,
+                    village,
+                    documentNumber,
+                    fullName,
+                    fathersName,
+                    age,
+                    gender,
+                    toString(frontImageUri),
+                    toString(backImageUri),
+                    toString(DocumentFaceUri),
+                    dateOfIssue,
+                    documentAdditionalNumber,
+                    dateOfExpiry,
+                    flattened
+            );
+        }
+
+        /**
+         * @param record The decoded record.
+         * @param dependentsInfo The raw dependents JSON if it was handed back, otherwise null.
+         */
+        public static Data fromRecord(ScanRecord record, String dependentsInfo) {
+            return new Data(
+                    record.dateOfBirth,
+                    record.CoAAddress,
+                    record.province,
+                    record.district,
+                    record.village,
+                    record.documentNumber,
+                    record.fullName,
+                    record.fathersName,
+                    record.age,
+                    record.gender,
+                    parseUri(record.frontImageUri),
+                    parseUri(record.backImageUri),
+                    parseUri(record.DocumentFaceUri),
+                    dependentsInfo,
+                    record.dateOfIssue,
+                    record.documentAdditionalNumber,
+                    record.dateOfExpiry,
+                    record.dependents
+            );
+        }
+
+        private static String toString(Uri uri) {
+            return uri != null ? uri.toString() : null;
         }
     }
 
+    /**
+     * Adds the scan to a result intent.
+     *
+     * @param intent The result intent.
+     * @param data The scan, including the image URIs.
+     * @param legacyKeys Whether to write the legacy key set, with the {@code _dep} duplicates and
+     *                   the raw {@code dependentsInfo}, instead of the compact layout. See
+     *                   {@link ScanExtras}.
+     */
+    public static void addExtras(Intent intent, Data data, boolean legacyKeys) {
+        addExtras(intent, data, legacyKeys, OutputProfile.ALL);
+    }
+
+    /**
+     * Adds the extras of the scan a form asks for, flattening the dependents only if one of their
+     * fields is among them.
+     *
+     * @param profile The requested extras, see {@link OutputProfile}.
+     */
+    public static void addExtras(Intent intent, Data data, boolean legacyKeys, OutputProfile profile) {
+        putExtras(intent, ScanExtras.build(
+            data.toRecord(profile.wantsDependents()), data.dependentsInfo, legacyKeys, profile));
+    }
+
+    /**
+     * Adds extras laid out by {@link ScanExtras}, holding String, Integer, Boolean or byte[] values.
+     */
+    public static void putExtras(Intent intent, Map<String, ?> extras) {
+        for (Map.Entry<String, ?> extra : extras.entrySet()) {
+            Object value = extra.getValue();
+            if (value instanceof Integer) {
+                intent.putExtra(extra.getKey(), (int) (Integer) value);
+            } else if (value instanceof Boolean) {
+                intent.putExtra(extra.getKey(), (boolean) (Boolean) value);
+            } else if (value instanceof byte[]) {
+                intent.putExtra(extra.getKey(), (byte[]) value);
+            } else {
+                intent.putExtra(extra.getKey(), (String) value);
+            }
+        }
+    }
+
+    /**
+     * Adds the scan using the legacy key set.
+     */
     public static void addExtras(
             Intent intent,
             String dateOfBirth,
@@ -89,114 +241,25 @@ public class IntentUtils {
             String documentAdditionalNumber,
             String dateOfExpiry
     ) {
-        intent.putExtra("dateOfBirth", dateOfBirth);
-        intent.putExtra("CoAAddress", CoAAddress);
-        intent.putExtra("province", province);
-        intent.putExtra("district", district);
-        intent.putExtra("village", village);
-        intent.putExtra("documentNumber", documentNumber);
-        intent.putExtra("fullName", fullName);
-        intent.putExtra("fathersName", fathersName);
-        intent.putExtra("age", age);
-        intent.putExtra("gender", gender);
-
-        // Existing "_dep" extras
-        intent.putExtra("fullName_dep", fullName);
-        intent.putExtra("dateOfBirth_dep", dateOfBirth);
-        intent.putExtra("documentNumber_dep", documentNumber);
-        intent.putExtra("fathersName_dep", fathersName);
-        intent.putExtra("gender_dep", gender);
-        intent.putExtra("age_dep", age);
-        if (frontImageUri != null) {
-            intent.putExtra("frontImageUri_dep", frontImageUri.toString());
-        }
-        if (backImageUri != null) {
-            intent.putExtra("backImageUri_dep", backImageUri.toString());
-        }
-        if (DocumentFaceUri != null) {
-            intent.putExtra("DocumentFaceUri_dep", DocumentFaceUri.toString());
-        }
-
-        // Set images
-        if (frontImageUri != null) {
-            intent.putExtra("frontImageUri", frontImageUri.toString());
-        }
-        if (backImageUri != null) {
-            intent.putExtra("backImageUri", backImageUri.toString());
-        }
-        if (DocumentFaceUri != null) {
-            intent.putExtra("DocumentFaceUri", DocumentFaceUri.toString());
-        }
-
-        // Primary extras
-        intent.putExtra("dependentsInfo", dependentsInfo);
-        intent.putExtra("dateOfIssue", dateOfIssue);
-        intent.putExtra("documentAdditionalNumber", documentAdditionalNumber);
-        intent.putExtra("dateOfExpiry", dateOfExpiry);
+        addExtras(intent, new Data(dateOfBirth, CoAAddress, province, district, village, documentNumber,
+                fullName, fathersName, age, gender, frontImageUri, backImageUri, DocumentFaceUri, dependentsInfo,
+                dateOfIssue, documentAdditionalNumber, dateOfExpiry), true);
+    }
 
-        // Handle dependents: build semicolon-delimited extras
-        if (dependentsInfo != null && !dependentsInfo.isEmpty()) {
+    /**
+     * Reads a scan back from a result intent, preferring the encoded {@link ScanExtras#EXTRA_SCAN_RECORD}
+     * and falling back to the named keys.
+     */
+    public static Data extractExtras(Intent intent) {
+        byte[] encoded = intent.getByteArrayExtra(ScanExtras.EXTRA_SCAN_RECORD);
+        if (encoded != null) {
             try {
-                JSONArray dependents = new JSONArray(dependentsInfo);
-                int count = dependents.length();
-                intent.putExtra("dependentCount", count);
-
-                StringBuilder dobBuilder = new StringBuilder();
-                StringBuilder sexBuilder = new StringBuilder();
-                StringBuilder docNumBuilder = new StringBuilder();
-                StringBuilder fullNameBuilder = new StringBuilder();
-
-                for (int i = 0; i < count; i++) {
-                    JSONObject dep = dependents.getJSONObject(i);
-
-                    String depDOB = "";
-                    String depSex = "";
-                    String depDocNum = "";
-                    String depFullName = "";
-
-                    if (dep.has("dateOfBirth")) {
-                        JSONObject dobObj = dep.getJSONObject("dateOfBirth");
-                        if (dobObj.has("originalDateStringResult")) {
-                            JSONObject origDob = dobObj.getJSONObject("originalDateStringResult");
-                            depDOB = origDob.optString("description", "");
-                        }
-                    }
-                    if (dep.has("sex")) {
-                        JSONObject sexObj = dep.getJSONObject("sex");
-                        depSex = sexObj.optString("description", "");
-                    }
-                    if (dep.has("documentNumber")) {
-                        JSONObject docNumObj = dep.getJSONObject("documentNumber");
-                        depDocNum = docNumObj.optString("description", "");
-                    }
-                    if (dep.has("fullName")) {
-                        JSONObject fullNameObj = dep.getJSONObject("fullName");
-                        depFullName = fullNameObj.optString("description", "");
-                    }
-
-                    if (i > 0) {
-                        dobBuilder.append(";");
-                        sexBuilder.append(";");
-                        docNumBuilder.append(";");
-                        fullNameBuilder.append(";");
-                    }
-                    dobBuilder.append(depDOB);
-                    sexBuilder.append(depSex);
-                    docNumBuilder.append(depDocNum);
-                    fullNameBuilder.append(depFullName);
-                }
-
-                intent.putExtra("dependent_dateOfBirth", dobBuilder.toString());
-                intent.putExtra("dependent_sex", sexBuilder.toString());
-                intent.putExtra("dependent_documentNumber", docNumBuilder.toString());
-                intent.putExtra("dependent_fullName", fullNameBuilder.toString());
-
-            } catch (JSONException ignored) {
+                return Data.fromRecord(ScanRecordCodec.decode(encoded), intent.getStringExtra("dependentsInfo"));
+            } catch (IOException ignored) {
+                // Written by a newer version; the named keys are still there.
             }
         }
-    }
 
-    public static Data extractExtras(Intent intent) {
         String dateOfBirth = intent.getStringExtra("dateOfBirth");
         String CoAAddress = intent.getStringExtra("CoAAddress");
         String province = intent.getStringExtra("province");
@@ -232,6 +295,18 @@ public class IntentUtils {
         String documentAdditionalNumber = intent.getStringExtra("documentAdditionalNumber");
         String dateOfExpiry = intent.getStringExtra("dateOfExpiry");
 
+        DependentsParser.Result dependents = null;
+        if (intent.hasExtra("dependentCount")) {
+            dependents = new DependentsParser.Result(
+                    intent.getIntExtra("dependentCount", 0),
+                    intent.getIntExtra("dependentParseErrors", 0),
+                    orEmpty(intent.getStringExtra("dependent_dateOfBirth")),
+                    orEmpty(intent.getStringExtra("dependent_sex")),
+                    orEmpty(intent.getStringExtra("dependent_documentNumber")),
+                    orEmpty(intent.getStringExtra("dependent_fullName"))
+            );
+        }
+
         return new Data(
                 dateOfBirth,
                 CoAAddress,
@@ -249,7 +324,38 @@ public class IntentUtils {
                 dependentsInfo,
                 dateOfIssue,
                 documentAdditionalNumber,
-                dateOfExpiry
+                dateOfExpiry,
+                dependents
         );
     }
+
+    /**
+     * Reads the scans of a batch result, see {@link ScanExtras#buildBatch}.
+     *
+     * @return The scans in order, or null if the intent carries no readable batch, e.g. as the form
+     *         did not name {@link ScanExtras#EXTRA_BATCH_RECORDS}.
+     */
+    public static List<Data> extractBatch(Intent intent) {
+        byte[] encoded = intent.getByteArrayExtra(ScanExtras.EXTRA_BATCH_RECORDS);
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            List<Data> batch = new ArrayList<>();
+            for (ScanRecord record : ScanRecordCodec.decodeAll(encoded)) {
+                batch.add(Data.fromRecord(record, null));
+            }
+            return batch;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Uri parseUri(String uri) {
+        return uri != null ? Uri.parse(uri) : null;
+    }
+
+    private static String orEmpty(String value) {
+        return value != null ? value : "";
+    }
 }
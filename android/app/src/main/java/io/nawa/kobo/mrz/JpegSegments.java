@@ -0,0 +1,279 @@
+package io.nawa.kobo.mrz;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads and rewrites the marker segments of a JPEG file without decoding the image data.
+ */
+public class JpegSegments {
+
+    private static final int SOI = 0xD8;
+    private static final int SOS = 0xDA;
+    private static final int APP1 = 0xE1;
+    private static final int APP12 = 0xEC;
+    private static final int APP13 = 0xED;
+    private static final int COM = 0xFE;
+
+    /** EXIF orientation of an image stored upright. */
+    public static final int ORIENTATION_NORMAL = 1;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private JpegSegments() {
+    }
+
+    /**
+     * Reads the image size from the start-of-frame segment.
+     *
+     * @param file A JPEG file.
+     * @return {width, height}, or null if the file is not a JPEG or has no frame header.
+     * @throws IOException If the file cannot be read.
+     */
+    public static int[] readDimensions(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.read() != 0xFF || in.read() != SOI) {
+                return null;
+            }
+            int marker;
+            while ((marker = nextMarker(in)) != -1 && marker != SOS) {
+                int length = in.readUnsignedShort();
+                if (isStartOfFrame(marker)) {
+                    in.readUnsignedByte(); // sample precision
+                    int height = in.readUnsignedShort();
+                    int width = in.readUnsignedShort();
+                    return new int[]{width, height};
+                }
+                skipFully(in, length - 2);
+            }
+            return null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the EXIF orientation tag, which tells viewers how to rotate or mirror the stored
+     * pixels for display.
+     *
+     * @param file A JPEG file.
+     * @return The orientation (1-8), or {@link #ORIENTATION_NORMAL} if the file has none.
+     * @throws IOException If the file cannot be read.
+     */
+    public static int readOrientation(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.read() != 0xFF || in.read() != SOI) {
+                return ORIENTATION_NORMAL;
+            }
+            int marker;
+            while ((marker = nextMarker(in)) != -1 && marker != SOS) {
+                int length = in.readUnsignedShort();
+                if (marker == APP1) {
+                    byte[] payload = new byte[length - 2];
+                    in.readFully(payload);
+                    int orientation = parseOrientation(payload);
+                    if (orientation != ORIENTATION_NORMAL) {
+                        return orientation;
+                    }
+                } else {
+                    skipFully(in, length - 2);
+                }
+            }
+            return ORIENTATION_NORMAL;
+        } catch (EOFException e) {
+            return ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Copies a JPEG, dropping EXIF/XMP (APP1), IPTC (APP12, APP13) and comment segments.
+     * The JFIF, ICC profile and Adobe segments and the compressed image data are kept as is.
+     * An EXIF orientation other than upright is kept in a minimal EXIF segment, as the pixels
+     * are not rotated and would otherwise be displayed sideways.
+     *
+     * @param source The JPEG to read.
+     * @param target The file to write, overwritten if it exists.
+     * @return The number of bytes written.
+     * @throws IOException If the source is not a JPEG or cannot be read.
+     */
+    public static long stripMetadata(File source, File target) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source)));
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            if (in.read() != 0xFF || in.read() != SOI) {
+                throw new IOException("Not a JPEG file: " + source.getName());
+            }
+            out.write(0xFF);
+            out.write(SOI);
+            long written = 2;
+            byte[] buffer = new byte[8192];
+            int marker;
+            while ((marker = nextMarker(in)) != -1) {
+                if (marker == SOS) {
+                    out.write(0xFF);
+                    out.write(SOS);
+                    return written + 2 + copy(in, out, buffer);
+                }
+                int length = in.readUnsignedShort();
+                if (marker == APP1) {
+                    byte[] payload = new byte[length - 2];
+                    in.readFully(payload);
+                    int orientation = parseOrientation(payload);
+                    if (orientation != ORIENTATION_NORMAL) {
+                        byte[] segment = orientationSegment(orientation);
+                        out.write(segment);
+                        written += segment.length;
+                    }
+                    continue;
+                }
+                if (isMetadata(marker)) {
+                    skipFully(in, length - 2);
+                    continue;
+                }
+                out.write(0xFF);
+                out.write(marker);
+                out.write(length >> 8);
+                out.write(length);
+                copyExactly(in, out, buffer, length - 2);
+                written += 2 + length;
+            }
+            throw new IOException("JPEG has no image data: " + source.getName());
+        }
+    }
+
+    /**
+     * Finds the orientation tag in the first IFD of an EXIF APP1 payload.
+     *
+     * @return The orientation, or {@link #ORIENTATION_NORMAL} if the payload is not EXIF, has no
+     *         orientation tag or is malformed.
+     */
+    static int parseOrientation(byte[] payload) {
+        int tiff = EXIF_HEADER.length;
+        if (payload.length < tiff + 8) {
+            return ORIENTATION_NORMAL;
+        }
+        for (int i = 0; i < tiff; i++) {
+            if (payload[i] != EXIF_HEADER[i]) {
+                return ORIENTATION_NORMAL;
+            }
+        }
+        boolean littleEndian;
+        if (payload[tiff] == 'I' && payload[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (payload[tiff] == 'M' && payload[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return ORIENTATION_NORMAL;
+        }
+        long ifd = tiff + readInt(payload, tiff + 4, littleEndian);
+        if (ifd < tiff + 8 || ifd + 2 > payload.length) {
+            return ORIENTATION_NORMAL;
+        }
+        int count = readShort(payload, (int) ifd, littleEndian);
+        for (int i = 0; i < count; i++) {
+            int entry = (int) ifd + 2 + i * 12;
+            if (entry + 12 > payload.length) {
+                break;
+            }
+            if (readShort(payload, entry, littleEndian) == TAG_ORIENTATION
+                && readShort(payload, entry + 2, littleEndian) == TYPE_SHORT) {
+                int orientation = readShort(payload, entry + 8, littleEndian);
+                return orientation >= 1 && orientation <= 8 ? orientation : ORIENTATION_NORMAL;
+            }
+        }
+        return ORIENTATION_NORMAL;
+    }
+
+    /**
+     * @return An APP1 segment, marker included, holding only the given EXIF orientation.
+     */
+    static byte[] orientationSegment(int orientation) {
+        return new byte[]{
+            (byte) 0xFF, (byte) APP1, 0, 34,
+            'E', 'x', 'i', 'f', 0, 0,
+            // Big-endian TIFF header, first IFD right after it
+            'M', 'M', 0, 42, 0, 0, 0, 8,
+            // One entry: orientation, SHORT, count 1, value left-aligned
+            0, 1,
+            0x01, 0x12, 0, TYPE_SHORT, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+            // No next IFD
+            0, 0, 0, 0
+        };
+    }
+
+    private static int readShort(byte[] bytes, int offset, boolean littleEndian) {
+        int b0 = bytes[offset] & 0xFF;
+        int b1 = bytes[offset + 1] & 0xFF;
+        return littleEndian ? b1 << 8 | b0 : b0 << 8 | b1;
+    }
+
+    private static long readInt(byte[] bytes, int offset, boolean littleEndian) {
+        long first = readShort(bytes, offset, littleEndian);
+        long second = readShort(bytes, offset + 2, littleEndian);
+        return littleEndian ? second << 16 | first : first << 16 | second;
+    }
+
+    private static int nextMarker(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            return -1;
+        }
+        if (b != 0xFF) {
+            throw new IOException("Corrupt JPEG: expected marker, found 0x" + Integer.toHexString(b));
+        }
+        // Any number of 0xFF fill bytes may precede the marker code
+        do {
+            b = in.read();
+        } while (b == 0xFF);
+        return b;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static boolean isMetadata(int marker) {
+        return marker == APP12 || marker == APP13 || marker == COM;
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        int skipped = 0;
+        while (skipped < count) {
+            int n = in.skipBytes(count - skipped);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            skipped += n;
+        }
+    }
+
+    private static void copyExactly(InputStream in, OutputStream out, byte[] buffer, int count) throws IOException {
+        while (count > 0) {
+            int n = in.read(buffer, 0, Math.min(buffer.length, count));
+            if (n == -1) {
+                throw new EOFException();
+            }
+            out.write(buffer, 0, n);
+            count -= n;
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
+    }
+}
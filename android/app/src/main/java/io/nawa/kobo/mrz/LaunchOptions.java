@@ -0,0 +1,268 @@
+package io.nawa.kobo.mrz;
+
+import android.content.Intent;
+import android.os.Bundle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options read from the extras of the {@code io.nawa.kobo.mrz} launch intent.
+ *
+ * <p>KoboCollect passes the parameters of an {@code ex:io.nawa.kobo.mrz(key=value)} appearance
+ * as string extras, so every option accepts either a string or a typed extra.
+ */
+public class LaunchOptions {
+
+    public static final String EXTRA_MAX_IMAGE_EDGE = "maxImageEdge";
+    public static final String EXTRA_JPEG_QUALITY = "jpegQuality";
+    public static final String EXTRA_STRIP_EXIF = "stripExif";
+    public static final String EXTRA_CACHE_BUDGET_MB = "cacheBudgetMb";
+    public static final String EXTRA_CACHE_MAX_AGE_DAYS = "cacheMaxAgeDays";
+    public static final String EXTRA_IMAGE_DELIVERY = "imageDelivery";
+    public static final String EXTRA_LEGACY_EXTRAS = "legacyExtras";
+    public static final String EXTRA_METRICS_LOG = "metricsLog";
+    public static final String EXTRA_BATCH_SIZE = "batchSize";
+    public static final String EXTRA_THUMBNAIL_EDGE = "thumbnailEdge";
+    public static final String EXTRA_PREVIEW_EDGE = "previewEdge";
+    public static final String EXTRA_RESULT_KEY = "resultKey";
+    public static final String EXTRA_RESULT_TTL_MINUTES = "resultTtlMinutes";
+    public static final String EXTRA_OUTPUT = "output";
+    public static final String EXTRA_MIN_SHARPNESS = "minSharpness";
+    public static final String EXTRA_MAX_GLARE = "maxGlare";
+    public static final String EXTRA_FIELDS = "fields";
+    public static final String EXTRA_IMAGES = "images";
+
+    /**
+     * How long a result can be re-delivered by default, see {@link ResultCache}: not at all, as
+     * offering the scan of the previous person to the next form instance is worse than a rescan.
+     */
+    public static final int DEFAULT_RESULT_TTL_MINUTES = 0;
+
+    /** JPEG quality of the thumbnail and preview versions. */
+    public static final int VERSION_JPEG_QUALITY = 80;
+
+    /** Upper bound of {@link #EXTRA_BATCH_SIZE}, keeping the batch result well within a Bundle. */
+    public static final int MAX_BATCH_SIZE = 50;
+
+    /**
+     * {@link #EXTRA_IMAGE_DELIVERY} value serving images through {@link ImageStreamProvider} pipes.
+     * Each image can be read once, and only while this process lives: if Android kills it after
+     * the result is set, before KoboCollect has copied the images, the URIs no longer resolve.
+     */
+    public static final String IMAGE_DELIVERY_PIPE = "pipe";
+
+    /** {@link #EXTRA_OUTPUT} value handing each scan back as one {@link ScanArchive}. */
+    public static final String OUTPUT_ARCHIVE = "archive";
+
+    public final ImageOptions imageOptions;
+    /** Byte budget of the submission image cache. */
+    public final long cacheMaxBytes;
+    /** Age after which cached submissions are evicted. */
+    public final long cacheMaxAgeMillis;
+    /**
+     * Whether images are streamed from memory instead of written to the cache. Pipes only carry
+     * the bytes as received and expire, so this requires a passthrough image stage, no smaller
+     * versions, no batch, no archive and no quality thresholds, as only written images are scored. The images do not survive the death of the process, see
+     * {@link #IMAGE_DELIVERY_PIPE}.
+     */
+    public final boolean streamImages;
+    /**
+     * Whether each scan is handed back as one {@link ScanArchive} with its fields and images,
+     * instead of image URIs and field extras. Not available in batch mode.
+     */
+    public final boolean archive;
+    /** Whether the result uses the legacy key set, see {@link ScanExtras}. */
+    public final boolean legacyExtras;
+    /** Whether hand-back timings are appended to a rolling log, see {@link HandBackMetrics#appendLog}. */
+    public final boolean metricsLog;
+    /**
+     * Maximum number of scans collected before they are handed back together, or 0 to hand back
+     * every scan on its own.
+     */
+    public final int batchSize;
+    /** Smaller versions written next to each image; empty unless requested. */
+    public final ResolutionLadder ladder;
+    /**
+     * Identifies the form question that launched the scan, see {@link ResultCache#keyOf}, or null
+     * if results of this launch are not cached. Only derived from {@link #EXTRA_RESULT_KEY}, which
+     * the form sets to a per-instance value, e.g. {@code resultKey=/data/meta/instanceID}.
+     */
+    public final String resultKey;
+    /** How long the result of this launch can be re-delivered, or 0 to neither store nor offer it. */
+    public final long resultTtlMillis;
+    /** Lowest {@link QualityAnalyzer.Score#sharpness} of an image accepted, or 0 to accept any. */
+    public final double minSharpness;
+    /** Largest {@link QualityAnalyzer.Score#glare} of an image accepted, or 1 to accept any. */
+    public final double maxGlare;
+    /** The fields and images the form asks for; {@link OutputProfile#ALL} unless it names them. */
+    public final OutputProfile profile;
+
+    public LaunchOptions(
+        ImageOptions imageOptions,
+        long cacheMaxBytes,
+        long cacheMaxAgeMillis,
+        boolean streamImages,
+        boolean archive,
+        boolean legacyExtras,
+        boolean metricsLog,
+        int batchSize,
+        ResolutionLadder ladder,
+        String resultKey,
+        long resultTtlMillis,
+        double minSharpness,
+        double maxGlare,
+        OutputProfile profile
+    ) {
+        this.imageOptions = imageOptions;
+        this.cacheMaxBytes = cacheMaxBytes;
+        this.cacheMaxAgeMillis = cacheMaxAgeMillis;
+        this.batchSize = Math.max(0, Math.min(batchSize, MAX_BATCH_SIZE));
+        this.ladder = ladder;
+        this.archive = archive && this.batchSize == 0;
+        this.minSharpness = Math.max(0, minSharpness);
+        this.maxGlare = Math.min(1, maxGlare);
+        this.streamImages = streamImages && imageOptions.isPassthrough() && ladder.isEmpty() && this.batchSize == 0
+            && !this.archive && !checksQuality();
+        this.legacyExtras = legacyExtras;
+        this.metricsLog = metricsLog;
+        this.resultKey = resultKey;
+        this.resultTtlMillis = resultKey != null ? Math.max(0, resultTtlMillis) : 0;
+        this.profile = profile;
+    }
+
+    /**
+     * @return Whether a capture can be rejected for its sharpness or glare, see {@link QualityAnalyzer}.
+     */
+    public boolean checksQuality() {
+        return minSharpness > 0 || maxGlare < 1;
+    }
+
+    /**
+     * Reads the options from a launch intent, falling back to the defaults for missing or
+     * malformed values.
+     *
+     * @param intent The intent the activity was started with, may be null.
+     * @return The parsed options.
+     */
+    public static LaunchOptions fromIntent(Intent intent) {
+        Bundle extras = intent != null ? intent.getExtras() : null;
+        ImageOptions defaults = ImageOptions.DEFAULT;
+        ImageOptions imageOptions;
+        try {
+            imageOptions = new ImageOptions(
+                getInt(extras, EXTRA_MAX_IMAGE_EDGE, defaults.maxEdge),
+                getInt(extras, EXTRA_JPEG_QUALITY, defaults.jpegQuality),
+                getBoolean(extras, EXTRA_STRIP_EXIF, defaults.stripExif)
+            );
+        } catch (IllegalArgumentException e) {
+            imageOptions = defaults;
+        }
+
+        ResolutionLadder ladder;
+        try {
+            ladder = ResolutionLadder.of(
+                getInt(extras, EXTRA_THUMBNAIL_EDGE, 0),
+                getInt(extras, EXTRA_PREVIEW_EDGE, 0),
+                VERSION_JPEG_QUALITY
+            );
+        } catch (IllegalArgumentException e) {
+            ladder = ResolutionLadder.NONE;
+        }
+
+        int budgetMb = getInt(extras, EXTRA_CACHE_BUDGET_MB, -1);
+        int maxAgeDays = getInt(extras, EXTRA_CACHE_MAX_AGE_DAYS, -1);
+        return new LaunchOptions(
+            imageOptions,
+            budgetMb > 0 ? budgetMb * 1024L * 1024L : SubmissionCache.DEFAULT_MAX_BYTES,
+            maxAgeDays > 0 ? TimeUnit.DAYS.toMillis(maxAgeDays) : SubmissionCache.DEFAULT_MAX_AGE_MILLIS,
+            IMAGE_DELIVERY_PIPE.equalsIgnoreCase(getString(extras, EXTRA_IMAGE_DELIVERY, "")),
+            OUTPUT_ARCHIVE.equalsIgnoreCase(getString(extras, EXTRA_OUTPUT, "")),
+            getBoolean(extras, EXTRA_LEGACY_EXTRAS, false),
+            getBoolean(extras, EXTRA_METRICS_LOG, false),
+            getInt(extras, EXTRA_BATCH_SIZE, 0),
+            ladder,
+            resultKeyOf(getString(extras, EXTRA_RESULT_KEY, null)),
+            TimeUnit.MINUTES.toMillis(getInt(extras, EXTRA_RESULT_TTL_MINUTES, DEFAULT_RESULT_TTL_MINUTES)),
+            getDouble(extras, EXTRA_MIN_SHARPNESS, 0),
+            getDouble(extras, EXTRA_MAX_GLARE, 1),
+            OutputProfile.parse(getString(extras, EXTRA_FIELDS, null), getString(extras, EXTRA_IMAGES, null))
+        );
+    }
+
+    /**
+     * Derives the key the result of a launch is cached under. The other launch extras are the same
+     * for every instance of a form, so a key derived from them would offer the scan of one person
+     * to the form of the next; without an explicit key nothing is cached.
+     *
+     * @param value The {@link #EXTRA_RESULT_KEY} extra, or null if the form sets none.
+     * @return The key, or null if the value is missing or blank.
+     */
+    static String resultKeyOf(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return ResultCache.keyOf(value.trim());
+    }
+
+    /**
+     * Reads an extra whatever its type. KoboCollect sends a string where the form sets the value
+     * and a typed extra elsewhere, so the type is not known up front, and the typed getters log a
+     * ClassCastException for every mismatch. The untyped getter is deprecated for that reason
+     * only; every caller checks the type of the value.
+     *
+     * @return The value, or null if the extra is missing.
+     */
+    @SuppressWarnings("deprecation")
+    private static Object get(Bundle extras, String key) {
+        return extras != null ? extras.get(key) : null;
+    }
+
+    static int getInt(Bundle extras, String key, int defaultValue) {
+        Object value = get(extras, key);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Integer.parseInt(((String) value).trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return defaultValue;
+    }
+
+    static double getDouble(Bundle extras, String key, double defaultValue) {
+        Object value = get(extras, key);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble(((String) value).trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return defaultValue;
+    }
+
+    static boolean getBoolean(Bundle extras, String key, boolean defaultValue) {
+        Object value = get(extras, key);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof String) {
+            String text = ((String) value).trim();
+            if (text.equalsIgnoreCase("true") || text.equals("1") || text.equalsIgnoreCase("yes")) {
+                return true;
+            }
+            if (text.equalsIgnoreCase("false") || text.equals("0") || text.equalsIgnoreCase("no")) {
+                return false;
+            }
+        }
+        return defaultValue;
+    }
+
+    static String getString(Bundle extras, String key, String defaultValue) {
+        Object value = get(extras, key);
+        return value != null ? value.toString().trim() : defaultValue;
+    }
+}
@@ -0,0 +1,86 @@
+package io.nawa.kobo.mrz;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The luminance of an image, one value from 0 to 255 per pixel, row by row. The
+ * {@link QualityAnalyzer} and the {@link FaceHash} are computed on it.
+ */
+final class LumaImage {
+
+    /**
+     * Picks the power of two an image is subsampled by when decoded.
+     */
+    interface SampleSize {
+        int of(int width, int height);
+    }
+
+    final int[] luma;
+    final int width;
+    final int height;
+
+    private LumaImage(int[] luma, int width, int height) {
+        this.luma = luma;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Decodes an image file subsampled and converts it to luminance.
+     *
+     * @param file A JPEG or PNG image.
+     * @param sampleSize The subsampling, given the width and height of the image.
+     * @throws IOException If the image cannot be decoded.
+     */
+    static LumaImage decode(File file, SampleSize sampleSize) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Unsupported image: " + file.getName());
+        }
+
+        BitmapFactory.Options decode = new BitmapFactory.Options();
+        decode.inSampleSize = sampleSize.of(bounds.outWidth, bounds.outHeight);
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), decode);
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + file.getName());
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        try {
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        } finally {
+            bitmap.recycle();
+        }
+        // The pixels are not needed past the conversion, so it reuses their buffer
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = luma(pixels[i]);
+        }
+        return new LumaImage(pixels, width, height);
+    }
+
+    /**
+     * Converts decoded pixels to luminance.
+     *
+     * @param argb The pixels, row by row, as packed ARGB; left unchanged.
+     */
+    static LumaImage of(int[] argb, int width, int height) {
+        int[] luma = new int[width * height];
+        for (int i = 0; i < luma.length; i++) {
+            luma[i] = luma(argb[i]);
+        }
+        return new LumaImage(luma, width, height);
+    }
+
+    /**
+     * @return The ITU-R BT.601 luma of a packed ARGB pixel, in fixed point.
+     */
+    static int luma(int pixel) {
+        return (299 * ((pixel >> 16) & 0xFF) + 587 * ((pixel >> 8) & 0xFF) + 114 * (pixel & 0xFF)) / 1000;
+    }
+}
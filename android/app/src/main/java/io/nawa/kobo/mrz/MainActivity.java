@@ -3,178 +3,341 @@
 package io.nawa.kobo.mrz;
 
 import android.app.AlertDialog;
-import android.content.ClipData;
 import android.content.Intent;
-import android.net.Uri;
 import android.os.Bundle;
+import android.os.Looper;
+import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Toast;
 import com.getcapacitor.BridgeActivity;
 import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 /**
- * MainActivity acts as the bridge for sending data back to KoboCollect via Intents.
+ * MainActivity acts as the bridge for sending data back to KoboCollect via Intents. The hand-back
+ * itself runs in the {@link HandBackPipeline}, with the options of the launch it started in.
  */
-public class MainActivity extends BridgeActivity {
+public class MainActivity extends BridgeActivity implements HandBackPipeline.Host {
+
+    /**
+     * The options of the current launch, replaced on the UI thread by a new launch. A hand-back
+     * reads them once when it starts and passes that snapshot down, so a relaunch while it runs on
+     * the background threads cannot mix the options of two launches.
+     */
+    private volatile LaunchOptions launchOptions = LaunchOptions.fromIntent(null);
+    private HandBackPipeline pipeline;
+    private SubmissionCache submissionCache;
+    /**
+     * Scans waiting to be handed back together, or null when not launched in batch mode. Read once
+     * when a hand-back starts, like {@link #launchOptions}.
+     */
+    private volatile BatchSession batch;
+    private boolean journalRequested;
+    private StartupTrace startupTrace;
+    /** The prompt shown when not launched by KoboCollect, dismissed if KoboCollect launches us. */
+    private AlertDialog launchDialog;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        startupTrace = StartupTrace.onCreate();
         registerPlugin(SendDataPlugin.class);
+        // Read the critical chunks while the bridge and the WebView are created
+        if (assetCache == null) {
+            assetCache = CachedAssetClient.newCache(getApplicationContext().getAssets(), AssetCache.DEFAULT_MAX_BYTES);
+            AssetCache cache = assetCache;
+            assetExecutor.execute(() -> cache.preload(cache.readPreloadList()));
+        }
+        long start = StartupTrace.begin(HandBackMetrics.Stage.STARTUP_BRIDGE);
         super.onCreate(savedInstanceState);
+        // The bridge already called loadUrl inside super.onCreate and offers no hook before it, so
+        // a request made before this line goes to its own client, which still reads it from the
+        // APK, just not from the cache
+        bridge.setWebViewClient(new CachedAssetClient(bridge, assetCache));
+        StartupTrace.end(HandBackMetrics.Stage.STARTUP_BRIDGE, start);
+
+        start = StartupTrace.begin(HandBackMetrics.Stage.STARTUP_LAUNCH);
+        pipeline = new HandBackPipeline(this, this);
+        submissionCache = pipeline.getSubmissionCache();
+        adoptLaunch(getIntent(), savedInstanceState != null);
+        StartupTrace.end(HandBackMetrics.Stage.STARTUP_LAUNCH, start);
+        traceFirstFrame();
+    }
 
-        Intent intent = getIntent();
-        if (intent == null || intent.getAction() == null || !intent.getAction().equals("io.nawa.kobo.mrz")) {
-            showLaunchFromKoboCollectMessage();
+    /**
+     * Warm start: KoboCollect launched us while this activity was already running, e.g. after the
+     * app was first opened from the launcher. The running WebView and bridge are reused.
+     */
+    @Override
+    protected void onNewIntent(Intent intent) {
+        long start = StartupTrace.begin(HandBackMetrics.Stage.WARM_START);
+        if (isKoboCollectLaunch(intent) && !isFinishing()) {
+            setIntent(intent);
+            if (launchDialog != null) {
+                launchDialog.dismiss();
+                launchDialog = null;
+            }
+            adoptLaunch(intent, false);
         }
+        // Forwards the intent to the plugins, which tell the web app about the new launch
+        super.onNewIntent(intent);
+        StartupTrace.end(HandBackMetrics.Stage.WARM_START, start);
+    }
+
+    private static boolean isKoboCollectLaunch(Intent intent) {
+        return intent != null && "io.nawa.kobo.mrz".equals(intent.getAction());
+    }
+
+    /**
+     * Applies the options of a launch intent. Only what the first frame or the first scan depends
+     * on runs here; the cache trim and the launch prompt wait until the UI thread is idle.
+     *
+     * @param restore Whether the activity is being recreated rather than launched.
+     */
+    private void adoptLaunch(Intent intent, boolean restore) {
+        LaunchOptions options = LaunchOptions.fromIntent(intent);
+        batch = null;
+        launchOptions = options;
+        // Written with the options of the previous launch
+        pipeline.discardStaged();
+        if (!isKoboCollectLaunch(intent)) {
+            runWhenIdle(() -> {
+                trimCache();
+                showLaunchFromKoboCollectMessage();
+            });
+        } else if (options.batchSize > 0) {
+            openBatch(options, restore);
+            runWhenIdle(this::trimCache);
+        } else {
+            if (!journalRequested) {
+                journalRequested = true;
+                // Trims the cache once the journal's scan is pinned
+                pipeline.openJournal(options);
+            } else {
+                runWhenIdle(this::trimCache);
+            }
+            if (options.resultTtlMillis > 0) {
+                pipeline.offerCachedResult(options);
+            }
+        }
+    }
+
+    private void trimCache() {
+        LaunchOptions options = launchOptions;
+        submissionCache.trimAsync(options.cacheMaxBytes, options.cacheMaxAgeMillis, null);
+    }
+
+    /**
+     * Runs a task on the UI thread once its queue is empty, i.e. after startup work and frames.
+     */
+    private static void runWhenIdle(Runnable task) {
+        Looper.myQueue().addIdleHandler(() -> {
+            task.run();
+            return false;
+        });
+    }
+
+    /**
+     * Records the first frame: the pre-draw pass of the first frame posts a message that runs
+     * once that frame has been drawn.
+     */
+    private void traceFirstFrame() {
+        View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                decorView.post(startupTrace::firstFrame);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Called by the web app once it can take a scan; records the startup and appends it to the
+     * metrics log, if enabled.
+     */
+    public void onWebReady() {
+        if (startupTrace != null && startupTrace.webReady()) {
+            pipeline.appendMetricsLog(launchOptions);
+        }
+    }
+
+    /**
+     * Asks whether to hand back a scan recovered from the journal, or discard it and scan again.
+     */
+    @Override
+    public void offerRecovered(ScanJournal.Entry entry) {
+        if (isFinishing()) {
+            return;
+        }
+        String name = entry.record.fullName != null ? entry.record.fullName : entry.record.documentNumber;
+        String time = DateFormat.getDateTimeInstance().format(new Date(entry.timeMillis));
+        new AlertDialog.Builder(this)
+            .setTitle("Unsent scan")
+            .setMessage("The scan of " + name + " from " + time + " was not returned to KoboCollect. Return it now?")
+            .setPositiveButton("Return", (dialog, which) -> pipeline.handBackRecovered(launchOptions, entry))
+            .setNegativeButton("Discard", (dialog, which) -> pipeline.discardRecovered(entry))
+            .setCancelable(false)
+            .create()
+            .show();
+    }
+
+    /**
+     * Asks whether to return the previous result for this form question again, or scan again.
+     */
+    @Override
+    public void offerResult(LaunchOptions options, ResultCache.Entry entry, File submissionDir) {
+        if (isFinishing()) {
+            return;
+        }
+        String name = entry.record.fullName != null ? entry.record.fullName : entry.record.documentNumber;
+        String time = DateFormat.getTimeInstance(DateFormat.SHORT).format(new Date(entry.savedMillis));
+        new AlertDialog.Builder(this)
+            .setTitle("Already scanned")
+            .setMessage("This question was answered with the scan of " + name + " at " + time + ". Return it again?")
+            .setPositiveButton("Return", (dialog, which) -> pipeline.redeliver(options, entry))
+            .setNegativeButton("Scan again", (dialog, which) -> pipeline.forgetResult(options.resultKey, submissionDir))
+            .setCancelable(false)
+            .create()
+            .show();
+    }
+
+    /**
+     * Opens the batch of this launch and keeps the images of its scans out of cache eviction.
+     *
+     * @param restore Whether the activity is being recreated, e.g. after the process was killed in
+     *                the background. A fresh launch starts an empty batch.
+     */
+    private void openBatch(LaunchOptions options, boolean restore) {
+        File dir = new File(getFilesDir(), BatchSession.DIRECTORY);
+        BatchSession batch = BatchSession.open(dir, options.batchSize);
+        if (!restore) {
+            batch.clear();
+        }
+        for (BatchSession.Entry entry : batch.getEntries()) {
+            if (entry.submissionId != null) {
+                submissionCache.pin(submissionCache.getSubmissionDir(entry.submissionId));
+            }
+        }
+        this.batch = batch;
+    }
+
+    /**
+     * @return The number of scans collected in batch mode, or -1 when not in batch mode.
+     */
+    public int getBatchCount() {
+        BatchSession batch = this.batch;
+        return batch != null ? batch.size() : -1;
+    }
+
+    /**
+     * @return The maximum number of scans of the batch, or 0 when not in batch mode.
+     */
+    public int getBatchCapacity() {
+        BatchSession batch = this.batch;
+        return batch != null ? batch.getCapacity() : 0;
+    }
+
+    /**
+     * @return The fields and images the form of this launch asks for.
+     */
+    public OutputProfile getOutputProfile() {
+        return launchOptions.profile;
     }
 
     /**
      * Shows a prompt for users who did not launch this app via KoboCollect.
      */
     private void showLaunchFromKoboCollectMessage() {
-        new AlertDialog.Builder(this)
+        if (isFinishing() || isKoboCollectLaunch(getIntent())) {
+            return;
+        }
+        launchDialog = new AlertDialog.Builder(this)
             .setTitle("Launch from KoboCollect")
             .setMessage("Please launch this application from KoboCollect.")
             .setPositiveButton("OK", (dialog, which) -> finish())
             .setCancelable(false)
-            .create()
-            .show();
+            .create();
+        launchDialog.show();
     }
 
+    /** Preloads the web bundle into {@link #assetCache}. */
+    private static final ExecutorService assetExecutor = HandBackPipeline.newExecutor(1, "asset-preload");
+
     /**
-     * Sends data back to KoboCollect using the standard Android result mechanism.
-     * @param dateOfBirth Date of birth from front side data.
-     * @param CoAAddress Address from front side data.
-     * @param province Province from front side data.
-     * @param district District from front side data.
-     * @param village Village from front side data.
-     * @param documentNumber ID number.
-     * @param fullName Person's full name.
-     * @param fathersName Father's name if applicable.
-     * @param age Computed age.
-     * @param gender Gender field.
-     * @param frontImage Base64 front image data.
-     * @param backImage Base64 back image data.
-     * @param dependentsInfo JSON or string with dependents.
-     * @param dateOfIssue Back side info.
-     * @param documentAdditionalNumber Back side info.
-     * @param dateOfExpiry Back side info.
+     * The web bundle, kept for the life of the process so activities launched again by
+     * KoboCollect find it in memory. Only touched on the UI thread.
+     */
+    private static AssetCache assetCache;
+
+    /**
+     * Sends data back to KoboCollect with the options of this launch, see
+     * {@link HandBackPipeline#sendData}.
      */
     public void sendData(
-        String dateOfBirth,
-        String CoAAddress,
-        String province,
-        String district,
-        String village,
-        String documentNumber,
-        String fullName,
-        String fathersName,
-        int age,
-        String gender,
-        String frontImage,
-        String backImage,
-        String DocumentFace,
-        String dependentsInfo,
-        String dateOfIssue,
-        String documentAdditionalNumber,
-        String dateOfExpiry
+        IntentUtils.Data fields,
+        Map<String, ImageSource> images,
+        HandBackPipeline.SendDataCallback callback
     ) {
-        try {
-            Intent intent = new Intent();
-            Uri frontImageUri = null;
-            Uri backImageUri = null;
-            Uri DocumentFaceUri = null;
-
-            // Convert front image from Base64 to file if provided
-            if (frontImage != null && !frontImage.isEmpty()) {
-                File frontImageFile = FileUtils.base64ToFile(this, frontImage, "frontImage.jpg");
-                if (frontImageFile != null) {
-                    frontImageUri = FileUtils.getUriForFile(this, frontImageFile);
-                }
-                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-            }
+        pipeline.sendData(launchOptions, batch, fields, images, callback);
+    }
 
-            // Convert back image from Base64 to file if provided
-            if (backImage != null && !backImage.isEmpty()) {
-                File backImageFile = FileUtils.base64ToFile(this, backImage, "backImage.jpg");
-                if (backImageFile != null) {
-                    backImageUri = FileUtils.getUriForFile(this, backImageFile);
-                }
-                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-            }
+    /**
+     * Starts writing the images of a scan before it is sent, see {@link HandBackPipeline#stageImages}.
+     */
+    public String stageImages(Map<String, ImageSource> images) throws IOException {
+        return pipeline.stageImages(launchOptions, images);
+    }
 
-            // Convert DocumentFace image from Base64 to file if provided
-            if (DocumentFace != null && !DocumentFace.isEmpty()) {
-                File DocumentFaceFile = FileUtils.base64ToFile(this, DocumentFace, "DocumentFace.jpg");
-                if (DocumentFaceFile != null) {
-                    DocumentFaceUri = FileUtils.getUriForFile(this, DocumentFaceFile);
-                }
-                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-            }
+    /**
+     * Sends a scan with images staged by {@link #stageImages}, see
+     * {@link HandBackPipeline#sendStagedData}.
+     */
+    public void sendStagedData(IntentUtils.Data fields, String stagingId, HandBackPipeline.SendDataCallback callback) {
+        pipeline.sendStagedData(batch, fields, stagingId, callback);
+    }
 
-            // Attach extras
-            IntentUtils.addExtras(
-                intent,
-                dateOfBirth,
-                CoAAddress,
-                province,
-                district,
-                village,
-                documentNumber,
-                fullName,
-                fathersName,
-                age,
-                gender,
-                frontImageUri,
-                backImageUri,
-                DocumentFaceUri,
-                dependentsInfo,
-                dateOfIssue,
-                documentAdditionalNumber,
-                dateOfExpiry
-            );
-
-            // Attach clip data for images if any
-            if (frontImageUri != null) {
-                ClipData clipData = new ClipData(
-                    "frontImage",
-                    new String[]{"image/jpeg"},
-                    new ClipData.Item(frontImageUri)
-                );
-                if (backImageUri != null) {
-                    clipData.addItem(new ClipData.Item(backImageUri));
-                }
-                if (DocumentFaceUri != null) {
-                    clipData.addItem(new ClipData.Item(DocumentFaceUri));
-                }
-                intent.setClipData(clipData);
-            } else if (backImageUri != null) {
-                ClipData clipData = new ClipData(
-                    "backImage",
-                    new String[]{"image/jpeg"},
-                    new ClipData.Item(backImageUri)
-                );
-                if (DocumentFaceUri != null) {
-                    clipData.addItem(new ClipData.Item(DocumentFaceUri));
-                }
-                intent.setClipData(clipData);
-            } else if (DocumentFaceUri != null) {
-                ClipData clipData = new ClipData(
-                    "DocumentFaceImage",
-                    new String[]{"image/jpeg"},
-                    new ClipData.Item(DocumentFaceUri)
-                );
-                intent.setClipData(clipData);
-            }
+    /**
+     * @return Whether images were staged under the id, see {@link HandBackPipeline#cancelStaging}.
+     */
+    public boolean cancelStaging(String stagingId) {
+        return pipeline.cancelStaging(stagingId);
+    }
 
-            // Return to KoboCollect
-            setResult(RESULT_OK, intent);
-            finish();
-        } catch (Exception e) {
-            showErrorNotification("Failed to send data to KoboCollect. Please try again. If the issue persists, contact support.");
-        }
+    /**
+     * Hands all scans of the batch back to KoboCollect in one result and ends the activity.
+     */
+    public void finishBatch(HandBackPipeline.SendDataCallback callback) {
+        pipeline.finishBatch(launchOptions, batch, callback);
+    }
+
+    /**
+     * Discards every result kept for re-delivery.
+     */
+    public void clearResultCache() {
+        pipeline.clearResultCache();
+    }
+
+    /**
+     * Preloads known document numbers into the duplicate index, see
+     * {@link HandBackPipeline#importDocumentNumbers}.
+     */
+    public void importDocumentNumbers(File file, HandBackPipeline.ImportCallback callback) {
+        pipeline.importDocumentNumbers(file, callback);
     }
 
-    private void showErrorNotification(String message) {
+    @Override
+    public void finishWithResult(Intent intent) {
+        setResult(RESULT_OK, intent);
+        finish();
+    }
+
+    @Override
+    public void showError(String message) {
         Toast.makeText(this, message, Toast.LENGTH_LONG).show();
     }
 }
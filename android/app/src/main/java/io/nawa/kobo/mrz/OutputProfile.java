@@ -0,0 +1,144 @@
+package io.nawa.kobo.mrz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The fields and images a form asks for, read from the {@code fields} and {@code images} launch
+ * extras, so that extras, images and dependents nobody binds are never produced.
+ *
+ * <p>Both extras are lists of names separated by commas or spaces, e.g.
+ * {@code fields=documentNumber,fullName}. Without {@code images}, the images whose URI extra is
+ * among the fields are written, or all of them if {@code fields} is missing too. Field names are
+ * the keys of {@link ScanExtras}; asking for a {@code _dep} key or {@code dependentsInfo} turns on
+ * the legacy key set for those keys. The image size comes from the other launch extras, see
+ * {@link ImageOptions}.
+ */
+public class OutputProfile {
+
+    /** Today's output: every field and every image. */
+    public static final OutputProfile ALL = new OutputProfile(null, null);
+
+    /** The requested extras, or null for all of them. */
+    private final Set<String> fields;
+    /** The requested images, or null for all of them. */
+    private final Set<String> images;
+
+    OutputProfile(Set<String> fields, Set<String> images) {
+        this.fields = fields;
+        this.images = images;
+    }
+
+    /**
+     * @param fields The {@code fields} extra, or null or empty for all fields.
+     * @param images The {@code images} extra, or null or empty to derive them from the fields.
+     * @return The profile.
+     */
+    public static OutputProfile parse(String fields, String images) {
+        Set<String> fieldNames = split(fields);
+        Set<String> imageNames = split(images);
+        if (imageNames == null && fieldNames != null) {
+            imageNames = new LinkedHashSet<>();
+            for (String name : ScanExtras.IMAGE_NAMES) {
+                if (fieldNames.contains(name + "Uri") || fieldNames.contains(name + "Uri_dep")) {
+                    imageNames.add(name);
+                }
+            }
+        }
+        return fieldNames == null && imageNames == null ? ALL : new OutputProfile(fieldNames, imageNames);
+    }
+
+    private static Set<String> split(String names) {
+        if (names == null || names.trim().isEmpty()) {
+            return null;
+        }
+        Set<String> set = new LinkedHashSet<>();
+        for (String name : names.split("[,\\s]+")) {
+            if (!name.isEmpty()) {
+                set.add(name);
+            }
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * @param key An extra laid out by {@link ScanExtras}, e.g. {@code fullName}.
+     * @return Whether the form asks for it. The URI extras of the requested images always are.
+     */
+    public boolean wantsField(String key) {
+        if (fields == null || fields.contains(key)) {
+            return true;
+        }
+        for (String name : ScanExtras.IMAGE_NAMES) {
+            if (key.equals(name + "Uri") && wantsImage(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param key An extra laid out by {@link ScanExtras}.
+     * @return Whether the form lists the extra in {@code fields}; unlike {@link #wantsField}, not
+     *         when it asks for all fields by leaving them out.
+     */
+    public boolean namesField(String key) {
+        return fields != null && fields.contains(key);
+    }
+
+    /**
+     * @param name An image name, see {@link ScanExtras#IMAGE_NAMES}.
+     * @return Whether the image is written and handed back.
+     */
+    public boolean wantsImage(String name) {
+        return images == null || images.contains(name);
+    }
+
+    /**
+     * @return The requested images, in the order they are handed back.
+     */
+    public List<String> getImages() {
+        List<String> names = new ArrayList<>();
+        for (String name : ScanExtras.IMAGE_NAMES) {
+            if (wantsImage(name)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return Whether the dependents JSON has to be flattened: a flattened field or the encoded
+     *         record is asked for.
+     */
+    public boolean wantsDependents() {
+        if (fields == null) {
+            return true;
+        }
+        for (String key : fields) {
+            if (key.startsWith("dependent_") || key.equals("dependentCount") || key.equals("dependentParseErrors")
+                || key.equals(ScanExtras.EXTRA_SCAN_RECORD)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether a key of the legacy key set is asked for by name.
+     */
+    public boolean wantsLegacyKeys() {
+        if (fields == null) {
+            return false;
+        }
+        for (String key : fields) {
+            if (key.endsWith("_dep") || key.equals("dependentsInfo")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
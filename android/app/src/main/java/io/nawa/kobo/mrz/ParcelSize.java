@@ -0,0 +1,69 @@
+package io.nawa.kobo.mrz;
+
+import java.util.Map;
+
+/**
+ * Estimates how many bytes a set of extras occupies once its Bundle is written to a Parcel,
+ * which is what crosses the Binder on every hand-back.
+ *
+ * <p>Follows the layout of {@code Parcel.writeString} and {@code Bundle.writeToParcel}: strings
+ * are a length int followed by UTF-16 characters and a terminator padded to 4 bytes, and every
+ * entry is its key, a type tag and its value.
+ */
+public class ParcelSize {
+
+    /** Bundle length, magic and entry count. */
+    private static final int BUNDLE_HEADER = 12;
+    private static final int TYPE_TAG = 4;
+
+    private ParcelSize() {
+    }
+
+    /**
+     * @param extras Extras holding String, Integer, Boolean, Long or byte[] values.
+     * @return The estimated marshalled size in bytes.
+     */
+    public static long of(Map<String, ?> extras) {
+        long size = BUNDLE_HEADER;
+        for (Map.Entry<String, ?> entry : extras.entrySet()) {
+            size += ofString(entry.getKey()) + TYPE_TAG + ofValue(entry.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * @return The marshalled size of one extra value.
+     */
+    public static long ofValue(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return ofString((String) value);
+        }
+        if (value instanceof byte[]) {
+            return 4 + pad(((byte[]) value).length);
+        }
+        if (value instanceof Long || value instanceof Double) {
+            return 8;
+        }
+        if (value instanceof Integer || value instanceof Boolean) {
+            return 4;
+        }
+        throw new IllegalArgumentException("Unsupported extra type " + value.getClass().getName());
+    }
+
+    /**
+     * @return The marshalled size of a string, or of a null string marker.
+     */
+    public static long ofString(String value) {
+        if (value == null) {
+            return 4;
+        }
+        return 4 + pad((value.length() + 1) * 2L);
+    }
+
+    private static long pad(long length) {
+        return (length + 3) & ~3L;
+    }
+}
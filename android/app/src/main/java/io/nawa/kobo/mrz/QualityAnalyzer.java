@@ -0,0 +1,173 @@
+package io.nawa.kobo.mrz;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Scores the sharpness and glare of a captured image, so a blurry or washed-out card photo can be
+ * retaken on the spot instead of re-collected in the field.
+ *
+ * <p>The image is decoded subsampled and reduced to a luminance buffer whose long edge is
+ * {@link #ANALYSIS_EDGE}, so scores of images of different sizes are comparable and scoring takes
+ * a few milliseconds. Sharpness is the variance of the 4-neighbour Laplacian: edges give large
+ * responses, so a blurred image has a low variance. Glare is the share of pixels at or above
+ * {@link #GLARE_LUMA}.
+ */
+public class QualityAnalyzer {
+
+    /** Long edge of the luminance buffer the scores are computed on. */
+    public static final int ANALYSIS_EDGE = 320;
+
+    /** Luminance from which a pixel counts as saturated by glare. */
+    static final int GLARE_LUMA = 250;
+
+    /** Failure message of a hand-back rejected for the quality of its images. */
+    public static final String REJECTED = "Image quality below the required thresholds";
+
+    /**
+     * Sharpness and glare of one image.
+     */
+    public static class Score {
+        /** Variance of the Laplacian of the luminance; higher is sharper. */
+        public final double sharpness;
+        /** Share of saturated pixels, from 0 to 1. */
+        public final double glare;
+
+        public Score(double sharpness, double glare) {
+            this.sharpness = sharpness;
+            this.glare = glare;
+        }
+
+        /**
+         * @param minSharpness The lowest sharpness accepted, or 0 to accept any.
+         * @param maxGlare The largest glare share accepted, or 1 to accept any.
+         * @return Why the image is rejected, or null if it is accepted.
+         */
+        public String rejection(double minSharpness, double maxGlare) {
+            if (sharpness < minSharpness) {
+                return String.format(Locale.ROOT, "Image is blurry: sharpness %.1f, at least %.1f required", sharpness, minSharpness);
+            }
+            if (glare > maxGlare) {
+                return String.format(Locale.ROOT, "Image has glare: %.1f%% saturated, at most %.1f%% allowed",
+                    glare * 100, maxGlare * 100);
+            }
+            return null;
+        }
+    }
+
+    private QualityAnalyzer() {
+    }
+
+    /**
+     * Scores an image file, decoding it at a small size.
+     *
+     * @param file A JPEG or PNG image.
+     * @return The score.
+     * @throws IOException If the image cannot be decoded.
+     */
+    public static Score analyze(File file) throws IOException {
+        return analyze(LumaImage.decode(file, QualityAnalyzer::sampleSizeFor));
+    }
+
+    /**
+     * @return The largest power of two that keeps the long edge at least {@link #ANALYSIS_EDGE}.
+     */
+    static int sampleSizeFor(int width, int height) {
+        int sampleSize = 1;
+        while (Math.max(width, height) / (sampleSize * 2) >= ANALYSIS_EDGE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Scores decoded pixels.
+     *
+     * @param argb The pixels, row by row, as packed ARGB.
+     * @param width The image width, at least 3.
+     * @param height The image height, at least 3.
+     * @return The score.
+     */
+    public static Score analyze(int[] argb, int width, int height) {
+        if (width < 3 || height < 3 || argb.length < width * height) {
+            throw new IllegalArgumentException("Image too small to analyse: " + width + "x" + height);
+        }
+        return analyze(LumaImage.of(argb, width, height));
+    }
+
+    /**
+     * Scores the luminance of an image, at least 3x3.
+     */
+    private static Score analyze(LumaImage image) {
+        int width = image.width;
+        int height = image.height;
+        if (width < 3 || height < 3) {
+            throw new IllegalArgumentException("Image too small to analyse: " + width + "x" + height);
+        }
+        int scale = Math.max(width, height);
+        int lumaWidth = width;
+        int lumaHeight = height;
+        if (scale > ANALYSIS_EDGE) {
+            lumaWidth = Math.max(3, (int) ((long) width * ANALYSIS_EDGE / scale));
+            lumaHeight = Math.max(3, (int) ((long) height * ANALYSIS_EDGE / scale));
+        }
+        int[] luma = scale(image, lumaWidth, lumaHeight);
+        return new Score(laplacianVariance(luma, lumaWidth, lumaHeight), glare(luma));
+    }
+
+    /**
+     * Area-averages the luminance of an image down to the given size.
+     */
+    static int[] scale(LumaImage image, int lumaWidth, int lumaHeight) {
+        int width = image.width;
+        int height = image.height;
+        int[] sums = new int[lumaWidth * lumaHeight];
+        int[] counts = new int[lumaWidth * lumaHeight];
+        for (int y = 0; y < height; y++) {
+            int row = y * lumaHeight / height * lumaWidth;
+            for (int x = 0; x < width; x++) {
+                int cell = row + x * lumaWidth / width;
+                sums[cell] += image.luma[y * width + x];
+                counts[cell]++;
+            }
+        }
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] /= counts[i];
+        }
+        return sums;
+    }
+
+    /**
+     * @return The variance of the 4-neighbour Laplacian over the interior pixels.
+     */
+    static double laplacianVariance(int[] luma, int width, int height) {
+        long sum = 0;
+        long sumOfSquares = 0;
+        for (int y = 1; y < height - 1; y++) {
+            int row = y * width;
+            for (int x = 1; x < width - 1; x++) {
+                int i = row + x;
+                int laplacian = 4 * luma[i] - luma[i - 1] - luma[i + 1] - luma[i - width] - luma[i + width];
+                sum += laplacian;
+                sumOfSquares += laplacian * laplacian;
+            }
+        }
+        double count = (double) (width - 2) * (height - 2);
+        double mean = sum / count;
+        return sumOfSquares / count - mean * mean;
+    }
+
+    /**
+     * @return The share of pixels at or above {@link #GLARE_LUMA}.
+     */
+    static double glare(int[] luma) {
+        int saturated = 0;
+        for (int value : luma) {
+            if (value >= GLARE_LUMA) {
+                saturated++;
+            }
+        }
+        return (double) saturated / luma.length;
+    }
+}
@@ -0,0 +1,124 @@
+package io.nawa.kobo.mrz;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Smaller versions written next to each scan image, so forms can show a light preview while the
+ * full image stays available for audit.
+ *
+ * <p>Each rung is stored as {@code <image>_<rung>.jpg} in the submission directory and handed back
+ * as a {@code <image><Rung>Uri} extra, e.g. {@code frontImage_thumbnail.jpg} and
+ * {@code frontImageThumbnailUri}.
+ */
+public class ResolutionLadder {
+
+    public static final String THUMBNAIL = "thumbnail";
+    public static final String PREVIEW = "preview";
+
+    /** Rung names, largest first. */
+    private static final String[] NAMES = {PREVIEW, THUMBNAIL};
+
+    /** Only the full image. */
+    public static final ResolutionLadder NONE = new ResolutionLadder(Collections.emptyList());
+
+    /**
+     * One smaller version of an image.
+     */
+    public static class Rung {
+        public final String name;
+        /** Longest edge and quality of this version; metadata is always dropped. */
+        public final ImageOptions options;
+
+        Rung(String name, ImageOptions options) {
+            this.name = name;
+            this.options = options;
+        }
+
+        /**
+         * @return The file name of this version of an image, e.g. {@code frontImage_thumbnail.jpg}.
+         */
+        public String fileName(String imageName) {
+            return ResolutionLadder.fileName(imageName, name);
+        }
+
+        /**
+         * @return The extra holding the URI of this version, e.g. {@code frontImageThumbnailUri}.
+         */
+        public String extraKey(String imageName) {
+            return ResolutionLadder.extraKey(imageName, name);
+        }
+    }
+
+    static String fileName(String imageName, String rungName) {
+        return imageName + "_" + rungName + ".jpg";
+    }
+
+    static String extraKey(String imageName, String rungName) {
+        return imageName + Character.toUpperCase(rungName.charAt(0)) + rungName.substring(1) + "Uri";
+    }
+
+    private final List<Rung> rungs;
+
+    private ResolutionLadder(List<Rung> rungs) {
+        this.rungs = rungs;
+    }
+
+    /**
+     * @param thumbnailEdge Longest edge of the thumbnail in pixels, or 0 for none.
+     * @param previewEdge Longest edge of the mid-size version in pixels, or 0 for none.
+     * @param jpegQuality Quality of both versions.
+     * @return The ladder, largest rung first.
+     * @throws IllegalArgumentException If an edge is negative or the quality is out of range.
+     */
+    public static ResolutionLadder of(int thumbnailEdge, int previewEdge, int jpegQuality) {
+        List<Rung> rungs = new ArrayList<>(2);
+        if (previewEdge > 0) {
+            rungs.add(new Rung(PREVIEW, new ImageOptions(previewEdge, jpegQuality, true)));
+        }
+        if (thumbnailEdge > 0) {
+            rungs.add(new Rung(THUMBNAIL, new ImageOptions(thumbnailEdge, jpegQuality, true)));
+        }
+        if (thumbnailEdge < 0 || previewEdge < 0) {
+            throw new IllegalArgumentException("Edges must not be negative");
+        }
+        if (rungs.isEmpty()) {
+            return NONE;
+        }
+        Collections.sort(rungs, (a, b) -> Integer.compare(b.options.maxEdge, a.options.maxEdge));
+        return new ResolutionLadder(Collections.unmodifiableList(rungs));
+    }
+
+    /**
+     * @return The rungs, largest first, so each can be sampled down from the one before.
+     */
+    public List<Rung> getRungs() {
+        return rungs;
+    }
+
+    public boolean isEmpty() {
+        return rungs.isEmpty();
+    }
+
+    /**
+     * Lists the versions of an image found in a directory, whatever ladder wrote them.
+     *
+     * @param dir The staging or submission directory.
+     * @param imageName The image name, e.g. {@code frontImage}.
+     * @return The existing files keyed by extra, largest rung first.
+     */
+    public static Map<String, File> findVersions(File dir, String imageName) {
+        Map<String, File> versions = new LinkedHashMap<>();
+        for (String name : NAMES) {
+            File file = new File(dir, fileName(imageName, name));
+            if (file.isFile()) {
+                versions.put(extraKey(imageName, name), file);
+            }
+        }
+        return versions;
+    }
+}
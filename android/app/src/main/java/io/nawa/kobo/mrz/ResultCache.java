@@ -0,0 +1,218 @@
+package io.nawa.kobo.mrz;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Short-lived results of earlier hand-backs, keyed by the form question that launched the scan,
+ * so relaunching the scanner for an answered question can return the same result at once instead
+ * of scanning the document again. Only launches whose form identifies the question by a
+ * per-instance key are cached, see {@link LaunchOptions#resultKey}.
+ *
+ * <p>Each result is one file named after its key, written to a temporary name and renamed. It
+ * holds the scan and the submission directory of its images, not the result Intent: the Intent is
+ * rebuilt on re-delivery so its URIs are granted again. A result expires after its time to live,
+ * and is dropped when its images are evicted, a new result is stored for the key or the
+ * enumerator chooses to scan again.
+ */
+public class ResultCache {
+
+    public static final String DIRECTORY = "results";
+
+    private static final String SUFFIX = ".res";
+
+    /**
+     * A cached result.
+     */
+    public static class Entry {
+        public final ScanRecord record;
+        public final String dependentsInfo;
+        /** Name of the submission directory holding the images, or null if there are none. */
+        public final String submissionId;
+        public final long savedMillis;
+        public final long expiresMillis;
+
+        Entry(ScanRecord record, String dependentsInfo, String submissionId, long savedMillis, long expiresMillis) {
+            this.record = record;
+            this.dependentsInfo = dependentsInfo;
+            this.submissionId = submissionId;
+            this.savedMillis = savedMillis;
+            this.expiresMillis = expiresMillis;
+        }
+    }
+
+    private final File dir;
+
+    /**
+     * @param dir The cache directory; created on the first store.
+     */
+    public ResultCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Derives the key a result is stored under from the {@link LaunchOptions#EXTRA_RESULT_KEY} of
+     * its launch, so the same form instance gets the same key.
+     *
+     * @param resultKey The result key the form sets, trimmed.
+     * @return A hex SHA-256 of the result key, safe as a file name.
+     */
+    public static String keyOf(String resultKey) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(resultKey.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Stores the result of a hand-back, replacing any earlier result for the key.
+     *
+     * @param key The launch key, see {@link #keyOf}.
+     * @param ttlMillis How long the result may be re-delivered.
+     * @throws IOException If the result cannot be written.
+     */
+    public synchronized void put(
+        String key,
+        ScanRecord record,
+        String dependentsInfo,
+        String submissionId,
+        long nowMillis,
+        long ttlMillis
+    ) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File temp = new File(dir, key + SUFFIX + ".tmp");
+        byte[] encoded = ScanRecordCodec.encode(record);
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(file)) {
+            out.writeLong(nowMillis);
+            out.writeLong(nowMillis + ttlMillis);
+            out.writeUTF(submissionId != null ? submissionId : "");
+            writeBytes(out, dependentsInfo != null ? dependentsInfo.getBytes(StandardCharsets.UTF_8) : null);
+            writeBytes(out, encoded);
+            out.flush();
+            file.getFD().sync();
+        }
+        if (!temp.renameTo(fileOf(key))) {
+            temp.delete();
+            throw new IOException("Could not store result " + key);
+        }
+    }
+
+    /**
+     * @param key The launch key, see {@link #keyOf}.
+     * @return The result stored for the key, or null if there is none or it expired. Expired and
+     *         unreadable results are deleted.
+     */
+    public synchronized Entry get(String key, long nowMillis) {
+        File file = fileOf(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        Entry entry = read(file);
+        if (entry == null || nowMillis >= entry.expiresMillis || nowMillis < entry.savedMillis) {
+            file.delete();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Drops the result stored for a key, if any.
+     */
+    public synchronized void invalidate(String key) {
+        fileOf(key).delete();
+    }
+
+    /**
+     * Deletes every expired or unreadable result.
+     *
+     * @return The number of results left.
+     */
+    public synchronized int purge(long nowMillis) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int left = 0;
+        for (File file : files) {
+            Entry entry = file.getName().endsWith(SUFFIX) ? read(file) : null;
+            if (entry == null || nowMillis >= entry.expiresMillis || nowMillis < entry.savedMillis) {
+                file.delete();
+            } else {
+                left++;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Drops every result, e.g. when the enumerator signs out of a device.
+     */
+    public synchronized void clear() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private File fileOf(String key) {
+        return new File(dir, key + SUFFIX);
+    }
+
+    private static Entry read(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            long savedMillis = in.readLong();
+            long expiresMillis = in.readLong();
+            String submissionId = in.readUTF();
+            byte[] dependentsInfo = readBytes(in);
+            ScanRecord record = ScanRecordCodec.decode(readBytes(in));
+            return new Entry(
+                record,
+                dependentsInfo != null ? new String(dependentsInfo, StandardCharsets.UTF_8) : null,
+                submissionId.isEmpty() ? null : submissionId,
+                savedMillis,
+                expiresMillis
+            );
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,95 @@
+package io.nawa.kobo.mrz;
+
+import android.content.Context;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The re-delivery of the {@link HandBackPipeline}: the result of a launch with a result key is
+ * kept in the {@link ResultCache}, and a later launch for the same form question is offered to
+ * return it again instead of rescanning. Runs on the hand-back thread.
+ */
+class ResultRedelivery {
+
+    private final HandBackPipeline.Host host;
+    private final SubmissionCache submissionCache;
+    private final ScanRecovery recovery;
+    /** Results of earlier launches that can be re-delivered. */
+    private final ResultCache resultCache;
+
+    ResultRedelivery(Context context, HandBackPipeline.Host host, SubmissionCache submissionCache, ScanRecovery recovery) {
+        this.host = host;
+        this.submissionCache = submissionCache;
+        this.recovery = recovery;
+        resultCache = new ResultCache(new File(context.getFilesDir(), ResultCache.DIRECTORY));
+    }
+
+    /**
+     * Offers to return the result an earlier launch for the same form question handed back, if
+     * it has not expired and its images are still cached, pinning them until answered. A
+     * recovered scan takes precedence.
+     *
+     * @param options The options of the launch, with the key of its form question.
+     */
+    void offer(LaunchOptions options) {
+        if (recovery.wasOffered()) {
+            return;
+        }
+        String resultKey = options.resultKey;
+        long now = System.currentTimeMillis();
+        resultCache.purge(now);
+        ResultCache.Entry entry = resultCache.get(resultKey, now);
+        if (entry == null) {
+            return;
+        }
+        File submissionDir = entry.submissionId != null ? submissionCache.getSubmissionDir(entry.submissionId) : null;
+        if (submissionDir != null && !submissionDir.isDirectory()) {
+            // Its images were evicted from the cache
+            resultCache.invalidate(resultKey);
+            return;
+        }
+        if (submissionDir != null) {
+            submissionCache.pin(submissionDir);
+        }
+        host.runOnUiThread(() -> host.offerResult(options, entry, submissionDir));
+    }
+
+    /**
+     * Drops a result kept by {@link #offer}, as the user scans again.
+     *
+     * @param submissionDir The directory of its images, or null.
+     */
+    void forget(String resultKey, File submissionDir) {
+        resultCache.invalidate(resultKey);
+        if (submissionDir != null) {
+            submissionCache.unpin(submissionDir);
+        }
+    }
+
+    /**
+     * Keeps the result of a launch for re-delivery, after the hand-back that is running.
+     *
+     * @param options The options of the launch, with the key and lifetime of the result.
+     */
+    void keep(LaunchOptions options, ScanRecord record, String dependentsInfo, File submissionDir) {
+        if (options.resultTtlMillis <= 0) {
+            return;
+        }
+        String submissionId = submissionDir != null ? submissionDir.getName() : null;
+        HandBackPipeline.handBackExecutor.execute(() -> {
+            try {
+                resultCache.put(
+                    options.resultKey, record, dependentsInfo, submissionId, System.currentTimeMillis(), options.resultTtlMillis);
+            } catch (IOException ignored) {
+                // Only costs a rescan if the question is opened again
+            }
+        });
+    }
+
+    /**
+     * Discards every result kept for re-delivery.
+     */
+    void clear() {
+        resultCache.clear();
+    }
+}
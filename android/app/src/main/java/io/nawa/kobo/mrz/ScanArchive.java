@@ -0,0 +1,166 @@
+package io.nawa.kobo.mrz;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * One ZIP file per scan holding its fields and images, handed back as a single granted URI in
+ * place of the image URIs and field extras.
+ *
+ * <p>The first entry, {@code manifest.json}, holds the fields under the names of the result
+ * extras, the raw dependents JSON and the entry name of each image. The JPEGs follow STORED, as
+ * deflating them gains nothing; their CRC is computed in a first read so the entry header can be
+ * written before the data.
+ */
+public class ScanArchive {
+
+    public static final String FILE_NAME = "scan.zip";
+    public static final String MANIFEST = "manifest.json";
+    public static final String MIME_TYPE = "application/zip";
+
+    /** Version of the manifest layout, bumped on incompatible changes. */
+    public static final int FORMAT = 1;
+
+    private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+    private ScanArchive() {
+    }
+
+    /**
+     * Writes the archive of a scan.
+     *
+     * @param target The archive file, overwritten if it exists.
+     * @param record The scan; its image URIs are ignored.
+     * @param dependentsInfo The raw dependents JSON, or null.
+     * @param images The image files keyed by entry name, e.g. {@code frontImage.jpg}, in order.
+     * @return The size of the archive in bytes.
+     * @throws IOException If an image cannot be read or the archive cannot be written.
+     */
+    public static long write(File target, ScanRecord record, String dependentsInfo, Map<String, File> images)
+        throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_BYTES];
+        try (FileOutputStream file = new FileOutputStream(target);
+             ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(file, COPY_BUFFER_BYTES))) {
+            zip.putNextEntry(new ZipEntry(MANIFEST));
+            zip.write(manifest(record, dependentsInfo, images).getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+
+            for (Map.Entry<String, File> image : images.entrySet()) {
+                File source = image.getValue();
+                ZipEntry entry = new ZipEntry(image.getKey());
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(source.length());
+                entry.setCompressedSize(source.length());
+                entry.setCrc(crcOf(source, buffer));
+                zip.putNextEntry(entry);
+                try (InputStream in = new FileInputStream(source)) {
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        zip.write(buffer, 0, read);
+                    }
+                }
+                zip.closeEntry();
+            }
+            zip.finish();
+            zip.flush();
+            file.getFD().sync();
+        }
+        return target.length();
+    }
+
+    /**
+     * @return The manifest JSON: {@code format}, {@code fields}, {@code dependentsInfo} and
+     *         {@code images}, mapping each image name to its entry.
+     */
+    static String manifest(ScanRecord record, String dependentsInfo, Map<String, File> images) {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"format\":").append(FORMAT).append(",\"fields\":{");
+        boolean first = true;
+        for (Map.Entry<String, Object> field : ScanExtras.build(record, null, false).entrySet()) {
+            Object value = field.getValue();
+            if (field.getKey().equals(ScanExtras.EXTRA_SCAN_RECORD) || field.getKey().endsWith("Uri")) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            quote(json, field.getKey()).append(':');
+            if (value instanceof Number || value instanceof Boolean) {
+                json.append(value);
+            } else {
+                quote(json, String.valueOf(value));
+            }
+        }
+        json.append("},\"dependentsInfo\":");
+        if (dependentsInfo != null) {
+            quote(json, dependentsInfo);
+        } else {
+            json.append("null");
+        }
+        json.append(",\"images\":{");
+        first = true;
+        for (String entry : images.keySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            int dot = entry.lastIndexOf('.');
+            quote(json, dot > 0 ? entry.substring(0, dot) : entry).append(':');
+            quote(json, entry);
+        }
+        return json.append("}}").toString();
+    }
+
+    private static StringBuilder quote(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"');
+    }
+
+    private static long crcOf(File file, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,221 @@
+package io.nawa.kobo.mrz;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Lays out the extras of the result intent handed back to KoboCollect.
+ *
+ * <p>The compact layout writes each field once under the name forms bind to. The legacy layout
+ * is the original key set, with the {@code _dep} duplicates and the raw {@code dependentsInfo}
+ * JSON, for forms that still read those keys. The whole record encoded by {@link ScanRecordCodec}
+ * is only added under {@link #EXTRA_SCAN_RECORD}, and the records of a batch under
+ * {@link #EXTRA_BATCH_RECORDS}, when the {@code fields} extra names it, as KoboCollect itself
+ * cannot read them.
+ */
+public class ScanExtras {
+
+    /** Names of the images a scan can carry, in the order they are handed back. */
+    public static final String[] IMAGE_NAMES = {"frontImage", "backImage", "DocumentFace"};
+
+    public static final String EXTRA_SCAN_RECORD = "scanRecord";
+    public static final String EXTRA_BATCH_COUNT = "batchCount";
+    public static final String EXTRA_BATCH_RECORDS = "batchRecords";
+    /** The {@link ScanArchive} of the scan, in place of the fields and image URIs. */
+    public static final String EXTRA_ARCHIVE_URI = "archiveUri";
+    public static final String EXTRA_DUPLICATE_SUSPECTED = "duplicateSuspected";
+    public static final String EXTRA_FIRST_SEEN = "firstSeen";
+    public static final String EXTRA_FACE_MATCH_SUSPECTED = "faceMatchSuspected";
+    public static final String EXTRA_FACE_MATCH_DOCUMENT_NUMBER = "faceMatchDocumentNumber";
+    public static final String EXTRA_FACE_MATCH_DISTANCE = "faceMatchDistance";
+    public static final String EXTRA_FACE_MATCH_SEEN = "faceMatchSeen";
+    /** Appended to an image name, e.g. {@code frontImageSharpness}. */
+    public static final String EXTRA_SHARPNESS = "Sharpness";
+    /** Appended to an image name, e.g. {@code frontImageGlare}. */
+    public static final String EXTRA_GLARE = "Glare";
+
+    private ScanExtras() {
+    }
+
+    /**
+     * @param record The scan to hand back.
+     * @param dependentsInfo The raw dependents JSON, only written in the legacy layout.
+     * @param legacyKeys Whether to use the legacy key set instead of the compact layout.
+     * @return The extras in insertion order; null values are omitted.
+     */
+    public static Map<String, Object> build(ScanRecord record, String dependentsInfo, boolean legacyKeys) {
+        return build(record, dependentsInfo, legacyKeys, OutputProfile.ALL);
+    }
+
+    /**
+     * Same as {@link #build(ScanRecord, String, boolean)}, limited to the extras a form asks for.
+     * The legacy keys it names are written even in the compact layout, and the encoded record only
+     * if it is named, see {@link OutputProfile#namesField}.
+     *
+     * @param profile The requested extras.
+     */
+    public static Map<String, Object> build(
+        ScanRecord record,
+        String dependentsInfo,
+        boolean legacyKeys,
+        OutputProfile profile
+    ) {
+        Map<String, Object> extras = new LinkedHashMap<>();
+        boolean legacy = legacyKeys || profile.wantsLegacyKeys();
+        put(extras, profile, "dateOfBirth", record.dateOfBirth);
+        put(extras, profile, "CoAAddress", record.CoAAddress);
+        put(extras, profile, "province", record.province);
+        put(extras, profile, "district", record.district);
+        put(extras, profile, "village", record.village);
+        put(extras, profile, "documentNumber", record.documentNumber);
+        put(extras, profile, "fullName", record.fullName);
+        put(extras, profile, "fathersName", record.fathersName);
+        put(extras, profile, "age", record.age);
+        put(extras, profile, "gender", record.gender);
+
+        if (legacy) {
+            put(extras, profile, "fullName_dep", record.fullName);
+            put(extras, profile, "dateOfBirth_dep", record.dateOfBirth);
+            put(extras, profile, "documentNumber_dep", record.documentNumber);
+            put(extras, profile, "fathersName_dep", record.fathersName);
+            put(extras, profile, "gender_dep", record.gender);
+            put(extras, profile, "age_dep", record.age);
+            put(extras, profile, "frontImageUri_dep", record.frontImageUri);
+            put(extras, profile, "backImageUri_dep", record.backImageUri);
+            put(extras, profile, "DocumentFaceUri_dep", record.DocumentFaceUri);
+        }
+
+        put(extras, profile, "frontImageUri", record.frontImageUri);
+        put(extras, profile, "backImageUri", record.backImageUri);
+        put(extras, profile, "DocumentFaceUri", record.DocumentFaceUri);
+        if (legacy) {
+            put(extras, profile, "dependentsInfo", dependentsInfo);
+        }
+        put(extras, profile, "dateOfIssue", record.dateOfIssue);
+        put(extras, profile, "documentAdditionalNumber", record.documentAdditionalNumber);
+        put(extras, profile, "dateOfExpiry", record.dateOfExpiry);
+
+        DependentsParser.Result dependents = record.dependents;
+        if (dependents != null) {
+            put(extras, profile, "dependentCount", dependents.count);
+            put(extras, profile, "dependentParseErrors", dependents.errors);
+            put(extras, profile, "dependent_dateOfBirth", dependents.dateOfBirth);
+            put(extras, profile, "dependent_sex", dependents.sex);
+            put(extras, profile, "dependent_documentNumber", dependents.documentNumber);
+            put(extras, profile, "dependent_fullName", dependents.fullName);
+        }
+
+        if (profile.namesField(EXTRA_SCAN_RECORD)) {
+            extras.put(EXTRA_SCAN_RECORD, ScanRecordCodec.encode(record));
+        }
+        return extras;
+    }
+
+    /**
+     * Lays out the scans of a batch: {@link #EXTRA_BATCH_COUNT}, the extras of each scan with the
+     * 1-based index of the scan appended to every key ({@code fullName_1}, {@code fullName_2}, ...).
+     * All records encoded by {@link ScanRecordCodec#encodeAll} are only added under
+     * {@link #EXTRA_BATCH_RECORDS} when the {@code fields} extra names it, like {@link #EXTRA_SCAN_RECORD}.
+     *
+     * @param records The scans, in the order they were taken.
+     * @param legacyKeys Whether each scan uses the legacy key set; the raw dependents JSON is not
+     *                   kept for batched scans.
+     * @return The extras in insertion order.
+     */
+    public static Map<String, Object> buildBatch(List<ScanRecord> records, boolean legacyKeys) {
+        return buildBatch(records, legacyKeys, OutputProfile.ALL);
+    }
+
+    /**
+     * Same as {@link #buildBatch(List, boolean)}, limiting the extras of each scan to those a form
+     * asks for; the encoded records only if it names them, see {@link OutputProfile#namesField}.
+     *
+     * @param profile The requested extras.
+     */
+    public static Map<String, Object> buildBatch(List<ScanRecord> records, boolean legacyKeys, OutputProfile profile) {
+        Map<String, Object> extras = new LinkedHashMap<>();
+        extras.put(EXTRA_BATCH_COUNT, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            String suffix = "_" + (i + 1);
+            for (Map.Entry<String, Object> extra : build(records.get(i), null, legacyKeys, profile).entrySet()) {
+                if (!extra.getKey().equals(EXTRA_SCAN_RECORD)) {
+                    extras.put(extra.getKey() + suffix, extra.getValue());
+                }
+            }
+        }
+        if (profile.namesField(EXTRA_BATCH_RECORDS)) {
+            extras.put(EXTRA_BATCH_RECORDS, ScanRecordCodec.encodeAll(records));
+        }
+        return extras;
+    }
+
+    /**
+     * Adds the duplicate check of a scan, see {@link DocumentIndex}.
+     *
+     * @param suffix Appended to the keys, e.g. {@code _2} for the second scan of a batch, or empty.
+     * @param suspected Whether the document number was handed back before.
+     * @param firstSeenMillis When it was first handed back, or -1 if unknown; written as an
+     *                        ISO 8601 UTC timestamp.
+     */
+    public static void putDuplicate(Map<String, Object> extras, String suffix, boolean suspected, long firstSeenMillis) {
+        extras.put(EXTRA_DUPLICATE_SUSPECTED + suffix, suspected);
+        if (suspected && firstSeenMillis >= 0) {
+            extras.put(EXTRA_FIRST_SEEN + suffix, formatUtc(firstSeenMillis));
+        }
+    }
+
+    /**
+     * Adds the face check of a scan, see {@link FaceIndex}.
+     *
+     * @param suffix Appended to the keys, e.g. {@code _2} for the second scan of a batch, or empty.
+     * @param match The closest earlier capture of the face with another document number, or null.
+     */
+    public static void putFaceMatch(Map<String, Object> extras, String suffix, FaceIndex.Match match) {
+        extras.put(EXTRA_FACE_MATCH_SUSPECTED + suffix, match != null);
+        if (match != null) {
+            put(extras, EXTRA_FACE_MATCH_DOCUMENT_NUMBER + suffix, match.documentNumber);
+            extras.put(EXTRA_FACE_MATCH_DISTANCE + suffix, match.distance);
+            extras.put(EXTRA_FACE_MATCH_SEEN + suffix, formatUtc(match.timeMillis));
+        }
+    }
+
+    /**
+     * Adds the quality scores of the images of a scan, see {@link QualityAnalyzer}: the sharpness
+     * with one decimal and the glare as a share from 0 to 1.
+     *
+     * @param suffix Appended to the keys, e.g. {@code _2} for the second scan of a batch, or empty.
+     * @param scores The scores keyed by image name; images that were not scored are left out.
+     */
+    public static void putQuality(Map<String, Object> extras, String suffix, Map<String, QualityAnalyzer.Score> scores) {
+        for (Map.Entry<String, QualityAnalyzer.Score> score : scores.entrySet()) {
+            extras.put(score.getKey() + EXTRA_SHARPNESS + suffix, String.format(Locale.ROOT, "%.1f", score.getValue().sharpness));
+            extras.put(score.getKey() + EXTRA_GLARE + suffix, String.format(Locale.ROOT, "%.4f", score.getValue().glare));
+        }
+    }
+
+    /**
+     * @return The time as an ISO 8601 UTC timestamp.
+     */
+    private static String formatUtc(long timeMillis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(timeMillis));
+    }
+
+    private static void put(Map<String, Object> extras, OutputProfile profile, String key, Object value) {
+        if (profile.wantsField(key)) {
+            put(extras, key, value);
+        }
+    }
+
+    private static void put(Map<String, Object> extras, String key, Object value) {
+        if (value != null) {
+            extras.put(key, value);
+        }
+    }
+}
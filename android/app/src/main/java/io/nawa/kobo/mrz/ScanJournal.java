@@ -0,0 +1,436 @@
+package io.nawa.kobo.mrz;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of scans whose images are stored but whose result has not reached
+ * KoboCollect yet, so a scan survives the process being killed in between.
+ *
+ * <p>Each frame is the body length, the CRC-32 of the body and the body: a type byte and a
+ * sequence number, followed for a scan by its time, submission directory, raw dependents JSON
+ * and {@link ScanRecordCodec} bytes, or for a completion by the sequence of its scan. A torn or
+ * corrupt frame ends the journal; it and anything after it are cut off when the journal is opened.
+ *
+ * <p>Frames are encoded and written on a dedicated thread. Frames queued while a write is in
+ * progress are written together and synced once, so callers only wait in {@link #awaitDurable}.
+ * Once a scan is marked done, the journal is rewritten with the scans still outstanding, which
+ * is usually none.
+ *
+ * <p>Open the journal once per process: each instance appends through its own stream and writer
+ * thread, so the appends of one go to the file another has just replaced by compacting.
+ */
+public class ScanJournal {
+
+    public static final String DIRECTORY = "journal";
+    static final String FILE_NAME = "scans.log";
+
+    private static final byte TYPE_SCAN = 1;
+    private static final byte TYPE_DONE = 2;
+    /** Upper bound of a frame body, so a corrupt length cannot trigger a huge allocation. */
+    private static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * A scan read back from the journal.
+     */
+    public static class Entry {
+        public final long sequence;
+        /** Wall-clock time the scan was journaled, in milliseconds. */
+        public final long timeMillis;
+        public final ScanRecord record;
+        /** The raw dependents JSON, kept for the legacy key set; may be null. */
+        public final String dependentsInfo;
+        /** Name of the submission directory holding the images, or null if there are none. */
+        public final String submissionId;
+
+        Entry(long sequence, long timeMillis, ScanRecord record, String dependentsInfo, String submissionId) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.record = record;
+            this.dependentsInfo = dependentsInfo;
+            this.submissionId = submissionId;
+        }
+    }
+
+    private final File file;
+    private final ExecutorService writer;
+    /** Encoded scan frames not marked done, by sequence; only touched by the writer thread after open. */
+    private final Map<Long, byte[]> outstandingFrames = new LinkedHashMap<>();
+    /** Scans read back when the journal was opened and not marked done since; guarded by itself. */
+    private final List<Entry> recovered;
+
+    private final List<PendingFrame> pending = new ArrayList<>();
+    private boolean flushScheduled;
+    private long lastSequence;
+    private long durableSequence;
+    /** Set once a write failed; later frames are dropped rather than written after a gap. */
+    private boolean failed;
+    private FileOutputStream out;
+    /** Whether a scan was marked done since the last compaction; writer thread only. */
+    private boolean completed;
+
+    private ScanJournal(File file, List<Entry> recovered, long lastSequence) {
+        this.file = file;
+        this.recovered = recovered;
+        this.lastSequence = lastSequence;
+        this.durableSequence = lastSequence;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            runnable -> new Thread(runnable, "scan-journal")
+        );
+        executor.allowCoreThreadTimeOut(true);
+        writer = executor;
+    }
+
+    /**
+     * Opens the journal in a directory, reading back the scans not marked done and cutting off a
+     * torn tail left by a kill in the middle of a write.
+     *
+     * @param dir The journal directory; created if missing.
+     * @return The journal.
+     * @throws IOException If the journal cannot be read or opened for appending.
+     */
+    public static ScanJournal open(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File file = new File(dir, FILE_NAME);
+        Map<Long, Entry> outstanding = new LinkedHashMap<>();
+        Map<Long, byte[]> frames = new LinkedHashMap<>();
+        long lastSequence = 0;
+        long validLength = 0;
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                byte[] frame;
+                while ((frame = readFrame(in)) != null) {
+                    validLength += frame.length;
+                    DataInputStream body = new DataInputStream(new ByteArrayInputStream(frame, 8, frame.length - 8));
+                    byte type = body.readByte();
+                    long sequence = body.readLong();
+                    lastSequence = Math.max(lastSequence, sequence);
+                    if (type == TYPE_SCAN) {
+                        outstanding.put(sequence, readScan(sequence, body));
+                        frames.put(sequence, frame);
+                    } else if (type == TYPE_DONE) {
+                        long done = body.readLong();
+                        outstanding.remove(done);
+                        frames.remove(done);
+                    }
+                }
+            }
+            if (validLength < file.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+        }
+
+        ScanJournal journal = new ScanJournal(file, new ArrayList<>(outstanding.values()), lastSequence);
+        journal.outstandingFrames.putAll(frames);
+        journal.out = new FileOutputStream(file, true);
+        return journal;
+    }
+
+    /**
+     * @return The scans read back when the journal was opened and not marked done since, oldest first.
+     */
+    public List<Entry> getRecovered() {
+        synchronized (recovered) {
+            return new ArrayList<>(recovered);
+        }
+    }
+
+    /**
+     * @return The most recent scan read back when the journal was opened and not marked done
+     *         since, or null.
+     */
+    public Entry recover() {
+        synchronized (recovered) {
+            return recovered.isEmpty() ? null : recovered.get(recovered.size() - 1);
+        }
+    }
+
+    /**
+     * Queues a scan to be journaled and returns at once.
+     *
+     * @param record The scan, with the URIs of its stored images.
+     * @param dependentsInfo The raw dependents JSON, or null.
+     * @param submissionId The submission directory of its images, or null.
+     * @return The sequence of the scan, for {@link #awaitDurable} and {@link #markDone}.
+     */
+    public long append(ScanRecord record, String dependentsInfo, String submissionId) {
+        long timeMillis = System.currentTimeMillis();
+        return enqueue(sequence -> {
+            byte[] frame = encodeScan(sequence, timeMillis, record, dependentsInfo, submissionId);
+            outstandingFrames.put(sequence, frame);
+            return frame;
+        });
+    }
+
+    /**
+     * Queues the completion of a scan, once its result has been handed to KoboCollect or the
+     * user discarded it. The journal is then compacted down to the scans still outstanding.
+     *
+     * @param scanSequence The sequence returned by {@link #append}.
+     * @return The sequence of the completion.
+     */
+    public long markDone(long scanSequence) {
+        synchronized (recovered) {
+            for (int i = 0; i < recovered.size(); i++) {
+                if (recovered.get(i).sequence == scanSequence) {
+                    recovered.remove(i);
+                    break;
+                }
+            }
+        }
+        return enqueue(sequence -> {
+            completed |= outstandingFrames.remove(scanSequence) != null;
+            ByteArrayOutputStream body = new ByteArrayOutputStream(17);
+            DataOutputStream data = new DataOutputStream(body);
+            data.writeByte(TYPE_DONE);
+            data.writeLong(sequence);
+            data.writeLong(scanSequence);
+            return frame(body.toByteArray());
+        });
+    }
+
+    /**
+     * Waits until a frame and everything queued before it has been synced to disk.
+     *
+     * @param sequence The sequence returned by {@link #append} or {@link #markDone}.
+     * @param timeoutMillis Maximum time to wait.
+     * @return Whether the frame is durable; false on timeout or if the journal could not be written.
+     */
+    public synchronized boolean awaitDurable(long sequence, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (durableSequence < sequence) {
+                if (failed) {
+                    return false;
+                }
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private interface FrameEncoder {
+        byte[] encode(long sequence) throws IOException;
+    }
+
+    private static class PendingFrame {
+        final long sequence;
+        final FrameEncoder encoder;
+
+        PendingFrame(long sequence, FrameEncoder encoder) {
+            this.sequence = sequence;
+            this.encoder = encoder;
+        }
+    }
+
+    private synchronized long enqueue(FrameEncoder encoder) {
+        long sequence = ++lastSequence;
+        pending.add(new PendingFrame(sequence, encoder));
+        if (!flushScheduled) {
+            flushScheduled = true;
+            writer.execute(this::flush);
+        }
+        return sequence;
+    }
+
+    /**
+     * Writes every queued frame, syncs once and compacts if scans were completed. Runs on the
+     * writer thread.
+     */
+    private void flush() {
+        List<PendingFrame> frames;
+        synchronized (this) {
+            frames = new ArrayList<>(pending);
+            pending.clear();
+            flushScheduled = false;
+            if (failed || frames.isEmpty()) {
+                notifyAll();
+                return;
+            }
+        }
+        boolean written = false;
+        try {
+            for (PendingFrame frame : frames) {
+                out.write(frame.encoder.encode(frame.sequence));
+            }
+            out.getFD().sync();
+            if (completed) {
+                completed = false;
+                compact();
+            }
+            written = true;
+        } catch (IOException | RuntimeException ignored) {
+            // The journal is a safety net; a scan that cannot be journaled is still handed back
+        }
+        synchronized (this) {
+            if (written) {
+                durableSequence = frames.get(frames.size() - 1).sequence;
+            } else {
+                failed = true;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the outstanding scans, through a synced temporary file.
+     */
+    private void compact() throws IOException {
+        out.close();
+        if (outstandingFrames.isEmpty()) {
+            out = new FileOutputStream(file, false);
+            out.getFD().sync();
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream compacted = new FileOutputStream(temp)) {
+            for (byte[] frame : outstandingFrames.values()) {
+                compacted.write(frame);
+            }
+            compacted.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            out = new FileOutputStream(file, true);
+            throw new IOException("Could not compact " + file);
+        }
+        out = new FileOutputStream(file, true);
+    }
+
+    private static byte[] encodeScan(
+        long sequence,
+        long timeMillis,
+        ScanRecord record,
+        String dependentsInfo,
+        String submissionId
+    ) throws IOException {
+        byte[] encoded = ScanRecordCodec.encode(record);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(encoded.length + 64);
+        DataOutputStream data = new DataOutputStream(body);
+        data.writeByte(TYPE_SCAN);
+        data.writeLong(sequence);
+        data.writeLong(timeMillis);
+        data.writeUTF(submissionId != null ? submissionId : "");
+        if (dependentsInfo == null) {
+            data.writeInt(-1);
+        } else {
+            byte[] utf8 = dependentsInfo.getBytes(StandardCharsets.UTF_8);
+            data.writeInt(utf8.length);
+            data.write(utf8);
+        }
+        data.writeInt(encoded.length);
+        data.write(encoded);
+        return frame(body.toByteArray());
+    }
+
+    private static Entry readScan(long sequence, DataInputStream body) throws IOException {
+        long timeMillis = body.readLong();
+        String submissionId = body.readUTF();
+        int dependentsLength = body.readInt();
+        String dependentsInfo = null;
+        if (dependentsLength >= 0) {
+            byte[] utf8 = new byte[dependentsLength];
+            body.readFully(utf8);
+            dependentsInfo = new String(utf8, StandardCharsets.UTF_8);
+        }
+        byte[] encoded = new byte[body.readInt()];
+        body.readFully(encoded);
+        return new Entry(
+            sequence, timeMillis, ScanRecordCodec.decode(encoded), dependentsInfo,
+            submissionId.isEmpty() ? null : submissionId
+        );
+    }
+
+    /**
+     * @return The frame: body length, CRC-32 of the body, body.
+     */
+    private static byte[] frame(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        byte[] frame = new byte[body.length + 8];
+        writeInt(frame, 0, body.length);
+        writeInt(frame, 4, (int) crc.getValue());
+        System.arraycopy(body, 0, frame, 8, body.length);
+        return frame;
+    }
+
+    /**
+     * @return The next complete frame with a matching checksum, or null at the end of the journal
+     *         or at the first torn or corrupt frame.
+     */
+    private static byte[] readFrame(InputStream in) throws IOException {
+        byte[] header = new byte[8];
+        if (!readFully(in, header)) {
+            return null;
+        }
+        int length = readInt(header, 0);
+        if (length <= 0 || length > MAX_BODY_BYTES) {
+            return null;
+        }
+        byte[] frame = new byte[length + 8];
+        System.arraycopy(header, 0, frame, 0, 8);
+        try {
+            new DataInputStream(in).readFully(frame, 8, length);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(frame, 8, length);
+        return (int) crc.getValue() == readInt(header, 4) ? frame : null;
+    }
+
+    private static boolean readFully(InputStream in, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int n = in.read(buffer, read, buffer.length - read);
+            if (n < 0) {
+                return false;
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16
+            | (buffer[offset + 2] & 0xFF) << 8 | (buffer[offset + 3] & 0xFF);
+    }
+}
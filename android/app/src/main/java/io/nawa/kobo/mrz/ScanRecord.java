@@ -0,0 +1,111 @@
+package io.nawa.kobo.mrz;
+
+import java.util.Objects;
+
+/**
+ * Platform-independent copy of {@link IntentUtils.Data} with image URIs as strings and the
+ * dependents already flattened, so it can be encoded and tested without Android classes.
+ */
+public class ScanRecord {
+    public final String dateOfBirth;
+    public final String CoAAddress;
+    public final String province;
+    public final String district;
+    public final String village;
+    public final String documentNumber;
+    public final String fullName;
+    public final String fathersName;
+    public final int age;
+    public final String gender;
+    public final String frontImageUri;
+    public final String backImageUri;
+    public final String DocumentFaceUri;
+    public final String dateOfIssue;
+    public final String documentAdditionalNumber;
+    public final String dateOfExpiry;
+    /** Flattened dependents, or null if the scan carried no dependentsInfo. */
+    public final DependentsParser.Result dependents;
+
+    public ScanRecord(
+            String dateOfBirth,
+            String CoAAddress,
+            String province,
+            String district,
+            String village,
+            String documentNumber,
+            String fullName,
+            String fathersName,
+            int age,
+            String gender,
+            String frontImageUri,
+            String backImageUri,
+            String DocumentFaceUri,
+            String dateOfIssue,
+            String documentAdditionalNumber,
+            String dateOfExpiry,
+            DependentsParser.Result dependents
+    ) {
+        this.dateOfBirth = dateOfBirth;
+        this.CoAAddress = CoAAddress;
+        this.province = province;
+        this.district = district;
+        this.village = village;
+        this.documentNumber = documentNumber;
+        this.fullName = fullName;
+        this.fathersName = fathersName;
+        this.age = age;
+        this.gender = gender;
+        this.frontImageUri = frontImageUri;
+        this.backImageUri = backImageUri;
+        this.DocumentFaceUri = DocumentFaceUri;
+        this.dateOfIssue = dateOfIssue;
+        this.documentAdditionalNumber = documentAdditionalNumber;
+        this.dateOfExpiry = dateOfExpiry;
+        this.dependents = dependents;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ScanRecord)) {
+            return false;
+        }
+        ScanRecord other = (ScanRecord) o;
+        return age == other.age
+                && Objects.equals(dateOfBirth, other.dateOfBirth)
+                && Objects.equals(CoAAddress, other.CoAAddress)
+                && Objects.equals(province, other.province)
+                && Objects.equals(district, other.district)
+                && Objects.equals(village, other.village)
+                && Objects.equals(documentNumber, other.documentNumber)
+                && Objects.equals(fullName, other.fullName)
+                && Objects.equals(fathersName, other.fathersName)
+                && Objects.equals(gender, other.gender)
+                && Objects.equals(frontImageUri, other.frontImageUri)
+                && Objects.equals(backImageUri, other.backImageUri)
+                && Objects.equals(DocumentFaceUri, other.DocumentFaceUri)
+                && Objects.equals(dateOfIssue, other.dateOfIssue)
+                && Objects.equals(documentAdditionalNumber, other.documentAdditionalNumber)
+                && Objects.equals(dateOfExpiry, other.dateOfExpiry)
+                && sameDependents(dependents, other.dependents);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(documentNumber, fullName, dateOfBirth, age);
+    }
+
+    private static boolean sameDependents(DependentsParser.Result a, DependentsParser.Result b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.count == b.count
+                && a.errors == b.errors
+                && a.dateOfBirth.equals(b.dateOfBirth)
+                && a.sex.equals(b.sex)
+                && a.documentNumber.equals(b.documentNumber)
+                && a.fullName.equals(b.fullName);
+    }
+}
@@ -0,0 +1,236 @@
+package io.nawa.kobo.mrz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Versioned binary encoding of a {@link ScanRecord}, carried in a single byte[] extra.
+ *
+ * <p>Layout: one version byte, then every field in declaration order. Strings are a varint of
+ * (UTF-8 length + 1), 0 meaning null, followed by the UTF-8 bytes; ints are zigzag varints.
+ * The dependents block starts with a presence byte. New fields must only be appended, with a
+ * version bump, so older readers can reject records they do not understand.
+ */
+public class ScanRecordCodec {
+
+    public static final int VERSION = 1;
+
+    private ScanRecordCodec() {
+    }
+
+    /**
+     * @param record The record to encode.
+     * @return The encoded bytes.
+     */
+    public static byte[] encode(ScanRecord record) {
+        Writer out = new Writer();
+        out.write(VERSION);
+        out.writeString(record.dateOfBirth);
+        out.writeString(record.CoAAddress);
+        out.writeString(record.province);
+        out.writeString(record.district);
+        out.writeString(record.village);
+        out.writeString(record.documentNumber);
+        out.writeString(record.fullName);
+        out.writeString(record.fathersName);
+        out.writeInt(record.age);
+        out.writeString(record.gender);
+        out.writeString(record.frontImageUri);
+        out.writeString(record.backImageUri);
+        out.writeString(record.DocumentFaceUri);
+        out.writeString(record.dateOfIssue);
+        out.writeString(record.documentAdditionalNumber);
+        out.writeString(record.dateOfExpiry);
+        DependentsParser.Result dependents = record.dependents;
+        if (dependents == null) {
+            out.write(0);
+        } else {
+            out.write(1);
+            out.writeInt(dependents.count);
+            out.writeInt(dependents.errors);
+            out.writeString(dependents.dateOfBirth);
+            out.writeString(dependents.sex);
+            out.writeString(dependents.documentNumber);
+            out.writeString(dependents.fullName);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param bytes Bytes produced by {@link #encode}.
+     * @return The decoded record.
+     * @throws IOException If the bytes are truncated or use an unknown version.
+     */
+    public static ScanRecord decode(byte[] bytes) throws IOException {
+        Reader in = new Reader(bytes);
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported scan record version " + version);
+        }
+        String dateOfBirth = in.readString();
+        String CoAAddress = in.readString();
+        String province = in.readString();
+        String district = in.readString();
+        String village = in.readString();
+        String documentNumber = in.readString();
+        String fullName = in.readString();
+        String fathersName = in.readString();
+        int age = in.readInt();
+        String gender = in.readString();
+        String frontImageUri = in.readString();
+        String backImageUri = in.readString();
+        String DocumentFaceUri = in.readString();
+        String dateOfIssue = in.readString();
+        String documentAdditionalNumber = in.readString();
+        String dateOfExpiry = in.readString();
+        DependentsParser.Result dependents = null;
+        if (in.read() == 1) {
+            dependents = new DependentsParser.Result(
+                in.readInt(), in.readInt(), in.readString(), in.readString(), in.readString(), in.readString());
+        }
+        return new ScanRecord(
+                dateOfBirth,
+                CoAAddress,
+                province,
+                district,
+                village,
+                documentNumber,
+                fullName,
+                fathersName,
+                age,
+                gender,
+                frontImageUri,
+                backImageUri,
+                DocumentFaceUri,
+                dateOfIssue,
+                documentAdditionalNumber,
+                dateOfExpiry,
+                dependents
+        );
+    }
+
+    /**
+     * Encodes several records into one payload: a varint count, then each record prefixed with
+     * its varint length.
+     *
+     * @param records The records to encode.
+     * @return The encoded bytes.
+     */
+    public static byte[] encodeAll(List<ScanRecord> records) {
+        Writer out = new Writer();
+        out.writeVarint(records.size());
+        for (ScanRecord record : records) {
+            byte[] encoded = encode(record);
+            out.writeVarint(encoded.length);
+            out.write(encoded, 0, encoded.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param bytes Bytes produced by {@link #encodeAll}.
+     * @return The decoded records, in order.
+     * @throws IOException If the bytes are truncated or a record uses an unknown version.
+     */
+    public static List<ScanRecord> decodeAll(byte[] bytes) throws IOException {
+        Reader in = new Reader(bytes);
+        long count = in.readVarint();
+        if (count < 0 || count > bytes.length) {
+            throw new IOException("Malformed scan record batch");
+        }
+        List<ScanRecord> records = new ArrayList<>((int) count);
+        for (long i = 0; i < count; i++) {
+            records.add(decode(in.readBytes()));
+        }
+        return records;
+    }
+
+    private static class Writer extends ByteArrayOutputStream {
+        Writer() {
+            super(256);
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeInt(int value) {
+            writeVarint(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length + 1L);
+            write(utf8, 0, utf8.length);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] bytes;
+        private int pos;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int read() throws IOException {
+            if (pos >= bytes.length) {
+                throw new IOException("Truncated scan record");
+            }
+            return bytes[pos++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in scan record");
+        }
+
+        int readInt() throws IOException {
+            long zigzag = readVarint();
+            return (int) (zigzag >>> 1) ^ -(int) (zigzag & 1);
+        }
+
+        byte[] readBytes() throws IOException {
+            long length = readVarint();
+            if (length < 0 || length > bytes.length - pos) {
+                throw new IOException("Truncated scan record");
+            }
+            byte[] value = new byte[(int) length];
+            System.arraycopy(bytes, pos, value, 0, value.length);
+            pos += value.length;
+            return value;
+        }
+
+        String readString() throws IOException {
+            long length = readVarint();
+            if (length == 0) {
+                return null;
+            }
+            int size = (int) (length - 1);
+            if (size < 0 || size > bytes.length - pos) {
+                throw new IOException("Truncated scan record");
+            }
+            String value = new String(bytes, pos, size, StandardCharsets.UTF_8);
+            pos += size;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package io.nawa.kobo.mrz;
+
+import android.content.Context;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The {@link ScanJournal} of the {@link HandBackPipeline}: scans are journaled once their images
+ * are committed and marked done once KoboCollect has their result, and a scan a previous launch
+ * stored but never returned is offered again. Runs on the hand-back thread unless noted.
+ */
+class ScanRecovery {
+
+    /** Longest the hand-back waits for its scan to reach the journal before setting the result. */
+    private static final long JOURNAL_FLUSH_TIMEOUT_MILLIS = 150;
+
+    /**
+     * Scans stored but not yet handed back, opened by the first launch that is not in batch mode.
+     * Only touched on the hand-back thread.
+     */
+    private static ScanJournal sharedJournal;
+
+    private final Context context;
+    private final HandBackPipeline.Host host;
+    private final SubmissionCache submissionCache;
+    /** The {@link #sharedJournal} once {@link #open} ran; null in batch mode. */
+    private volatile ScanJournal journal;
+    /** Whether a recovered scan was offered; only read on the hand-back thread. */
+    private boolean offered;
+
+    ScanRecovery(Context context, HandBackPipeline.Host host, SubmissionCache submissionCache) {
+        this.context = context;
+        this.host = host;
+        this.submissionCache = submissionCache;
+    }
+
+    /**
+     * Opens the journal and offers the most recent scan that was neither handed back nor
+     * discarded, pinning its images, then trims the cache. The journal is opened once per
+     * process; later launches are offered the recovered scans still outstanding.
+     *
+     * @param options The options of the launch that opens the journal.
+     */
+    void open(LaunchOptions options) {
+        ScanJournal.Entry recovered = null;
+        try {
+            if (sharedJournal == null) {
+                sharedJournal = ScanJournal.open(new File(context.getFilesDir(), ScanJournal.DIRECTORY));
+            }
+            journal = sharedJournal;
+            ScanJournal.Entry latest = journal.recover();
+            for (ScanJournal.Entry entry : journal.getRecovered()) {
+                File submissionDir = entry.submissionId != null ? submissionCache.getSubmissionDir(entry.submissionId) : null;
+                if (entry == latest && (submissionDir == null || submissionDir.isDirectory())) {
+                    if (submissionDir != null) {
+                        submissionCache.pin(submissionDir);
+                    }
+                    recovered = entry;
+                } else {
+                    // Superseded by a later scan, or its images are gone
+                    journal.markDone(entry.sequence);
+                }
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // Without a journal scans are still handed back, just not recoverable
+        }
+        submissionCache.trimAsync(options.cacheMaxBytes, options.cacheMaxAgeMillis, null);
+
+        if (recovered != null) {
+            ScanJournal.Entry entry = recovered;
+            offered = true;
+            host.runOnUiThread(() -> host.offerRecovered(entry));
+        }
+    }
+
+    /**
+     * @return Whether a recovered scan was offered, which takes precedence over a cached result.
+     */
+    boolean wasOffered() {
+        return offered;
+    }
+
+    /**
+     * Queues a scan in the journal without waiting for it to be written.
+     *
+     * @return The journal sequence of the scan, or -1 if there is no journal.
+     */
+    long append(ScanRecord record, String dependentsInfo, File submissionDir) {
+        ScanJournal journal = this.journal;
+        if (journal == null) {
+            return -1;
+        }
+        return journal.append(record, dependentsInfo, submissionDir != null ? submissionDir.getName() : null);
+    }
+
+    /**
+     * Gives the journal write of a scan a bounded wait before its result is set.
+     *
+     * @param sequence The journal sequence of the scan, or -1 if it was not journaled.
+     */
+    void awaitDurable(long sequence) {
+        ScanJournal journal = this.journal;
+        if (journal != null && sequence >= 0) {
+            journal.awaitDurable(sequence, JOURNAL_FLUSH_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Marks a scan done once its result was set or the user discarded it. Any thread.
+     *
+     * @param sequence The journal sequence of the scan, or -1 if it was not journaled.
+     */
+    void markDone(long sequence) {
+        ScanJournal journal = this.journal;
+        if (journal != null && sequence >= 0) {
+            journal.markDone(sequence);
+        }
+    }
+}
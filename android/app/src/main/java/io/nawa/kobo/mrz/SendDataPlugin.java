@@ -2,11 +2,19 @@
 
 package io.nawa.kobo.mrz;
 
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import com.getcapacitor.JSArray;
 import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
 import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.PluginMethod;
 import com.getcapacitor.JSObject;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Capacitor plugin to receive scan data from the JavaScript layer and forward it to MainActivity.
@@ -14,75 +22,513 @@ import com.getcapacitor.JSObject;
 @CapacitorPlugin(name = "SendData")
 public class SendDataPlugin extends Plugin {
 
+    private ChunkedUploads uploads;
+
+    @Override
+    public void load() {
+        uploads = new ChunkedUploads(getContext().getCacheDir());
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        uploads.abortAll();
+    }
+
     /**
      * Receives a call from JavaScript, validates the parameters, and forwards them to MainActivity.
-     * Returns a success response on completion or an error if any required parameter is missing.
+     * Images are passed as Base64 data URLs.
+     * Resolves once the result has been committed to KoboCollect, or rejects if any required
+     * parameter is missing or the hand-back fails (with the failure cause of each image).
      */
     @PluginMethod
     public void sendData(PluginCall call) {
+        long start = HandBackMetrics.start();
+        try {
+            IntentUtils.Data fields = readFields(call);
+            if (fields == null) {
+                call.reject("Missing required parameters");
+                return;
+            }
+
+            Map<String, ImageSource> images = new HashMap<>();
+            long payloadBytes = 0;
+            for (String name : ((MainActivity) getActivity()).getOutputProfile().getImages()) {
+                String base64 = call.getString(name);
+                if (base64 != null && !base64.isEmpty()) {
+                    images.put(name, ImageSource.fromBase64(base64));
+                    payloadBytes += base64.length();
+                }
+            }
+
+            HandBackMetrics.global().record(HandBackMetrics.Stage.PLUGIN_ENTRY, start, payloadBytes);
+            ((MainActivity) getActivity()).sendData(fields, images, newCallback(call));
+        } catch (Exception e) {
+            call.reject("Error processing data", e);
+        }
+    }
+
+    /**
+     * Same as {@link #sendData}, but frontImage, backImage and DocumentFace are the paths returned
+     * by {@link #commitImage}, so no Base64 crosses the bridge. The uploaded files are moved into
+     * the submission. Rejects with INVALID_REFERENCE if a path is not a committed upload.
+     */
+    @PluginMethod
+    public void sendDataByReference(PluginCall call) {
+        long start = HandBackMetrics.start();
         try {
-            String dateOfBirth = call.getString("dateOfBirth");
-            String CoAAddress = call.getString("CoAAddress");
-            String province = call.getString("province");
-            String district = call.getString("district");
-            String village = call.getString("village");
-            String documentNumber = call.getString("documentNumber");
-            String fullName = call.getString("fullName");
-            String fathersName = call.getString("fathersName");
-            Integer age = call.getInt("age");
-            String gender = call.getString("gender");
-            String frontImagePath = call.getString("frontImage");
-            String backImagePath = call.getString("backImage");
-            String DocumentFacePath = call.getString("DocumentFace");
-            String dependentsInfo = call.getString("dependentsInfo");
-            if (dependentsInfo == null) {
-                dependentsInfo = "";
-            }
-
-            String dateOfIssue = call.getString("dateOfIssue");
-            String documentAdditionalNumber = call.getString("documentAdditionalNumber");
-            String dateOfExpiry = call.getString("dateOfExpiry");
-            if (dateOfIssue == null) {
-                dateOfIssue = "";
-            }
-            if (documentAdditionalNumber == null) {
-                documentAdditionalNumber = "";
-            }
-            if (dateOfExpiry == null) {
-                dateOfExpiry = "";
-            }
-
-            if (documentNumber == null || fullName == null || age == null ||
-                gender == null || dateOfBirth == null) {
+            IntentUtils.Data fields = readFields(call);
+            if (fields == null) {
                 call.reject("Missing required parameters");
                 return;
             }
 
-            ((MainActivity) getActivity()).sendData(
-                dateOfBirth,
-                CoAAddress,
-                province,
-                district,
-                village,
-                documentNumber,
-                fullName,
-                fathersName,
-                age,
-                gender,
-                frontImagePath,
-                backImagePath,
-                DocumentFacePath,
-                dependentsInfo,
-                dateOfIssue,
-                documentAdditionalNumber,
-                dateOfExpiry
-            );
+            Map<String, ImageSource> images = readImageReferences(call);
+            if (images == null) {
+                return;
+            }
+            long payloadBytes = 0;
+            for (ImageSource source : images.values()) {
+                payloadBytes += source.size();
+            }
+
+            HandBackMetrics.global().record(HandBackMetrics.Stage.PLUGIN_ENTRY, start, payloadBytes);
+            ((MainActivity) getActivity()).sendData(fields, images, newCallback(call));
+        } catch (Exception e) {
+            call.reject("Error processing data", e);
+        }
+    }
 
+    /**
+     * Starts decoding and writing images as soon as the scan is taken, while the results are
+     * shown. frontImage, backImage and DocumentFace are paths as for {@link #sendDataByReference}.
+     * Resolves with the {@code stagingId} to pass to {@link #sendStagedData}; images staged for
+     * an earlier scan are discarded. Rejects with STAGING_UNAVAILABLE if images are streamed in
+     * this launch, in which case they are sent by reference instead.
+     */
+    @PluginMethod
+    public void stageImages(PluginCall call) {
+        try {
+            Map<String, ImageSource> images = readImageReferences(call);
+            if (images == null) {
+                return;
+            }
+            String stagingId = ((MainActivity) getActivity()).stageImages(images);
             JSObject result = new JSObject();
-            result.put("response", "Data has been sent successfully");
+            result.put("stagingId", stagingId);
             call.resolve(result);
+        } catch (IllegalStateException e) {
+            call.reject(e.getMessage(), "STAGING_UNAVAILABLE");
+        } catch (Exception e) {
+            call.reject("Error staging images", e);
+        }
+    }
+
+    /**
+     * Same as {@link #sendData} for images staged by {@link #stageImages} under
+     * {@code stagingId}; only the result is left to assemble.
+     */
+    @PluginMethod
+    public void sendStagedData(PluginCall call) {
+        long start = HandBackMetrics.start();
+        try {
+            IntentUtils.Data fields = readFields(call);
+            String stagingId = call.getString("stagingId");
+            if (fields == null || stagingId == null) {
+                call.reject("Missing required parameters");
+                return;
+            }
+            HandBackMetrics.global().record(HandBackMetrics.Stage.PLUGIN_ENTRY, start, 0);
+            ((MainActivity) getActivity()).sendStagedData(fields, stagingId, newCallback(call));
         } catch (Exception e) {
             call.reject("Error processing data", e);
         }
     }
+
+    /**
+     * Discards the images staged under {@code stagingId}, e.g. when the user rescans. Resolves
+     * with {@code cancelled} false if there were none.
+     */
+    @PluginMethod
+    public void cancelStaging(PluginCall call) {
+        String stagingId = call.getString("stagingId");
+        if (stagingId == null) {
+            call.reject("Missing stagingId");
+            return;
+        }
+        JSObject result = new JSObject();
+        result.put("cancelled", ((MainActivity) getActivity()).cancelStaging(stagingId));
+        call.resolve(result);
+    }
+
+    /**
+     * Resolves the requested images of a call given as paths of committed uploads.
+     *
+     * @return The image sources keyed by image name, or null if the call was rejected with
+     *         INVALID_REFERENCE.
+     */
+    private Map<String, ImageSource> readImageReferences(PluginCall call) {
+        Map<String, ImageSource> images = new HashMap<>();
+        for (String name : ((MainActivity) getActivity()).getOutputProfile().getImages()) {
+            String reference = call.getString(name);
+            if (reference == null || reference.isEmpty()) {
+                continue;
+            }
+            try {
+                images.put(name, ImageSource.fromFile(uploads.resolve(reference)));
+            } catch (IOException e) {
+                call.reject(name + ": " + e.getMessage(), "INVALID_REFERENCE");
+                return null;
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Starts a chunked image upload, so a large image crosses the bridge in bounded messages
+     * instead of one data URL. Resolves with the {@code handle} of the upload.
+     */
+    @PluginMethod
+    public void beginImage(PluginCall call) {
+        try {
+            JSObject result = new JSObject();
+            result.put("handle", uploads.begin());
+            call.resolve(result);
+        } catch (IOException e) {
+            call.reject(e.getMessage(), "UPLOAD_FAILED");
+        }
+    }
+
+    /**
+     * Decodes the next Base64 chunk of an upload straight to its file. Takes {@code handle},
+     * {@code index} (from 0) and {@code data}, at most {@link ChunkedUploads#MAX_CHUNK_CHARS}
+     * characters. Resolves with the decoded {@code bytes} so far; a failed chunk aborts the upload.
+     */
+    @PluginMethod
+    public void appendChunk(PluginCall call) {
+        String handle = call.getString("handle");
+        Integer index = call.getInt("index");
+        String data = call.getString("data");
+        if (handle == null || index == null || data == null) {
+            call.reject("Missing required parameters");
+            return;
+        }
+        try {
+            JSObject result = new JSObject();
+            result.put("bytes", uploads.append(handle, index, data));
+            call.resolve(result);
+        } catch (IOException e) {
+            call.reject(e.getMessage(), "UPLOAD_FAILED");
+        }
+    }
+
+    /**
+     * Completes an upload. Resolves with the {@code path} of the image relative to the cache
+     * directory, to pass to {@link #sendDataByReference}.
+     */
+    @PluginMethod
+    public void commitImage(PluginCall call) {
+        try {
+            JSObject result = new JSObject();
+            result.put("path", uploads.commit(call.getString("handle")));
+            call.resolve(result);
+        } catch (IOException e) {
+            call.reject(e.getMessage(), "UPLOAD_FAILED");
+        }
+    }
+
+    /**
+     * Discards an upload and what was written of it.
+     */
+    @PluginMethod
+    public void abortImage(PluginCall call) {
+        uploads.abort(call.getString("handle"));
+        call.resolve();
+    }
+
+    /**
+     * Returns the hand-back timings recorded by this process: per-stage totals, the retained
+     * spans (times in milliseconds of the monotonic clock) and the heap high-water mark, along with
+     * the device model and app version so snapshots from the field can be compared.
+     * Pass {@code reset: true} to clear the metrics after reading them.
+     */
+    @PluginMethod
+    public void getMetrics(PluginCall call) {
+        HandBackMetrics metrics = HandBackMetrics.global();
+        HandBackMetrics.Snapshot snapshot = metrics.snapshot();
+        if (Boolean.TRUE.equals(call.getBoolean("reset", false))) {
+            metrics.reset();
+        }
+
+        JSObject stages = new JSObject();
+        for (HandBackMetrics.Stage stage : HandBackMetrics.Stage.values()) {
+            int i = stage.ordinal();
+            if (snapshot.stageCount[i] == 0) {
+                continue;
+            }
+            JSObject totals = new JSObject();
+            totals.put("count", snapshot.stageCount[i]);
+            totals.put("failures", snapshot.stageFailures[i]);
+            totals.put("bytes", snapshot.stageBytes[i]);
+            totals.put("totalMs", snapshot.stageNanos[i] / 1e6);
+            totals.put("maxMs", snapshot.stageMaxNanos[i] / 1e6);
+            stages.put(stage.name(), totals);
+        }
+
+        JSArray spans = new JSArray();
+        for (int i = 0; i < snapshot.size(); i++) {
+            JSObject span = new JSObject();
+            span.put("stage", snapshot.spanStage[i].name());
+            span.put("startMs", snapshot.spanStartNanos[i] / 1e6);
+            span.put("durationMs", snapshot.spanDurationNanos[i] / 1e6);
+            span.put("bytes", snapshot.spanBytes[i]);
+            if (snapshot.spanError[i] != null) {
+                span.put("error", snapshot.spanError[i]);
+            }
+            spans.put(span);
+        }
+
+        JSObject device = new JSObject();
+        device.put("manufacturer", Build.MANUFACTURER);
+        device.put("model", Build.MODEL);
+        device.put("sdkInt", Build.VERSION.SDK_INT);
+        device.put("heapMaxBytes", Runtime.getRuntime().maxMemory());
+
+        JSObject result = new JSObject();
+        result.put("appVersion", getAppVersion());
+        result.put("device", device);
+        result.put("recorded", snapshot.recorded);
+        result.put("heapHighWaterBytes", snapshot.heapHighWaterBytes);
+        result.put("stages", stages);
+        result.put("spans", spans);
+        call.resolve(result);
+    }
+
+    /**
+     * Returns the batch state of this launch: {@code batch} is false when every scan is handed back
+     * on its own, otherwise {@code count} scans of at most {@code capacity} have been collected.
+     */
+    @PluginMethod
+    public void getSession(PluginCall call) {
+        call.resolve(getSessionState());
+    }
+
+    private JSObject getSessionState() {
+        MainActivity activity = (MainActivity) getActivity();
+        JSObject result = new JSObject();
+        result.put("batch", activity.getBatchCount() >= 0);
+        result.put("count", Math.max(0, activity.getBatchCount()));
+        result.put("capacity", activity.getBatchCapacity());
+        JSArray images = new JSArray();
+        for (String name : activity.getOutputProfile().getImages()) {
+            images.put(name);
+        }
+        result.put("images", images);
+        return result;
+    }
+
+    /**
+     * Tells the web app about a new launch by KoboCollect of the running activity, with the
+     * session state of that launch.
+     */
+    @Override
+    protected void handleOnNewIntent(Intent intent) {
+        super.handleOnNewIntent(intent);
+        if ("io.nawa.kobo.mrz".equals(intent.getAction())) {
+            notifyListeners("launch", getSessionState());
+        }
+    }
+
+    /**
+     * Called by the web app once it is ready to scan, ending the startup trace.
+     */
+    @PluginMethod
+    public void reportReady(PluginCall call) {
+        ((MainActivity) getActivity()).onWebReady();
+        call.resolve();
+    }
+
+    /**
+     * Hands all scans collected in batch mode back to KoboCollect.
+     */
+    @PluginMethod
+    public void finishBatch(PluginCall call) {
+        MainActivity activity = (MainActivity) getActivity();
+        if (activity.getBatchCount() <= 0) {
+            call.reject("No scans to hand back", "EMPTY_BATCH");
+            return;
+        }
+        activity.finishBatch(newCallback(call));
+    }
+
+    /**
+     * Preloads known document numbers into the duplicate check, from a text file in the cache
+     * directory with one number per line. Resolves with {@code added}, the numbers that were not
+     * known yet, and {@code size}, the number of indexed documents.
+     */
+    @PluginMethod
+    public void importDocumentIndex(PluginCall call) {
+        File file;
+        try {
+            file = FileUtils.resolveCacheFile(getContext(), call.getString("path"));
+        } catch (IOException e) {
+            call.reject(e.getMessage(), "INVALID_REFERENCE");
+            return;
+        }
+        ((MainActivity) getActivity()).importDocumentNumbers(file, new HandBackPipeline.ImportCallback() {
+            @Override
+            public void onImported(int added, int size) {
+                JSObject result = new JSObject();
+                result.put("added", added);
+                result.put("size", size);
+                call.resolve(result);
+            }
+
+            @Override
+            public void onFailed(String message) {
+                call.reject(message, "IMPORT_FAILED");
+            }
+        });
+    }
+
+    /**
+     * Discards the results kept for re-delivery, so relaunching the scanner for an answered
+     * question always scans again.
+     */
+    @PluginMethod
+    public void clearResultCache(PluginCall call) {
+        ((MainActivity) getActivity()).clearResultCache();
+        call.resolve();
+    }
+
+    private String getAppVersion() {
+        try {
+            return getContext().getPackageManager().getPackageInfo(getContext().getPackageName(), 0).versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the scan fields shared by all send methods.
+     *
+     * @return The fields without image URIs, or null if a required parameter is missing.
+     */
+    private IntentUtils.Data readFields(PluginCall call) {
+        String dateOfBirth = call.getString("dateOfBirth");
+        String CoAAddress = call.getString("CoAAddress");
+        String province = call.getString("province");
+        String district = call.getString("district");
+        String village = call.getString("village");
+        String documentNumber = call.getString("documentNumber");
+        String fullName = call.getString("fullName");
+        String fathersName = call.getString("fathersName");
+        Integer age = call.getInt("age");
+        String gender = call.getString("gender");
+        String dependentsInfo = call.getString("dependentsInfo");
+        if (dependentsInfo == null) {
+            dependentsInfo = "";
+        }
+
+        String dateOfIssue = call.getString("dateOfIssue");
+        String documentAdditionalNumber = call.getString("documentAdditionalNumber");
+        String dateOfExpiry = call.getString("dateOfExpiry");
+        if (dateOfIssue == null) {
+            dateOfIssue = "";
+        }
+        if (documentAdditionalNumber == null) {
+            documentAdditionalNumber = "";
+        }
+        if (dateOfExpiry == null) {
+            dateOfExpiry = "";
+        }
+
+        if (documentNumber == null || fullName == null || age == null ||
+            gender == null || dateOfBirth == null) {
+            return null;
+        }
+
+        return new IntentUtils.Data(
+            dateOfBirth,
+            CoAAddress,
+            province,
+            district,
+            village,
+            documentNumber,
+            fullName,
+            fathersName,
+            age,
+            gender,
+            null,
+            null,
+            null,
+            dependentsInfo,
+            dateOfIssue,
+            documentAdditionalNumber,
+            dateOfExpiry
+        );
+    }
+
+    /**
+     * Resolves the call once the result is committed, or rejects it with the per-image failures.
+     * Either way the image quality scores are included once the images have been scored.
+     */
+    private HandBackPipeline.SendDataCallback newCallback(PluginCall call) {
+        return new HandBackPipeline.SendDataCallback() {
+            private volatile JSObject quality;
+
+            @Override
+            public void onScored(Map<String, QualityAnalyzer.Score> scores) {
+                JSObject images = new JSObject();
+                for (Map.Entry<String, QualityAnalyzer.Score> score : scores.entrySet()) {
+                    JSObject image = new JSObject();
+                    image.put("sharpness", score.getValue().sharpness);
+                    image.put("glare", score.getValue().glare);
+                    images.put(score.getKey(), image);
+                }
+                quality = images;
+            }
+
+            @Override
+            public void onSent() {
+                JSObject result = new JSObject();
+                result.put("response", "Data has been sent successfully");
+                putQuality(result);
+                call.resolve(result);
+            }
+
+            @Override
+            public void onBatched(int count, int capacity) {
+                JSObject batch = new JSObject();
+                batch.put("count", count);
+                batch.put("capacity", capacity);
+                batch.put("finished", false);
+                JSObject result = new JSObject();
+                result.put("response", "Scan has been added to the batch");
+                result.put("batch", batch);
+                putQuality(result);
+                call.resolve(result);
+            }
+
+            @Override
+            public void onFailed(String message, Map<String, String> imageErrors) {
+                JSObject errors = new JSObject();
+                for (Map.Entry<String, String> entry : imageErrors.entrySet()) {
+                    errors.put(entry.getKey(), entry.getValue());
+                }
+                JSObject data = new JSObject();
+                data.put("imageErrors", errors);
+                putQuality(data);
+                String code = QualityAnalyzer.REJECTED.equals(message)
+                    ? "IMAGE_QUALITY_REJECTED"
+                    : imageErrors.isEmpty() ? "SEND_FAILED" : "IMAGE_WRITE_FAILED";
+                call.reject(message, code, null, data);
+            }
+
+            private void putQuality(JSObject result) {
+                if (quality != null) {
+                    result.put("quality", quality);
+                }
+            }
+        };
+    }
 }
@@ -0,0 +1,168 @@
+package io.nawa.kobo.mrz;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Scans whose images are written ahead of their hand-back, keyed by the name of their staging
+ * directory. At most one scan is staged: staging another means the user rescanned, so the earlier
+ * one is discarded.
+ *
+ * <p>A discarded scan's writes that have not started are skipped, and those already running are
+ * waited for on the cleanup executor before its staging directory is deleted, so nothing is
+ * written into a deleted directory.
+ */
+public class StagedImages {
+
+    /**
+     * The images of one staged scan.
+     */
+    public static class Scan {
+        public final File dir;
+        /** The options of the launch the images are written for, used again when they are sent. */
+        public final LaunchOptions options;
+        /** The image writes keyed by image name. */
+        public final Map<String, Future<File>> pendingImages = new LinkedHashMap<>();
+
+        /** Writes that started and have not finished; guarded by this. */
+        private int running;
+        private boolean discarded;
+
+        public Scan(File dir, LaunchOptions options) {
+            this.dir = dir;
+            this.options = options;
+        }
+
+        /**
+         * Queues the write of one image into the staging directory. A write that has not started
+         * when the scan is discarded is skipped.
+         */
+        public void submit(ExecutorService executor, String name, Callable<File> write) {
+            pendingImages.put(name, executor.submit(() -> {
+                synchronized (this) {
+                    if (discarded) {
+                        throw new CancellationException("The staged scan was discarded");
+                    }
+                    running++;
+                }
+                try {
+                    return write.call();
+                } finally {
+                    synchronized (this) {
+                        running--;
+                        notifyAll();
+                    }
+                }
+            }));
+        }
+
+        /**
+         * @return The staging id of the scan.
+         */
+        public String getId() {
+            return dir.getName();
+        }
+    }
+
+    private final SubmissionCache submissionCache;
+    private final Executor cleanupExecutor;
+    private final Map<String, Scan> scans = new HashMap<>();
+
+    /**
+     * @param cleanupExecutor Waits for the running writes of discarded scans and deletes their
+     *                        staging directories.
+     */
+    public StagedImages(SubmissionCache submissionCache, Executor cleanupExecutor) {
+        this.submissionCache = submissionCache;
+        this.cleanupExecutor = cleanupExecutor;
+    }
+
+    /**
+     * Stages a scan, discarding the scans staged before it.
+     *
+     * @return The staging id to send or cancel the scan with.
+     */
+    public String stage(Scan scan) {
+        List<Scan> replaced;
+        synchronized (scans) {
+            replaced = new ArrayList<>(scans.values());
+            scans.clear();
+            scans.put(scan.getId(), scan);
+        }
+        for (Scan earlier : replaced) {
+            discard(earlier);
+        }
+        return scan.getId();
+    }
+
+    /**
+     * Takes a staged scan out of the registry to send it.
+     *
+     * @return The scan, or null if it was cancelled, already sent or never staged.
+     */
+    public Scan take(String stagingId) {
+        synchronized (scans) {
+            return scans.remove(stagingId);
+        }
+    }
+
+    /**
+     * Discards a staged scan once its writes are done.
+     *
+     * @return Whether a scan was staged under the id.
+     */
+    public boolean cancel(String stagingId) {
+        Scan scan = take(stagingId);
+        if (scan == null) {
+            return false;
+        }
+        discard(scan);
+        return true;
+    }
+
+    /**
+     * Discards every staged scan, e.g. as they were written with the options of a previous launch.
+     */
+    public void discardAll() {
+        List<Scan> discarded;
+        synchronized (scans) {
+            discarded = new ArrayList<>(scans.values());
+            scans.clear();
+        }
+        for (Scan scan : discarded) {
+            discard(scan);
+        }
+    }
+
+    private void discard(Scan scan) {
+        synchronized (scan) {
+            scan.discarded = true;
+        }
+        for (Future<File> pending : scan.pendingImages.values()) {
+            pending.cancel(false);
+        }
+        // A cancelled future no longer tells when its running write ends, so the scan counts them
+        cleanupExecutor.execute(() -> {
+            synchronized (scan) {
+                while (scan.running > 0) {
+                    try {
+                        scan.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            submissionCache.discard(scan.dir);
+        });
+    }
+}
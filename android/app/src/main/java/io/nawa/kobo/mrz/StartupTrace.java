@@ -0,0 +1,91 @@
+package io.nawa.kobo.mrz;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+
+/**
+ * Startup phases of {@link MainActivity}, recorded in {@link HandBackMetrics} so they are reported
+ * by {@code getMetrics} and the metrics log, and shown as {@code kobo:<phase>} sections in system
+ * traces (Perfetto, macrobenchmark) next to the app's own.
+ */
+public class StartupTrace {
+
+    private static final String SECTION_PREFIX = "kobo:";
+
+    /** Set once the first activity of the process has been created. */
+    private static boolean processStarted;
+
+    private final long createStart;
+    private boolean firstFrameRecorded;
+    private boolean webReadyRecorded;
+
+    private StartupTrace(long createStart) {
+        this.createStart = createStart;
+    }
+
+    /**
+     * Starts tracing an activity startup; call first thing in onCreate. The first activity of the
+     * process also records {@link HandBackMetrics.Stage#STARTUP_PROCESS} where the platform knows
+     * the process start time.
+     *
+     * @return The trace of this activity instance.
+     */
+    public static StartupTrace onCreate() {
+        long now = HandBackMetrics.start();
+        synchronized (StartupTrace.class) {
+            if (!processStarted) {
+                processStarted = true;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    long sinceProcessStart = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+                    HandBackMetrics.global().record(
+                        HandBackMetrics.Stage.STARTUP_PROCESS, now - sinceProcessStart * 1_000_000L, 0);
+                }
+            }
+        }
+        return new StartupTrace(now);
+    }
+
+    /**
+     * Opens a trace section for a phase running on the calling thread.
+     *
+     * @return The start time to pass to {@link #end}.
+     */
+    public static long begin(HandBackMetrics.Stage phase) {
+        Trace.beginSection(SECTION_PREFIX + phase.name());
+        return HandBackMetrics.start();
+    }
+
+    /**
+     * Closes the section opened by {@link #begin} on the same thread and records the phase.
+     */
+    public static void end(HandBackMetrics.Stage phase, long start) {
+        Trace.endSection();
+        HandBackMetrics.global().record(phase, start, 0);
+    }
+
+    /**
+     * Records {@link HandBackMetrics.Stage#STARTUP_FIRST_FRAME}, once per activity.
+     */
+    public void firstFrame() {
+        if (!firstFrameRecorded) {
+            firstFrameRecorded = true;
+            HandBackMetrics.global().record(HandBackMetrics.Stage.STARTUP_FIRST_FRAME, createStart, 0);
+        }
+    }
+
+    /**
+     * Records {@link HandBackMetrics.Stage#STARTUP_WEB_READY}, once per activity.
+     *
+     * @return Whether this was the first report.
+     */
+    public synchronized boolean webReady() {
+        if (webReadyRecorded) {
+            return false;
+        }
+        webReadyRecorded = true;
+        HandBackMetrics.global().record(HandBackMetrics.Stage.STARTUP_WEB_READY, createStart, 0);
+        return true;
+    }
+}
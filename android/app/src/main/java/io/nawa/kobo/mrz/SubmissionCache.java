@@ -0,0 +1,313 @@
+package io.nawa.kobo.mrz;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the images of each submission in their own content-addressed directory below the cache
+ * and evicts the least recently used submissions once the cache exceeds its byte budget or age
+ * limit.
+ *
+ * <p>Images are first written into a staging directory; {@link #commit} renames it to the hash
+ * of its content, so a new scan never overwrites files KoboCollect may still be copying. A
+ * submission counts as used when it is committed or {@link #touch touched}, i.e. handed back
+ * again. Commits and trims share one lock, so a trim never deletes a directory a commit is
+ * returning.
+ *
+ * <p>There is one cache per directory and process, see {@link #get}: trims queued by an activity
+ * that has since finished run against the same lock and pins as the commits of the next one.
+ */
+public class SubmissionCache {
+
+    public static final String DIRECTORY = "submissions";
+    public static final long DEFAULT_MAX_BYTES = 50L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private static final String STAGING_PREFIX = ".staging-";
+    private static final long STAGING_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    /** Files written directly into the cache root before submissions had their own directory. */
+    private static final String[] LEGACY_FILES = {"frontImage.jpg", "backImage.jpg", "DocumentFace.jpg"};
+
+    private static final ExecutorService trimExecutor = newTrimExecutor();
+
+    /** The caches of this process, keyed by the path of their cache directory. */
+    private static final Map<String, SubmissionCache> caches = new HashMap<>();
+
+    private final File cacheDir;
+    private final File root;
+    private final Set<String> pinned = Collections.synchronizedSet(new HashSet<>());
+    private volatile long totalBytes = -1;
+
+    /**
+     * @param cacheDir The app cache directory served by the FileProvider cache-path.
+     */
+    SubmissionCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+        this.root = new File(cacheDir, DIRECTORY);
+    }
+
+    /**
+     * @param cacheDir The app cache directory served by the FileProvider cache-path.
+     * @return The cache shared by everything in this process that uses the directory.
+     */
+    public static SubmissionCache get(File cacheDir) {
+        synchronized (caches) {
+            String key = cacheDir.getAbsolutePath();
+            SubmissionCache cache = caches.get(key);
+            if (cache == null) {
+                cache = new SubmissionCache(cacheDir);
+                caches.put(key, cache);
+            }
+            return cache;
+        }
+    }
+
+    private static ExecutorService newTrimExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "cache-trim");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates an empty, uniquely named staging directory for the images of one submission.
+     *
+     * @return The staging directory.
+     * @throws IOException If the directory cannot be created.
+     */
+    public File newStagingDir() throws IOException {
+        for (int attempt = 0; attempt < 10; attempt++) {
+            File dir = new File(root, STAGING_PREFIX + System.nanoTime());
+            if (dir.mkdirs()) {
+                return dir;
+            }
+        }
+        throw new IOException("Could not create staging directory in " + root);
+    }
+
+    /**
+     * Moves a completed staging directory to its content address. If an identical submission is
+     * already cached, the staging directory is discarded and the existing one is reused.
+     *
+     * @param stagingDir Directory returned by {@link #newStagingDir()}.
+     * @param files The submission files, in a stable order, used to compute the address.
+     * @return The committed submission directory.
+     * @throws IOException If the files cannot be read or the directory cannot be renamed.
+     */
+    public File commit(File stagingDir, List<File> files) throws IOException {
+        // Hashed outside the lock, the staging directory is not visible to trims
+        File target = new File(root, contentId(files));
+        synchronized (this) {
+            if (target.isDirectory()) {
+                deleteRecursively(stagingDir);
+            } else if (stagingDir.renameTo(target)) {
+                if (totalBytes >= 0) {
+                    totalBytes += sizeOf(target);
+                }
+            } else {
+                throw new IOException("Could not commit submission " + target.getName());
+            }
+            target.setLastModified(System.currentTimeMillis());
+        }
+        return target;
+    }
+
+    /**
+     * Marks a submission as used, so it is evicted after those used before it.
+     *
+     * @return Whether the submission still exists.
+     */
+    public synchronized boolean touch(File submissionDir) {
+        return submissionDir.isDirectory() && submissionDir.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * @param id The directory name of a committed submission.
+     * @return The submission directory; it may no longer exist.
+     */
+    public File getSubmissionDir(String id) {
+        return new File(root, id);
+    }
+
+    /**
+     * Protects a submission from {@link #trim} until it is unpinned, e.g. while it waits in a
+     * batch that has not been handed back yet. Pins are not persisted.
+     */
+    public void pin(File submissionDir) {
+        pinned.add(submissionDir.getName());
+    }
+
+    public void unpin(File submissionDir) {
+        pinned.remove(submissionDir.getName());
+    }
+
+    /**
+     * Deletes a staging directory whose submission failed.
+     */
+    public void discard(File stagingDir) {
+        deleteRecursively(stagingDir);
+    }
+
+    /**
+     * @return The bytes used by committed submissions, as of the last trim or commit.
+     */
+    public long getTotalBytes() {
+        return Math.max(totalBytes, 0);
+    }
+
+    /**
+     * Schedules {@link #trim} on a low-priority background thread.
+     */
+    public void trimAsync(long maxBytes, long maxAgeMillis, File keep) {
+        trimExecutor.execute(() -> trim(maxBytes, maxAgeMillis, keep));
+    }
+
+    /**
+     * Deletes submissions unused for longer than the age limit, then the least recently used ones
+     * until the total fits the budget. The most recently used submission, {@code keep} and pinned submissions are never deleted,
+     * so KoboCollect can still read the images it was just handed. Abandoned staging directories
+     * are removed too.
+     *
+     * @param maxBytes Byte budget for all submissions.
+     * @param maxAgeMillis Maximum age of a submission.
+     * @param keep A submission directory to keep regardless of the limits, may be null.
+     * @return The number of bytes freed.
+     */
+    public synchronized long trim(long maxBytes, long maxAgeMillis, File keep) {
+        long now = System.currentTimeMillis();
+        long freed = 0;
+        for (String name : LEGACY_FILES) {
+            File legacy = new File(cacheDir, name);
+            long size = legacy.length();
+            if (legacy.delete()) {
+                freed += size;
+            }
+        }
+
+        File[] entries = root.listFiles();
+        if (entries == null) {
+            totalBytes = 0;
+            return freed;
+        }
+        List<File> submissions = new ArrayList<>();
+        for (File entry : entries) {
+            if (!entry.getName().startsWith(STAGING_PREFIX)) {
+                submissions.add(entry);
+            } else if (now - entry.lastModified() > STAGING_MAX_AGE_MILLIS) {
+                freed += deleteRecursively(entry);
+            }
+        }
+
+        long[] sizes = new long[submissions.size()];
+        long[] modified = new long[submissions.size()];
+        Integer[] order = new Integer[submissions.size()];
+        long total = 0;
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            sizes[i] = sizeOf(submissions.get(i));
+            modified[i] = submissions.get(i).lastModified();
+            total += sizes[i];
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+
+        // Least recently used first; the most recent submission is always kept
+        for (int n = 0; n < order.length - 1; n++) {
+            int i = order[n];
+            File submission = submissions.get(i);
+            boolean expired = now - modified[i] > maxAgeMillis;
+            if ((!expired && total <= maxBytes) || submission.equals(keep) || pinned.contains(submission.getName())) {
+                continue;
+            }
+            deleteRecursively(submission);
+            total -= sizes[i];
+            freed += sizes[i];
+        }
+        totalBytes = total;
+        return freed;
+    }
+
+    /**
+     * Computes the directory name of a submission from the content of its files.
+     */
+    static String contentId(List<File> files) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[8192];
+        for (File file : files) {
+            digest.update(file.getName().getBytes(StandardCharsets.UTF_8));
+            try (InputStream in = new FileInputStream(file)) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+        }
+        byte[] hash = digest.digest();
+        StringBuilder id = new StringBuilder(32);
+        for (int i = 0; i < 16; i++) {
+            id.append(Character.forDigit((hash[i] >> 4) & 0xF, 16));
+            id.append(Character.forDigit(hash[i] & 0xF, 16));
+        }
+        return id.toString();
+    }
+
+    private static long sizeOf(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : children) {
+            size += sizeOf(child);
+        }
+        return size;
+    }
+
+    private static long deleteRecursively(File file) {
+        long freed = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                freed += deleteRecursively(child);
+            }
+        }
+        long size = children == null ? file.length() : 0;
+        if (file.delete()) {
+            freed += size;
+        }
+        return freed;
+    }
+}
@@ -0,0 +1,161 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for the in-process cache of the web bundle, on a bundle in a temporary directory.
+ */
+public class AssetCacheTest {
+
+    private File dir;
+    private final List<String> opened = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("bundle").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private AssetCache cache(long maxBytes) {
+        return new AssetCache(path -> {
+            File file = new File(dir, path);
+            if (!file.isFile()) {
+                throw new FileNotFoundException(path);
+            }
+            opened.add(path);
+            return new FileInputStream(file);
+        }, maxBytes);
+    }
+
+    /**
+     * Writes a script of repetitive text, like a minified chunk.
+     */
+    private byte[] script(String name, int bytes) throws Exception {
+        Random random = new Random(bytes);
+        StringBuilder text = new StringBuilder(bytes);
+        while (text.length() < bytes) {
+            text.append("function f").append(random.nextInt(100)).append("(a){return a+1};");
+        }
+        byte[] content = text.substring(0, bytes).getBytes(StandardCharsets.UTF_8);
+        Files.write(new File(dir, name).toPath(), content);
+        return content;
+    }
+
+    @Test
+    public void readsEachAssetOnce() throws Exception {
+        byte[] main = script("main-ABC.js", 200000);
+        byte[] styles = script("styles-DEF.css", 5000);
+        AssetCache cache = cache(AssetCache.DEFAULT_MAX_BYTES);
+
+        AssetCache.Entry entry = cache.get("main-ABC.js");
+        assertArrayEquals(main, entry.bytes);
+        assertEquals("application/javascript", entry.mimeType);
+        assertSame(entry, cache.get("main-ABC.js"));
+        assertEquals(Arrays.asList("main-ABC.js"), opened);
+
+        assertArrayEquals(styles, cache.get("styles-DEF.css").bytes);
+        assertEquals("text/css", cache.get("styles-DEF.css").mimeType);
+        assertNull(cache.get("missing.js"));
+        assertEquals(2L * main.length + 2L * styles.length, cache.getServedBytes());
+        assertEquals(2, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void preloadsTheListedAssets() throws Exception {
+        script("main-ABC.js", 100000);
+        script("chunk-GHI.js", 20000);
+        Files.write(new File(dir, AssetCache.PRELOAD_LIST).toPath(),
+            "# critical first\nmain-ABC.js\n\nchunk-GHI.js\nmissing.js\n".getBytes(StandardCharsets.UTF_8));
+        AssetCache cache = cache(AssetCache.DEFAULT_MAX_BYTES);
+
+        List<String> paths = cache.readPreloadList();
+        assertEquals(Arrays.asList("main-ABC.js", "chunk-GHI.js", "missing.js"), paths);
+        assertEquals(2, cache.preload(paths));
+        opened.clear();
+
+        cache.get("main-ABC.js");
+        cache.get("chunk-GHI.js");
+        assertTrue(opened.isEmpty());
+        assertEquals(2, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyServedBeyondTheBudget() throws Exception {
+        script("a.js", 40000);
+        script("b.js", 40000);
+        script("c.js", 40000);
+        script("huge.js", 200000);
+        AssetCache cache = cache(100000);
+
+        cache.get("a.js");
+        cache.get("b.js");
+        cache.get("a.js");
+        cache.get("c.js");
+        assertEquals(80000, cache.getCachedBytes());
+
+        opened.clear();
+        cache.get("a.js");
+        cache.get("b.js");
+        assertEquals(Arrays.asList("b.js"), opened);
+
+        // Served, but not worth evicting the whole cache for
+        assertEquals(200000, cache.get("huge.js").bytes.length);
+        assertEquals(80000, cache.getCachedBytes());
+    }
+
+    @Test
+    public void servesPreloadedAssetsWithoutReadingThemAgain() throws Exception {
+        String[] names = new String[20];
+        long bundleBytes = 0;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "chunk-" + i + ".js";
+            bundleBytes += script(names[i], 50000).length;
+        }
+        AssetCache cache = cache(AssetCache.DEFAULT_MAX_BYTES);
+        assertEquals(names.length, cache.preload(Arrays.asList(names)));
+        opened.clear();
+
+        int lookups = 1000;
+        for (int i = 0; i < lookups; i++) {
+            assertEquals(50000, cache.get(names[i % names.length]).bytes.length);
+        }
+
+        assertTrue(opened.isEmpty());
+        assertEquals(bundleBytes, cache.getCachedBytes());
+        assertEquals(bundleBytes * (lookups / names.length), cache.getServedBytes());
+        assertEquals(lookups, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void servesOnlyKnownFileTypes() {
+        assertEquals("application/javascript", AssetCache.mimeTypeOf("assets/main-ABC.JS"));
+        assertEquals("application/json", AssetCache.mimeTypeOf("assets/i18n/ps.json"));
+        assertEquals("font/woff2", AssetCache.mimeTypeOf("media/icons.woff2"));
+        assertNull(AssetCache.mimeTypeOf("index.html"));
+        assertNull(AssetCache.mimeTypeOf("v1.2/plugin"));
+        assertNull(AssetCache.mimeTypeOf("/"));
+    }
+}
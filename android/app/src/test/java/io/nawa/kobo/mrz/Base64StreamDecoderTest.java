@@ -0,0 +1,126 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.Test;
+
+/**
+ * JVM tests for the streaming Base64 decoder used by {@link FileUtils#writeBase64}.
+ */
+public class Base64StreamDecoderTest {
+
+    private static final int LARGE_PAYLOAD = 20 * 1024 * 1024;
+
+    @Test
+    public void decodesDataUrlsOfEverySmallLength() throws Exception {
+        Random random = new Random(42);
+        for (int length = 0; length < 300; length++) {
+            byte[] original = new byte[length];
+            random.nextBytes(original);
+            String dataUrl = "data:image/jpg;base64," + Base64.getEncoder().encodeToString(original);
+
+            assertArrayEquals("length " + length, original, decode(dataUrl));
+        }
+    }
+
+    @Test
+    public void acceptsLineBreaksAndMissingPadding() throws Exception {
+        byte[] original = new byte[1000];
+        new Random(7).nextBytes(original);
+
+        String mime = Base64.getMimeEncoder().encodeToString(original);
+        assertArrayEquals(original, decode(mime));
+
+        String unpadded = Base64.getEncoder().withoutPadding().encodeToString(new byte[]{1, 2});
+        assertArrayEquals(new byte[]{1, 2}, decode(unpadded));
+    }
+
+    @Test
+    public void carriesPartialGroupsAcrossCalls() throws Exception {
+        byte[] original = new byte[4096];
+        new Random(3).nextBytes(original);
+        String encoded = Base64.getEncoder().encodeToString(original);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Base64StreamDecoder decoder = new Base64StreamDecoder(Channels.newChannel(bytes))) {
+            int position = 0;
+            int step = 1;
+            while (position < encoded.length()) {
+                int end = Math.min(encoded.length(), position + step);
+                decoder.decode(encoded, position, end);
+                position = end;
+                step = step % 13 + 1;
+            }
+            assertEquals(original.length, decoder.finish());
+        }
+        assertArrayEquals(original, bytes.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidCharacters() throws Exception {
+        decode("data:image/jpg;base64,QUJD*A==");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDataUrlWithoutSeparator() throws Exception {
+        decode("data:image/jpg;base64");
+    }
+
+    @Test
+    public void allocationStaysFlatForTwentyMegabytePayloads() throws Exception {
+        byte[] original = new byte[LARGE_PAYLOAD];
+        new Random(11).nextBytes(original);
+        String dataUrl = "data:image/jpg;base64," + Base64.getEncoder().encodeToString(original);
+        CRC32 expected = new CRC32();
+        expected.update(original);
+        original = null;
+
+        File file = File.createTempFile("decoder", ".jpg");
+        try {
+            // Warm up so class loading and pool allocation are not counted.
+            decodeToFile("QUJD", file);
+
+            long before = allocatedBytes();
+            long written = decodeToFile(dataUrl, file);
+            long allocated = allocatedBytes() - before;
+
+            assertEquals(LARGE_PAYLOAD, written);
+            assertEquals(LARGE_PAYLOAD, file.length());
+            assertTrue("decoder allocated " + allocated + " bytes", allocated < 256 * 1024);
+
+            CRC32 actual = new CRC32();
+            actual.update(java.nio.file.Files.readAllBytes(file.toPath()));
+            assertEquals(expected.getValue(), actual.getValue());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] decode(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Base64StreamDecoder.decodeDataUrl(text, Channels.newChannel(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static long decodeToFile(String text, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return Base64StreamDecoder.decodeDataUrl(text, channel);
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,118 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for the persisted batch of scans and its result layout.
+ */
+public class BatchSessionTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(Files.createTempDirectory("session").toFile(), BatchSession.DIRECTORY);
+    }
+
+    @After
+    public void tearDown() {
+        BatchSession.open(dir, 1).clear();
+        dir.getParentFile().delete();
+    }
+
+    private static ScanRecord record(String documentNumber) {
+        return new ScanRecord(
+            "01.01.1990", null, "Kabul", "Kabul", null, documentNumber, "Person " + documentNumber, null, 34, "F",
+            "content://io.nawa.kobo.mrz.fileprovider/submissions/" + documentNumber + "/frontImage.jpg",
+            null, null, null, null, null, null
+        );
+    }
+
+    @Test
+    public void reopensPersistedScansInOrder() throws Exception {
+        BatchSession session = BatchSession.open(dir, 5);
+        assertEquals(1, session.add(record("A1"), "abc"));
+        assertEquals(2, session.add(record("A2"), null));
+        assertEquals(3, session.add(record("A3"), "def"));
+
+        BatchSession reopened = BatchSession.open(dir, 5);
+
+        assertEquals(Arrays.asList(record("A1"), record("A2"), record("A3")), reopened.getRecords());
+        List<BatchSession.Entry> entries = reopened.getEntries();
+        assertEquals("abc", entries.get(0).submissionId);
+        assertNull(entries.get(1).submissionId);
+        assertEquals("def", entries.get(2).submissionId);
+    }
+
+    @Test
+    public void skipsUnreadableScans() throws Exception {
+        BatchSession session = BatchSession.open(dir, 5);
+        session.add(record("A1"), null);
+        Files.write(new File(dir, "7.rec").toPath(), new byte[]{0, 1});
+        session.add(record("A2"), null);
+
+        assertEquals(Arrays.asList(record("A1"), record("A2")), BatchSession.open(dir, 5).getRecords());
+    }
+
+    @Test
+    public void rejectsScansOnceFull() throws Exception {
+        BatchSession session = BatchSession.open(dir, 2);
+        session.add(record("A1"), null);
+        session.add(record("A2"), null);
+
+        assertTrue(session.isFull());
+        try {
+            session.add(record("A3"), null);
+            fail("Expected the full batch to reject the scan");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(2, BatchSession.open(dir, 2).size());
+    }
+
+    @Test
+    public void clearDeletesPersistedScans() throws Exception {
+        BatchSession session = BatchSession.open(dir, 2);
+        session.add(record("A1"), null);
+
+        session.clear();
+
+        assertEquals(0, session.size());
+        assertFalse(dir.exists());
+        assertEquals(0, BatchSession.open(dir, 2).size());
+    }
+
+    @Test
+    public void batchExtrasIndexEveryScan() throws Exception {
+        List<ScanRecord> records = Arrays.asList(record("A1"), record("A2"));
+
+        Map<String, Object> extras = ScanExtras.buildBatch(records, false);
+
+        assertEquals(2, extras.get(ScanExtras.EXTRA_BATCH_COUNT));
+        assertEquals("A1", extras.get("documentNumber_1"));
+        assertEquals("Person A2", extras.get("fullName_2"));
+        assertFalse(extras.containsKey(ScanExtras.EXTRA_SCAN_RECORD + "_1"));
+        assertFalse(extras.containsKey(ScanExtras.EXTRA_BATCH_RECORDS));
+    }
+
+    @Test
+    public void batchExtrasEncodeTheRecordsOnlyWhenTheFormNamesThem() throws Exception {
+        List<ScanRecord> records = Arrays.asList(record("A1"), record("A2"));
+        OutputProfile named = OutputProfile.parse("documentNumber " + ScanExtras.EXTRA_BATCH_RECORDS, null);
+
+        Map<String, Object> extras = ScanExtras.buildBatch(records, false, named);
+
+        assertEquals("A2", extras.get("documentNumber_2"));
+        assertFalse(extras.containsKey("fullName_1"));
+        assertEquals(records, ScanRecordCodec.decodeAll((byte[]) extras.get(ScanExtras.EXTRA_BATCH_RECORDS)));
+        assertFalse(ScanExtras.buildBatch(records, true, OutputProfile.ALL).containsKey(ScanExtras.EXTRA_BATCH_RECORDS));
+    }
+}
@@ -0,0 +1,174 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for images uploaded in Base64 chunks.
+ */
+public class ChunkedUploadsTest {
+
+    private File cacheDir;
+    private ChunkedUploads uploads;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = Files.createTempDirectory("uploads").toFile();
+        uploads = new ChunkedUploads(cacheDir);
+    }
+
+    @After
+    public void tearDown() {
+        uploads.abortAll();
+        File dir = new File(cacheDir, ChunkedUploads.DIRECTORY);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        cacheDir.delete();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void decodesChunksSplitInsideBase64Groups() throws Exception {
+        byte[] image = randomBytes(300_001);
+        String dataUrl = "data:image/jpeg;base64," + Base64.getEncoder().encodeToString(image);
+
+        String handle = uploads.begin();
+        int index = 0;
+        // 1001 is not a multiple of 4, so groups straddle chunks
+        for (int start = 0; start < dataUrl.length(); start += 1001) {
+            String chunk = dataUrl.substring(start, Math.min(dataUrl.length(), start + 1001));
+            uploads.append(handle, index, chunk);
+            // A resent chunk is ignored
+            uploads.append(handle, index, chunk);
+            index++;
+        }
+        String path = uploads.commit(handle);
+
+        assertEquals(ChunkedUploads.DIRECTORY + "/" + handle + ".jpg", path);
+        assertArrayEquals(image, Files.readAllBytes(new File(cacheDir, path).toPath()));
+        assertEquals(0, uploads.getOpenCount());
+    }
+
+    @Test
+    public void abortsOnAMissingChunk() throws Exception {
+        String handle = uploads.begin();
+        uploads.append(handle, 0, "QUJD");
+        try {
+            uploads.append(handle, 2, "REVG");
+            fail();
+        } catch (IOException expected) {
+            // Chunk 1 was lost
+        }
+        assertEquals(0, uploads.getOpenCount());
+        assertEquals(0, new File(cacheDir, ChunkedUploads.DIRECTORY).list().length);
+        try {
+            uploads.commit(handle);
+            fail();
+        } catch (IOException expected) {
+            // Unknown once aborted
+        }
+    }
+
+    @Test
+    public void resolvesOnlyCommittedUploads() throws Exception {
+        String handle = uploads.begin();
+        uploads.append(handle, 0, "QUJD");
+        String path = uploads.commit(handle);
+        assertEquals(new File(cacheDir, path).getCanonicalFile(), uploads.resolve(path));
+
+        String open = uploads.begin();
+        File staged = new File(cacheDir, "staging/frontImage.jpg");
+        staged.getParentFile().mkdirs();
+        Files.write(staged.toPath(), new byte[]{1, 2, 3});
+        try {
+            for (String reference : new String[]{
+                ChunkedUploads.DIRECTORY + "/" + open + ".part",
+                ChunkedUploads.DIRECTORY + "/../staging/frontImage.jpg",
+                "staging/frontImage.jpg",
+                ChunkedUploads.DIRECTORY + "/missing.jpg",
+                "",
+                null,
+            }) {
+                try {
+                    uploads.resolve(reference);
+                    fail(reference);
+                } catch (IOException expected) {
+                    // Only committed uploads may be moved
+                }
+            }
+            assertTrue(staged.isFile());
+        } finally {
+            staged.delete();
+            staged.getParentFile().delete();
+        }
+    }
+
+    @Test
+    public void rejectsANegativeChunkBeforeTheFirst() throws Exception {
+        String handle = uploads.begin();
+        try {
+            uploads.append(handle, -1, "QUJD");
+            fail();
+        } catch (IOException expected) {
+            // Not a resend of chunk 0
+        }
+        assertEquals(0, uploads.getOpenCount());
+    }
+
+    @Test
+    public void rejectsOversizedAndEmptyUploads() throws Exception {
+        String handle = uploads.begin();
+        StringBuilder chunk = new StringBuilder();
+        while (chunk.length() <= ChunkedUploads.MAX_CHUNK_CHARS) {
+            chunk.append("QUJD");
+        }
+        try {
+            uploads.append(handle, 0, chunk);
+            fail();
+        } catch (IOException expected) {
+            // Over the bridge message bound
+        }
+
+        String empty = uploads.begin();
+        try {
+            uploads.commit(empty);
+            fail();
+        } catch (IOException expected) {
+            // Nothing was uploaded
+        }
+        assertEquals(0, uploads.getOpenCount());
+    }
+
+    @Test
+    public void boundsTheOpenUploads() throws Exception {
+        for (int i = 0; i < ChunkedUploads.MAX_OPEN; i++) {
+            uploads.begin();
+        }
+        try {
+            uploads.begin();
+            fail();
+        } catch (IOException expected) {
+            // Each open upload holds a decode buffer
+        }
+        uploads.abortAll();
+        assertNotNull(uploads.begin());
+    }
+}
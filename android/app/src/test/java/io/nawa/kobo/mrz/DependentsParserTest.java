@@ -0,0 +1,109 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * JVM tests for the streaming dependentsInfo parser used by {@link IntentUtils#addExtras}.
+ */
+public class DependentsParserTest {
+
+    private static String dependent(String dob, String sex, String docNum, String name) {
+        return "{\"address\":{\"description\":\"Kabul\",\"location\":[1,2,{\"x\":\"]}\"}]},"
+            + "\"dateOfBirth\":{\"day\":1,\"originalDateStringResult\":{\"description\":\"" + dob + "\","
+            + "\"latin\":null},\"successfullyParsed\":true},"
+            + "\"sex\":{\"description\":\"" + sex + "\"},"
+            + "\"documentNumber\":{\"arabic\":\"\\u0661\",\"description\":\"" + docNum + "\"},"
+            + "\"fullName\":{\"description\":\"" + name + "\"}}";
+    }
+
+    @Test
+    public void flattensOnlyTheFourColumns() {
+        String json = "[" + dependent("01.02.2010", "M", "A1", "Ali")
+            + ", " + dependent("03.04.2012", "F", "A2", "Sara \\\"Jan\\\"") + "]";
+
+        DependentsParser.Result result = DependentsParser.parse(json);
+
+        assertEquals(2, result.count);
+        assertEquals(0, result.errors);
+        assertEquals("01.02.2010;03.04.2012", result.dateOfBirth);
+        assertEquals("M;F", result.sex);
+        assertEquals("A1;A2", result.documentNumber);
+        assertEquals("Ali;Sara \"Jan\"", result.fullName);
+    }
+
+    @Test
+    public void missingAndNullFieldsAreEmpty() {
+        DependentsParser.Result result = DependentsParser.parse(
+            "[{\"fullName\":{\"description\":\"Ali\"},\"sex\":null}, {}]");
+
+        assertEquals(2, result.count);
+        assertEquals(0, result.errors);
+        assertEquals(";", result.dateOfBirth);
+        assertEquals(";", result.sex);
+        assertEquals("Ali;", result.fullName);
+    }
+
+    @Test
+    public void emptyInputHasNoDependents() {
+        assertEquals(0, DependentsParser.parse("").count);
+        assertEquals(0, DependentsParser.parse(" [ ] ").count);
+        assertEquals(0, DependentsParser.parse(null).errors);
+    }
+
+    @Test
+    public void keepsDependentsReadBeforeASyntaxError() {
+        String json = "[" + dependent("01.02.2010", "M", "A1", "Ali")
+            + "," + dependent("03.04.2012", "F", "A2", "Sara") + ",{\"fullName\":{\"descr";
+
+        DependentsParser.Result result = DependentsParser.parse(json);
+
+        assertEquals(2, result.count);
+        assertEquals(1, result.errors);
+        assertEquals("Ali;Sara", result.fullName);
+    }
+
+    @Test
+    public void countsUnexpectedShapesWithoutDroppingOthers() {
+        DependentsParser.Result result = DependentsParser.parse(
+            "[\"oops\", {\"sex\":\"M\",\"fullName\":{\"description\":\"Ali\"}}]");
+
+        assertEquals(2, result.count);
+        assertEquals(2, result.errors);
+        assertEquals(";Ali", result.fullName);
+        assertEquals(";", result.sex);
+    }
+
+    @Test
+    public void rejectsMissingOrStrayCommas() {
+        String first = dependent("01.02.2010", "M", "A1", "Ali");
+        String[] malformed = {
+            "{\"fullName\":{\"description\":\"Sara\"} \"sex\":{\"description\":\"F\"}}",
+            "{,\"fullName\":{\"description\":\"Sara\"}}",
+            "{\"fullName\":{\"description\":\"Sara\"},}",
+            "{\"fullName\":{\"description\":\"Sara\",,\"x\":1}}",
+        };
+        for (String second : malformed) {
+            DependentsParser.Result result = DependentsParser.parse("[" + first + "," + second + "]");
+
+            assertEquals(second, 1, result.count);
+            assertEquals(second, 1, result.errors);
+            assertEquals(second, "Ali", result.fullName);
+        }
+        DependentsParser.Result leading = DependentsParser.parse("[," + first + "]");
+        assertEquals(0, leading.count);
+        assertTrue(leading.errors > 0);
+        DependentsParser.Result missing = DependentsParser.parse("[" + first + " " + first + "]");
+        assertEquals(1, missing.count);
+        assertEquals(1, missing.errors);
+    }
+
+    @Test
+    public void rejectsNonArrayInput() {
+        DependentsParser.Result result = DependentsParser.parse("{\"fullName\":\"Ali\"}");
+
+        assertEquals(0, result.count);
+        assertEquals(1, result.errors);
+    }
+}
@@ -0,0 +1,122 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for the duplicate-document index.
+ */
+public class DocumentIndexTest {
+
+    private static final long SEEN = 1700000000000L;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(Files.createTempDirectory("documents").toFile(), DocumentIndex.DIRECTORY);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        dir.getParentFile().delete();
+    }
+
+    @Test
+    public void normalizesSeparatorsCaseAndDigits() {
+        assertEquals("AB1234567", DocumentIndex.normalize(" ab-123 45.67 "));
+        // Arabic-Indic digits as typed on a Pashto keyboard
+        assertEquals("AB123", DocumentIndex.normalize("ab\u0661\u0662\u0663"));
+        assertNull(DocumentIndex.normalize(" - "));
+        assertNull(DocumentIndex.normalize(null));
+    }
+
+    @Test
+    public void keepsTheFirstSeenTimeAcrossReopens() throws Exception {
+        DocumentIndex index = DocumentIndex.open(dir, DocumentIndex.DEFAULT_MERGE_THRESHOLD);
+        assertEquals(-1, index.lookup("AB123"));
+        assertTrue(index.add("AB123", SEEN));
+        assertFalse(index.add("ab-123", SEEN + 60000));
+        assertFalse(index.add("", SEEN));
+        assertEquals(SEEN, index.lookup("ab 123"));
+
+        DocumentIndex reopened = DocumentIndex.open(dir, DocumentIndex.DEFAULT_MERGE_THRESHOLD);
+        assertEquals(SEEN, reopened.lookup("AB123"));
+        assertEquals(1, reopened.size());
+    }
+
+    @Test
+    public void mergesLoggedDocumentsIntoTheIndexFile() throws Exception {
+        DocumentIndex index = DocumentIndex.open(dir, 16);
+        for (int i = 0; i < 100; i++) {
+            index.add("P" + i, SEEN + i * 1000L);
+        }
+        assertTrue(new File(dir, DocumentIndex.INDEX_FILE).isFile());
+        assertTrue(new File(dir, DocumentIndex.LOG_FILE).length() < 16 * 12);
+
+        DocumentIndex reopened = DocumentIndex.open(dir, 16);
+        assertEquals(100, reopened.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(SEEN + i * 1000L, reopened.lookup("P" + i));
+        }
+        assertEquals(-1, reopened.lookup("P100"));
+    }
+
+    @Test
+    public void importsKnownDocumentNumbers() throws Exception {
+        DocumentIndex index = DocumentIndex.open(dir, DocumentIndex.DEFAULT_MERGE_THRESHOLD);
+        index.add("K1", SEEN);
+
+        List<String> known = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            known.add("K" + i);
+        }
+        assertEquals(4999, index.importAll(known, SEEN + 1000));
+        assertEquals(SEEN, index.lookup("K1"));
+        assertEquals(SEEN + 1000, index.lookup("K4999"));
+
+        File list = new File(dir.getParentFile(), "known.txt");
+        Files.write(list.toPath(), Arrays.asList("K0", "  ", "Z-1", "z 2"), StandardCharsets.UTF_8);
+        try {
+            assertEquals(2, index.importFile(list, SEEN + 2000));
+        } finally {
+            list.delete();
+        }
+        assertEquals(SEEN + 2000, index.lookup("Z1"));
+        assertEquals(5002, DocumentIndex.open(dir, DocumentIndex.DEFAULT_MERGE_THRESHOLD).size());
+    }
+
+    @Test
+    public void cutsOffATornLogRecord() throws Exception {
+        DocumentIndex index = DocumentIndex.open(dir, DocumentIndex.DEFAULT_MERGE_THRESHOLD);
+        index.add("A1", SEEN);
+        index.add("A2", SEEN);
+        File log = new File(dir, DocumentIndex.LOG_FILE);
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.setLength(log.length() - 5);
+        }
+
+        DocumentIndex reopened = DocumentIndex.open(dir, DocumentIndex.DEFAULT_MERGE_THRESHOLD);
+        assertEquals(SEEN, reopened.lookup("A1"));
+        assertEquals(-1, reopened.lookup("A2"));
+        assertTrue(reopened.add("A3", SEEN));
+        assertEquals(SEEN, DocumentIndex.open(dir, DocumentIndex.DEFAULT_MERGE_THRESHOLD).lookup("A3"));
+    }
+}
@@ -0,0 +1,132 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for spilling oversized result extras to files.
+ */
+public class ExtrasSpillTest {
+
+    private static final long THRESHOLD = ExtrasSpill.DEFAULT_THRESHOLD_BYTES;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("spill").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static String text(int chars, char fill) {
+        char[] value = new char[chars];
+        Arrays.fill(value, fill);
+        return new String(value);
+    }
+
+    private static Map<String, Object> scanExtras() {
+        Map<String, Object> extras = new LinkedHashMap<>();
+        extras.put("fullName", "Ahmad Shah Zadran");
+        extras.put("documentNumber", "P1234567");
+        extras.put("age", 34);
+        extras.put("frontImageUri", "content://io.nawa.kobo.mrz.fileprovider/submissions/abc/frontImage.jpg");
+        return extras;
+    }
+
+    @Test
+    public void leavesSmallBundlesAlone() {
+        Map<String, Object> extras = scanExtras();
+        extras.put("dependentsInfo", text(50_000, 'a'));
+
+        assertTrue(ParcelSize.of(extras) < THRESHOLD);
+        assertTrue(ExtrasSpill.plan(extras, THRESHOLD).isEmpty());
+    }
+
+    @Test
+    public void spillsTheOversizedValueToAFile() throws Exception {
+        Map<String, Object> extras = scanExtras();
+        String dependentsInfo = "[" + text(600_000, '\u0627') + "]";
+        extras.put("dependentsInfo", dependentsInfo);
+        assertTrue(ParcelSize.of(extras) > 1024 * 1024);
+
+        List<String> keys = ExtrasSpill.plan(extras, THRESHOLD);
+        assertEquals(Arrays.asList("dependentsInfo"), keys);
+
+        Map<String, File> files = ExtrasSpill.spill(extras, keys, dir);
+        assertFalse(extras.containsKey("dependentsInfo"));
+        assertEquals("Ahmad Shah Zadran", extras.get("fullName"));
+        File file = files.get("dependentsInfo");
+        assertEquals(dependentsInfo, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+
+        extras.put("dependentsInfo" + ExtrasSpill.POINTER_SUFFIX, "content://io.nawa.kobo.mrz.fileprovider/submissions/"
+            + "0123456789abcdef0123456789abcdef/dependentsInfo.txt");
+        assertTrue(ParcelSize.of(extras) <= THRESHOLD);
+    }
+
+    @Test
+    public void spillsLargestFirstAndOnlyWhatIsNeeded() throws Exception {
+        Map<String, Object> extras = scanExtras();
+        extras.put("dependent_fullName", text(100_000, 'n'));
+        extras.put("dependentsInfo", text(200_000, 'j'));
+        extras.put("scanRecord", new byte[40_000]);
+
+        List<String> keys = ExtrasSpill.plan(extras, THRESHOLD);
+        assertEquals(Arrays.asList("dependentsInfo"), keys);
+
+        extras.put("dependent_sex", text(100_000, 's'));
+        keys = ExtrasSpill.plan(extras, THRESHOLD);
+        assertEquals(Arrays.asList("dependentsInfo", "dependent_fullName"), keys);
+
+        Map<String, File> files = ExtrasSpill.spill(extras, keys, dir);
+        assertEquals("dependentsInfo.txt", files.get("dependentsInfo").getName());
+        assertTrue(extras.containsKey("dependent_sex"));
+        assertTrue(extras.containsKey("scanRecord"));
+    }
+
+    @Test
+    public void neverSpillsSmallValues() {
+        Map<String, Object> extras = scanExtras();
+        for (int i = 0; i < 200; i++) {
+            extras.put("column" + i, text(1_000, 'x'));
+        }
+        assertTrue(ParcelSize.of(extras) > THRESHOLD);
+
+        assertTrue(ExtrasSpill.plan(extras, THRESHOLD).isEmpty());
+    }
+
+    @Test
+    public void spillsByteArraysAsIs() throws Exception {
+        Map<String, Object> extras = scanExtras();
+        byte[] record = new byte[300_000];
+        record[0] = 1;
+        record[record.length - 1] = 2;
+        extras.put("scanRecord", record);
+
+        List<String> keys = ExtrasSpill.plan(extras, THRESHOLD);
+        Map<String, File> files = ExtrasSpill.spill(extras, keys, dir);
+
+        File file = files.get("scanRecord");
+        assertEquals("scanRecord.bin", file.getName());
+        assertArrayEquals(record, Files.readAllBytes(file.toPath()));
+    }
+}
@@ -0,0 +1,175 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Random;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for the face hash and its BK-tree index, on generated face-like fixtures.
+ */
+public class FaceIndexTest {
+
+    private static final long NOW = 1700000000000L;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(Files.createTempDirectory("faces").toFile(), FaceIndex.DIRECTORY);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        dir.getParentFile().delete();
+    }
+
+    /**
+     * Draws a portrait-like crop: a background gradient, a head and features placed by the seed.
+     */
+    private static BufferedImage face(long seed, int width, int height) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(new java.awt.GradientPaint(0, 0, new Color(random.nextInt(0xFFFFFF)),
+            width, height, new Color(random.nextInt(0xFFFFFF))));
+        g.fillRect(0, 0, width, height);
+        for (int i = 0; i < 12; i++) {
+            g.setColor(new Color(random.nextInt(0xFFFFFF)));
+            g.fillOval(
+                random.nextInt(width), random.nextInt(height),
+                width / 8 + random.nextInt(width / 2), height / 8 + random.nextInt(height / 2));
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static BufferedImage scale(BufferedImage image, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+
+    private static BufferedImage recompress(BufferedImage image, float quality) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        try (MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        writer.dispose();
+        return ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static long hash(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        return FaceHash.of(image.getRGB(0, 0, width, height, null, 0, width), width, height);
+    }
+
+    @Test
+    public void hashSurvivesRescalingAndRecompression() throws Exception {
+        BufferedImage original = face(1, 300, 400);
+        long hash = hash(original);
+
+        assertTrue(FaceHash.distance(hash, hash(scale(original, 72, 96))) <= 4);
+        assertTrue(FaceHash.distance(hash, hash(recompress(original, 0.4f))) <= 4);
+
+        for (long seed = 2; seed < 12; seed++) {
+            assertTrue(FaceHash.distance(hash, hash(face(seed, 300, 400))) > FaceIndex.DEFAULT_MAX_DISTANCE);
+        }
+    }
+
+    @Test
+    public void decodesAtLeastThirtyTwoPixelsPerEdge() {
+        assertEquals(1, FaceHash.sampleSizeFor(40, 60));
+        assertEquals(4, FaceHash.sampleSizeFor(200, 400));
+        assertEquals(8, FaceHash.sampleSizeFor(1200, 256));
+    }
+
+    @Test
+    public void findsTheSameNeighbourAsALinearScan() throws Exception {
+        FaceIndex index = FaceIndex.open(dir);
+        Random random = new Random(7);
+        long[] hashes = new long[3000];
+        for (int i = 0; i < hashes.length; i++) {
+            // Clusters of near-identical hashes, as rescans of the same face would give
+            hashes[i] = i % 3 == 0 ? random.nextLong() : hashes[i - 1] ^ (1L << random.nextInt(64));
+            index.matchAndAdd(hashes[i], "P" + i, FaceIndex.DEFAULT_MAX_DISTANCE, NOW);
+        }
+
+        for (int q = 0; q < 200; q++) {
+            long query = hashes[random.nextInt(hashes.length)] ^ (1L << random.nextInt(64)) ^ (1L << random.nextInt(64));
+            int expected = FaceIndex.DEFAULT_MAX_DISTANCE + 1;
+            for (long hash : hashes) {
+                expected = Math.min(expected, FaceHash.distance(query, hash));
+            }
+            FaceIndex.Match match = index.closest(query, null, FaceIndex.DEFAULT_MAX_DISTANCE);
+            assertNotNull(match);
+            assertEquals(expected, match.distance);
+        }
+    }
+
+    @Test
+    public void skipsCapturesOfTheSameDocument() throws Exception {
+        FaceIndex index = FaceIndex.open(dir);
+        long hash = hash(face(1, 300, 400));
+        assertNull(index.matchAndAdd(hash, "AB-123", FaceIndex.DEFAULT_MAX_DISTANCE, NOW));
+        // Rescanning the same document is the document index's business
+        assertNull(index.matchAndAdd(hash ^ 1, "ab123", FaceIndex.DEFAULT_MAX_DISTANCE, NOW + 1000));
+
+        FaceIndex.Match match = index.matchAndAdd(hash ^ 3, "AB124", FaceIndex.DEFAULT_MAX_DISTANCE, NOW + 2000);
+        assertEquals("AB123", match.documentNumber);
+        assertEquals(1, match.distance);
+        assertEquals(NOW + 1000, match.timeMillis);
+    }
+
+    @Test
+    public void reopensAndCutsOffATornRecord() throws Exception {
+        FaceIndex index = FaceIndex.open(dir);
+        index.matchAndAdd(0x0F0F0F0F0F0F0F0FL, "A1", FaceIndex.DEFAULT_MAX_DISTANCE, NOW);
+        index.matchAndAdd(0x00FF00FF00FF00FFL, null, FaceIndex.DEFAULT_MAX_DISTANCE, NOW);
+        File file = new File(dir, FaceIndex.FILE_NAME);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 4);
+        }
+
+        FaceIndex reopened = FaceIndex.open(dir);
+        assertEquals(1, reopened.size());
+        assertEquals("A1", reopened.closest(0x0F0F0F0F0F0F0F0EL, null, 4).documentNumber);
+        reopened.matchAndAdd(0x00FF00FF00FF00FFL, null, FaceIndex.DEFAULT_MAX_DISTANCE, NOW);
+        assertEquals(2, FaceIndex.open(dir).size());
+    }
+}
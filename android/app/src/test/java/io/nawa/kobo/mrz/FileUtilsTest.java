@@ -0,0 +1,61 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for the cache reference checks behind SendDataPlugin.sendDataByReference.
+ */
+public class FileUtilsTest {
+
+    private File root;
+    private File cache;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("fileutils").toFile();
+        cache = new File(root, "cache");
+        new File(cache, "staging").mkdirs();
+        Files.write(new File(cache, "staging/frontImage.jpg").toPath(), new byte[]{1, 2, 3});
+        Files.write(new File(root, "secret.txt").toPath(), new byte[]{4});
+    }
+
+    @After
+    public void tearDown() {
+        new File(cache, "staging/frontImage.jpg").delete();
+        new File(cache, "staging").delete();
+        cache.delete();
+        new File(root, "secret.txt").delete();
+        root.delete();
+    }
+
+    @Test
+    public void resolvesFilesInsideTheCache() throws Exception {
+        File file = FileUtils.resolveInside(cache, "staging/frontImage.jpg");
+        assertEquals(3, file.length());
+    }
+
+    @Test
+    public void rejectsReferencesOutsideTheCache() {
+        assertRejected("../secret.txt");
+        assertRejected("staging/../../secret.txt");
+        assertRejected(new File(root, "secret.txt").getAbsolutePath());
+        assertRejected(".");
+        assertRejected("");
+        assertRejected("staging/missing.jpg");
+    }
+
+    private void assertRejected(String reference) {
+        try {
+            FileUtils.resolveInside(cache, reference);
+            fail("Accepted " + reference);
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * JVM tests for the hand-back metrics ring buffer.
+ */
+public class HandBackMetricsTest {
+
+    @Test
+    public void keepsTheNewestSpansAndAllTotals() {
+        HandBackMetrics metrics = new HandBackMetrics(4);
+        for (int i = 1; i <= 6; i++) {
+            metrics.record(HandBackMetrics.Stage.IMAGE_WRITE, HandBackMetrics.start(), i * 100);
+        }
+        metrics.record(HandBackMetrics.Stage.HAND_BACK, HandBackMetrics.start(), 0, "Failed to write images");
+
+        HandBackMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(7, snapshot.recorded);
+        assertEquals(4, snapshot.size());
+        assertEquals(400, snapshot.spanBytes[0]);
+        assertEquals(600, snapshot.spanBytes[2]);
+        assertEquals(HandBackMetrics.Stage.HAND_BACK, snapshot.spanStage[3]);
+        assertEquals("Failed to write images", snapshot.spanError[3]);
+
+        int write = HandBackMetrics.Stage.IMAGE_WRITE.ordinal();
+        int handBack = HandBackMetrics.Stage.HAND_BACK.ordinal();
+        assertEquals(6, snapshot.stageCount[write]);
+        assertEquals(2100, snapshot.stageBytes[write]);
+        assertEquals(0, snapshot.stageFailures[write]);
+        assertEquals(1, snapshot.stageFailures[handBack]);
+        assertTrue(snapshot.stageMaxNanos[write] <= snapshot.stageNanos[write]);
+        assertTrue(snapshot.heapHighWaterBytes > 0);
+
+        metrics.reset();
+        assertEquals(0, metrics.snapshot().size());
+        assertEquals(0, metrics.snapshot().stageCount[write]);
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long thread = Thread.currentThread().getId();
+        HandBackMetrics metrics = new HandBackMetrics(HandBackMetrics.DEFAULT_CAPACITY);
+        String error = "Interrupted while writing image";
+
+        // Counts this thread only. A round can still pick up a one-off allocation, e.g. when the
+        // JIT swaps in compiled code, so the best of a few rounds after warm-up is checked.
+        long fewest = Long.MAX_VALUE;
+        for (int round = 0; round < 6; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 50_000; i++) {
+                metrics.record(HandBackMetrics.Stage.IMAGE_PROCESS, HandBackMetrics.start(), i, (i & 1) == 0 ? null : error);
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            if (round > 0) {
+                fewest = Math.min(fewest, allocated);
+            }
+        }
+
+        assertTrue("Allocated " + fewest + " bytes", fewest < 1024);
+    }
+
+    @Test
+    public void appendsOnlyNewSpansAndRotatesTheLog() throws Exception {
+        File dir = Files.createTempDirectory("metrics").toFile();
+        File log = new File(dir, "metrics/handback.log");
+        try {
+            HandBackMetrics metrics = new HandBackMetrics(16);
+            metrics.record(HandBackMetrics.Stage.COMMIT, HandBackMetrics.start(), 0);
+            metrics.record(HandBackMetrics.Stage.HAND_BACK, HandBackMetrics.start(), 0, "Failed\tto build\nresult");
+            assertEquals(2, metrics.appendLog(log, 1024));
+            assertEquals(0, metrics.appendLog(log, 1024));
+
+            List<String> lines = Files.readAllLines(log.toPath(), StandardCharsets.UTF_8);
+            assertEquals(2, lines.size());
+            String[] columns = lines.get(1).split("\t", -1);
+            assertEquals(5, columns.length);
+            assertEquals("HAND_BACK", columns[1]);
+            assertEquals("Failed to build result", columns[4]);
+            assertTrue(Math.abs(Long.parseLong(columns[0]) - System.currentTimeMillis()) < 60_000);
+
+            for (int i = 0; i < 40; i++) {
+                metrics.record(HandBackMetrics.Stage.URI_GRANT, HandBackMetrics.start(), i);
+                metrics.appendLog(log, 1024);
+            }
+            File rotated = new File(log.getPath() + ".1");
+            assertTrue(rotated.isFile());
+            assertTrue(log.length() <= 1024 + 128);
+        } finally {
+            for (File file : new File(dir, "metrics").listFiles()) {
+                file.delete();
+            }
+            new File(dir, "metrics").delete();
+            dir.delete();
+        }
+    }
+}
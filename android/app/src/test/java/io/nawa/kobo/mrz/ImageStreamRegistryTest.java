@@ -0,0 +1,128 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for the pipe-or-file decisions behind {@link ImageStreamProvider}.
+ */
+public class ImageStreamRegistryTest {
+
+    private File spillDir;
+    private ExecutorService pump;
+
+    @Before
+    public void setUp() throws Exception {
+        spillDir = Files.createTempDirectory("streams").toFile();
+        pump = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        pump.shutdownNow();
+        new SubmissionCache(spillDir).discard(spillDir);
+    }
+
+    @Test
+    public void firstReadStreamsByteExactWithoutTouchingDisk() throws Exception {
+        ImageStreamRegistry registry = new ImageStreamRegistry(spillDir, 60_000);
+        byte[][] images = {randomBytes(1, 300_000), randomBytes(2, 120_000), randomBytes(3, 40_000)};
+        String[] tokens = new String[images.length];
+        for (int i = 0; i < images.length; i++) {
+            tokens[i] = registry.register("image" + i + ".jpg", ImageSource.fromBase64(dataUrl(images[i])));
+            assertEquals(images[i].length, registry.getSize(tokens[i]));
+        }
+
+        for (int i = 0; i < images.length; i++) {
+            ImageSource source = registry.openStream(tokens[i]);
+            assertNotNull(source);
+            assertArrayEquals(images[i], readThroughPipe(registry, tokens[i], source));
+            assertNull(registry.getName(tokens[i]));
+        }
+
+        assertEquals(0, registry.getDiskBytesWritten());
+        assertEquals(460_000, registry.getStreamedBytes());
+        assertEquals(0, spillDir.list().length);
+    }
+
+    @Test
+    public void laterReadsFallBackToAFile() throws Exception {
+        ImageStreamRegistry registry = new ImageStreamRegistry(spillDir, 60_000);
+        byte[] image = randomBytes(4, 50_000);
+        String token = registry.register("frontImage.jpg", ImageSource.fromBase64(dataUrl(image)));
+
+        assertNotNull(registry.openStream(token));
+        assertNull(registry.openStream(token));
+        File file = registry.openFile(token);
+
+        assertArrayEquals(image, Files.readAllBytes(file.toPath()));
+        assertEquals(image.length, registry.getDiskBytesWritten());
+        assertSame(file, registry.openFile(token));
+        assertEquals(image.length, registry.getDiskBytesWritten());
+        assertEquals(image.length, registry.getSize(token));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void completeReadsReleaseTheImage() throws Exception {
+        ImageStreamRegistry registry = new ImageStreamRegistry(spillDir, 60_000);
+        byte[] image = randomBytes(5, 20_000);
+        String token = registry.register("backImage.jpg", ImageSource.fromBase64(dataUrl(image)));
+
+        assertArrayEquals(image, readThroughPipe(registry, token, registry.openStream(token)));
+
+        registry.openFile(token);
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void expiredImagesAreGone() throws Exception {
+        ImageStreamRegistry registry = new ImageStreamRegistry(spillDir, 60_000);
+        String token = registry.register("frontImage.jpg", ImageSource.fromBase64(dataUrl(new byte[10])));
+
+        registry.expire(System.currentTimeMillis() + 120_000);
+
+        registry.openStream(token);
+    }
+
+    private byte[] readThroughPipe(ImageStreamRegistry registry, String token, ImageSource source) throws Exception {
+        Pipe pipe = Pipe.open();
+        Future<Long> writer = pump.submit(() -> {
+            try (Pipe.SinkChannel sink = pipe.sink()) {
+                return registry.pump(token, source, sink);
+            }
+        });
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        try (Pipe.SourceChannel in = pipe.source()) {
+            while (in.read(buffer) != -1) {
+                bytes.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+        assertEquals(bytes.size(), writer.get().longValue());
+        return bytes.toByteArray();
+    }
+
+    private static String dataUrl(byte[] bytes) {
+        return "data:image/jpg;base64," + Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static byte[] randomBytes(long seed, int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
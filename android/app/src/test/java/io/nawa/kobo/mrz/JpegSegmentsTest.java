@@ -0,0 +1,200 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+/**
+ * JVM tests for the metadata stripping path of the image stage.
+ */
+public class JpegSegmentsTest {
+
+    @Test
+    public void readsDimensionsFromFrameHeader() throws Exception {
+        File file = writeTemp(withExif(encodeJpeg(320, 200)));
+        try {
+            assertArrayEquals(new int[]{320, 200}, JpegSegments.readDimensions(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void returnsNullForNonJpegFiles() throws Exception {
+        File file = writeTemp("not an image".getBytes(StandardCharsets.US_ASCII));
+        try {
+            assertNull(JpegSegments.readDimensions(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void stripsExifButKeepsImageData() throws Exception {
+        byte[] plain = encodeJpeg(64, 48);
+        byte[] tagged = withExif(plain);
+        File source = writeTemp(tagged);
+        File target = File.createTempFile("stripped", ".jpg");
+        try {
+            long written = JpegSegments.stripMetadata(source, target);
+            byte[] stripped = Files.readAllBytes(target.toPath());
+
+            assertEquals(stripped.length, written);
+            assertTrue(stripped.length < tagged.length);
+            assertEquals(-1, indexOf(stripped, "Exif".getBytes(StandardCharsets.US_ASCII)));
+            assertEquals(-1, indexOf(stripped, "secret".getBytes(StandardCharsets.US_ASCII)));
+            assertArrayEquals(plain, stripped);
+
+            BufferedImage image = ImageIO.read(target);
+            assertEquals(64, image.getWidth());
+            assertEquals(48, image.getHeight());
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    @Test
+    public void keepsOnlyTheOrientationWhenStripping() throws Exception {
+        byte[] plain = encodeJpeg(64, 48);
+        for (boolean littleEndian : new boolean[]{true, false}) {
+            File source = writeTemp(withExif(plain, exifWithOrientation(6, littleEndian)));
+            File target = File.createTempFile("stripped", ".jpg");
+            try {
+                assertEquals(6, JpegSegments.readOrientation(source));
+
+                JpegSegments.stripMetadata(source, target);
+                byte[] stripped = Files.readAllBytes(target.toPath());
+                assertEquals(6, JpegSegments.readOrientation(target));
+                assertEquals(-1, indexOf(stripped, "secret".getBytes(StandardCharsets.US_ASCII)));
+                assertEquals(plain.length + 36, stripped.length);
+                assertEquals(64, ImageIO.read(target).getWidth());
+            } finally {
+                source.delete();
+                target.delete();
+            }
+        }
+    }
+
+    @Test
+    public void treatsMissingOrMalformedOrientationAsUpright() throws Exception {
+        File plain = writeTemp(encodeJpeg(16, 16));
+        File tagged = writeTemp(withExif(encodeJpeg(16, 16)));
+        try {
+            assertEquals(JpegSegments.ORIENTATION_NORMAL, JpegSegments.readOrientation(plain));
+            assertEquals(JpegSegments.ORIENTATION_NORMAL, JpegSegments.readOrientation(tagged));
+        } finally {
+            plain.delete();
+            tagged.delete();
+        }
+        byte[] truncated = Arrays.copyOf(exifWithOrientation(3, true), 20);
+        assertEquals(JpegSegments.ORIENTATION_NORMAL, JpegSegments.parseOrientation(truncated));
+        assertEquals(8, JpegSegments.parseOrientation(exifWithOrientation(8, false)));
+        assertEquals(JpegSegments.ORIENTATION_NORMAL, JpegSegments.parseOrientation(exifWithOrientation(9, false)));
+    }
+
+    @Test
+    public void sampleSizeNeverDecodesBelowMaxEdge() {
+        ImageOptions options = new ImageOptions(1600, 85, true);
+
+        assertEquals(1, options.sampleSizeFor(1200, 800));
+        assertEquals(1, options.sampleSizeFor(3000, 2000));
+        assertEquals(2, options.sampleSizeFor(3200, 2400));
+        assertEquals(4, options.sampleSizeFor(2400, 7000));
+        assertArrayEquals(new int[]{1600, 1067}, options.scaledSize(3000, 2000));
+        assertArrayEquals(new int[]{1200, 800}, options.scaledSize(1200, 800));
+        assertTrue(ImageOptions.PASSTHROUGH.isPassthrough());
+        assertFalse(ImageOptions.PASSTHROUGH.needsRecompress(5000, 5000));
+    }
+
+    private static byte[] encodeJpeg(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Inserts an APP1 Exif segment and a comment right after the SOI marker.
+     */
+    private static byte[] withExif(byte[] jpeg) {
+        return withExif(jpeg, "Exif\0\0secret-gps-position".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] withExif(byte[] jpeg, byte[] exif) {
+        byte[] comment = "secret comment".getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jpeg, 0, 2);
+        writeSegment(out, 0xE1, exif);
+        writeSegment(out, 0xFE, comment);
+        out.write(jpeg, 2, jpeg.length - 2);
+        return out.toByteArray();
+    }
+
+    /**
+     * Builds an APP1 payload whose first IFD holds a made-up GPS tag and the orientation.
+     */
+    private static byte[] exifWithOrientation(int orientation, boolean littleEndian) {
+        ByteBuffer tiff = ByteBuffer.allocate(8 + 2 + 2 * 12 + 4 + 6)
+            .order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        tiff.put(littleEndian ? (byte) 'I' : (byte) 'M').put(littleEndian ? (byte) 'I' : (byte) 'M');
+        tiff.putShort((short) 42).putInt(8);
+        tiff.putShort((short) 2);
+        // GPS IFD pointer, pointing at the "secret" bytes after the IFD
+        tiff.putShort((short) 0x8825).putShort((short) 4).putInt(1).putInt(38);
+        tiff.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+        tiff.putInt(0);
+        tiff.put("secret".getBytes(StandardCharsets.US_ASCII));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('E');
+        out.write('x');
+        out.write('i');
+        out.write('f');
+        out.write(0);
+        out.write(0);
+        out.write(tiff.array(), 0, tiff.capacity());
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        int length = payload.length + 2;
+        out.write(0xFF);
+        out.write(marker);
+        out.write(length >> 8);
+        out.write(length);
+        out.write(payload, 0, payload.length);
+    }
+
+    private static File writeTemp(byte[] bytes) throws Exception {
+        File file = File.createTempFile("segments", ".jpg");
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i <= haystack.length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
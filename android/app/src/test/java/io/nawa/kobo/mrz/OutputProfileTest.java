@@ -0,0 +1,78 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * JVM tests for limiting the result to the fields and images a form asks for.
+ */
+public class OutputProfileTest {
+
+    private static final String DEPENDENTS =
+        "[{\"fullName\":{\"description\":\"Dependent 0\"},\"documentNumber\":{\"description\":\"A0\"}}]";
+
+    private static ScanRecord record(DependentsParser.Result dependents) {
+        return new ScanRecord(
+            "01.01.1990", "Kabul, PD 4", "Kabul", "Kabul", null, "P1234567", "Ahmad Shah Zadran", "Mohammad", 34, "M",
+            "content://io.nawa.kobo.mrz.fileprovider/submissions/s1/frontImage.jpg",
+            "content://io.nawa.kobo.mrz.fileprovider/submissions/s1/backImage.jpg",
+            null, null, null, null, dependents
+        );
+    }
+
+    @Test
+    public void withoutAProfileEverythingIsProduced() {
+        OutputProfile profile = OutputProfile.parse(null, " ");
+        assertSame(OutputProfile.ALL, profile);
+        assertEquals(Arrays.asList(ScanExtras.IMAGE_NAMES), profile.getImages());
+        assertTrue(profile.wantsDependents());
+        assertFalse(profile.wantsLegacyKeys());
+
+        ScanRecord scan = record(DependentsParser.parse(DEPENDENTS));
+        assertEquals(
+            ScanExtras.build(scan, DEPENDENTS, true), ScanExtras.build(scan, DEPENDENTS, true, profile));
+        assertEquals(
+            ScanExtras.build(scan, DEPENDENTS, false).keySet(), ScanExtras.build(scan, DEPENDENTS, false, profile).keySet());
+    }
+
+    @Test
+    public void imagesFollowTheRequestedUris() {
+        OutputProfile profile = OutputProfile.parse("documentNumber, fullName frontImageUri", null);
+        assertEquals(Collections.singletonList("frontImage"), profile.getImages());
+        assertFalse(profile.wantsDependents());
+
+        assertEquals(Collections.emptyList(), OutputProfile.parse("documentNumber", null).getImages());
+
+        OutputProfile explicit = OutputProfile.parse("documentNumber", "DocumentFace,backImage");
+        assertEquals(Arrays.asList("backImage", "DocumentFace"), explicit.getImages());
+        assertTrue(explicit.wantsField("backImageUri"));
+        assertFalse(explicit.wantsField("frontImageUri"));
+    }
+
+    @Test
+    public void buildsOnlyTheRequestedExtras() {
+        OutputProfile profile = OutputProfile.parse("documentNumber,fullName,fullName_dep", "backImage");
+        Map<String, Object> extras = ScanExtras.build(record(null), DEPENDENTS, false, profile);
+
+        assertEquals(
+            Arrays.asList("documentNumber", "fullName", "fullName_dep", "backImageUri"),
+            Arrays.asList(extras.keySet().toArray()));
+        assertEquals("Ahmad Shah Zadran", extras.get("fullName_dep"));
+    }
+
+    @Test
+    public void flattensDependentsOnlyWhenAsked() {
+        assertTrue(OutputProfile.parse("documentNumber,dependent_fullName", null).wantsDependents());
+        assertTrue(OutputProfile.parse(ScanExtras.EXTRA_SCAN_RECORD, null).wantsDependents());
+
+        OutputProfile profile = OutputProfile.parse("dependentCount,dependent_documentNumber", null);
+        Map<String, Object> extras = ScanExtras.build(record(DependentsParser.parse(DEPENDENTS)), null, false, profile);
+        assertEquals(1, extras.get("dependentCount"));
+        assertEquals("A0", extras.get("dependent_documentNumber"));
+        assertEquals(2, extras.size());
+    }
+}
@@ -0,0 +1,111 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+/**
+ * JVM tests for the image quality scores, on generated card-like JPEG fixtures.
+ */
+public class QualityAnalyzerTest {
+
+    /**
+     * Draws a card-like capture: a tinted background, a photo block and lines of text.
+     */
+    private static BufferedImage card(int width, int height) {
+        Random random = new Random(3);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(new Color(0xD8E4D0));
+        g.fillRect(0, 0, width, height);
+        g.setColor(new Color(0x6A5A50));
+        g.fillRect(width / 20, height / 6, width / 4, height / 2);
+        g.setColor(Color.DARK_GRAY);
+        g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, height / 18));
+        for (int line = 0; line < 8; line++) {
+            char[] text = new char[24];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = (char) ('A' + random.nextInt(26));
+            }
+            g.drawString(new String(text), width / 3, height / 6 + line * height / 11);
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static BufferedImage blur(BufferedImage image, int radius) {
+        int size = 2 * radius + 1;
+        float[] weights = new float[size * size];
+        Arrays.fill(weights, 1f / weights.length);
+        return new ConvolveOp(new Kernel(size, size, weights), ConvolveOp.EDGE_NO_OP, null).filter(image, null);
+    }
+
+    private static BufferedImage glare(BufferedImage image) {
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillOval(image.getWidth() / 3, image.getHeight() / 4, image.getWidth() / 3, image.getHeight() / 3);
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Encodes and decodes the image as a JPEG, as a capture would be, and scores it.
+     */
+    private static QualityAnalyzer.Score score(BufferedImage image) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", bytes);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+        int width = decoded.getWidth();
+        int height = decoded.getHeight();
+        return QualityAnalyzer.analyze(decoded.getRGB(0, 0, width, height, null, 0, width), width, height);
+    }
+
+    @Test
+    public void blurLowersTheSharpness() throws Exception {
+        QualityAnalyzer.Score sharp = score(card(1280, 800));
+        QualityAnalyzer.Score blurred = score(blur(card(1280, 800), 4));
+        assertTrue(sharp.sharpness > 4 * blurred.sharpness);
+        assertEquals(0, sharp.glare, 0.001);
+
+        String rejection = blurred.rejection(sharp.sharpness / 2, 1);
+        assertNotNull(rejection);
+        assertTrue(rejection.startsWith("Image is blurry"));
+        assertNull(sharp.rejection(sharp.sharpness / 2, 1));
+    }
+
+    @Test
+    public void sharpnessDoesNotDependOnTheImageSize() throws Exception {
+        QualityAnalyzer.Score large = score(card(2560, 1600));
+        QualityAnalyzer.Score small = score(card(1280, 800));
+        assertEquals(1, large.sharpness / small.sharpness, 0.5);
+    }
+
+    @Test
+    public void measuresTheShareOfSaturatedPixels() throws Exception {
+        QualityAnalyzer.Score score = score(glare(card(1280, 800)));
+        // An ellipse over a third of each edge covers about 8.7% of the image
+        assertEquals(Math.PI / 36, score.glare, 0.01);
+        assertTrue(score.rejection(0, 0.05).startsWith("Image has glare"));
+        assertNull(score.rejection(0, 0.1));
+    }
+
+    @Test
+    public void decodesAtLeastTheAnalysisEdge() {
+        assertEquals(1, QualityAnalyzer.sampleSizeFor(600, 400));
+        assertEquals(2, QualityAnalyzer.sampleSizeFor(640, 400));
+        assertEquals(8, QualityAnalyzer.sampleSizeFor(1200, 4000));
+    }
+}
@@ -0,0 +1,56 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * JVM tests for the naming and ordering of the smaller image versions.
+ */
+public class ResolutionLadderTest {
+
+    @Test
+    public void ordersRungsLargestFirst() {
+        ResolutionLadder ladder = ResolutionLadder.of(240, 800, 80);
+
+        assertEquals(2, ladder.getRungs().size());
+        assertEquals(ResolutionLadder.PREVIEW, ladder.getRungs().get(0).name);
+        assertEquals(800, ladder.getRungs().get(0).options.maxEdge);
+        assertEquals(240, ladder.getRungs().get(1).options.maxEdge);
+        assertTrue(ResolutionLadder.of(0, 0, 80).isEmpty());
+        assertEquals(ResolutionLadder.THUMBNAIL, ResolutionLadder.of(240, 0, 80).getRungs().get(0).name);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeEdges() {
+        ResolutionLadder.of(-1, 800, 80);
+    }
+
+    @Test
+    public void findsVersionsWrittenNextToAnImage() throws Exception {
+        File dir = Files.createTempDirectory("ladder").toFile();
+        ResolutionLadder.Rung thumbnail = ResolutionLadder.of(240, 0, 80).getRungs().get(0);
+        File front = new File(dir, thumbnail.fileName("frontImage"));
+        File back = new File(dir, "backImage_preview.jpg");
+        try {
+            Files.write(front.toPath(), new byte[]{1});
+            Files.write(back.toPath(), new byte[]{2});
+
+            Map<String, File> versions = ResolutionLadder.findVersions(dir, "frontImage");
+
+            assertEquals("frontImage_thumbnail.jpg", front.getName());
+            assertEquals(Arrays.asList("frontImageThumbnailUri"), Arrays.asList(versions.keySet().toArray()));
+            assertEquals(front, versions.get("frontImageThumbnailUri"));
+            assertEquals(back, ResolutionLadder.findVersions(dir, "backImage").get("backImagePreviewUri"));
+            assertTrue(ResolutionLadder.findVersions(dir, "DocumentFace").isEmpty());
+        } finally {
+            front.delete();
+            back.delete();
+            dir.delete();
+        }
+    }
+}
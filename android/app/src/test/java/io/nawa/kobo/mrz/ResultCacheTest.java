@@ -0,0 +1,123 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for re-delivering the results of earlier launches.
+ */
+public class ResultCacheTest {
+
+    private static final long NOW = 1700000000000L;
+    private static final long TTL = 10 * 60 * 1000;
+
+    private File dir;
+    private ResultCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(Files.createTempDirectory("results").toFile(), ResultCache.DIRECTORY);
+        cache = new ResultCache(dir);
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+        dir.delete();
+        dir.getParentFile().delete();
+    }
+
+    private static ScanRecord record(String documentNumber) {
+        return new ScanRecord(
+            "01.01.1990", null, "Kabul", "Kabul", null, documentNumber, "Person " + documentNumber, null, 34, "F",
+            "content://io.nawa.kobo.mrz.fileprovider/submissions/" + documentNumber + "/frontImage.jpg",
+            null, null, null, null, null, null
+        );
+    }
+
+    @Test
+    public void launchesWithoutAKeyAreNotCached() throws Exception {
+        // Two instances of the same form, for different households, launch with identical extras
+        // and no result key
+        assertNull(LaunchOptions.resultKeyOf(null));
+        assertNull(LaunchOptions.resultKeyOf("  "));
+
+        LaunchOptions options = options(LaunchOptions.resultKeyOf(null), TTL);
+        assertNull(options.resultKey);
+        assertEquals(0, options.resultTtlMillis);
+        assertEquals(0, LaunchOptions.DEFAULT_RESULT_TTL_MINUTES);
+
+        String first = LaunchOptions.resultKeyOf("uuid:1a2b");
+        cache.put(first, record("A1"), null, null, NOW, TTL);
+        assertNotNull(cache.get(first, NOW + 1));
+        assertNull(cache.get(LaunchOptions.resultKeyOf("uuid:3c4d"), NOW + 1));
+        assertEquals(TTL, options(first, TTL).resultTtlMillis);
+    }
+
+    private static LaunchOptions options(String resultKey, long resultTtlMillis) {
+        return new LaunchOptions(
+            ImageOptions.DEFAULT, SubmissionCache.DEFAULT_MAX_BYTES, SubmissionCache.DEFAULT_MAX_AGE_MILLIS,
+            false, false, false, false, 0, ResolutionLadder.NONE, resultKey, resultTtlMillis, 0, 1, OutputProfile.ALL);
+    }
+
+    @Test
+    public void keysDependOnlyOnTheTrimmedResultKey() {
+        String first = LaunchOptions.resultKeyOf("uuid:1a2b");
+        assertEquals(first, LaunchOptions.resultKeyOf(" uuid:1a2b\n"));
+        assertEquals(first, ResultCache.keyOf("uuid:1a2b"));
+        assertNotEquals(first, LaunchOptions.resultKeyOf("uuid:1a2c"));
+        assertTrue(first.matches("[0-9a-f]{64}"));
+    }
+
+    @Test
+    public void returnsTheLatestResultUntilItExpires() throws Exception {
+        String key = ResultCache.keyOf("uuid:1a2b");
+        assertNull(cache.get(key, NOW));
+
+        cache.put(key, record("A1"), "[]", "submission1", NOW, TTL);
+        cache.put(key, record("A2"), null, null, NOW + 1000, TTL);
+
+        ResultCache.Entry entry = new ResultCache(dir).get(key, NOW + TTL);
+        assertEquals(record("A2"), entry.record);
+        assertNull(entry.dependentsInfo);
+        assertNull(entry.submissionId);
+        assertEquals(NOW + 1000, entry.savedMillis);
+
+        assertNull(cache.get(key, NOW + 1000 + TTL));
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void invalidatesAndPurges() throws Exception {
+        cache.put("a", record("A1"), "[{}]", "submission1", NOW, TTL);
+        cache.put("b", record("B1"), null, "submission2", NOW, 2 * TTL);
+        cache.put("c", record("C1"), null, null, NOW, 2 * TTL);
+
+        ResultCache.Entry entry = cache.get("a", NOW);
+        assertEquals("[{}]", entry.dependentsInfo);
+        assertEquals("submission1", entry.submissionId);
+
+        cache.invalidate("c");
+        assertNull(cache.get("c", NOW));
+        assertEquals(1, cache.purge(NOW + TTL));
+        assertNull(cache.get("a", NOW));
+        assertEquals(record("B1"), cache.get("b", NOW + TTL).record);
+    }
+
+    @Test
+    public void dropsUnreadableResults() throws Exception {
+        cache.put("a", record("A1"), null, null, NOW, TTL);
+        File file = dir.listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        assertNull(cache.get("a", NOW));
+        assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,115 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for the single-file archive of a scan.
+ */
+public class ScanArchiveTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("archive").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static ScanRecord record(String fullName) {
+        return new ScanRecord(
+            "01.01.1990", null, "Kabul", "Kabul", null, "P1234567", fullName, null, 34, "F",
+            "content://io.nawa.kobo.mrz.fileprovider/submissions/s1/frontImage.jpg",
+            null, null, null, null, null, null
+        );
+    }
+
+    private File image(String name, int bytes) throws Exception {
+        byte[] data = new byte[bytes];
+        new Random(bytes).nextBytes(data);
+        File file = new File(dir, name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static Map<String, byte[]> read(File archive, Map<String, Integer> methods) throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new FileInputStream(archive))) {
+            ZipEntry entry;
+            byte[] buffer = new byte[8192];
+            while ((entry = zip.getNextEntry()) != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                int read;
+                while ((read = zip.read(buffer)) > 0) {
+                    bytes.write(buffer, 0, read);
+                }
+                entries.put(entry.getName(), bytes.toByteArray());
+                methods.put(entry.getName(), entry.getMethod());
+            }
+        }
+        return entries;
+    }
+
+    @Test
+    public void storesTheImagesAfterTheManifest() throws Exception {
+        Map<String, File> images = new LinkedHashMap<>();
+        images.put("frontImage.jpg", image("frontImage.jpg", 200000));
+        images.put("frontImage_thumb.jpg", image("frontImage_thumb.jpg", 3000));
+        File archive = new File(dir, ScanArchive.FILE_NAME);
+
+        long size = ScanArchive.write(archive, record("Jane Doe"), "[{\"name\":\"A\"}]", images);
+        assertEquals(archive.length(), size);
+
+        Map<String, Integer> methods = new LinkedHashMap<>();
+        Map<String, byte[]> entries = read(archive, methods);
+        assertArrayEquals(
+            new String[] {ScanArchive.MANIFEST, "frontImage.jpg", "frontImage_thumb.jpg"},
+            entries.keySet().toArray(new String[0]));
+        assertEquals(ZipEntry.DEFLATED, (int) methods.get(ScanArchive.MANIFEST));
+        for (Map.Entry<String, File> image : images.entrySet()) {
+            assertEquals(ZipEntry.STORED, (int) methods.get(image.getKey()));
+            assertArrayEquals(Files.readAllBytes(image.getValue().toPath()), entries.get(image.getKey()));
+        }
+    }
+
+    @Test
+    public void manifestHoldsTheFieldsWithoutImageUris() throws Exception {
+        Map<String, File> images = new LinkedHashMap<>();
+        images.put("frontImage.jpg", image("frontImage.jpg", 100));
+        File archive = new File(dir, ScanArchive.FILE_NAME);
+        ScanArchive.write(archive, record("Jane \"JD\" Doe\\\n\u0001"), "[{\"name\":\"A\"}]", images);
+
+        String manifest = new String(read(archive, new LinkedHashMap<>()).get(ScanArchive.MANIFEST), StandardCharsets.UTF_8);
+        assertTrue(manifest.startsWith("{\"format\":" + ScanArchive.FORMAT + ",\"fields\":{"));
+        assertTrue(manifest.contains("\"documentNumber\":\"P1234567\""));
+        assertTrue(manifest.contains("\"Jane \\\"JD\\\" Doe\\\\\\n\\u0001\""));
+        assertTrue(manifest.contains("\"dependentsInfo\":\"[{\\\"name\\\":\\\"A\\\"}]\""));
+        assertTrue(manifest.endsWith("\"images\":{\"frontImage\":\"frontImage.jpg\"}}"));
+        assertFalse(manifest.contains("content://"));
+        assertFalse(manifest.contains(ScanExtras.EXTRA_SCAN_RECORD));
+
+        ScanArchive.write(archive, record("Jane Doe"), null, new LinkedHashMap<>());
+        manifest = new String(read(archive, new LinkedHashMap<>()).get(ScanArchive.MANIFEST), StandardCharsets.UTF_8);
+        assertTrue(manifest.endsWith("\"dependentsInfo\":null,\"images\":{}}"));
+    }
+}
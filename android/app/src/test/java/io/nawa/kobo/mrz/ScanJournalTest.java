@@ -0,0 +1,170 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for recovering journaled scans after the process is killed.
+ */
+public class ScanJournalTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(Files.createTempDirectory("journal").toFile(), ScanJournal.DIRECTORY);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        dir.getParentFile().delete();
+    }
+
+    private static ScanRecord record(String documentNumber) {
+        return new ScanRecord(
+            "01.01.1990", null, "Kabul", "Kabul", null, documentNumber, "Person " + documentNumber, null, 34, "F",
+            "content://io.nawa.kobo.mrz.fileprovider/submissions/" + documentNumber + "/frontImage.jpg",
+            null, null, null, null, null, null
+        );
+    }
+
+    /**
+     * Journals scans in a separate JVM, like the hand-back does, then halts it without running any
+     * shutdown code. Arguments: the journal directory.
+     */
+    public static class KilledProcess {
+        public static void main(String[] args) throws Exception {
+            ScanJournal journal = ScanJournal.open(new File(args[0]));
+            long first = journal.append(record("A1"), "[]", "first");
+            journal.append(record("A2"), null, "second");
+            journal.markDone(first);
+            long third = journal.append(record("A3"), null, "third");
+            if (!journal.awaitDurable(third, TIMEOUT_MILLIS)) {
+                Runtime.getRuntime().halt(2);
+            }
+            // Killed while this scan may still be in flight
+            journal.append(record("A4"), null, "fourth");
+            Runtime.getRuntime().halt(0);
+        }
+    }
+
+    @Test
+    public void recoversDurableScansAfterTheProcessIsKilled() throws Exception {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        Process process = new ProcessBuilder(
+            java, "-cp", System.getProperty("java.class.path"), KilledProcess.class.getName(), dir.getPath()
+        ).inheritIO().start();
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+        assertEquals(0, process.exitValue());
+
+        ScanJournal journal = ScanJournal.open(dir);
+        List<ScanJournal.Entry> recovered = journal.getRecovered();
+
+        assertTrue(recovered.size() == 2 || recovered.size() == 3);
+        assertEquals(record("A2"), recovered.get(0).record);
+        assertEquals("second", recovered.get(0).submissionId);
+        assertEquals(record("A3"), recovered.get(1).record);
+        assertEquals("third", recovered.get(1).submissionId);
+        assertSame(recovered.get(recovered.size() - 1), journal.recover());
+    }
+
+    @Test
+    public void cutsOffATornTail() throws Exception {
+        ScanJournal journal = ScanJournal.open(dir);
+        long first = journal.append(record("A1"), "[{\"fullName\":{}}]", "first");
+        assertTrue(journal.awaitDurable(first, TIMEOUT_MILLIS));
+        File file = new File(dir, ScanJournal.FILE_NAME);
+        long intact = file.length();
+        long second = journal.append(record("A2"), null, "second");
+        assertTrue(journal.awaitDurable(second, TIMEOUT_MILLIS));
+
+        // A kill in the middle of the second write leaves part of its frame behind
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(intact + 11);
+        }
+
+        ScanJournal reopened = ScanJournal.open(dir);
+        ScanJournal.Entry recovered = reopened.recover();
+        assertEquals(record("A1"), recovered.record);
+        assertEquals("[{\"fullName\":{}}]", recovered.dependentsInfo);
+        assertEquals(intact, file.length());
+
+        long third = reopened.append(record("A3"), null, null);
+        assertTrue(reopened.awaitDurable(third, TIMEOUT_MILLIS));
+        assertEquals(record("A3"), ScanJournal.open(dir).recover().record);
+        assertNull(ScanJournal.open(dir).recover().submissionId);
+    }
+
+    @Test
+    public void stopsAtACorruptFrame() throws Exception {
+        ScanJournal journal = ScanJournal.open(dir);
+        journal.append(record("A1"), null, null);
+        long second = journal.append(record("A2"), null, null);
+        assertTrue(journal.awaitDurable(second, TIMEOUT_MILLIS));
+
+        File file = new File(dir, ScanJournal.FILE_NAME);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(file.length() - 1);
+            int last = raf.read();
+            raf.seek(file.length() - 1);
+            raf.write(last ^ 0xFF);
+        }
+
+        List<ScanJournal.Entry> recovered = ScanJournal.open(dir).getRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals(record("A1"), recovered.get(0).record);
+    }
+
+    @Test
+    public void forgetsRecoveredScansOnceDone() throws Exception {
+        ScanJournal journal = ScanJournal.open(dir);
+        journal.append(record("A1"), null, null);
+        assertTrue(journal.awaitDurable(journal.append(record("A2"), null, null), TIMEOUT_MILLIS));
+
+        ScanJournal reopened = ScanJournal.open(dir);
+        ScanJournal.Entry latest = reopened.recover();
+        assertEquals(record("A2"), latest.record);
+        reopened.markDone(latest.sequence);
+
+        // A later activity of the same process is not offered the scan again
+        assertEquals(record("A1"), reopened.recover().record);
+        assertEquals(1, reopened.getRecovered().size());
+        assertTrue(reopened.awaitDurable(reopened.markDone(reopened.recover().sequence), TIMEOUT_MILLIS));
+        assertNull(reopened.recover());
+        assertNull(ScanJournal.open(dir).recover());
+    }
+
+    @Test
+    public void compactsOnceEveryScanIsDone() throws Exception {
+        ScanJournal journal = ScanJournal.open(dir);
+        long first = journal.append(record("A1"), null, null);
+        long second = journal.append(record("A2"), null, null);
+        assertTrue(journal.awaitDurable(journal.markDone(first), TIMEOUT_MILLIS));
+
+        File file = new File(dir, ScanJournal.FILE_NAME);
+        assertEquals(record("A2"), ScanJournal.open(dir).recover().record);
+        long compacted = file.length();
+
+        assertTrue(journal.awaitDurable(journal.markDone(second), TIMEOUT_MILLIS));
+        assertTrue(compacted > 0);
+        assertEquals(0, file.length());
+        assertNull(ScanJournal.open(dir).recover());
+    }
+}
@@ -0,0 +1,132 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * JVM tests for the compact result layout built by {@link ScanExtras}.
+ */
+public class ScanRecordCodecTest {
+
+    private static String dependentsJson(int count) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"address\":{\"description\":\"Kabul, District ").append(i).append("\",\"arabic\":\"\\u06a9\"},")
+                .append("\"dateOfBirth\":{\"day\":1,\"month\":2,\"year\":2010,\"originalDateStringResult\":")
+                .append("{\"description\":\"01.02.2010\",\"latin\":null},\"successfullyParsed\":true},")
+                .append("\"sex\":{\"description\":\"M\"},")
+                .append("\"documentNumber\":{\"description\":\"A").append(i).append("\"},")
+                .append("\"fullName\":{\"description\":\"Dependent ").append(i).append("\"}}");
+        }
+        return json.append(']').toString();
+    }
+
+    private static ScanRecord record(DependentsParser.Result dependents) {
+        return new ScanRecord(
+            "01.01.1990", "Kabul, PD 4", "Kabul", "Kabul", "Qala-e-Fatullah", "P1234567",
+            "Ahmad Shah Zadran", "Mohammad", 34, "M",
+            "content://io.nawa.kobo.mrz.fileprovider/submissions/0123456789abcdef0123456789abcdef/frontImage.jpg",
+            "content://io.nawa.kobo.mrz.fileprovider/submissions/0123456789abcdef0123456789abcdef/backImage.jpg",
+            "content://io.nawa.kobo.mrz.fileprovider/submissions/0123456789abcdef0123456789abcdef/DocumentFace.jpg",
+            "05.06.2020", "\u0627\u0641\u063a\u0627\u0646", "05.06.2030", dependents
+        );
+    }
+
+    @Test
+    public void roundTripsEveryField() throws IOException {
+        ScanRecord original = record(DependentsParser.parse(dependentsJson(3)));
+
+        ScanRecord decoded = ScanRecordCodec.decode(ScanRecordCodec.encode(original));
+
+        assertEquals(original, decoded);
+        assertEquals(3, decoded.dependents.count);
+        assertEquals("A0;A1;A2", decoded.dependents.documentNumber);
+        assertEquals("\u0627\u0641\u063a\u0627\u0646", decoded.documentAdditionalNumber);
+    }
+
+    @Test
+    public void roundTripsNullsAndNegativeAge() throws IOException {
+        ScanRecord original = new ScanRecord(
+            null, null, null, null, null, "", null, null, -1, null,
+            null, null, null, null, null, null, null
+        );
+
+        ScanRecord decoded = ScanRecordCodec.decode(ScanRecordCodec.encode(original));
+
+        assertEquals(original, decoded);
+        assertNull(decoded.dateOfBirth);
+        assertEquals("", decoded.documentNumber);
+        assertEquals(-1, decoded.age);
+        assertNull(decoded.dependents);
+    }
+
+    @Test
+    public void rejectsUnknownVersionAndTruncation() {
+        byte[] encoded = ScanRecordCodec.encode(record(null));
+
+        byte[] newer = encoded.clone();
+        newer[0] = (byte) (ScanRecordCodec.VERSION + 1);
+        try {
+            ScanRecordCodec.decode(newer);
+            fail("Expected an unknown version to be rejected");
+        } catch (IOException expected) {
+        }
+
+        byte[] truncated = new byte[encoded.length / 2];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        try {
+            ScanRecordCodec.decode(truncated);
+            fail("Expected a truncated record to be rejected");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void compactLayoutShrinksTheParcel() {
+        String dependentsInfo = dependentsJson(5);
+        ScanRecord scan = record(DependentsParser.parse(dependentsInfo));
+
+        Map<String, Object> legacy = ScanExtras.build(scan, dependentsInfo, true);
+        Map<String, Object> compact = ScanExtras.build(scan, dependentsInfo, false);
+
+        assertTrue(legacy.containsKey("fullName_dep"));
+        assertTrue(legacy.containsKey("dependentsInfo"));
+        assertFalse(compact.containsKey("fullName_dep"));
+        assertFalse(compact.containsKey("frontImageUri_dep"));
+        assertFalse(compact.containsKey("dependentsInfo"));
+        assertEquals(scan.fullName, compact.get("fullName"));
+        assertEquals(scan.dependents.fullName, compact.get("dependent_fullName"));
+        assertFalse(compact.containsKey(ScanExtras.EXTRA_SCAN_RECORD));
+
+        long legacySize = ParcelSize.of(legacy);
+        long compactSize = ParcelSize.of(compact);
+        assertTrue("compact " + compactSize + " vs legacy " + legacySize, compactSize * 2 < legacySize);
+    }
+
+    @Test
+    public void encodesTheRecordOnlyWhenTheFormNamesIt() throws Exception {
+        ScanRecord scan = record(DependentsParser.parse(dependentsJson(2)));
+        OutputProfile named = OutputProfile.parse("fullName " + ScanExtras.EXTRA_SCAN_RECORD, null);
+
+        Map<String, Object> extras = ScanExtras.build(scan, null, false, named);
+
+        assertEquals(scan.fullName, extras.get("fullName"));
+        assertEquals(scan, ScanRecordCodec.decode((byte[]) extras.get(ScanExtras.EXTRA_SCAN_RECORD)));
+        assertFalse(ScanExtras.build(scan, null, false, OutputProfile.ALL).containsKey(ScanExtras.EXTRA_SCAN_RECORD));
+        assertFalse(ScanExtras.build(scan, null, true, OutputProfile.ALL).containsKey(ScanExtras.EXTRA_SCAN_RECORD));
+    }
+
+    @Test
+    public void parcelSizeFollowsStringPadding() {
+        assertEquals(4, ParcelSize.ofString(null));
+        assertEquals(8, ParcelSize.ofString(""));
+        assertEquals(12, ParcelSize.ofString("ab"));
+        assertEquals(4 + 8, ParcelSize.ofValue(new byte[5]));
+    }
+}
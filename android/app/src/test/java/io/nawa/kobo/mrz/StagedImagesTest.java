@@ -0,0 +1,138 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for the lifecycle of images staged ahead of their hand-back.
+ */
+public class StagedImagesTest {
+
+    private File cacheDir;
+    private SubmissionCache cache;
+    private ExecutorService writer;
+    private ExecutorService cleanup;
+    private StagedImages staged;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = Files.createTempDirectory("staged").toFile();
+        cache = new SubmissionCache(cacheDir);
+        writer = Executors.newSingleThreadExecutor();
+        cleanup = Executors.newSingleThreadExecutor();
+        staged = new StagedImages(cache, cleanup);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.shutdownNow();
+        cleanup.shutdownNow();
+        cache.discard(new File(cacheDir, SubmissionCache.DIRECTORY));
+        cacheDir.delete();
+    }
+
+    private StagedImages.Scan stage() throws Exception {
+        return stage(new CountDownLatch(1), new CountDownLatch(0));
+    }
+
+    /**
+     * Stages a scan whose front image is written once the gate opens.
+     *
+     * @param started Counted down when the write starts.
+     */
+    private StagedImages.Scan stage(CountDownLatch started, CountDownLatch gate) throws Exception {
+        StagedImages.Scan scan = new StagedImages.Scan(cache.newStagingDir(), null);
+        scan.submit(writer, "frontImage", () -> {
+            started.countDown();
+            gate.await();
+            File file = new File(scan.dir, "frontImage.jpg");
+            Files.write(file.toPath(), new byte[]{1, 2, 3});
+            return file;
+        });
+        assertEquals(scan.dir.getName(), staged.stage(scan));
+        return scan;
+    }
+
+    private void awaitCleanup() throws Exception {
+        cleanup.shutdown();
+        assertTrue(cleanup.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sendsTheStagedImagesOnce() throws Exception {
+        StagedImages.Scan scan = stage();
+
+        StagedImages.Scan sent = staged.take(scan.getId());
+        assertSame(scan, sent);
+        assertTrue(sent.pendingImages.get("frontImage").get().isFile());
+        assertNull(staged.take(scan.getId()));
+        assertFalse(staged.cancel(scan.getId()));
+
+        awaitCleanup();
+        assertTrue(scan.dir.isDirectory());
+    }
+
+    @Test
+    public void rescanningDiscardsTheEarlierScan() throws Exception {
+        StagedImages.Scan first = stage();
+        StagedImages.Scan second = stage();
+
+        assertNull(staged.take(first.getId()));
+        awaitCleanup();
+        assertFalse(first.dir.exists());
+        assertTrue(second.dir.isDirectory());
+        assertSame(second, staged.take(second.getId()));
+    }
+
+    @Test
+    public void cancellingWaitsForTheRunningWrite() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        StagedImages.Scan scan = stage(started, gate);
+        // Once running, cancelling cannot stop the write
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(staged.cancel(scan.getId()));
+        Thread.sleep(50);
+        assertTrue("deleted while the write is running", scan.dir.isDirectory());
+
+        gate.countDown();
+        awaitCleanup();
+        assertFalse(scan.dir.exists());
+        assertNull(staged.take(scan.getId()));
+        assertFalse(staged.cancel(scan.getId()));
+    }
+
+    @Test
+    public void unknownOrCancelledIdsCannotBeSent() throws Exception {
+        StagedImages.Scan scan = stage();
+
+        assertNull(staged.take("unknown"));
+        assertFalse(staged.cancel("unknown"));
+        assertTrue(staged.cancel(scan.getId()));
+        assertNull(staged.take(scan.getId()));
+
+        awaitCleanup();
+        assertFalse(scan.dir.exists());
+    }
+
+    @Test
+    public void discardAllRemovesEveryScan() throws Exception {
+        StagedImages.Scan scan = stage();
+
+        staged.discardAll();
+
+        assertNull(staged.take(scan.getId()));
+        awaitCleanup();
+        assertFalse(scan.dir.exists());
+    }
+}
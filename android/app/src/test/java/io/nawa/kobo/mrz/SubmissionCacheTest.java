@@ -0,0 +1,153 @@
+package io.nawa.kobo.mrz;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JVM tests for the per-submission directories and their eviction.
+ */
+public class SubmissionCacheTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private File cacheDir;
+    private SubmissionCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = Files.createTempDirectory("submissions").toFile();
+        cache = new SubmissionCache(cacheDir);
+    }
+
+    @After
+    public void tearDown() {
+        cache.trim(0, 0, null);
+        cache.discard(new File(cacheDir, SubmissionCache.DIRECTORY));
+        cacheDir.delete();
+    }
+
+    @Test
+    public void identicalSubmissionsShareOneDirectory() throws Exception {
+        File first = commit(new byte[]{1, 2, 3});
+        File second = commit(new byte[]{1, 2, 3});
+        File third = commit(new byte[]{4, 5, 6});
+
+        assertEquals(first, second);
+        assertNotEquals(first, third);
+        assertTrue(new File(first, "frontImage.jpg").isFile());
+        assertEquals(2, new File(cacheDir, SubmissionCache.DIRECTORY).list().length);
+    }
+
+    @Test
+    public void evictsOldestSubmissionsOverBudget() throws Exception {
+        File oldest = commit(new byte[1000]);
+        File middle = commit(new byte[1001]);
+        File newest = commit(new byte[1002]);
+        oldest.setLastModified(System.currentTimeMillis() - 3000);
+        middle.setLastModified(System.currentTimeMillis() - 2000);
+
+        long freed = cache.trim(2100, DAY, null);
+
+        assertEquals(1000, freed);
+        assertFalse(oldest.exists());
+        assertTrue(middle.exists());
+        assertTrue(newest.exists());
+        assertEquals(2003, cache.getTotalBytes());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedSubmissionsFirst() throws Exception {
+        File reused = commit(new byte[1000]);
+        File served = commit(new byte[1001]);
+        File unused = commit(new byte[1002]);
+        File newest = commit(new byte[1003]);
+        long now = System.currentTimeMillis();
+        reused.setLastModified(now - 4000);
+        served.setLastModified(now - 3000);
+        unused.setLastModified(now - 2000);
+        newest.setLastModified(now - 1000);
+
+        // Committing identical images again and handing back a stored scan both count as a use
+        assertEquals(reused, commit(new byte[1000]));
+        assertTrue(cache.touch(served));
+        cache.trim(2100, DAY, null);
+
+        assertTrue(reused.exists());
+        assertTrue(served.exists());
+        assertFalse(unused.exists());
+        assertFalse(newest.exists());
+        assertFalse(cache.touch(unused));
+    }
+
+    @Test
+    public void evictsExpiredSubmissionsButKeepsNewestAndPinned() throws Exception {
+        File pinned = commit(new byte[]{1});
+        File expired = commit(new byte[]{2});
+        File newest = commit(new byte[]{3});
+        pinned.setLastModified(System.currentTimeMillis() - 10 * DAY);
+        expired.setLastModified(System.currentTimeMillis() - 9 * DAY);
+        newest.setLastModified(System.currentTimeMillis() - 8 * DAY);
+
+        cache.trim(Long.MAX_VALUE, DAY, pinned);
+
+        assertTrue(pinned.exists());
+        assertFalse(expired.exists());
+        assertTrue(newest.exists());
+    }
+
+    @Test
+    public void keepsPinnedSubmissionsUntilUnpinned() throws Exception {
+        File batched = commit(new byte[]{1});
+        File newest = commit(new byte[]{2});
+        batched.setLastModified(System.currentTimeMillis() - 10 * DAY);
+        cache.pin(cache.getSubmissionDir(batched.getName()));
+
+        cache.trim(Long.MAX_VALUE, DAY, null);
+        assertTrue(batched.exists());
+
+        cache.unpin(batched);
+        cache.trim(Long.MAX_VALUE, DAY, null);
+        assertFalse(batched.exists());
+        assertTrue(newest.exists());
+    }
+
+    @Test
+    public void sharesOneCachePerDirectory() throws Exception {
+        SubmissionCache first = SubmissionCache.get(cacheDir);
+        SubmissionCache second = SubmissionCache.get(new File(cacheDir.getPath()));
+        assertSame(first, second);
+        assertNotSame(first, SubmissionCache.get(new File(cacheDir, "other")));
+
+        // A pin of one activity holds against the trim queued by another
+        File recovered = commit(new byte[]{1});
+        commit(new byte[]{2});
+        recovered.setLastModified(System.currentTimeMillis() - 10 * DAY);
+        first.pin(recovered);
+        second.trim(Long.MAX_VALUE, DAY, null);
+        assertTrue(recovered.exists());
+        first.unpin(recovered);
+    }
+
+    @Test
+    public void removesLegacyFilesFromTheCacheRoot() throws Exception {
+        File legacy = new File(cacheDir, "frontImage.jpg");
+        Files.write(legacy.toPath(), new byte[10]);
+
+        assertEquals(10, cache.trim(Long.MAX_VALUE, DAY, null));
+        assertFalse(legacy.exists());
+    }
+
+    private File commit(byte[] image) throws Exception {
+        File staging = cache.newStagingDir();
+        File file = new File(staging, "frontImage.jpg");
+        Files.write(file.toPath(), image);
+        return cache.commit(staging, Collections.singletonList(file));
+    }
+}
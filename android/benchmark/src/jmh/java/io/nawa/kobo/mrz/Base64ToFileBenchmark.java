@@ -0,0 +1,44 @@
+package io.nawa.kobo.mrz;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Decoding an image received over the bridge into the cache, as done for every image of a scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class Base64ToFileBenchmark {
+
+    @Param({"1", "5", "10"})
+    public int imageMb;
+
+    private BenchmarkContext context;
+    private String dataUrl;
+
+    @Setup
+    public void setUp() throws Exception {
+        context = new BenchmarkContext();
+        dataUrl = Fixtures.dataUrl(Fixtures.image(imageMb * 1024 * 1024, imageMb));
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.delete();
+    }
+
+    @Benchmark
+    public File base64ToFile() throws Exception {
+        return FileUtils.base64ToFile(context, dataUrl, "frontImage.jpg");
+    }
+}
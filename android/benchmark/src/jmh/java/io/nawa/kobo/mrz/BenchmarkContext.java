@@ -0,0 +1,55 @@
+package io.nawa.kobo.mrz;
+
+import android.content.ContextWrapper;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Context shim exposing only what the hand-back path reads: the cache and files directories and
+ * the package name.
+ */
+class BenchmarkContext extends ContextWrapper {
+
+    private final File cacheDir;
+    private final File filesDir;
+
+    BenchmarkContext() throws IOException {
+        super(null);
+        cacheDir = Files.createTempDirectory("kobo-benchmark").toFile();
+        filesDir = Files.createTempDirectory("kobo-benchmark-files").toFile();
+    }
+
+    @Override
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "io.nawa.kobo.mrz";
+    }
+
+    /**
+     * Deletes the cache and files directories and everything in them.
+     */
+    void delete() {
+        delete(cacheDir);
+        delete(filesDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
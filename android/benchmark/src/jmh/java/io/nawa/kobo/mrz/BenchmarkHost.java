@@ -0,0 +1,84 @@
+package io.nawa.kobo.mrz;
+
+import android.content.Intent;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host shim standing in for the activity: captures the result of a hand-back instead of finishing,
+ * and runs the tasks for the UI thread on the calling thread.
+ */
+class BenchmarkHost implements HandBackPipeline.Host, HandBackPipeline.SendDataCallback {
+
+    private volatile CountDownLatch done;
+    private volatile Intent result;
+    private volatile String failure;
+
+    /**
+     * Starts a hand-back with this as its callback and waits for its result.
+     *
+     * @return The result Intent.
+     * @throws IllegalStateException If the hand-back failed or did not finish.
+     */
+    Intent await(Runnable handBack) throws InterruptedException {
+        done = new CountDownLatch(1);
+        result = null;
+        failure = null;
+        handBack.run();
+        if (!done.await(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("The hand-back did not finish");
+        }
+        if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+        return result;
+    }
+
+    @Override
+    public void runOnUiThread(Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public void finishWithResult(Intent intent) {
+        result = intent;
+        done.countDown();
+    }
+
+    @Override
+    public void showError(String message) {
+        // Followed by onFailed, with the cause
+    }
+
+    @Override
+    public void offerRecovered(ScanJournal.Entry entry) {
+        // Nothing to recover in a fresh directory
+    }
+
+    @Override
+    public void offerResult(LaunchOptions options, ResultCache.Entry entry, File submissionDir) {
+        // Results are not kept without a result key
+    }
+
+    @Override
+    public void onScored(Map<String, QualityAnalyzer.Score> scores) {
+    }
+
+    @Override
+    public void onSent() {
+    }
+
+    @Override
+    public void onBatched(int count, int capacity) {
+        failure = "Unexpected batch of " + count;
+        done.countDown();
+    }
+
+    @Override
+    public void onFailed(String message, Map<String, String> imageErrors) {
+        failure = message + " " + imageErrors;
+        done.countDown();
+    }
+}
@@ -0,0 +1,35 @@
+package io.nawa.kobo.mrz;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Flattening dependentsInfo into the dependent columns.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DependentsBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int dependents;
+
+    private String json;
+
+    @Setup
+    public void setUp() {
+        json = Fixtures.dependentsInfo(dependents);
+    }
+
+    @Benchmark
+    public DependentsParser.Result flatten() {
+        return DependentsParser.parse(json);
+    }
+}
@@ -0,0 +1,130 @@
+package io.nawa.kobo.mrz;
+
+import java.io.File;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Synthetic scan payloads shared by the benchmarks.
+ */
+final class Fixtures {
+
+    private static final int PIXELS_WIDTH = QualityAnalyzer.ANALYSIS_EDGE;
+    private static final int PIXELS_HEIGHT = QualityAnalyzer.ANALYSIS_EDGE * 3 / 4;
+    private static final int[] PIXELS = pixels(PIXELS_WIDTH, PIXELS_HEIGHT);
+
+    /**
+     * Runs the quality and face checks on pixels decoded ahead of time, as BitmapFactory is
+     * native; the analysis of the pixels is the one of the device.
+     */
+    static final HandBackPipeline.ImageChecks IMAGE_CHECKS = new HandBackPipeline.ImageChecks() {
+        @Override
+        public QualityAnalyzer.Score score(File image) {
+            return QualityAnalyzer.analyze(PIXELS, PIXELS_WIDTH, PIXELS_HEIGHT);
+        }
+
+        @Override
+        public long faceHash(File face) {
+            return FaceHash.of(PIXELS, PIXELS_WIDTH, PIXELS_HEIGHT);
+        }
+    };
+
+    private Fixtures() {
+    }
+
+    private static int[] pixels(int width, int height) {
+        int[] pixels = new int[width * height];
+        Random random = new Random(width * 31L + height);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return pixels;
+    }
+
+    /**
+     * @return The options of a launch for a form asking for everything, with the passthrough
+     *         image stage since BitmapFactory is native.
+     */
+    static LaunchOptions launchOptions() {
+        return new LaunchOptions(
+            ImageOptions.PASSTHROUGH,
+            SubmissionCache.DEFAULT_MAX_BYTES,
+            SubmissionCache.DEFAULT_MAX_AGE_MILLIS,
+            false,
+            false,
+            false,
+            false,
+            0,
+            ResolutionLadder.NONE,
+            null,
+            0,
+            0,
+            1,
+            OutputProfile.ALL
+        );
+    }
+
+    /**
+     * @return A JPEG-like payload of the given size, random so it cannot be compressed.
+     */
+    static byte[] image(int bytes, long seed) {
+        byte[] image = new byte[bytes];
+        new Random(seed).nextBytes(image);
+        image[0] = (byte) 0xFF;
+        image[1] = (byte) 0xD8;
+        return image;
+    }
+
+    /**
+     * @return The image as the data URL the web layer sends over the bridge.
+     */
+    static String dataUrl(byte[] image) {
+        return "data:image/jpeg;base64," + Base64.getEncoder().encodeToString(image);
+    }
+
+    /**
+     * @return A BlinkID dependentsInfo array with the given number of dependents.
+     */
+    static String dependentsInfo(int count) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"address\":{\"description\":\"Kabul, District ").append(i % 22)
+                .append("\",\"arabic\":\"\\u06a9\\u0627\\u0628\\u0644\",\"location\":[12,40,310,64]},")
+                .append("\"dateOfBirth\":{\"day\":").append(1 + i % 28).append(",\"month\":2,\"year\":2010,")
+                .append("\"originalDateStringResult\":{\"description\":\"01.02.2010\",\"latin\":null},")
+                .append("\"successfullyParsed\":true,\"filledByDomainKnowledge\":false},")
+                .append("\"sex\":{\"description\":\"").append(i % 2 == 0 ? 'M' : 'F').append("\"},")
+                .append("\"documentNumber\":{\"description\":\"A").append(1_000_000 + i).append("\"},")
+                .append("\"fullName\":{\"description\":\"Dependent Number ").append(i).append("\"}}");
+        }
+        return json.append(']').toString();
+    }
+
+    /**
+     * @return Scan fields as read from the web layer, without image URIs.
+     */
+    static IntentUtils.Data fields(int dependents) {
+        return new IntentUtils.Data(
+            "01.01.1990",
+            "Kabul, PD 4, Street 12",
+            "Kabul",
+            "Kabul",
+            "Qala-e-Fatullah",
+            "P1234567",
+            "Ahmad Shah Zadran",
+            "Mohammad Zadran",
+            34,
+            "M",
+            null,
+            null,
+            null,
+            dependents > 0 ? dependentsInfo(dependents) : null,
+            "05.06.2020",
+            "0123-4567-89",
+            "05.06.2030"
+        );
+    }
+}
@@ -0,0 +1,157 @@
+package io.nawa.kobo.mrz;
+
+import android.content.Intent;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The file-backed hand-back of {@link HandBackPipeline#sendData}, from the images received from
+ * the web layer to the result intent: parallel writes into a staging directory, the quality and
+ * duplicate checks, the journal, the commit into the submission cache, URI generation and the
+ * result extras.
+ *
+ * <p>{@link #sendData} takes the images as the Base64 data URLs of {@code sendData}, which stay
+ * on the heap for the whole hand-back like the bridge message. {@link #sendDataByReference} takes
+ * them as files committed by {@link ChunkedUploads}, as {@code sendDataByReference} does, so
+ * they are moved rather than decoded. Each case runs in its own fork holding only its own images;
+ * compare their latency, the allocation reported by the gc profiler and the peak heap reported by
+ * {@link PeakHeapProfiler}.
+ *
+ * <p>Runs the pipeline of the app through a {@link BenchmarkHost} standing in for the activity.
+ * Images use the passthrough image stage and the checks run on pixels decoded ahead of time,
+ * since BitmapFactory is native.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HandBackBenchmark {
+
+    private static final String BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    private static final int DATA_URL_PREFIX = "data:image/jpeg;base64,".length();
+
+    @Param({"1", "4", "10"})
+    public int imageMb;
+
+    private BenchmarkContext context;
+    private BenchmarkHost host;
+    private HandBackPipeline pipeline;
+    private LaunchOptions options;
+    private IntentUtils.Data fields;
+
+    /**
+     * The images as data URLs received over the bridge.
+     */
+    @State(Scope.Benchmark)
+    public static class Base64Images {
+        private final StringBuilder[] images = new StringBuilder[HandBackPipeline.IMAGE_NAMES.length];
+        private int invocation;
+
+        @Setup
+        public void setUp(HandBackBenchmark benchmark) {
+            for (int i = 0; i < images.length; i++) {
+                images[i] = new StringBuilder(Fixtures.dataUrl(Fixtures.image(benchmark.imageMb * 1024 * 1024, i)));
+            }
+        }
+
+        /**
+         * Makes every scan unique, so each commit creates a new submission directory.
+         */
+        @Setup(Level.Invocation)
+        public void nextScan() {
+            invocation++;
+            for (StringBuilder image : images) {
+                image.setCharAt(DATA_URL_PREFIX, BASE64_ALPHABET.charAt(invocation % 64));
+                image.setCharAt(DATA_URL_PREFIX + 1, BASE64_ALPHABET.charAt((invocation / 64) % 64));
+            }
+        }
+    }
+
+    /**
+     * The images as uploads committed to the cache directory, written again before each scan
+     * since the hand-back moves them.
+     */
+    @State(Scope.Benchmark)
+    public static class UploadedImages {
+        private final byte[][] images = new byte[HandBackPipeline.IMAGE_NAMES.length][];
+        private final File[] files = new File[HandBackPipeline.IMAGE_NAMES.length];
+        private File dir;
+        private int invocation;
+
+        @Setup
+        public void setUp(HandBackBenchmark benchmark) throws IOException {
+            for (int i = 0; i < images.length; i++) {
+                images[i] = Fixtures.image(benchmark.imageMb * 1024 * 1024, i);
+            }
+            dir = new File(benchmark.context.getCacheDir(), ChunkedUploads.DIRECTORY);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+        }
+
+        /**
+         * Uploads a unique scan, so each commit creates a new submission directory.
+         */
+        @Setup(Level.Invocation)
+        public void nextScan() throws IOException {
+            invocation++;
+            for (int i = 0; i < images.length; i++) {
+                images[i][2] = (byte) invocation;
+                images[i][3] = (byte) (invocation >> 8);
+                files[i] = new File(dir, HandBackPipeline.IMAGE_NAMES[i] + "-" + invocation + ".jpg");
+                Files.write(files[i].toPath(), images[i]);
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        context = new BenchmarkContext();
+        host = new BenchmarkHost();
+        pipeline = new HandBackPipeline(context, host, Fixtures.IMAGE_CHECKS);
+        options = Fixtures.launchOptions();
+        pipeline.openJournal(options);
+        fields = Fixtures.fields(3);
+    }
+
+    @TearDown(Level.Invocation)
+    public void discardScan() {
+        pipeline.getSubmissionCache().trim(0, 0, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.delete();
+    }
+
+    @Benchmark
+    public Intent sendData(Base64Images base64) throws Exception {
+        Map<String, ImageSource> sources = new LinkedHashMap<>();
+        for (int i = 0; i < base64.images.length; i++) {
+            sources.put(HandBackPipeline.IMAGE_NAMES[i], ImageSource.fromBase64(base64.images[i]));
+        }
+        return host.await(() -> pipeline.sendData(options, null, fields, sources, host));
+    }
+
+    @Benchmark
+    public Intent sendDataByReference(UploadedImages uploaded) throws Exception {
+        Map<String, ImageSource> sources = new LinkedHashMap<>();
+        for (int i = 0; i < uploaded.files.length; i++) {
+            sources.put(HandBackPipeline.IMAGE_NAMES[i], ImageSource.fromFile(uploaded.files[i]));
+        }
+        return host.await(() -> pipeline.sendData(options, null, fields, sources, host));
+    }
+}
@@ -0,0 +1,61 @@
+package io.nawa.kobo.mrz;
+
+import android.content.Intent;
+import android.net.Uri;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building and reading back the result intent. Bundle marshalling itself is native and not
+ * covered; {@link #parcelSize} tracks the bytes it would have to copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IntentExtrasBenchmark {
+
+    @Param({"0", "10", "100"})
+    public int dependents;
+
+    @Param({"false", "true"})
+    public boolean legacyKeys;
+
+    private IntentUtils.Data data;
+    private Intent result;
+
+    @Setup
+    public void setUp() {
+        String submission = "content://io.nawa.kobo.mrz.fileprovider/submissions/0123456789abcdef0123456789abcdef/";
+        data = Fixtures.fields(dependents).withImageUris(
+            Uri.parse(submission + "frontImage.jpg"),
+            Uri.parse(submission + "backImage.jpg"),
+            Uri.parse(submission + "DocumentFace.jpg")
+        );
+        result = new Intent();
+        IntentUtils.addExtras(result, data, legacyKeys);
+    }
+
+    @Benchmark
+    public Intent addExtras() {
+        Intent intent = new Intent();
+        IntentUtils.addExtras(intent, data, legacyKeys);
+        return intent;
+    }
+
+    @Benchmark
+    public IntentUtils.Data extractExtras() {
+        return IntentUtils.extractExtras(result);
+    }
+
+    @Benchmark
+    public long parcelSize() {
+        return ParcelSize.of(ScanExtras.build(data.toRecord(), data.dependentsInfo, legacyKeys));
+    }
+}
@@ -0,0 +1,21 @@
+package androidx.core.content;
+
+import android.content.Context;
+import android.net.Uri;
+import java.io.File;
+
+/**
+ * Benchmark shim for the androidx FileProvider, which ships as an AAR and cannot be used by a
+ * plain JVM module. Builds the same kind of URI without reading the provider paths.
+ */
+public class FileProvider {
+
+    public static Uri getUriForFile(Context context, String authority, File file) {
+        Uri.Builder builder = new Uri.Builder().scheme("content").authority(authority);
+        String relative = context.getCacheDir().toURI().relativize(file.toURI()).getPath();
+        for (String segment : relative.split("/")) {
+            builder.appendPath(segment);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,31 @@
+// Writes the list of web bundle files the Android app preloads into memory, critical chunks
+// first. See AssetCache in the Android project.
+//
+// Usage: node scripts/preload-list.mjs [bundle directory]
+import { readdirSync, readFileSync, statSync, writeFileSync } from 'node:fs';
+import { join, relative, sep } from 'node:path';
+
+const root = process.argv[2] ?? 'dist/kobo-document-scanner/browser';
+const PRELOAD_LIST = 'preload.txt';
+
+function walk(dir) {
+  return readdirSync(dir).flatMap((name) => {
+    const path = join(dir, name);
+    return statSync(path).isDirectory() ? walk(path) : [path];
+  });
+}
+
+const bundlePath = (path) => relative(root, path).split(sep).join('/');
+
+// The scripts and styles index.html loads are needed for the first frame; the other chunks and
+// the translations follow
+const index = readFileSync(join(root, 'index.html'), 'utf8');
+const critical = [...index.matchAll(/(?:src|href)="([^"]+\.(?:js|css))"/g)]
+  .map((match) => match[1].replace(/^\.?\//, ''));
+const rest = walk(root)
+  .map(bundlePath)
+  .filter((path) => /\.(js|css|json)$/.test(path) && !critical.includes(path));
+const paths = [...new Set([...critical, ...rest])];
+writeFileSync(join(root, PRELOAD_LIST), ['# Written by scripts/preload-list.mjs', ...paths].join('\n') + '\n');
+
+console.log(`Listed ${paths.length} files to preload; ${critical.length} critical`);
@@ -13,7 +13,13 @@ import { Storage } from '@capacitor/storage';
 import { BlinkIdScanningService, ScanResult } from '../services/blink-id-scanning.service';
 import { ThemeService } from '../services/theme.service';
 import { TranslationService } from '../services/translation.service';
-import SendData from '../../plugins/send-por-data.plugin';
+import SendData, {
+  BatchState,
+  SendDataFields,
+  SendDataResult,
+  SessionState,
+  uploadImage,
+} from '../../plugins/send-por-data.plugin';
 
 @Component({
     selector: 'app-root',
@@ -41,6 +47,12 @@ export class AppComponent implements OnInit {
   isDarkTheme = false;
   isInfoOpen = false;
   isLanguageDropdownOpen = false;
+  // Set when KoboCollect launched the app to collect several people before returning
+  batch: BatchState | null = null;
+  /** Images the launching form asks for; the others are not uploaded. */
+  private requestedImages = ['frontImage', 'backImage', 'DocumentFace'];
+  /** Images of the last scan being staged natively, resolving to their staging id. */
+  private staging: Promise<string | null> | null = null;
 
   // Language properties
   selectedLanguage = 'en';
@@ -67,6 +79,28 @@ export class AppComponent implements OnInit {
     this.translate.use(this.selectedLanguage);
     this.setTextDirection();
     this.isDarkTheme = this.themeService.isDarkThemeEnabled();
+
+    try {
+      this.applySession(await SendData.getSession());
+      await SendData.addListener('launch', (session) => {
+        // KoboCollect reused the running app for a new record
+        this.scanResults = '';
+        this.errorMessage = '';
+        this.applySession(session);
+      });
+      await SendData.reportReady();
+    } catch {
+      // Not running inside the native app
+    }
+  }
+
+  private applySession(session: SessionState): void {
+    this.batch = session.batch
+      ? { count: session.count, capacity: session.capacity, finished: false }
+      : null;
+    if (session.images) {
+      this.requestedImages = session.images;
+    }
   }
 
   toggleTheme(): void {
@@ -120,6 +154,7 @@ export class AppComponent implements OnInit {
   }
 
   async onScanMultiSideClick(): Promise<void> {
+    this.cancelStaging();
     this.scanResults = '';
     this.errorMessage = '';
     this.isLoading = true;
@@ -139,6 +174,7 @@ export class AppComponent implements OnInit {
   }
 
   async onScanSingleSideClick(): Promise<void> {
+    this.cancelStaging();
     this.scanResults = '';
     this.errorMessage = '';
     this.isLoading = true;
@@ -159,8 +195,10 @@ export class AppComponent implements OnInit {
 
   private processScanResults(results: ScanResult[]): void {
     if (results && results.length > 0) {
+      // Start writing the images natively while the results are formatted and shown
+      const staging = this.stageImages(results[0]);
       this.scanResults = this.formatResults(results);
-      this.sendDataToKoboCollect(results[0]);
+      this.sendDataToKoboCollect(results[0], staging);
     } else {
       this.errorMessage = this.translate.instant('error.cardNotSupported');
       this.snackBar.open(this.errorMessage, this.translate.instant('close'), {
@@ -189,41 +227,131 @@ export class AppComponent implements OnInit {
       .join('\n\n');
   }
 
-  private async sendDataToKoboCollect(result: ScanResult): Promise<void> {
-    try {
-      const frontData = result.frontData;
-      const backData = result.backData;
-      const dependentsInfo =
+  /**
+   * Uploads the images the form asks for and has them decoded and written natively ahead of the
+   * send. Resolves to null if staging is not possible, so the send uploads the images itself.
+   */
+  private stageImages(result: ScanResult): Promise<string | null> {
+    const staging = this.uploadImages(result)
+      .then(([frontImage, backImage, DocumentFace]) =>
+        SendData.stageImages({ frontImage, backImage, DocumentFace })
+      )
+      .then(({ stagingId }) => stagingId)
+      .catch(() => null);
+    this.staging = staging;
+    return staging;
+  }
+
+  private cancelStaging(): void {
+    const staging = this.staging;
+    this.staging = null;
+    staging?.then((stagingId) => stagingId && SendData.cancelStaging({ stagingId })).catch(() => undefined);
+  }
+
+  /**
+   * Streams the images the form asks for to disk in chunks and returns their paths.
+   */
+  private uploadImages(result: ScanResult): Promise<(string | undefined)[]> {
+    return Promise.all(
+      (['frontImage', 'backImage', 'DocumentFace'] as const).map((name) => {
+        const image = result[name];
+        return image && this.requestedImages.includes(name)
+          ? this.retry(() => uploadImage(image), 3, 500)
+          : Promise.resolve(undefined);
+      })
+    );
+  }
+
+  private toSendDataFields(result: ScanResult): SendDataFields {
+    const { frontData, backData } = result;
+    return {
+      dateOfBirth: frontData.dateOfBirth,
+      CoAAddress: frontData.address,
+      province: frontData.province,
+      district: frontData.district,
+      village: frontData.village,
+      documentNumber: frontData.documentNumber,
+      fullName: frontData.fullName,
+      fathersName: frontData.fathersName,
+      age: this.calculateAge(frontData.dateOfBirth || '01.01.1970'),
+      gender: frontData.sex,
+      dependentsInfo:
         typeof result.dependentsInfo === 'string'
           ? result.dependentsInfo
-          : JSON.stringify(result.dependentsInfo || []);
-
-      await this.retry(
-        () =>
-          SendData.sendData({
-            dateOfBirth: frontData.dateOfBirth,
-            CoAAddress: frontData.address,
-            province: frontData.province,
-            district: frontData.district,
-            village: frontData.village,
-            documentNumber: frontData.documentNumber,
-            fullName: frontData.fullName,
-            fathersName: frontData.fathersName,
-            age: this.calculateAge(frontData.dateOfBirth || '01.01.1970'),
-            gender: frontData.sex,
-            frontImage: result.frontImage,
-            backImage: result.backImage,
-            DocumentFace: result.DocumentFace,
-            dependentsInfo,
-            dateOfIssue: backData.dateOfIssue,
-            documentAdditionalNumber: backData.documentAdditionalNumber,
-            dateOfExpiry: backData.dateOfExpiry,
-          }),
-        3,
-        500
-      );
+          : JSON.stringify(result.dependentsInfo || []),
+      dateOfIssue: backData.dateOfIssue,
+      documentAdditionalNumber: backData.documentAdditionalNumber,
+      dateOfExpiry: backData.dateOfExpiry,
+    };
+  }
+
+  private async sendDataToKoboCollect(result: ScanResult, staging: Promise<string | null>): Promise<void> {
+    try {
+      const fields = this.toSendDataFields(result);
+      let sent: SendDataResult | null = null;
+      const stagingId = await staging;
+      if (this.staging === staging) {
+        this.staging = null;
+      }
+      if (stagingId) {
+        try {
+          sent = await SendData.sendStagedData({ ...fields, stagingId });
+        } catch (error) {
+          if (this.isQualityRejection(error)) throw error;
+          // The staged images are gone either way; send the scan the long way
+        }
+      }
+
+      if (!sent) {
+        // Each attempt uploads the images again, as a failed send has already moved or deleted them
+        sent = await this.retry(
+          async () => {
+            const [frontImage, backImage, DocumentFace] = await this.uploadImages(result);
+            return SendData.sendDataByReference({ ...fields, frontImage, backImage, DocumentFace });
+          },
+          3,
+          500,
+          // A rejected capture has to be retaken, resending it would score the same
+          (error) => !this.isQualityRejection(error)
+        );
+      }
+      if (sent.batch) {
+        this.batch = sent.batch;
+        this.snackBar.open(this.translate.instant('batch.saved'), this.translate.instant('close'), {
+          duration: 3000,
+        });
+      }
+    } catch (error) {
+      if (this.isQualityRejection(error)) {
+        this.snackBar.open(this.translate.instant('error.imageQualityRejected'), this.translate.instant('close'), {
+          duration: 5000,
+          panelClass: 'error-snackbar',
+        });
+        return;
+      }
+      this.handleError(error);
+    }
+  }
+
+  private isQualityRejection(error: unknown): boolean {
+    return (error as { code?: string } | null)?.code === 'IMAGE_QUALITY_REJECTED';
+  }
+
+  async onFinishBatchClick(): Promise<void> {
+    if (!this.batch || this.batch.count === 0) {
+      this.snackBar.open(this.translate.instant('batch.empty'), this.translate.instant('close'), {
+        duration: 3000,
+      });
+      return;
+    }
+    this.isLoading = true;
+    try {
+      const finished = await SendData.finishBatch();
+      this.batch = finished.batch ?? null;
     } catch (error) {
       this.handleError(error);
+    } finally {
+      this.isLoading = false;
     }
   }
 
@@ -284,12 +412,17 @@ export class AppComponent implements OnInit {
     });
   }
 
-  private async retry<T>(fn: () => Promise<T>, retries = 3, delay = 500): Promise<T> {
+  private async retry<T>(
+    fn: () => Promise<T>,
+    retries = 3,
+    delay = 500,
+    retryable: (error: unknown) => boolean = () => true
+  ): Promise<T> {
     for (let attempt = 0; attempt < retries; attempt++) {
       try {
         return await fn();
       } catch (error) {
-        if (attempt === retries - 1) throw error;
+        if (attempt === retries - 1 || !retryable(error)) throw error;
         await new Promise((res) => setTimeout(res, delay));
       }
     }
@@ -1,29 +1,237 @@
-import { registerPlugin } from '@capacitor/core';
+import { PluginListenerHandle, registerPlugin } from '@capacitor/core';
+
+/**
+ * Scan fields shared by every send method.
+ */
+export interface SendDataFields {
+  dateOfBirth: string;
+  CoAAddress: string;
+  province: string;
+  district: string;
+  village: string;
+  documentNumber: string;
+  fullName: string;
+  fathersName: string;
+  age: number;
+  gender: string;
+  dependentsInfo: string;
+  dateOfIssue: string;
+  documentAdditionalNumber: string;
+  dateOfExpiry: string;
+}
+
+/**
+ * Totals of one hand-back stage, see {@link HandBackMetrics}.
+ */
+export interface HandBackStageTotals {
+  count: number;
+  failures: number;
+  bytes: number;
+  totalMs: number;
+  maxMs: number;
+}
+
+/**
+ * Timings recorded by the native hand-back path. Span start times are milliseconds of the
+ * device's monotonic clock, so only differences between them are meaningful.
+ */
+export interface HandBackMetrics {
+  appVersion: string | null;
+  device: { manufacturer: string; model: string; sdkInt: number; heapMaxBytes: number };
+  /** Number of spans recorded since the last reset, including those no longer retained. */
+  recorded: number;
+  heapHighWaterBytes: number;
+  /**
+   * Keyed by stage: PLUGIN_ENTRY, IMAGE_WRITE, IMAGE_PROCESS, IMAGE_STREAM, COMMIT, URI_GRANT, EXTRAS, SET_RESULT,
+   * HAND_BACK, FACE_MATCH, ARCHIVE, QUALITY, and the startup phases STARTUP_PROCESS, STARTUP_BRIDGE, STARTUP_LAUNCH,
+   * STARTUP_FIRST_FRAME, STARTUP_WEB_READY and WARM_START.
+   */
+  stages: Record<string, HandBackStageTotals>;
+  spans: { stage: string; startMs: number; durationMs: number; bytes: number; error?: string }[];
+}
+
+/**
+ * Progress of a batch launch, where scans are collected and handed back to KoboCollect together.
+ */
+export interface BatchState {
+  count: number;
+  capacity: number;
+  /** Whether the batch has been handed back and the app is closing. */
+  finished: boolean;
+}
+
+/**
+ * Launch state returned by {@link SendDataPlugin.getSession} and sent with the `launch` event.
+ */
+export interface SessionState {
+  batch: boolean;
+  count: number;
+  capacity: number;
+  /**
+   * Images the launching form asks for, from its `fields` and `images` launch extras. Others are
+   * ignored by the send methods, so they need not be uploaded.
+   */
+  images: string[];
+}
+
+/**
+ * Sharpness and glare of a written image, scored natively before the hand-back.
+ */
+export interface ImageQuality {
+  /** Variance of the Laplacian of the luminance; higher is sharper. */
+  sharpness: number;
+  /** Share of saturated pixels, from 0 to 1. */
+  glare: number;
+}
+
+/**
+ * Result of a send. In batch mode the scan is only added to the batch until it is full.
+ */
+export interface SendDataResult {
+  response: string;
+  batch?: BatchState;
+  /**
+   * Scores keyed by image name. A send whose images fall short of the launch's minSharpness or
+   * maxGlare is rejected with code IMAGE_QUALITY_REJECTED, carrying the scores as well.
+   */
+  quality?: Record<string, ImageQuality>;
+}
+
+/**
+ * Result of {@link SendDataPlugin.importDocumentIndex}.
+ */
+export interface DocumentIndexImport {
+  /** Document numbers that were not known yet. */
+  added: number;
+  /** Documents in the duplicate index after the import. */
+  size: number;
+}
 
 /**
  * Interface for the SendData plugin.
  */
 export interface SendDataPlugin {
-  sendData(options: {
-    dateOfBirth: string;
-    CoAAddress: string;
-    province: string;
-    district: string;
-    village: string;
-    documentNumber: string;
-    fullName: string;
-    fathersName: string;
-    age: number;
-    gender: string;
+  /**
+   * Sends the scan with its images as Base64 data URLs.
+   */
+  sendData(options: SendDataFields & {
     frontImage: string;
     backImage: string;
     DocumentFace: string;
-    dependentsInfo: string;
-    dateOfIssue: string;
-    documentAdditionalNumber: string;
-    dateOfExpiry: string;
-  }): Promise<void>;
+  }): Promise<SendDataResult>;
+
+  /**
+   * Sends the scan with images already uploaded with {@link commitImage}, whose files are moved
+   * into the submission. Any other path is rejected with code INVALID_REFERENCE.
+   */
+  sendDataByReference(options: SendDataFields & {
+    frontImage?: string;
+    backImage?: string;
+    DocumentFace?: string;
+  }): Promise<SendDataResult>;
+
+  /**
+   * Starts decoding and writing uploaded images right after the scan, while the results are shown.
+   * Takes paths as {@link sendDataByReference} does and discards images staged for an earlier scan.
+   * Rejects with code STAGING_UNAVAILABLE when the launch streams images instead.
+   */
+  stageImages(options: {
+    frontImage?: string;
+    backImage?: string;
+    DocumentFace?: string;
+  }): Promise<{ stagingId: string }>;
+
+  /**
+   * Sends the scan with the images staged under `stagingId`, so only the result is left to assemble.
+   * Rejects if they were cancelled, already sent or staged before KoboCollect relaunched the app.
+   */
+  sendStagedData(options: SendDataFields & { stagingId: string }): Promise<SendDataResult>;
+
+  /**
+   * Discards staged images, e.g. when the user rescans.
+   */
+  cancelStaging(options: { stagingId: string }): Promise<{ cancelled: boolean }>;
+
+  /**
+   * Starts a chunked image upload, see {@link uploadImage}.
+   */
+  beginImage(): Promise<{ handle: string }>;
+
+  /**
+   * Decodes the next Base64 chunk of an upload, numbered from 0, straight to its file. A resent
+   * last chunk is ignored; any other failure aborts the upload with code UPLOAD_FAILED.
+   */
+  appendChunk(options: { handle: string; index: number; data: string }): Promise<{ bytes: number }>;
+
+  /**
+   * Completes an upload and returns the image path to pass to {@link sendDataByReference}.
+   */
+  commitImage(options: { handle: string }): Promise<{ path: string }>;
+
+  /**
+   * Discards an upload.
+   */
+  abortImage(options: { handle: string }): Promise<void>;
+
+  /**
+   * Returns the hand-back timings recorded since the app started, optionally clearing them.
+   */
+  getMetrics(options?: { reset?: boolean }): Promise<HandBackMetrics>;
+
+  /**
+   * Returns whether KoboCollect launched the app in batch mode and how many scans were collected.
+   */
+  getSession(): Promise<SessionState>;
+
+  /**
+   * Hands all scans of the batch back to KoboCollect. Rejects with code EMPTY_BATCH if there are none.
+   */
+  finishBatch(): Promise<SendDataResult>;
+
+  /**
+   * Reports that the app is ready to scan, ending the startup trace recorded in the metrics.
+   */
+  reportReady(): Promise<void>;
+
+  /**
+   * Preloads known document numbers into the duplicate check that flags hand-backs with
+   * `duplicateSuspected`. The file holds one number per line and is a path relative to the app
+   * cache directory; paths outside it are rejected with code INVALID_REFERENCE.
+   */
+  importDocumentIndex(options: { path: string }): Promise<DocumentIndexImport>;
+
+  /**
+   * Discards the results kept for re-delivery when KoboCollect relaunches the scanner for a
+   * question it already answered.
+   */
+  clearResultCache(): Promise<void>;
+
+  /**
+   * Called when KoboCollect launches the app again while it is already running.
+   */
+  addListener(eventName: 'launch', listenerFunc: (session: SessionState) => void): Promise<PluginListenerHandle>;
 }
 
 const SendData = registerPlugin<SendDataPlugin>('SendData');
 export default SendData;
+
+/** Base64 characters per bridge message when uploading an image; the native side accepts up to 512K. */
+export const UPLOAD_CHUNK_CHARS = 256 * 1024;
+
+/**
+ * Uploads an image data URL in bounded chunks, so no bridge message grows with the image size.
+ *
+ * @returns The image path to pass to {@link SendDataPlugin.sendDataByReference}.
+ */
+export async function uploadImage(dataUrl: string): Promise<string> {
+  const { handle } = await SendData.beginImage();
+  try {
+    for (let start = 0, index = 0; start < dataUrl.length; start += UPLOAD_CHUNK_CHARS, index++) {
+      await SendData.appendChunk({ handle, index, data: dataUrl.slice(start, start + UPLOAD_CHUNK_CHARS) });
+    }
+    return (await SendData.commitImage({ handle })).path;
+  } catch (error) {
+    await SendData.abortImage({ handle });
+    throw error;
+  }
+}